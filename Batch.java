@@ -0,0 +1,418 @@
+package pain.t;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import pain.t.engine.Document;
+import pain.t.engine.Filter;
+import pain.t.engine.FilterOp;
+import pain.t.engine.ImageDecoder;
+import pain.t.engine.ImageEncoder;
+import pain.t.engine.LayerStack;
+import pain.t.engine.OpCodec;
+import pain.t.engine.Operation;
+import pain.t.engine.ProjectFile;
+import pain.t.engine.Resample;
+import pain.t.engine.TileStore;
+
+/**
+ * Converts images from the command line, without opening a window. Every
+ * image given, or every image in a directory given, is opened, resized,
+ * drawn on with the operations recorded in a project, filtered and saved in
+ * another directory, in that order. Only the engine is used, so it runs
+ * where there is no display.
+ *
+ * Images are converted at the same time, on virtual threads when Java has
+ * them. How many are open at once is limited by how much memory they are
+ * expected to need, so a directory of large photos does not run out of
+ * memory. The number of images converted per second is printed at the end.
+ *
+ * @author Daniel Christensen
+ */
+public class Batch {
+
+    //how the command is used, printed when it is used wrong
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "usage: PainT --batch [options] <image or directory>...",
+            "  --out <dir>            where converted images are saved (required)",
+            "  --format <ext>         save as png, jpg, bmp, gif or tif, the input format by default",
+            "  --resize <w>x<h>       resize, leave one side out to keep the proportions",
+            "  --scale <factor>       resize by a factor, 0.5 halves both sides",
+            "  --ops <project.paint>  draw the operations recorded in a project of a single layer",
+            "  --filter <name>[:p,..] run a filter: blur:r, sharpen:r,amount, grayscale,",
+            "                         brightness_contrast:b,c or levels:inB,inW,gamma,outB,outW",
+            "  --memory <MB>          memory the open images may use, half the heap by default");
+
+    //bytes per permit of the memory budget
+    private static final int KB = 1024;
+
+    //images to convert, and where they go
+    private final List<File> inputs = new ArrayList<File>();
+    private File out;
+
+    //format to save as, null keeps the format of each image
+    private String format;
+
+    //new size, 0 for a side that follows the other one, or a factor
+    private int width, height;
+    private double scale;
+
+    //the recorded operations, encoded so each image gets its own copies
+    private byte[] recorded;
+    private int recordedCount;
+
+    //filters run after the operations
+    private final List<Filter> filters = new ArrayList<Filter>();
+
+    //memory the open images may use, in KB
+    private int budget = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / KB);
+    private Semaphore memory;
+
+    //images converted and failed so far, and their pixels
+    private final AtomicInteger converted = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong pixels = new AtomicLong();
+
+    private Batch() {
+    }
+
+    /**
+     * Runs a batch conversion.
+     *
+     * @param args the command line, without the --batch that selected it
+     * @return the exit status: 0 if every image was converted, 1 if some
+     * failed, 2 if the command line was wrong
+     */
+    public static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        Batch batch = new Batch();
+        try {
+            batch.parse(args);
+        } catch (IllegalArgumentException | IOException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        return batch.convertAll();
+    }
+
+    /**
+     * Reads the command line.
+     *
+     * @throws IllegalArgumentException if an option is wrong or missing
+     * @throws IOException if the recorded operations cannot be read
+     */
+    private void parse(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                this.addInput(new File(arg));
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--out":
+                        this.out = new File(value);
+                        break;
+                    case "--format":
+                        this.format = value.toLowerCase(Locale.ROOT);
+                        if (!ImageIO.getImageWritersBySuffix(this.format).hasNext()) {
+                            throw new IllegalArgumentException("Cannot save images as ." + this.format);
+                        }
+                        break;
+                    case "--resize":
+                        int x = value.indexOf('x');
+                        if (x < 0) {
+                            throw new IllegalArgumentException("The size must look like 800x600, 800x or x600");
+                        }
+                        this.width = x == 0 ? 0 : Integer.parseInt(value.substring(0, x));
+                        this.height = x == value.length() - 1 ? 0 : Integer.parseInt(value.substring(x + 1));
+                        if (this.width < 0 || this.height < 0 || this.width + this.height == 0) {
+                            throw new IllegalArgumentException("Bad size " + value);
+                        }
+                        break;
+                    case "--scale":
+                        this.scale = Double.parseDouble(value);
+                        if (!(this.scale > 0)) {
+                            throw new IllegalArgumentException("The scale must be above 0");
+                        }
+                        break;
+                    case "--ops":
+                        this.record(new File(value));
+                        break;
+                    case "--filter":
+                        this.filters.add(Batch.parseFilter(value));
+                        break;
+                    case "--memory":
+                        this.budget = (int) Math.min(Integer.MAX_VALUE, Long.parseLong(value) * KB);
+                        if (this.budget <= 0) {
+                            throw new IllegalArgumentException("The memory must be above 0");
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Bad number for " + arg + ": " + value);
+            }
+        }
+
+        if (this.out == null) {
+            throw new IllegalArgumentException("No output directory, use --out");
+        }
+        if (this.inputs.isEmpty()) {
+            throw new IllegalArgumentException("No images to convert");
+        }
+        if (!this.out.isDirectory() && !this.out.mkdirs()) {
+            throw new IOException("Cannot create " + this.out);
+        }
+    }
+
+    /**
+     * Adds an image, or every image in a directory.
+     */
+    private void addInput(File file) {
+        if (!file.isDirectory()) {
+            if (!file.isFile()) {
+                throw new IllegalArgumentException(file + " does not exist");
+            }
+            this.inputs.add(file);
+            return;
+        }
+
+        //the formats ImageIO reads, and the ones that are mapped
+        Set<String> readable = new HashSet<String>(Arrays.asList(ImageIO.getReaderFileSuffixes()));
+        readable.addAll(Arrays.asList("bmp", "ppm", "pgm"));
+
+        File[] files = file.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File f : files) {
+                if (f.isFile() && readable.contains(ImageEncoder.formatOf(f))) {
+                    this.inputs.add(f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the operations recorded in a project and keeps them encoded. The
+     * journal does not tell which layer each operation was drawn on, so only
+     * projects of a single layer can be replayed onto an image.
+     *
+     * @throws IllegalArgumentException if the project has several layers
+     */
+    private void record(File project) throws IOException {
+        ProjectFile file = ProjectFile.open(project);
+        LayerStack layers = file.getLayers();
+        if (layers != null && layers.getCount() > 1) {
+            throw new IllegalArgumentException(project + " has " + layers.getCount()
+                    + " layers, only the operations of a project with a single layer can be drawn");
+        }
+        List<Operation> ops = file.getOperations();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+            for (Operation op : ops) {
+                OpCodec.write(data, op);
+            }
+        }
+        this.recorded = bytes.toByteArray();
+        this.recordedCount = ops.size();
+    }
+
+    /**
+     * Reads a filter from the command line, such as blur:4 or grayscale.
+     */
+    private static Filter parseFilter(String value) {
+        int colon = value.indexOf(':');
+        String name = (colon < 0 ? value : value.substring(0, colon)).toUpperCase(Locale.ROOT);
+        Filter.Kind kind;
+        try {
+            kind = Filter.Kind.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown filter " + value);
+        }
+
+        String[] parts = colon < 0 ? new String[0] : value.substring(colon + 1).split(",");
+        double[] p = new double[parts.length];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = Double.parseDouble(parts[i]);
+        }
+        return Filter.create(kind, p);
+    }
+
+    /**
+     * Converts every image, several at once, and prints how fast it went.
+     *
+     * @return the exit status
+     */
+    private int convertAll() {
+        this.memory = new Semaphore(this.budget);
+        ExecutorService executor = Batch.executor();
+        long start = System.nanoTime();
+
+        for (File file : this.inputs) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    convertLogged(file);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d converted, %d failed in %.2f s: %.2f images/s, %.1f megapixels/s%n",
+                this.converted.get(), this.failed.get(), seconds,
+                this.converted.get() / seconds, this.pixels.get() / 1e6 / seconds);
+        return this.failed.get() == 0 ? 0 : 1;
+    }
+
+    /**
+     * Runs tasks on virtual threads when Java has them, one per task, or on
+     * one thread per core otherwise. Either way the memory budget decides how
+     * many images are open at once.
+     */
+    private static ExecutorService executor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    /**
+     * Converts an image once its memory is available, and prints the result.
+     */
+    private void convertLogged(File file) {
+        long start = System.nanoTime();
+        int permits = 0;
+        try {
+            Dimension size = ImageDecoder.readSize(file);
+            int needed = this.permits(size.width, size.height);
+            this.memory.acquire(needed);
+            permits = needed;
+
+            File target = this.convert(file);
+            this.converted.incrementAndGet();
+            this.pixels.addAndGet((long) size.width * size.height);
+            System.out.printf("%s -> %s (%d ms)%n", file, target, (System.nanoTime() - start) / 1000000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.failed.incrementAndGet();
+        } catch (Exception | OutOfMemoryError ex) {
+            this.failed.incrementAndGet();
+            System.err.println(file + " failed: " + ex.getMessage());
+        } finally {
+            this.memory.release(permits);
+        }
+    }
+
+    /**
+     * Works out how much of the memory budget converting an image takes: the
+     * decoded image and its tiles, the resized pixels and the copy the
+     * encoder writes from. An image larger than the whole budget takes all
+     * of it, so it is converted alone.
+     */
+    private int permits(int w, int h) {
+        Dimension to = this.sizeFor(w, h);
+        long bytes = 4L * (2L * w * h + (long) to.width * h + 2L * to.width * to.height);
+        if (!this.filters.isEmpty()) {
+            bytes += 4L * to.width * to.height;
+        }
+        return (int) Math.max(1, Math.min(this.budget, bytes / KB));
+    }
+
+    /**
+     * Works out the size of a converted image.
+     */
+    private Dimension sizeFor(int w, int h) {
+        if (this.scale > 0) {
+            return new Dimension(Math.max(1, (int) Math.round(w * this.scale)), Math.max(1, (int) Math.round(h * this.scale)));
+        }
+        if (this.width > 0 && this.height > 0) {
+            return new Dimension(this.width, this.height);
+        }
+        if (this.width > 0) {
+            return new Dimension(this.width, Math.max(1, (int) Math.round(h * (double) this.width / w)));
+        }
+        if (this.height > 0) {
+            return new Dimension(Math.max(1, (int) Math.round(w * (double) this.height / h)), this.height);
+        }
+        return new Dimension(w, h);
+    }
+
+    /**
+     * Converts one image.
+     *
+     * @return the file it was saved into
+     */
+    private File convert(File file) throws IOException {
+        TileStore store = Document.open(file).getStore();
+
+        Dimension to = this.sizeFor(store.getWidth(), store.getHeight());
+        if (to.width != store.getWidth() || to.height != store.getHeight()) {
+            store = Resample.resize(store, to.width, to.height);
+        }
+
+        //the operations are decoded again for every image, they keep state while drawing
+        if (this.recorded != null) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(this.recorded));
+            for (int i = 0; i < this.recordedCount; i++) {
+                Batch.draw(store, OpCodec.read(in));
+            }
+        }
+        for (Filter filter : this.filters) {
+            Batch.draw(store, new FilterOp(filter));
+        }
+
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String ext = this.format != null ? this.format : ImageEncoder.formatOf(file);
+        if (!ImageIO.getImageWritersBySuffix(ext).hasNext()) {
+            ext = "png";
+        }
+        File target = new File(this.out, (dot < 0 ? name : name.substring(0, dot)) + "." + ext);
+        new Document(store).save(target);
+        return target;
+    }
+
+    /**
+     * Draws an operation, nothing is kept to undo it.
+     */
+    private static void draw(TileStore store, Operation op) {
+        Rectangle clip = op.getBounds(store).intersection(new Rectangle(0, 0, store.getWidth(), store.getHeight()));
+        if (!clip.isEmpty()) {
+            op.draw(store, clip);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package pain.t;
+
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Bounds;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Node;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import pain.t.engine.Pixels;
+import pain.t.engine.TileStore;
+
+/**
+ * A cached picture of everything drawn on the canvas, shared by the eye
+ * dropper, the selection tool and saving. When every shape has been drawn
+ * into the raster layer, the layer's tiles are read directly. When shapes are
+ * still on the canvas as nodes, the picture is kept as tiles that are only
+ * rendered again once an edit touched them.
+ *
+ * @author Daniel Christensen
+ */
+public class CanvasSnapshot {
+
+    //the canvas to take pictures of
+    private final MyCanvas canvas;
+
+    //the canvas' pixels
+    private final RasterLayer raster;
+
+    //rendered picture of the canvas, including its shape nodes
+    private final TileStore cache;
+
+    //version of each raster tile when the cached tile was rendered
+    private final int[] seen;
+
+    //true for cached tiles that an edit on the shape nodes made out of date
+    private final boolean[] invalid;
+
+    /**
+     * Creates a new snapshot of a canvas. Nothing is rendered until it is read.
+     *
+     * @param canvas the canvas to take pictures of
+     * @param raster the canvas' raster layer
+     */
+    CanvasSnapshot(MyCanvas canvas, RasterLayer raster) {
+        this.canvas = canvas;
+        this.raster = raster;
+
+        TileStore store = raster.getStore();
+        this.cache = new TileStore(store.getWidth(), store.getHeight(), store.getFill());
+        this.seen = new int[store.getTilesX() * store.getTilesY()];
+        this.invalid = new boolean[store.getTilesX() * store.getTilesY()];
+        java.util.Arrays.fill(this.invalid, true);
+    }
+
+    /**
+     * Marks the tiles under a region as out of date. Called when shape nodes are
+     * added, changed or removed.
+     *
+     * @param b the changed region, in canvas coordinates
+     */
+    public void invalidate(Bounds b) {
+        TileStore store = this.raster.getStore();
+        int x0 = Math.max((int) Math.floor(b.getMinX()), 0) / TileStore.TILE_SIZE;
+        int y0 = Math.max((int) Math.floor(b.getMinY()), 0) / TileStore.TILE_SIZE;
+        int x1 = Math.min((int) Math.ceil(b.getMaxX()), store.getWidth() - 1) / TileStore.TILE_SIZE;
+        int y1 = Math.min((int) Math.ceil(b.getMaxY()), store.getHeight() - 1) / TileStore.TILE_SIZE;
+
+        for (int ty = y0; ty <= y1; ty++) {
+            for (int tx = x0; tx <= x1; tx++) {
+                this.invalid[ty * store.getTilesX() + tx] = true;
+            }
+        }
+    }
+
+    /**
+     * Gets the color of one pixel of the canvas.
+     *
+     * @param x pixel x position
+     * @param y pixel y position
+     * @return the ARGB color, or 0 if the position is outside of the canvas
+     */
+    public int getPixel(int x, int y) {
+        TileStore store = this.raster.getStore();
+        if (x < 0 || y < 0 || x >= store.getWidth() || y >= store.getHeight()) {
+            return 0;
+        }
+
+        if (!this.canvas.hasShapes()) {
+            return store.getPixel(x, y);
+        }
+
+        this.refresh(x / TileStore.TILE_SIZE, y / TileStore.TILE_SIZE);
+        return this.cache.getPixel(x, y);
+    }
+
+    /**
+     * Copies a region of the canvas into an array. The region must be inside
+     * the canvas.
+     *
+     * @param x region x position
+     * @param y region y position
+     * @param w region width
+     * @param h region height
+     * @param dst the array to copy into
+     * @param off index in dst of the region's top-left pixel
+     * @param scan distance in dst between two rows
+     */
+    public void read(int x, int y, int w, int h, int[] dst, int off, int scan) {
+        if (!this.canvas.hasShapes()) {
+            this.raster.getStore().read(x, y, w, h, dst, off, scan);
+            return;
+        }
+
+        for (int ty = y / TileStore.TILE_SIZE; ty <= (y + h - 1) / TileStore.TILE_SIZE; ty++) {
+            for (int tx = x / TileStore.TILE_SIZE; tx <= (x + w - 1) / TileStore.TILE_SIZE; tx++) {
+                this.refresh(tx, ty);
+            }
+        }
+        this.cache.read(x, y, w, h, dst, off, scan);
+    }
+
+    /**
+     * @return the width of the canvas in pixels
+     */
+    public int getWidth() {
+        return this.raster.getStore().getWidth();
+    }
+
+    /**
+     * @return the height of the canvas in pixels
+     */
+    public int getHeight() {
+        return this.raster.getStore().getHeight();
+    }
+
+    /**
+     * @return the memory held by the cached picture, in bytes
+     */
+    public long getAllocatedBytes() {
+        return this.cache.getAllocatedBytes();
+    }
+
+    /**
+     * Renders one tile of the canvas again if an edit touched it since it was
+     * last rendered.
+     *
+     * @param tx tile column
+     * @param ty tile row
+     */
+    private void refresh(int tx, int ty) {
+        TileStore store = this.raster.getStore();
+        int i = ty * store.getTilesX() + tx;
+
+        if (!this.invalid[i] && this.seen[i] == store.getVersion(tx, ty)) {
+            return;
+        }
+
+        int x = tx * TileStore.TILE_SIZE;
+        int y = ty * TileStore.TILE_SIZE;
+        int w = Math.min(TileStore.TILE_SIZE, store.getWidth() - x);
+        int h = Math.min(TileStore.TILE_SIZE, store.getHeight() - y);
+
+        //the viewport is in the coordinates of the canvas' parent
+        Bounds b = this.canvas.localToParent(new BoundingBox(x, y, w, h));
+        SnapshotParameters params = new SnapshotParameters();
+        params.setFill(Color.TRANSPARENT);
+        params.setViewport(new Rectangle2D(Math.round(b.getMinX()), Math.round(b.getMinY()), w, h));
+
+        //only the shapes are rendered, the raster layer only shows the tiles on screen
+        Node selection = this.canvas.getSelection();
+        boolean visible = selection.isVisible();
+        selection.setVisible(false);
+        this.raster.setVisible(false);
+        Metrics.SnapshotEvent e = Metrics.beginSnapshot(w, h);
+        WritableImage shot = this.canvas.snapshot(params, null);
+        e.commit();
+        this.raster.setVisible(true);
+        selection.setVisible(visible);
+
+        //the shapes are blended over the layer's pixels
+        int[] tile = this.cache.tileForWrite(tx, ty);
+        int[] shapes = new int[w * h];
+        shot.getPixelReader().getPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), shapes, 0, w);
+        store.read(x, y, w, h, tile, 0, TileStore.TILE_SIZE);
+        for (int row = 0; row < h; row++) {
+            for (int col = 0; col < w; col++) {
+                tile[row * TileStore.TILE_SIZE + col] = Pixels.blend(tile[row * TileStore.TILE_SIZE + col], shapes[row * w + col]);
+            }
+        }
+        this.cache.markDirty(x, y, w, h);
+
+        this.seen[i] = store.getVersion(tx, ty);
+        this.invalid[i] = false;
+    }
+}
@@ -0,0 +1,201 @@
+package pain.t;
+
+import java.io.File;
+import java.io.IOException;
+import javafx.concurrent.Task;
+import javafx.scene.control.Tab;
+import pain.t.engine.MemoryManager;
+import pain.t.engine.RecoveryJournal;
+import pain.t.engine.SessionClient;
+import pain.t.engine.SessionRelay;
+
+/**
+ * A tab holding one open document: its canvas, the viewport showing it, the
+ * file it came from and the journal its changes are written into in case of a
+ * crash. Every tab's memory counts towards the shared budget, and a tab that
+ * is not selected may be asked to give some of it back.
+ *
+ * @author Daniel Christensen
+ */
+public class DocumentTab extends Tab implements MemoryManager.Client {
+
+    //number of untitled documents made so far, for their names
+    private static int untitled = 0;
+
+    //the canvas of the document
+    private final MyCanvas canvas;
+
+    //zooms and scrolls the canvas
+    private final Viewport viewport;
+
+    //The path of the file, empty if it was never saved
+    private String fileLocation = "";
+
+    //the file being written in the background, null if nothing was saved yet
+    private Task<Void> saving;
+
+    //shares the document with other instances, null if it is not shared
+    private SessionClient session;
+
+    //the relay this instance hosts for the session, null if it joined another one
+    private SessionRelay relay;
+
+    //every change to the document is written into it, null if crash recovery is off
+    private RecoveryJournal journal;
+
+    /**
+     * Creates a new tab for a canvas, named as an untitled document.
+     *
+     * @param canvas the canvas of the document
+     */
+    DocumentTab(MyCanvas canvas) {
+        this.canvas = canvas;
+        this.viewport = new Viewport(canvas);
+        this.setContent(this.viewport);
+        this.setText("Untitled " + ++DocumentTab.untitled);
+    }
+
+    /**
+     * @return the canvas of the document
+     */
+    MyCanvas getCanvas() {
+        return this.canvas;
+    }
+
+    /**
+     * @return the viewport showing the canvas
+     */
+    Viewport getViewport() {
+        return this.viewport;
+    }
+
+    /**
+     * @return the path of the document's file, empty if it was never saved
+     */
+    String getFileLocation() {
+        return this.fileLocation;
+    }
+
+    /**
+     * Sets the file of the document, and names the tab after it.
+     *
+     * @param fileLocation the path of the file
+     */
+    void setFileLocation(String fileLocation) {
+        this.fileLocation = fileLocation;
+        this.setText(new File(fileLocation).getName());
+    }
+
+    /**
+     * @return the file being written in the background, null if nothing was
+     * saved yet
+     */
+    Task<Void> getSaving() {
+        return this.saving;
+    }
+
+    /**
+     * @param saving the file being written in the background
+     */
+    void setSaving(Task<Void> saving) {
+        this.saving = saving;
+    }
+
+    /**
+     * @return the journal of the document's changes, null if there is none
+     */
+    RecoveryJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Starts writing every change to the document into a journal of its own.
+     *
+     * @param journal the journal, already opened
+     * @param keep true if the journal was recovered into the document and
+     * carries on after its entries, false to start it from the document as it
+     * is now
+     * @throws IOException if the journal cannot be written, it is closed then
+     */
+    void startJournal(RecoveryJournal journal, boolean keep) throws IOException {
+        try {
+            journal.start(keep, this.canvas.getDocument().getLayers());
+        } catch (IOException ex) {
+            journal.close(false);
+            throw ex;
+        }
+        this.canvas.getDocument().addListener(journal);
+        this.journal = journal;
+    }
+
+    /**
+     * Stops the document's journal and deletes it, once the document is
+     * closed properly and there is nothing to recover.
+     */
+    void closeJournal() {
+        if (this.journal != null) {
+            this.canvas.getDocument().removeListener(this.journal);
+            this.journal.close(true);
+            this.journal = null;
+        }
+    }
+
+    /**
+     * @return the session the document is shared in, null if it is not shared
+     */
+    SessionClient getSession() {
+        return this.session;
+    }
+
+    /**
+     * Shares the document in a session. The canvas stops keeping shapes as
+     * nodes and turns undo off until the session is left.
+     *
+     * @param session the session
+     * @param relay the relay hosted for the session, null if it is someone
+     * else's
+     */
+    void joinSession(SessionClient session, SessionRelay relay) {
+        this.leaveSession();
+        this.session = session;
+        this.relay = relay;
+        this.canvas.setShared(true);
+    }
+
+    /**
+     * Stops sharing the document, and stops the relay if this instance
+     * hosted it. The document keeps its pixels.
+     */
+    void leaveSession() {
+        if (this.session != null) {
+            this.session.close();
+            this.session = null;
+            this.canvas.setShared(false);
+        }
+        if (this.relay != null) {
+            this.relay.close();
+            this.relay = null;
+        }
+    }
+
+    /**
+     * Checks if nothing was done in the tab yet, so an image can be opened in
+     * it instead of a new tab.
+     *
+     * @return true if the document is untitled, unchanged and has no history
+     */
+    boolean isPristine() {
+        return this.fileLocation.isEmpty() && !this.canvas.hasChanged()
+                && this.canvas.getHistory().getDepth() == 0 && !this.canvas.isDisabled() && this.session == null;
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return this.canvas.getImageBytes();
+    }
+
+    @Override
+    public long trim(boolean spill) {
+        return this.canvas.trim(spill);
+    }
+}
@@ -0,0 +1,169 @@
+package pain.t;
+
+import java.util.ArrayList;
+import java.util.List;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.geometry.Insets;
+import javafx.scene.control.ButtonBar;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.Dialog;
+import javafx.scene.control.Label;
+import javafx.scene.control.Slider;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.layout.GridPane;
+import javafx.scene.layout.VBox;
+import javafx.util.Callback;
+import pain.t.engine.Filter;
+import pain.t.engine.FilterOp;
+import pain.t.engine.TileStore;
+
+/**
+ * Asks for the parameters of a filter, with a live preview. The preview is
+ * filtered from a small copy of the canvas every time a slider moves, so it
+ * keeps up with the sliders even on a large image. The whole canvas is only
+ * filtered once the user clicks OK.
+ *
+ * @author Daniel Christensen
+ */
+public class FilterDialog extends Dialog<Filter> {
+
+    //largest width or height of the preview
+    private static final int PREVIEW_SIZE = 400;
+
+    //the filter being set up
+    private final Filter.Kind kind;
+
+    //the small copy of the canvas, and its size compared to the canvas
+    private final TileStore proxy;
+    private final double scale;
+
+    //one slider per parameter of the filter
+    private final List<Slider> sliders = new ArrayList<Slider>();
+
+    //shows the filtered copy
+    private final WritableImage preview;
+
+    /**
+     * Creates a new dialog for a filter.
+     *
+     * @param kind the filter to set up
+     * @param store the pixels of the canvas
+     */
+    FilterDialog(Filter.Kind kind, TileStore store) {
+        this.kind = kind;
+        this.proxy = FilterOp.proxy(store, PREVIEW_SIZE);
+        this.scale = this.proxy.getWidth() / (double) store.getWidth();
+        this.preview = new WritableImage(this.proxy.getWidth(), this.proxy.getHeight());
+
+        this.setTitle(FilterDialog.nameOf(kind));
+        this.setHeaderText(null);
+        this.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+
+        //the sliders for each filter: name, smallest, largest and starting value
+        GridPane grid = new GridPane();
+        grid.setHgap(10);
+        grid.setVgap(5);
+        switch (kind) {
+            case BLUR:
+                this.addSlider(grid, "Radius", 0, 50, 4);
+                break;
+            case SHARPEN:
+                this.addSlider(grid, "Radius", 0, 20, 2);
+                this.addSlider(grid, "Amount", 0, 5, 1);
+                break;
+            case BRIGHTNESS_CONTRAST:
+                this.addSlider(grid, "Brightness", -100, 100, 0);
+                this.addSlider(grid, "Contrast", -100, 100, 0);
+                break;
+            case LEVELS:
+                this.addSlider(grid, "Input black", 0, 255, 0);
+                this.addSlider(grid, "Input white", 0, 255, 255);
+                this.addSlider(grid, "Gamma", 0.1, 5, 1);
+                this.addSlider(grid, "Output black", 0, 255, 0);
+                this.addSlider(grid, "Output white", 0, 255, 255);
+                break;
+            default:
+                break;
+        }
+
+        VBox content = new VBox(10, new ImageView(this.preview), grid);
+        content.setPadding(new Insets(10));
+        this.getDialogPane().setContent(content);
+        this.updatePreview();
+
+        this.setResultConverter(new Callback<ButtonType, Filter>() {
+            @Override
+            public Filter call(ButtonType button) {
+                return button.getButtonData() == ButtonBar.ButtonData.OK_DONE ? getFilter() : null;
+            }
+        });
+    }
+
+    /**
+     * Gets the name of a filter, as shown in the menu.
+     *
+     * @param kind the filter
+     * @return its name
+     */
+    static String nameOf(Filter.Kind kind) {
+        switch (kind) {
+            case BLUR:
+                return "Blur";
+            case SHARPEN:
+                return "Sharpen";
+            case GRAYSCALE:
+                return "Grayscale";
+            case BRIGHTNESS_CONTRAST:
+                return "Brightness/Contrast";
+            default:
+                return "Levels";
+        }
+    }
+
+    /**
+     * @return the filter with the parameters set by the sliders
+     */
+    public Filter getFilter() {
+        double[] p = new double[this.sliders.size()];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = this.sliders.get(i).getValue();
+        }
+        return Filter.create(this.kind, p);
+    }
+
+    /**
+     * Adds a slider for a parameter. The preview is updated as it moves.
+     */
+    private void addSlider(GridPane grid, String name, double min, double max, double value) {
+        Slider slider = new Slider(min, max, value);
+        slider.setShowTickLabels(true);
+        slider.setPrefWidth(250);
+        Label label = new Label(String.format("%.1f", value));
+
+        slider.valueProperty().addListener(new ChangeListener<Number>() {
+            @Override
+            public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number v) {
+                label.setText(String.format("%.1f", v.doubleValue()));
+                updatePreview();
+            }
+        });
+
+        int row = this.sliders.size();
+        grid.add(new Label(name + ":"), 0, row);
+        grid.add(slider, 1, row);
+        grid.add(label, 2, row);
+        this.sliders.add(slider);
+    }
+
+    /**
+     * Filters the small copy of the canvas and shows it.
+     */
+    private void updatePreview() {
+        int[] pixels = FilterOp.preview(this.getFilter().scaled(this.scale), this.proxy);
+        this.preview.getPixelWriter().setPixels(0, 0, this.proxy.getWidth(), this.proxy.getHeight(),
+                PixelFormat.getIntArgbInstance(), pixels, 0, this.proxy.getWidth());
+    }
+}
@@ -0,0 +1,85 @@
+package pain.t;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import pain.t.engine.AtlasPacker;
+
+/**
+ * The tool bar's icons, read from a single image packed by AtlasPacker. Each
+ * icon is shown by a view of its part of the atlas, so the atlas is decoded
+ * once. Icons missing from the atlas, or every icon if there is no atlas, are
+ * read from their own files in "Images/".
+ *
+ * @author Daniel Christensen
+ */
+class IconAtlas {
+
+    //the packed icons, null if there is no atlas
+    private Image atlas;
+
+    //where each icon is in the atlas
+    private final Map<String, Rectangle2D> regions = new HashMap<String, Rectangle2D>();
+
+    /**
+     * Reads the atlas and its index, if they were packed.
+     */
+    IconAtlas() {
+        InputStream image = this.getClass().getResourceAsStream("Images/" + AtlasPacker.ATLAS);
+        InputStream index = this.getClass().getResourceAsStream("Images/" + AtlasPacker.INDEX);
+        if (image == null || index == null) {
+            return;
+        }
+
+        try (image; BufferedReader in = new BufferedReader(new InputStreamReader(index, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length == 5) {
+                    this.regions.put(parts[0], new Rectangle2D(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]),
+                            Double.parseDouble(parts[3]), Double.parseDouble(parts[4])));
+                }
+            }
+            this.atlas = new Image(image);
+        } catch (IOException | NumberFormatException ex) {
+            //the icons are read one by one instead
+            this.regions.clear();
+        }
+    }
+
+    /**
+     * Makes a view showing an icon.
+     *
+     * @param name the icon's file name in "Images/", without the extension
+     * @param size width and height to show the icon at
+     * @return the view, or null if there is no such icon
+     */
+    ImageView view(String name, double size) {
+        ImageView view;
+        Rectangle2D region = this.regions.get(name);
+        if (this.atlas != null && region != null) {
+            view = new ImageView(this.atlas);
+            view.setViewport(region);
+        } else {
+            InputStream in = this.getClass().getResourceAsStream("Images/" + name + ".png");
+            if (in == null) {
+                return null;
+            }
+            try (in) {
+                view = new ImageView(new Image(in));
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+        view.setFitWidth(size);
+        view.setFitHeight(size);
+        return view;
+    }
+}
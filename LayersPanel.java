@@ -0,0 +1,188 @@
+package pain.t;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.geometry.Insets;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.Slider;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.util.Callback;
+import pain.t.engine.BlendMode;
+import pain.t.engine.Layer;
+
+/**
+ * A panel listing the layers of the canvas, the top one first. The selected
+ * layer is the one drawn on. Layers can be added, removed, moved, hidden, and
+ * their opacity and blend mode changed. Like the tool bar, it is used on the
+ * canvas of the document that is selected.
+ *
+ * @author Daniel Christensen
+ */
+public class LayersPanel extends VBox {
+
+    //the layers, the top one first
+    private final ListView<Layer> list = new ListView<Layer>();
+
+    //opacity of the selected layer, in percent
+    private final Slider opacity = new Slider(0, 100, 100);
+
+    //blend mode of the selected layer
+    private final ComboBox<BlendMode> mode = new ComboBox<BlendMode>();
+
+    //the canvas whose layers are listed
+    private MyCanvas canvas;
+
+    //true while the controls are set from the canvas, so they do not set it back
+    private boolean updating = false;
+
+    //lists the layers again when they change
+    private final InvalidationListener changed = new InvalidationListener() {
+        @Override
+        public void invalidated(Observable o) {
+            refresh();
+        }
+    };
+
+    /**
+     * Creates a panel listing the layers of a canvas.
+     *
+     * @param c the canvas whose layers are listed
+     */
+    LayersPanel(MyCanvas c) {
+        this.setSpacing(5);
+        this.setPadding(new Insets(10));
+        this.setPrefWidth(180);
+
+        //each layer is shown with a box to hide it
+        this.list.setCellFactory(new Callback<ListView<Layer>, ListCell<Layer>>() {
+            @Override
+            public ListCell<Layer> call(ListView<Layer> view) {
+                return new ListCell<Layer>() {
+                    @Override
+                    protected void updateItem(Layer layer, boolean empty) {
+                        super.updateItem(layer, empty);
+                        if (empty || layer == null) {
+                            this.setGraphic(null);
+                            this.setText(null);
+                            return;
+                        }
+                        CheckBox visible = new CheckBox();
+                        visible.setSelected(layer.isVisible());
+                        visible.setOnAction(new EventHandler<ActionEvent>() {
+                            @Override
+                            public void handle(ActionEvent e) {
+                                canvas.setLayerVisible(canvas.getLayers().indexOf(layer), visible.isSelected());
+                            }
+                        });
+                        this.setGraphic(visible);
+                        this.setText(layer.getName());
+                    }
+                };
+            }
+        });
+
+        //the selected layer is drawn on
+        this.list.getSelectionModel().selectedIndexProperty().addListener(e -> {
+            int selected = list.getSelectionModel().getSelectedIndex();
+            if (!updating && selected >= 0) {
+                canvas.setActiveLayer(list.getItems().size() - 1 - selected);
+            }
+        });
+
+        this.opacity.valueProperty().addListener(e -> {
+            if (!updating) {
+                canvas.setLayerOpacity(canvas.getActiveLayer(), opacity.getValue() / 100);
+            }
+        });
+
+        this.mode.getItems().addAll(BlendMode.values());
+        this.mode.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                if (!updating && mode.getValue() != null) {
+                    canvas.setLayerMode(canvas.getActiveLayer(), mode.getValue());
+                }
+            }
+        });
+
+        Button add = new Button("+");
+        add.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                canvas.addLayer();
+            }
+        });
+
+        Button remove = new Button("-");
+        remove.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                canvas.removeLayer();
+            }
+        });
+
+        Button up = new Button("Up");
+        up.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                canvas.moveLayer(1);
+            }
+        });
+
+        Button down = new Button("Down");
+        down.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                canvas.moveLayer(-1);
+            }
+        });
+
+        this.getChildren().addAll(new Label("Layers: "), this.list, new HBox(5, add, remove, up, down),
+                new Label("Opacity: "), this.opacity, new Label("Blend Mode: "), this.mode);
+
+        this.setCanvas(c);
+    }
+
+    /**
+     * Lists the layers of another canvas, such as the one of a document that
+     * was just selected.
+     *
+     * @param c the canvas whose layers are listed from now on
+     */
+    void setCanvas(MyCanvas c) {
+        if (this.canvas != null) {
+            this.canvas.layerChangesProperty().removeListener(this.changed);
+        }
+        this.canvas = c;
+        c.layerChangesProperty().addListener(this.changed);
+        this.refresh();
+    }
+
+    /**
+     * Lists the layers of the canvas again and shows the settings of the one
+     * drawn on.
+     */
+    private void refresh() {
+        this.updating = true;
+        List<Layer> layers = new ArrayList<Layer>(this.canvas.getLayers());
+        Collections.reverse(layers);
+        this.list.getItems().setAll(layers);
+        this.list.getSelectionModel().select(layers.size() - 1 - this.canvas.getActiveLayer());
+
+        Layer active = this.canvas.getLayers().get(this.canvas.getActiveLayer());
+        this.opacity.setValue(active.getOpacity() * 100.0 / 255);
+        this.mode.setValue(active.getMode());
+        this.updating = false;
+    }
+}
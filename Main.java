@@ -0,0 +1,19 @@
+package pain.t;
+
+/**
+ * Starts Pain(t). Java starts JavaFX, which needs a display, before it calls
+ * the main method of a class extending Application, so the program starts
+ * from this class instead and PainT decides whether a window is needed at
+ * all. Batch conversions run without one.
+ *
+ * @author Daniel Christensen
+ */
+public class Main {
+
+    /**
+     * @param args the command line arguments, see PainT.main()
+     */
+    public static void main(String[] args) {
+        PainT.main(args);
+    }
+}
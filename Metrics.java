@@ -0,0 +1,512 @@
+package pain.t;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
+import javafx.event.Event;
+import javafx.event.EventHandler;
+import javafx.scene.Scene;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Counters and Flight Recorder events showing where time goes while drawing.
+ * Mouse handlers, canvas snapshots, opening and saving are timed as they run.
+ * Frames are timed with the scene's pulse listeners, which also sample the
+ * number of nodes on the canvas, the depth of the undo history and the memory
+ * held by images.
+ *
+ * The events are only written when a recording is running, for example with
+ * java -XX:StartFlightRecording=filename=paint.jfr, and can be read in JDK
+ * Mission Control under "Pain(t)". The counters are always kept, and shown by
+ * the MetricsOverlay.
+ *
+ * Startup is timed in phases, from the moment the JVM was launched to the
+ * first frame the tools can be used in. Each phase is recorded as it ends, and
+ * printed too when Pain(t) is run with -Dpain.t.startup.log=true.
+ *
+ * @author Daniel Christensen
+ */
+public final class Metrics {
+
+    //how often the gauges are sampled, in nanoseconds
+    private static final long SAMPLE_INTERVAL = 250_000_000L;
+
+    //weight of the newest value in the running averages
+    private static final double SMOOTHING = 0.1;
+
+    //counters, written by the JavaFX thread and the worker
+    private static final AtomicLong inputs = new AtomicLong();
+    private static final AtomicLong snapshots = new AtomicLong();
+    private static final AtomicLong opens = new AtomicLong();
+    private static final AtomicLong saves = new AtomicLong();
+
+    //frame timing, only touched by the JavaFX thread
+    private static long frames = 0;
+    private static long lastPulse = 0, pulseStart = 0;
+    private static double frameMillis = 0, pulseMillis = 0, latencyMillis = 0;
+    private static double maxFrameMillis = 0, maxLatencyMillis = 0;
+
+    //when the oldest input not drawn yet was received, 0 if everything was drawn
+    private static long pendingInput = 0;
+
+    //gauges, sampled on the JavaFX thread and read by the periodic event
+    private static volatile int nodes = 0, historyDepth = 0;
+    private static volatile long imageBytes = 0, historyBytes = 0;
+    private static long lastSample = 0;
+
+    //when the JVM was launched, and when the previous startup phase ended, in milliseconds
+    private static final long launched = ProcessHandle.current().info().startInstant()
+            .map(Instant::toEpochMilli).orElse(System.currentTimeMillis());
+    private static long lastPhase = launched;
+
+    //true to print each startup phase as it ends
+    private static final boolean startupLog = Boolean.getBoolean("pain.t.startup.log");
+
+    static {
+        //the gauges are written to recordings once per second
+        FlightRecorder.addPeriodicEvent(CanvasEvent.class, new Runnable() {
+            @Override
+            public void run() {
+                CanvasEvent e = new CanvasEvent();
+                e.nodes = nodes;
+                e.historyDepth = historyDepth;
+                e.historyBytes = historyBytes;
+                e.imageBytes = imageBytes;
+                e.inputs = inputs.get();
+                e.snapshots = snapshots.get();
+                e.commit();
+            }
+        });
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Wraps an input handler so every event it handles is counted and timed.
+     *
+     * @param <T> the type of event
+     * @param name what the handler does, such as "mouse pressed"
+     * @param handler the handler to time, may be null
+     * @return the timed handler, or null if handler is null
+     */
+    static <T extends Event> EventHandler<T> timed(String name, EventHandler<T> handler) {
+        if (handler == null) {
+            return null;
+        }
+
+        return new EventHandler<T>() {
+            @Override
+            public void handle(T event) {
+                InputEvent e = Metrics.beginInput(name);
+                try {
+                    handler.handle(event);
+                } finally {
+                    Metrics.endInput(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts timing some work done for an input. The input counts as waiting
+     * to be drawn until the next frame.
+     *
+     * @param name what is being done, such as "drag frame"
+     * @return the event to pass to endInput()
+     */
+    static InputEvent beginInput(String name) {
+        inputs.incrementAndGet();
+        if (pendingInput == 0) {
+            pendingInput = System.nanoTime();
+        }
+
+        InputEvent e = new InputEvent();
+        e.handler = name;
+        e.begin();
+        return e;
+    }
+
+    /**
+     * Finishes timing the work started by beginInput().
+     *
+     * @param e the event returned by beginInput()
+     */
+    static void endInput(InputEvent e) {
+        e.commit();
+    }
+
+    /**
+     * Starts timing a snapshot of part of the canvas.
+     *
+     * @param w width of the snapshot
+     * @param h height of the snapshot
+     * @return the event to commit once the snapshot is taken
+     */
+    static SnapshotEvent beginSnapshot(int w, int h) {
+        snapshots.incrementAndGet();
+        SnapshotEvent e = new SnapshotEvent();
+        e.width = w;
+        e.height = h;
+        e.begin();
+        return e;
+    }
+
+    /**
+     * Starts timing opening or saving a file. The event is committed once the
+     * task doing it is given to track().
+     *
+     * @param open true when opening, false when saving
+     * @param file the file
+     * @return the event to track
+     */
+    static FileEvent beginFile(boolean open, File file) {
+        (open ? opens : saves).incrementAndGet();
+        FileEvent e = new FileEvent();
+        e.open = open;
+        e.file = file.getName();
+        e.begin();
+        return e;
+    }
+
+    /**
+     * Finishes timing a file once the task opening or saving it is done.
+     *
+     * @param task the task reading or writing the file
+     * @param e the event returned by beginFile()
+     */
+    static void track(Task<?> task, FileEvent e) {
+        EventHandler<WorkerStateEvent> done = new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                e.outcome = event.getEventType() == WorkerStateEvent.WORKER_STATE_SUCCEEDED ? "done"
+                        : event.getEventType() == WorkerStateEvent.WORKER_STATE_CANCELLED ? "cancelled" : "failed";
+                e.commit();
+            }
+        };
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_SUCCEEDED, done);
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_FAILED, done);
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_CANCELLED, done);
+    }
+
+    /**
+     * Times the frames of a scene showing a canvas. A pulse is timed from the
+     * moment it starts laying out the scene until the layout is done, and the
+     * frame time is the time between two pulses. Inputs are drawn once the
+     * pulse after them is laid out.
+     *
+     * @param scene the scene to time
+     * @param canvas gives the canvas to sample, the one of the selected document
+     */
+    static void watch(Scene scene, Supplier<MyCanvas> canvas) {
+        scene.addPreLayoutPulseListener(new Runnable() {
+            @Override
+            public void run() {
+                pulseStart = System.nanoTime();
+            }
+        });
+
+        scene.addPostLayoutPulseListener(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                FrameEvent e = new FrameEvent();
+
+                double pulse = (now - pulseStart) / 1e6;
+                pulseMillis += (pulse - pulseMillis) * SMOOTHING;
+                e.pulse = now - pulseStart;
+
+                if (lastPulse != 0) {
+                    double frame = (now - lastPulse) / 1e6;
+                    frameMillis += (frame - frameMillis) * SMOOTHING;
+                    maxFrameMillis = Math.max(maxFrameMillis, frame);
+                    e.frame = now - lastPulse;
+                }
+                lastPulse = now;
+                frames++;
+
+                if (pendingInput != 0) {
+                    double latency = (now - pendingInput) / 1e6;
+                    latencyMillis += (latency - latencyMillis) * SMOOTHING;
+                    maxLatencyMillis = Math.max(maxLatencyMillis, latency);
+                    e.latency = now - pendingInput;
+                    pendingInput = 0;
+                }
+
+                if (now - lastSample >= SAMPLE_INTERVAL) {
+                    lastSample = now;
+                    MyCanvas sampled = canvas.get();
+                    nodes = sampled.getChildren().size();
+                    historyDepth = sampled.getHistory().getDepth();
+                    historyBytes = sampled.getHistory().getSize();
+                    imageBytes = sampled.getImageBytes();
+                }
+
+                e.commit();
+            }
+        });
+    }
+
+    /**
+     * Ends a phase of the program's startup. The time since the JVM was
+     * launched and since the previous phase is recorded, and printed if the
+     * startup log is on.
+     *
+     * @param name what was done during the phase
+     */
+    static void phase(String name) {
+        long now = System.currentTimeMillis();
+        if (startupLog) {
+            System.err.printf("startup: %-24s %5d ms (+%d ms)%n", name, now - launched, now - lastPhase);
+        }
+
+        StartupEvent e = new StartupEvent();
+        e.phase = name;
+        e.sinceLaunch = (now - launched) * 1000000L;
+        e.commit();
+        lastPhase = now;
+    }
+
+    /**
+     * Forgets the longest frame and latency seen so far.
+     */
+    static void resetPeaks() {
+        maxFrameMillis = 0;
+        maxLatencyMillis = 0;
+    }
+
+    /**
+     * @return the average time between two frames, in milliseconds
+     */
+    static double getFrameMillis() {
+        return frameMillis;
+    }
+
+    /**
+     * @return the longest time between two frames, in milliseconds
+     */
+    static double getMaxFrameMillis() {
+        return maxFrameMillis;
+    }
+
+    /**
+     * @return the average time spent laying out a pulse, in milliseconds
+     */
+    static double getPulseMillis() {
+        return pulseMillis;
+    }
+
+    /**
+     * @return the average time between an input and the frame drawing it, in
+     * milliseconds
+     */
+    static double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * @return the longest time between an input and the frame drawing it, in
+     * milliseconds
+     */
+    static double getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    /**
+     * @return the number of frames timed
+     */
+    static long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the number of inputs handled
+     */
+    static long getInputs() {
+        return inputs.get();
+    }
+
+    /**
+     * @return the number of snapshots taken of the canvas
+     */
+    static long getSnapshots() {
+        return snapshots.get();
+    }
+
+    /**
+     * @return the number of files opened
+     */
+    static long getOpens() {
+        return opens.get();
+    }
+
+    /**
+     * @return the number of files saved
+     */
+    static long getSaves() {
+        return saves.get();
+    }
+
+    /**
+     * @return the number of nodes on the canvas when last sampled
+     */
+    static int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the depth of the undo history when last sampled
+     */
+    static int getHistoryDepth() {
+        return historyDepth;
+    }
+
+    /**
+     * @return the memory held by the undo history when last sampled, in bytes
+     */
+    static long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    /**
+     * @return the memory held by the canvas' images when last sampled, in bytes
+     */
+    static long getImageBytes() {
+        return imageBytes;
+    }
+
+    /**
+     * Work done for a mouse or keyboard input.
+     */
+    @Name("pain.t.Input")
+    @Label("Input")
+    @Category("Pain(t)")
+    @Description("A canvas input handler, or the drags it applies once per frame")
+    @StackTrace(false)
+    static class InputEvent extends jdk.jfr.Event {
+
+        @Label("Handler")
+        String handler;
+    }
+
+    /**
+     * A snapshot of part of the canvas, taken to read shapes that are still
+     * nodes.
+     */
+    @Name("pain.t.Snapshot")
+    @Label("Canvas Snapshot")
+    @Category("Pain(t)")
+    static class SnapshotEvent extends jdk.jfr.Event {
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+    }
+
+    /**
+     * Opening or saving a file, including the copy of the canvas made before
+     * saving.
+     */
+    @Name("pain.t.File")
+    @Label("File")
+    @Category("Pain(t)")
+    @StackTrace(false)
+    static class FileEvent extends jdk.jfr.Event {
+
+        @Label("Open")
+        @Description("True when opening, false when saving")
+        boolean open;
+
+        @Label("File")
+        String file;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    /**
+     * The end of a phase of the program's startup.
+     */
+    @Name("pain.t.Startup")
+    @Label("Startup")
+    @Category("Pain(t)")
+    @StackTrace(false)
+    static class StartupEvent extends jdk.jfr.Event {
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Since Launch")
+        @Timespan
+        long sinceLaunch;
+    }
+
+    /**
+     * One pulse of the scene.
+     */
+    @Name("pain.t.Frame")
+    @Label("Frame")
+    @Category("Pain(t)")
+    @StackTrace(false)
+    static class FrameEvent extends jdk.jfr.Event {
+
+        @Label("Pulse")
+        @Description("Time spent laying out the scene")
+        @Timespan
+        long pulse;
+
+        @Label("Frame")
+        @Description("Time since the previous pulse")
+        @Timespan
+        long frame;
+
+        @Label("Input Latency")
+        @Description("Time since the oldest input drawn by this pulse, 0 if there was none")
+        @Timespan
+        long latency;
+    }
+
+    /**
+     * The size of the canvas, sampled once per second.
+     */
+    @Name("pain.t.Canvas")
+    @Label("Canvas")
+    @Category("Pain(t)")
+    @Period("1 s")
+    @StackTrace(false)
+    static class CanvasEvent extends jdk.jfr.Event {
+
+        @Label("Nodes")
+        int nodes;
+
+        @Label("History Depth")
+        int historyDepth;
+
+        @Label("History Memory")
+        @DataAmount
+        long historyBytes;
+
+        @Label("Image Memory")
+        @DataAmount
+        long imageBytes;
+
+        @Label("Inputs")
+        long inputs;
+
+        @Label("Snapshots")
+        long snapshots;
+    }
+}
@@ -0,0 +1,93 @@
+package pain.t;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.geometry.Insets;
+import javafx.scene.control.Label;
+import javafx.scene.layout.Background;
+import javafx.scene.layout.BackgroundFill;
+import javafx.scene.layout.CornerRadii;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.util.Duration;
+
+/**
+ * Shows the live frame time, input latency and counters from Metrics over the
+ * window. The text is only updated a few times per second while the overlay is
+ * shown, so it does not keep the scene busy by itself.
+ *
+ * @author Daniel Christensen
+ */
+public class MetricsOverlay extends Label {
+
+    //how often the text is updated, in milliseconds
+    private static final double REFRESH = 250;
+
+    //updates the text while the overlay is shown
+    private final Timeline refresh;
+
+    /**
+     * Creates a new overlay, hidden until setShowing(true).
+     */
+    public MetricsOverlay() {
+        this.setFont(Font.font("Monospaced", 12));
+        this.setTextFill(Color.WHITE);
+        this.setBackground(new Background(new BackgroundFill(Color.rgb(0, 0, 0, 0.7), new CornerRadii(4), Insets.EMPTY)));
+        this.setPadding(new Insets(6));
+        this.setMouseTransparent(true);
+        this.setVisible(false);
+
+        this.refresh = new Timeline(new KeyFrame(Duration.millis(REFRESH), new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                update();
+            }
+        }));
+        this.refresh.setCycleCount(Animation.INDEFINITE);
+    }
+
+    /**
+     * Shows or hides the overlay. The peaks are forgotten when it is shown.
+     *
+     * @param showing true to show the overlay
+     */
+    public void setShowing(boolean showing) {
+        this.setVisible(showing);
+        if (showing) {
+            Metrics.resetPeaks();
+            this.update();
+            this.refresh.play();
+        } else {
+            this.refresh.stop();
+        }
+    }
+
+    /**
+     * Writes the current metrics into the overlay.
+     */
+    private void update() {
+        this.setText(String.format("frame    %6.1f ms  (max %.1f)%n"
+                + "pulse    %6.1f ms%n"
+                + "latency  %6.1f ms  (max %.1f)%n"
+                + "frames   %8d%n"
+                + "inputs   %8d%n"
+                + "snapshots%8d%n"
+                + "opened   %8d  saved %d%n"
+                + "nodes    %8d%n"
+                + "history  %8d  %d KB%n"
+                + "images   %8d KB",
+                Metrics.getFrameMillis(), Metrics.getMaxFrameMillis(),
+                Metrics.getPulseMillis(),
+                Metrics.getLatencyMillis(), Metrics.getMaxLatencyMillis(),
+                Metrics.getFrames(),
+                Metrics.getInputs(),
+                Metrics.getSnapshots(),
+                Metrics.getOpens(), Metrics.getSaves(),
+                Metrics.getNodes(),
+                Metrics.getHistoryDepth(), Metrics.getHistoryBytes() / 1024,
+                Metrics.getImageBytes() / 1024));
+    }
+}
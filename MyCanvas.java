@@ -1,17 +1,30 @@
 package pain.t;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 import static java.lang.Math.pow;
 import static java.lang.Math.sqrt;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Stack;
-import javafx.embed.swing.SwingFXUtils;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javafx.animation.AnimationTimer;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.collections.ListChangeListener;
+import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
 import javafx.event.EventHandler;
-import javafx.scene.SnapshotParameters;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Node;
 import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.Pane;
 import javafx.scene.paint.Color;
@@ -23,28 +36,76 @@ import javafx.scene.shape.Line;
 import javafx.scene.shape.LineTo;
 import javafx.scene.shape.MoveTo;
 import javafx.scene.shape.Path;
+import javafx.scene.shape.PathElement;
 import javafx.scene.shape.Rectangle;
 import javafx.scene.shape.Shape;
 import javafx.scene.shape.StrokeLineCap;
 import javafx.scene.shape.StrokeLineJoin;
 import javafx.scene.text.Font;
 import javafx.scene.text.Text;
-import javax.imageio.ImageIO;
+import pain.t.engine.BlendMode;
+import pain.t.engine.Command;
+import pain.t.engine.CommandGroup;
+import pain.t.engine.Document;
+import pain.t.engine.FillOp;
+import pain.t.engine.Filter;
+import pain.t.engine.FilterOp;
+import pain.t.engine.History;
+import pain.t.engine.ImageEncoder;
+import pain.t.engine.Layer;
+import pain.t.engine.LayerStack;
+import pain.t.engine.MoveOp;
+import pain.t.engine.Operation;
+import pain.t.engine.Progress;
+import pain.t.engine.ProjectFile;
+import pain.t.engine.ShapeOp;
+import pain.t.engine.StrokeBuffer;
+import pain.t.engine.StrokeOp;
+import pain.t.engine.TextOp;
+import pain.t.engine.TilePatch;
+import pain.t.engine.TileStore;
+import pain.t.engine.WireCodec;
 
 /**
  * 
  * A canvas for displaying images and drawing on. It allows for shapes and Text
  * to be drawn on it. The shapes can be seen changing while dragging the mouse.
- * Colors can also be detected off of it.
+ * Colors can also be detected off of it. The picture itself is a Document, the
+ * canvas turns finished shapes into operations applied to it and displays its
+ * pixels. The pixels are split in layers, operations are applied to the active
+ * layer and the layers composited together are displayed.
  *
  * @author Daniel Christensen
  */
 public class MyCanvas extends Pane {
 
+    //runs saving in the background, one file at a time
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Pain(t) worker");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    //decodes opened images in the background, so opening does not wait for a save
+    private static final ExecutorService loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Pain(t) loader");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     //default dimension values
     private static final double defaultWidth = 800;
     private static final double defaultHeight = 800;
 
+    //how the eraser is shown while it is dragged
+    private static final Color ERASER_PREVIEW = Color.rgb(128, 128, 128, 0.5);
+
     //color to apply for drawing
     private Color LineColor;
 
@@ -57,8 +118,14 @@ public class MyCanvas extends Pane {
     //font size for text
     private double fontSize;
 
-    //the text to display in text mode
-    private String text = MyToolbar.getText();
+    //font for text, changed along with its size
+    private Font font;
+
+    //the text to display in text mode, set by the toolbar's input box
+    private String text = "";
+
+    //width of free hand strokes, only changed by the line width slider
+    private double penWidth = 1;
 
     //keeps track of changes on canvas
     private boolean edit = false;
@@ -69,14 +136,67 @@ public class MyCanvas extends Pane {
     //Mode for the pen
     private Mode mode;
 
-    //a stack to store the undone actions
-    private Stack<Shape> undo = new Stack<Shape>();
+    //the pixels and the actions that can be undone and redone
+    private Document document;
+
+    //the layers of the picture, the document draws into the active one
+    private LayerStack layers;
+
+    //bumped every time layers are added, removed, moved, selected or shown differently
+    private final ReadOnlyIntegerWrapper layerChanges = new ReadOnlyIntegerWrapper();
+
+    //the project the canvas was opened from or last saved into, null if none
+    private ProjectFile project;
+
+    //the move of a selection that was lifted off the picture, null if none
+    private MoveOp lift;
+
+    //the pixels under a lifted selection before its hole was cleared
+    private TilePatch lifted;
+
+    //true if finished shapes are drawn into the raster layer instead of staying as nodes
+    private boolean rasterCommit = true;
+
+    //true while the document is shared with other instances
+    private boolean shared = false;
+
+    //the shape currently being drawn, null when the mouse is not pressed
+    private Shape drawing;
+
+    //points of the free hand stroke being drawn, null when not drawing one
+    private StrokeBuffer stroke;
+
+    //largest distance in pixels between a mouse position and the simplified stroke
+    private double strokeTolerance = 0.75;
+
+    //largest difference in any channel for the paint bucket to spread to a pixel
+    private int fillTolerance = 32;
+
+    //true if the paint bucket also spreads to diagonal neighbors
+    private boolean fillDiagonal = false;
+
+    //last mouse position dragged to, and whether it still has to be applied
+    private double dragX, dragY;
+    private boolean dragPending = false;
+
+    //applies the mouse drags once per frame
+    private AnimationTimer frameTimer;
 
     //selection graphics
     private SelectObject selection = new SelectObject();
 
-    //background
-    private Rectangle background;
+    //selects shapes as objects, and indexes every shape node
+    private ObjectSelection objects = new ObjectSelection(this);
+
+    //background and committed drawings, the layers composited together
+    private RasterLayer raster;
+
+    //cached picture of the canvas, used by the eye dropper, selections and saving
+    private CanvasSnapshot snapshot;
+
+    //the part of the canvas on screen and its zoom, null until the canvas is put in a viewport
+    private Rectangle2D view;
+    private double zoom = 1;
 
     //listeners for color picking events
     private List<EyeDropper> colorPickedListeners = new ArrayList<EyeDropper>();
@@ -85,7 +205,7 @@ public class MyCanvas extends Pane {
      * Allows for these shape types to be drawn
      */
     public enum Pen {
-        FREE_DRAWING, LINE, RECT, SQUARE, CIRCLE, ELLIPSE, TEXT
+        FREE_DRAWING, LINE, RECT, SQUARE, CIRCLE, ELLIPSE, TEXT, FILL
     }
 
     /**
@@ -93,7 +213,7 @@ public class MyCanvas extends Pane {
      * or colors to be grabbed from the eye dropper tool.
      */
     public enum Mode {
-        DRAW, ERASE, SELECT, EYEDROPPER
+        DRAW, ERASE, SELECT, EYEDROPPER, OBJECT
     }
 
     /**
@@ -112,15 +232,36 @@ public class MyCanvas extends Pane {
     public MyCanvas(double w, double h) {
         super();
 
-        //default settings
-        this.LineColor = MyToolbar.getLineColor();
-        this.FillColor = MyToolbar.getFillColor();
+        //default settings, the toolbar sets its own once it is linked to the canvas
+        this.LineColor = Color.BLACK;
+        this.FillColor = Color.TRANSPARENT;
         this.width = 1;
-        this.fontSize = 40;
+        this.setFontSize(40);
 
         //reset the canvas with a specified width and height. Background will be white.
         this.reset(w, h);
 
+        //shapes added or removed from the pane make the cached picture out of date, and are indexed
+        this.getChildren().addListener(new ListChangeListener<Node>() {
+            @Override
+            public void onChanged(ListChangeListener.Change<? extends Node> c) {
+                while (c.next()) {
+                    for (Node n : c.getRemoved()) {
+                        if (isShape(n)) {
+                            snapshot.invalidate(n.getBoundsInParent());
+                            objects.removed(n);
+                        }
+                    }
+                    for (Node n : c.getAddedSubList()) {
+                        if (isShape(n)) {
+                            snapshot.invalidate(n.getBoundsInParent());
+                            objects.added(n);
+                        }
+                    }
+                }
+            }
+        });
+
         /**
          * Event handler for the mouse being pressed on the canvas.
          * Changes outcomes depending on what button the user has selected.
@@ -136,27 +277,26 @@ public class MyCanvas extends Pane {
                     //check if selecting or clicking on existing selection
                     if (selection.getIsHolding()) {
 
-                        //if starting to move current selection, place empty rectangle instead of selection before selection moves
-                        if (!selection.hasMoved()) {
-                            Rectangle r = new Rectangle(selection.getAbsX(), selection.getAbsY(), selection.getWidth(), selection.getHeight());
-                            r.setFill(Color.WHITE);
-                            getChildren().add(getChildren().indexOf(selection), r);
+                        //if starting to move current selection, clear its pixels before selection moves
+                        if (!selection.hasMoved() && lifted == null) {
+                            liftSelection();
                         }
                     } else {
 
                         //if in selection mode, print the content of previous selection
-                        if (selection.getContent() != null) {
-                            getChildren().remove(selection);
-                            getChildren().add(selection.getContent());
-                        }
+                        dropSelection();
 
                         //start a new selection where the user clicked
                         selection.reset(event.getX(), event.getY());
                     }
+                } else if (mode == Mode.OBJECT) {
+                    //pick, move or erase shapes as objects, right click erases
+                    objects.press(event.getX(), event.getY(), event.getButton() == MouseButton.SECONDARY);
                 } else if (mode == Mode.EYEDROPPER) {
                     //in picking mode, 
                     //get the pixel's color at the mouse position
-                    Color color = snapshot(new SnapshotParameters(), null).getPixelReader().getColor((int) event.getX(), (int) event.getY());
+                    int argb = snapshot.getPixel((int) event.getX(), (int) event.getY());
+                    Color color = Color.rgb((argb >> 16) & 0xff, (argb >> 8) & 0xff, argb & 0xff, (argb >>> 24) / 255.0);
 
                     //update drawing color
                     LineColor = color;
@@ -165,14 +305,16 @@ public class MyCanvas extends Pane {
                     for (EyeDropper listener : colorPickedListeners) {
                         listener.colorPicked(color);
                     }
+                } else if (mode == Mode.DRAW && shapeType == Pen.FILL) {
+                    //the paint bucket fills the pixels around the mouse with the line color
+                    fill(event.getX(), event.getY());
                 } else {
                     //if drawing or erasing, start a new drawing as a new shape we add the pane
 
                     //check if in text mode and text has not been set yet
-                    if (mode == Mode.DRAW && shapeType == Pen.TEXT && text == "") {
-                        //Grab text from the Input Box
-                        text = MyToolbar.getText();
-                        
+                    if (mode == Mode.DRAW && shapeType == Pen.TEXT && text.isEmpty()) {
+                        //nothing to write until text is typed in the Input Box
+
                     } else {
                         //otherwise, start a new shape according to the current settings
                         Shape newShape;
@@ -195,21 +337,29 @@ public class MyCanvas extends Pane {
                                 newShape = new Ellipse(event.getX(), event.getY(), 0, 0);
                                 break;
                             case TEXT:
-                                newShape = new Text(event.getX(), event.getY(), MyToolbar.getText());
-                                ((Text) newShape).setFont(new Font(fontSize));
+                                newShape = new Text(event.getX(), event.getY(), text);
+                                ((Text) newShape).setFont(font);
+                                //kept as a bitmap, moving the text does not lay it out again
+                                newShape.setCache(true);
                                 break;
                             default:
                                 newShape = new Path();
                                 newShape.setStrokeLineCap(StrokeLineCap.ROUND);
                                 newShape.setStrokeLineJoin(StrokeLineJoin.ROUND);
                                 ((Path) newShape).getElements().add(new MoveTo(event.getX(), event.getY()));
+                                stroke = new StrokeBuffer(strokeTolerance);
+                                stroke.add(event.getX(), event.getY());
+                                //the finished stroke is drawn from its points, not from the preview
+                                newShape.getProperties().put(StrokeBuffer.class, stroke);
                                 break;
                         }
 
                         if (mode == Mode.ERASE) {
-                            //in erase mode, pen should be a large, white free drawing
-                            newShape.setStroke(Color.WHITE);
-                            newShape.setStrokeWidth(width * 5);
+                            //in erase mode, pen should be a large free drawing, shown until the pixels are erased
+                            newShape.setStroke(ERASER_PREVIEW);
+                            newShape.setFill(null);
+                            newShape.setStrokeWidth(getEraserWidth());
+                            newShape.getProperties().put(Mode.class, Mode.ERASE);
                         } else {
                             //sets the shapes Line and Fill Colors
                             newShape.setStroke(LineColor);
@@ -222,7 +372,7 @@ public class MyCanvas extends Pane {
                                 newShape.setStroke(LineColor);
                                 newShape.setFill(FillColor);
                             } else if (shapeType == Pen.FREE_DRAWING) {
-                                newShape.setStrokeWidth(MyToolbar.getLineWidth());
+                                newShape.setStrokeWidth(penWidth);
                                 newShape.setStroke(LineColor);
                                 //Sets the fill color back to transparent
                                 newShape.setFill(Color.TRANSPARENT);
@@ -236,101 +386,51 @@ public class MyCanvas extends Pane {
 
                         //finalize and add the new shape to the parent
                         getChildren().add(newShape);
+                        drawing = newShape;
                     }
                 }
 
-                //In any case, the canvas has changed and smart save should be triggered when necessary
-                edit = true;
-                undo.clear();
+                //drags are applied once per frame until the mouse is released
+                frameTimer.start();
             }
         });
 
         /**
-         * Mouse dragged event listener: drawing preview. In selection or
-         * drawing modes, update the shape being drawn as to match the new mouse
-         * position. Used to preview the shape or selection until the user
-         * releases the mouse.
+         * Mouse dragged event listener: drawing preview. The mouse position is
+         * only remembered here, the preview is updated once per frame by the
+         * frame timer. Free hand strokes still get every position.
          */
         this.setOnMouseDragged(new EventHandler<MouseEvent>() {
             @Override
             public void handle(MouseEvent event) {
+                dragX = event.getX();
+                dragY = event.getY();
+                dragPending = true;
 
-                //check the current mode
-                if (mode == Mode.SELECT) {
-
-                    //if the user is not moving the selection, update the selection rectangle
-                    if (!selection.getIsHolding()) {
-
-                        selection.setRelativeWidth(event.getX() - selection.getX());
-                        selection.setRelativeHeight(event.getY() - selection.getY());
-
-                        //if the selection rectangle is not visible yet, add it to the pane's children
-                        if (!getChildren().contains(selection)) {
-                            getChildren().add(selection);
-                        }
-                    }
-                } else if (mode != Mode.EYEDROPPER) {
-                    //if in drawing or erasing mode, update the shape being drawn so as to preview it
-
-                    //retrieve last shape from the canvas' children, it is the one being drawn
-                    Shape shape = (Shape) getChildren().get(getChildren().size() - 1);
-
-                    //get mouse position
-                    double mouseX = event.getX();
-                    double mouseY = event.getY();
-
-                    //if in erase mode, use free drawing, otherwise use custom pen
-                    Pen p = mode == Mode.ERASE ? Pen.FREE_DRAWING : shapeType;
-
-                    //otherwise, use the custom pen
-                    switch (p) {
-                        case LINE:
-                            Line l = (Line) shape;
-                            l.setEndX(mouseX);
-                            l.setEndY(mouseY);
-                            break;
-                        case RECT:
-                            MyRectangle r = (MyRectangle) shape;
-                            r.setRelativeWidth(mouseX - r.getX());
-                            r.setRelativeHeight(mouseY - r.getY());
-                            break;
-                        case SQUARE:
-                            MyRectangle sq = (MyRectangle) shape;
-                            sq.setRelativeHeight(mouseY - sq.getY());
-
-                            //for the square, set the width to be equals to the height qnd orient the shqpe to be on the pointer's side
-                            if (mouseX >= sq.getX() && mouseY >= sq.getY() || mouseX < sq.getX() && mouseY < sq.getY()) {
-                                sq.setRelativeWidth(mouseY - sq.getY());
-                            } else {
-                                sq.setRelativeWidth(sq.getY() - mouseY);
-                            }
-                            break;
-                        case CIRCLE:
-                            Circle c = (Circle) shape;
-                            c.setRadius(sqrt(pow(mouseX - c.getCenterX(), 2) + pow(mouseY - c.getCenterY(), 2)));
-                            resize(800, 800);
-                            break;
-                        case ELLIPSE:
-                            Ellipse e = (Ellipse) shape;
-                            e.setRadiusX(sqrt(pow(mouseX - e.getCenterX(), 2)));
-                            e.setRadiusY(sqrt(pow(mouseY - e.getCenterY(), 2)));
-                            resize(800, 800);
-                        case TEXT:
-                            Text t = (Text) shape;
-                            t.setX(mouseX);
-                            t.setY(mouseY);
-                            break;
-                        default:
-                            //free drawing or eraser
-                            Path path = (Path) shape;
-                            path.getElements().add(new LineTo(mouseX, mouseY));
-                            break;
-                    }
+                //every position is part of a free hand stroke, not only the last one of the frame
+                if (stroke != null) {
+                    stroke.add(dragX, dragY);
                 }
             }
         }
         );
 
+        /**
+         * Applies the mouse drags received since the last frame, right before
+         * the frame is drawn.
+         */
+        this.frameTimer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                if (dragPending) {
+                    dragPending = false;
+                    Metrics.InputEvent e = Metrics.beginInput("drag frame");
+                    applyDrag(dragX, dragY);
+                    Metrics.endInput(e);
+                }
+            }
+        };
+
         /**
          * Captures image in box and allows user to grab the image
          */
@@ -339,11 +439,42 @@ public class MyCanvas extends Pane {
             public void handle(MouseEvent event) {
 
                 //selects the image in the box upon release of mouse after dragging the box over canvas
-                if (mode == Mode.SELECT && selection.getContent() == null) {
-                    selection.select();
+                if (mode == Mode.SELECT && !selection.hasContent()) {
+                    selection.select(snapshot);
+                }
+
+                //apply the drags of the frame that has not been drawn yet
+                frameTimer.stop();
+                if (dragPending) {
+                    dragPending = false;
+                    applyDrag(dragX, dragY);
+                }
+
+                if (mode == Mode.OBJECT) {
+                    objects.release();
+                }
+
+                //the shape is finished, draw it into the raster layer
+                if (drawing != null) {
+                    if (stroke != null) {
+                        stroke.trim();
+                    }
+                    snapshot.invalidate(drawing.getBoundsInParent());
+                    if (mode == Mode.ERASE) {
+                        erase((Path) drawing);
+                    } else {
+                        commitShapes(drawing);
+                    }
+                    drawing = null;
+                    stroke = null;
                 }
             }
         });
+
+        //every mouse handler is timed, for the metrics overlay and flight recordings
+        this.setOnMousePressed(Metrics.timed("mouse pressed", this.getOnMousePressed()));
+        this.setOnMouseDragged(Metrics.timed("mouse dragged", this.getOnMouseDragged()));
+        this.setOnMouseReleased(Metrics.timed("mouse released", this.getOnMouseReleased()));
     }
 
     /**
@@ -375,15 +506,125 @@ public class MyCanvas extends Pane {
      * @param background the paint to use as a background to the new canvas.
      */
     public void reset(double w, double h, Paint background) {
+        //an image is copied into the layer, anything else fills it with white
+        if (background instanceof ImagePattern) {
+            this.reset(new RasterLayer(((ImagePattern) background).getImage()));
+        } else {
+            this.reset(new RasterLayer((int) w, (int) h, background instanceof Color ? (Color) background : Color.WHITE));
+        }
+    }
+
+    /**
+     * Erases everything on canvas and replaces the pixels with a new layer.
+     * Also clears the stack for undo and redo.
+     *
+     * @param layer the new pixels of the canvas
+     */
+    private void reset(RasterLayer layer) {
+        if (this.document == null) {
+            this.document = new Document(layer.getStore());
+        }
+        this.setProject(null);
+
         this.getChildren().clear();
         this.selection.empty();
-        this.background = new Rectangle(0, 0, w, h);
-        this.background.setFill(background);
-        this.getChildren().add(this.background);
-        this.undo = new Stack();
+        this.setLayers(new LayerStack(layer.getStore()), layer);
+        this.getChildren().add(this.raster);
+        this.document.getHistory().clear();
+        this.lift = null;
+        this.lifted = null;
+        this.drawing = null;
         this.edit = false;
     }
 
+    /**
+     * Replaces the canvas' document with one rebuilt after a crash. Its
+     * history is kept, so the recovered changes can be undone. The canvas is
+     * marked as changed since the picture was never saved.
+     *
+     * @param recovered the rebuilt document
+     */
+    void recover(Document recovered) {
+        this.setProject(null);
+
+        this.getChildren().clear();
+        this.selection.empty();
+        this.document = recovered;
+        this.setLayers(recovered.getLayers(), new RasterLayer(recovered.getLayers().update()));
+        this.getChildren().add(this.raster);
+        this.lift = null;
+        this.lifted = null;
+        this.drawing = null;
+        this.edit = true;
+    }
+
+    /**
+     * Makes layers the canvas' pixels, without changing the pane's children.
+     * The document draws into the active layer from then on.
+     *
+     * @param stack the new layers of the canvas
+     * @param layer displays the layers composited together
+     */
+    private void setLayers(LayerStack stack, RasterLayer layer) {
+        this.layers = stack;
+        if (this.document.getLayers() != stack) {
+            this.document.setLayers(stack);
+        }
+        this.setRaster(layer);
+        this.layerChanges.set(this.layerChanges.get() + 1);
+    }
+
+    /**
+     * Composites the layers again where they changed and displays the
+     * result. The raster layer is replaced when the picture is not kept in
+     * the same pixels anymore, such as when a second layer is added.
+     */
+    private void showLayers() {
+        TileStore picture = this.layers.update();
+        if (picture == this.raster.getStore()) {
+            this.raster.repaint();
+            return;
+        }
+
+        RasterLayer layer = new RasterLayer(picture);
+        int at = this.getChildren().indexOf(this.raster);
+        this.raster.release();
+        this.setRaster(layer);
+        if (at >= 0) {
+            this.getChildren().set(at, layer);
+        }
+    }
+
+    /**
+     * Makes a layer the canvas' displayed pixels, without changing the pane's
+     * children.
+     *
+     * @param layer the new displayed pixels of the canvas
+     */
+    private void setRaster(RasterLayer layer) {
+        this.raster = layer;
+        this.snapshot = new CanvasSnapshot(this, layer);
+        if (this.view != null) {
+            layer.setView(this.view, this.zoom);
+        } else {
+            layer.repaint();
+        }
+    }
+
+    /**
+     * Sets the part of the canvas on screen, so the raster layer only
+     * displays the tiles inside it. Called by the viewport showing the canvas
+     * whenever it zooms, scrolls or is resized.
+     *
+     * @param view the part of the canvas on screen, in canvas coordinates
+     * @param zoom how many screen pixels one canvas pixel takes
+     */
+    void setView(Rectangle2D view, double zoom) {
+        this.view = view;
+        this.zoom = zoom;
+        this.raster.setView(view, zoom);
+    }
+
     /**
      * Sets a new line color. 
      *
@@ -429,6 +670,25 @@ public class MyCanvas extends Pane {
         this.width = width;
     }
 
+    /**
+     * Sets the width of free hand strokes. Unlike the line width, it is not
+     * changed by the text size slider.
+     *
+     * @param width new free hand stroke width.
+     */
+    public void setPenWidth(double width) {
+        this.penWidth = width;
+    }
+
+    /**
+     * Sets the text written by the text tool.
+     *
+     * @param text the text from the toolbar's input box.
+     */
+    public void setText(String text) {
+        this.text = text;
+    }
+
     /**
      * Gets the line width size currently being used by shapes.
      *
@@ -444,6 +704,10 @@ public class MyCanvas extends Pane {
      * @param fontSize the new text size.
      */
     public void setFontSize(double fontSize) {
+        //every label placed shares the font until the size changes again
+        if (this.font == null || this.fontSize != fontSize) {
+            this.font = new Font(fontSize);
+        }
         this.fontSize = fontSize;
     }
 
@@ -456,6 +720,160 @@ public class MyCanvas extends Pane {
         return this.fontSize;
     }
 
+    /**
+     * Updates the selection or the shape being drawn to match the mouse. Called
+     * at most once per frame with the last position the mouse was dragged to.
+     * Used to preview the shape or selection until the user releases the mouse.
+     *
+     * @param mouseX mouse x position
+     * @param mouseY mouse y position
+     */
+    private void applyDrag(double mouseX, double mouseY) {
+
+        //check the current mode
+        if (mode == Mode.SELECT) {
+
+            //if the user is not moving the selection, update the selection rectangle
+            if (!selection.getIsHolding()) {
+
+                selection.setRelativeWidth(mouseX - selection.getX());
+                selection.setRelativeHeight(mouseY - selection.getY());
+
+                //if the selection rectangle is not visible yet, add it to the pane's children
+                if (!getChildren().contains(selection)) {
+                    getChildren().add(selection);
+                }
+            }
+        } else if (mode == Mode.OBJECT) {
+            objects.drag(mouseX, mouseY);
+        } else if (mode != Mode.EYEDROPPER && drawing != null) {
+            //if in drawing or erasing mode, update the shape being drawn so as to preview it
+            Shape shape = drawing;
+
+            //if in erase mode, use free drawing, otherwise use custom pen
+            Pen p = mode == Mode.ERASE ? Pen.FREE_DRAWING : shapeType;
+
+            //otherwise, use the custom pen
+            switch (p) {
+                case LINE:
+                    Line l = (Line) shape;
+                    l.setEndX(mouseX);
+                    l.setEndY(mouseY);
+                    break;
+                case RECT:
+                    MyRectangle r = (MyRectangle) shape;
+                    r.setRelativeWidth(mouseX - r.getX());
+                    r.setRelativeHeight(mouseY - r.getY());
+                    break;
+                case SQUARE:
+                    MyRectangle sq = (MyRectangle) shape;
+                    sq.setRelativeHeight(mouseY - sq.getY());
+
+                    //for the square, set the width to be equals to the height qnd orient the shqpe to be on the pointer's side
+                    if (mouseX >= sq.getX() && mouseY >= sq.getY() || mouseX < sq.getX() && mouseY < sq.getY()) {
+                        sq.setRelativeWidth(mouseY - sq.getY());
+                    } else {
+                        sq.setRelativeWidth(sq.getY() - mouseY);
+                    }
+                    break;
+                case CIRCLE:
+                    Circle c = (Circle) shape;
+                    c.setRadius(sqrt(pow(mouseX - c.getCenterX(), 2) + pow(mouseY - c.getCenterY(), 2)));
+                    break;
+                case ELLIPSE:
+                    Ellipse e = (Ellipse) shape;
+                    e.setRadiusX(sqrt(pow(mouseX - e.getCenterX(), 2)));
+                    e.setRadiusY(sqrt(pow(mouseY - e.getCenterY(), 2)));
+                    break;
+                case TEXT:
+                    Text t = (Text) shape;
+                    t.setX(mouseX);
+                    t.setY(mouseY);
+                    break;
+                default:
+                    //free drawing or eraser, the points were added as the mouse moved
+                    syncPath((Path) shape, stroke);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Sets how much free hand strokes are simplified. Mouse positions that are
+     * within this distance of the stroke are not kept.
+     *
+     * @param tolerance the largest distance in pixels, 0 keeps every position
+     */
+    public void setStrokeTolerance(double tolerance) {
+        this.strokeTolerance = tolerance;
+    }
+
+    /**
+     * Sets how different a pixel's color may be from the color clicked on for
+     * the paint bucket to fill it.
+     *
+     * @param tolerance the largest difference in any channel, from 0 to 255
+     */
+    public void setFillTolerance(int tolerance) {
+        this.fillTolerance = tolerance;
+    }
+
+    /**
+     * Sets whether the paint bucket spreads to the diagonal neighbors of a
+     * pixel, or only to the four sharing a side.
+     *
+     * @param diagonal true to spread to all eight neighbors
+     */
+    public void setFillDiagonal(boolean diagonal) {
+        this.fillDiagonal = diagonal;
+    }
+
+    /**
+     * Fills the pixels of the raster layer around a point with the line color,
+     * as a single action. Shapes still kept as nodes are not filled and do not
+     * stop the fill.
+     *
+     * @param x x position clicked on
+     * @param y y position clicked on
+     */
+    private void fill(double x, double y) {
+        this.apply(new FillOp((int) x, (int) y, RasterLayer.toArgb(this.LineColor), this.fillTolerance, this.fillDiagonal));
+    }
+
+    /**
+     * Gets how much free hand strokes are simplified.
+     *
+     * @return the largest distance in pixels between a mouse position and the
+     * stroke
+     */
+    public double getStrokeTolerance() {
+        return this.strokeTolerance;
+    }
+
+    /**
+     * Updates the path previewing a free hand stroke. Several points may have
+     * been added since the last frame, and the last point shown may have been
+     * replaced by simplifying the stroke, so every line from the last one
+     * shown is set again. The lines before it never change.
+     *
+     * @param path the path showing the stroke
+     * @param points the points of the stroke
+     */
+    private static void syncPath(Path path, StrokeBuffer points) {
+        List<PathElement> elements = path.getElements();
+
+        //the path starts with a move to the first point, which never changes
+        int first = Math.max(1, elements.size() - 1);
+        while (elements.size() < points.size()) {
+            elements.add(new LineTo());
+        }
+        for (int i = first; i < points.size(); i++) {
+            LineTo line = (LineTo) elements.get(i);
+            line.setX(points.getX(i));
+            line.setY(points.getY(i));
+        }
+    }
+
     /**
      * Sets the pen to use for future drawing. The pen sets which type of shape
      * to draw (hand drawing, line, rectangle, square, circle, ellipse, text).
@@ -489,13 +907,15 @@ public class MyCanvas extends Pane {
         if (m != Mode.SELECT && this.getChildren().contains(selection)) {
 
             //if in selection mode, print the content of previous selection
-            if (selection.getContent() != null) {
-                this.getChildren().add(selection.getContent());
-                this.selection.empty();
-            }
-
+            this.dropSelection();
+            this.selection.empty();
             this.getChildren().remove(selection);
         }
+
+        //hide the object selection
+        if (m != Mode.OBJECT) {
+            this.objects.clear();
+        }
     }
 
     /**
@@ -509,127 +929,1198 @@ public class MyCanvas extends Pane {
     }
 
     /**
-     * Adds a listener to allow the EyeDropper the ability to select a color
-     * from the canvas.
+     * Turns raster commit on or off. When on, every finished shape is drawn
+     * into the raster layer and removed from the pane, so only the shape being
+     * drawn is a node. When turned on, the shapes already on the canvas are
+     * flattened into the raster layer.
      *
-     * @param listener the listener to register.
+     * @param on true to rasterize finished shapes, false to keep them as nodes
      */
-    void addListener(EyeDropper color) {
-        this.colorPickedListeners.add(color);
+    public void setRasterCommit(boolean on) {
+        //shapes kept as nodes would not reach the others sharing the document
+        this.rasterCommit = on || this.shared;
+
+        if (on) {
+            this.flatten();
+        }
     }
 
     /**
-     * Undoes the last shape. Makes a copy of the last shape and puts it in
-     * a redo stack for an eventual redo action. 
+     * Shares the canvas with other instances, or stops sharing it. While it
+     * is shared, finished shapes are drawn into the pixels right away so the
+     * others get them. Undo, redo and changing layers are off: with others
+     * drawing in between, there are no pixels to go back to. The history is
+     * forgotten once sharing stops for the same reason.
+     *
+     * @param shared true once the document is shared
      */
-    public void undo() {
+    void setShared(boolean shared) {
+        if (shared) {
+            this.dropSelection();
+            this.setRasterCommit(true);
+        } else {
+            this.document.getHistory().clear();
+        }
+        this.shared = shared;
+    }
+
+    /**
+     * @return true while the document is shared with other instances
+     */
+    boolean isShared() {
+        return this.shared;
+    }
 
-        //check if there are more shapes than only the background
-        if (this.undoAvailable()) {
+    /**
+     * Displays the pixels again after other instances drew on them.
+     */
+    void sharedChanged() {
+        this.showLayers();
+        this.edit = true;
+    }
 
-            //the shape to remove is the last one in the pane's children list
-            Shape copy = (Shape) this.getChildren().get(this.getChildren().size() - 1);
+    /**
+     * Replaces the picture with the one another instance shared.
+     *
+     * @param store the shared pixels
+     */
+    void sharedReplaced(TileStore store) {
+        this.reset(new RasterLayer(store));
+        this.edit = true;
+    }
 
-            //push the undone shape into the undo stack, for a possible redo
-            this.undo.push(copy);
+    /**
+     * Checks if finished shapes are drawn into the raster layer.
+     *
+     * @return true if raster commit is on
+     */
+    public boolean isRasterCommit() {
+        return this.rasterCommit;
+    }
 
-            //the shape is removed, it is considered as a change
-            this.getChildren().remove(copy);
-            this.edit = true;
+    /**
+     * Draws every shape node of the canvas into the raster layer, from the
+     * oldest to the newest, and removes them from the pane. Each shape can still
+     * be undone, its pixels are restored instead of removing the node.
+     */
+    public void flatten() {
+        List<Shape> shapes = new ArrayList<Shape>();
+
+        for (int i = 0; i < this.getChildren().size(); i++) {
+            Node n = this.getChildren().get(i);
+            if (n instanceof Shape && this.isShape(n) && n != this.drawing) {
+                shapes.add((Shape) n);
+            }
+        }
+
+        for (Shape s : shapes) {
+            Operation op = this.operationFor(s);
+            Command drawn = op == null ? null : this.document.draw(op);
+            this.getChildren().remove(s);
+
+            //the command that added the node now restores pixels
+            NodeCommand added = (NodeCommand) s.getProperties().get(NodeCommand.class);
+            if (added != null) {
+                added.flattened(drawn);
+            } else if (drawn != null) {
+                this.document.record(drawn);
+            }
         }
+        this.showLayers();
+
+        //undone nodes would come back as nodes, forget them
+        this.document.getHistory().clearRedo();
     }
 
     /**
-     * Redoes the last 'undo' action. Pops shape off of the undo stack.
+     * Lifts the content of the selection off the picture, before it is moved.
+     * Its place in the active layer is cleared to the layer's fill, so the
+     * layers under it show through. Nothing is recorded until it is dropped.
+     * Shapes still kept as nodes are drawn into the pixels first, since the
+     * selection took them along.
      */
-    public void redo() {
+    private void liftSelection() {
+        if (this.selection.getContentWidth() == 0 || this.selection.getContentHeight() == 0) {
+            return;
+        }
+        if (this.hasShapes()) {
+            this.flatten();
+        }
 
-        //check if there is something to redo
-        if (this.redoAvailable()) {
+        TileStore store = this.document.getStore();
+        int x = (int) this.selection.getAbsX() + 1;
+        int y = (int) this.selection.getAbsY() + 1;
+        int w = this.selection.getContentWidth();
+        int h = this.selection.getContentHeight();
+        this.lift = new MoveOp(x, y, w, h, 0, 0, store.getFill());
+
+        this.lifted = new TilePatch(store, x, y, w, h);
+        store.fill(x, y, w, h, this.lift.getHole());
+        this.lifted.finish();
+        this.showLayers();
+    }
 
-            //the shape to redo is the last to have been pushed onto the undo stack
-            Shape toAdd = this.undo.pop();
+    /**
+     * Puts the content of the selection down where it was moved. The lifted
+     * pixels are put back first, then the hole left behind and the content
+     * are applied to the document as a single MoveOp.
+     */
+    private void dropSelection() {
+        if (this.lifted == null) {
+            return;
+        }
+        this.lifted.undo();
+        this.lifted = null;
+
+        if (this.selection.hasMoved()) {
+            //move the pixels in the document, no node is added
+            java.awt.Rectangle src = this.lift.getSource();
+            int dx = (int) this.selection.getAbsX() + 1 - src.x;
+            int dy = (int) this.selection.getAbsY() + 1 - src.y;
+            this.apply(new MoveOp(src.x, src.y, src.width, src.height, dx, dy, this.lift.getHole()));
+            this.getChildren().remove(this.selection);
+        } else {
+            //the selection was grabbed but not moved, nothing changed
+            this.showLayers();
+        }
+        this.lift = null;
+    }
 
-            //the shape is added to the pane's children again, it is considered a change
-            this.getChildren().add(toAdd);
-            this.edit = true;
+    /**
+     * Records finished shapes as a single action. If raster commit is on, they
+     * are drawn into the raster layer and removed from the pane. Otherwise they
+     * stay on the pane as nodes.
+     *
+     * @param shapes the finished shapes, children of the canvas
+     */
+    private void commitShapes(Shape... shapes) {
+        if (this.rasterCommit) {
+            List<Operation> ops = new ArrayList<Operation>();
+            for (Shape s : shapes) {
+                Operation op = this.operationFor(s);
+                if (op != null) {
+                    ops.add(op);
+                }
+            }
+            this.getChildren().removeAll(shapes);
+            this.apply(ops.toArray(new Operation[ops.size()]));
+        } else {
+            if (shapes.length == 1) {
+                this.record(new NodeCommand(shapes[0]));
+            } else {
+                CommandGroup group = new CommandGroup();
+                for (Shape s : shapes) {
+                    group.add(new NodeCommand(s));
+                }
+                this.record(group);
+            }
         }
     }
 
     /**
-     * Checks to see if there are any shapes on the canvas beside the background.
+     * Erases what a finished eraser stroke went over, as a single action. The
+     * pixels under it become transparent, and shapes still kept as nodes are
+     * cut by it instead of being covered, so erasing does not add any node.
      *
-     * @return true if undo is possible, false otherwise.
+     * @param eraser the eraser stroke, a child of the canvas
      */
-    public boolean undoAvailable() {
-        //can undo last action only if there is more shapes than only the background
-        return this.getChildren().size() > 1;
+    private void erase(Path eraser) {
+        this.getChildren().remove(eraser);
+        StrokeOp op = (StrokeOp) MyCanvas.toOperation(eraser);
+        if (op == null) {
+            return;
+        }
+
+        CommandGroup group = new CommandGroup();
+        if (this.hasShapes()) {
+            float[] points = op.getPoints();
+            ClipCommand clip = new ClipCommand();
+            for (Node n : this.objects.along(points, points.length / 2, op.getWidth() / 2)) {
+                if (n instanceof Shape) {
+                    clip.cut((Shape) n, eraser);
+                }
+            }
+            if (!clip.isEmpty()) {
+                group.add(clip);
+            }
+        }
+
+        Command cleared = this.document.draw(op);
+        if (cleared != null) {
+            group.add(cleared);
+        }
+        if (!group.isEmpty()) {
+            this.record(group);
+        }
+        this.showLayers();
     }
 
     /**
-     * Checks the undo stack to see if anything can be popped off / redone. 
+     * Gets the operation drawing a finished shape. Shapes the engine knows are
+     * described as they are, anything else, such as a selection's content, is
+     * rendered by JavaFX into pixels.
      *
-     * @return true if redo is possible.
+     * @param s the shape, a child of the canvas
+     * @return the operation, or null if the shape is outside of the canvas
      */
-    public boolean redoAvailable() {
-        //can redo last undone action only if there is something in the stack
-        return this.undo.size() > 0;
+    private Operation operationFor(Shape s) {
+        Operation op = MyCanvas.toOperation(s);
+        return op != null ? op : this.raster.render(s);
     }
 
     /**
-     * Checks if there are any changes on the canvas. It resets to false when saving.
+     * Applies operations to the document as a single action and shows the
+     * result.
      *
-     * @return True if changed. False if no changes.
+     * @param ops the operations
      */
-    public boolean hasChanged() {
-        return this.edit;
+    private void apply(Operation... ops) {
+        if (this.document.apply(ops) != null) {
+            this.showLayers();
+            this.edit = true;
+        }
     }
 
     /**
-     * Displays an image from a file on the canvas.
+     * Converts a shape node into the operation drawing the same thing.
      *
-     * @param file the file from which to get the image
+     * @param s the shape
+     * @return the operation, or null if the shape cannot be drawn by the engine
      */
-    public void openImageFromFile(File file) {
-        //gets the image from the file
-        Image img = new Image(file.toURI().toString());
+    static Operation toOperation(Shape s) {
+        //only plain colors can be drawn by the engine
+        if (s.getStroke() != null && !(s.getStroke() instanceof Color)
+                || s.getFill() != null && !(s.getFill() instanceof Color)
+                || s.getOpacity() != 1 || s.getEffect() != null || s.getClip() != null
+                || !s.getStrokeDashArray().isEmpty() || !s.getTransforms().isEmpty()) {
+            return null;
+        }
 
-        //resets canvas and draws the image
-        this.reset(img.getWidth(), img.getHeight(), new ImagePattern(img));
+        int stroke = s.getStroke() == null ? 0 : RasterLayer.toArgb((Color) s.getStroke());
+        int fill = s.getFill() == null ? 0 : RasterLayer.toArgb((Color) s.getFill());
+        double w = s.getStroke() == null ? 0 : s.getStrokeWidth();
+        double tx = s.getTranslateX();
+        double ty = s.getTranslateY();
+
+        if (s instanceof Line) {
+            Line l = (Line) s;
+            return new ShapeOp(ShapeOp.Kind.LINE, l.getStartX() + tx, l.getStartY() + ty, l.getEndX() + tx, l.getEndY() + ty, stroke, 0, w);
+        } else if (s instanceof Rectangle && ((Rectangle) s).getArcWidth() == 0) {
+            Rectangle r = (Rectangle) s;
+            return new ShapeOp(ShapeOp.Kind.RECT, r.getX() + tx, r.getY() + ty, r.getWidth(), r.getHeight(), stroke, fill, w);
+        } else if (s instanceof Circle) {
+            Circle c = (Circle) s;
+            return new ShapeOp(ShapeOp.Kind.ELLIPSE, c.getCenterX() + tx, c.getCenterY() + ty, c.getRadius(), c.getRadius(), stroke, fill, w);
+        } else if (s instanceof Ellipse) {
+            Ellipse e = (Ellipse) s;
+            return new ShapeOp(ShapeOp.Kind.ELLIPSE, e.getCenterX() + tx, e.getCenterY() + ty, e.getRadiusX(), e.getRadiusY(), stroke, fill, w);
+        } else if (s instanceof Text) {
+            Text t = (Text) s;
+            return new TextOp(t.getX() + tx, t.getY() + ty, t.getText(), t.getFont().getSize(), stroke, fill);
+        } else if (s instanceof Path) {
+            float[] points = MyCanvas.pointsOf((Path) s);
+            if (points == null) {
+                return null;
+            }
+            for (int i = 0; i < points.length; i += 2) {
+                points[i] += tx;
+                points[i + 1] += ty;
+            }
+            //the eraser clears the pixels it goes over
+            boolean erase = s.getProperties().get(Mode.class) == Mode.ERASE;
+            return new StrokeOp(WireCodec.snap(points), erase ? 0 : stroke, w, erase);
+        }
+        return null;
     }
 
     /**
-     * Saves the canvas and anything on it in a file location
+     * Gets the points of a path made of straight lines. A free hand stroke
+     * drawn on the canvas gives the points kept as it was drawn, which the
+     * path only previews.
      *
-     * @param file the file in which to save the image
+     * @param path the path
+     * @return x and y of every point, one after the other, or null if the path
+     * is not only straight lines
      */
-    public void saveImageAs(File file) {
+    private static float[] pointsOf(Path path) {
+        StrokeBuffer kept = (StrokeBuffer) path.getProperties().get(StrokeBuffer.class);
+        if (kept != null) {
+            return kept.toArray();
+        }
 
-        if (this.getChildren().contains(selection)) {
-            this.getChildren().remove(selection);
+        List<PathElement> elements = path.getElements();
+        float[] points = new float[elements.size() * 2];
+        for (int i = 0; i < elements.size(); i++) {
+            PathElement el = elements.get(i);
+            if (el instanceof MoveTo && i == 0) {
+                points[0] = (float) ((MoveTo) el).getX();
+                points[1] = (float) ((MoveTo) el).getY();
+            } else if (el instanceof LineTo) {
+                points[i * 2] = (float) ((LineTo) el).getX();
+                points[i * 2 + 1] = (float) ((LineTo) el).getY();
+            } else {
+                return null;
+            }
         }
+        return points;
+    }
 
-        if (file != null) {
-            try {
-                //gets the file type extension
-                String extension = file.getName().split("\\.")[1];
+    /**
+     * Adds an action that was just done to the history. The canvas has changed
+     * and smart save should be triggered when necessary.
+     *
+     * @param c the action
+     */
+    void record(Command c) {
+        this.document.record(c);
+        this.edit = true;
+    }
 
-                //creates the image
-                BufferedImage snapshot = SwingFXUtils.fromFXImage(this.snapshot(new SnapshotParameters(), null), null);
-                BufferedImage img = new BufferedImage(snapshot.getWidth(), snapshot.getHeight(), BufferedImage.TYPE_INT_RGB);
+    /**
+     * Sets the memory the undo history may use. Old actions are compressed,
+     * then forgotten, to stay within it.
+     *
+     * @param bytes the memory budget in bytes
+     */
+    public void setHistoryBudget(long bytes) {
+        this.document.getHistory().setBudget(bytes);
+    }
 
-                for (int x = 0; x < snapshot.getWidth(); x++) {
-                    for (int y = 0; y < snapshot.getHeight(); y++) {
-                        img.setRGB(x, y, snapshot.getRGB(x, y));
-                    }
-                }
+    /**
+     * Gets the undo history of the canvas.
+     *
+     * @return the history
+     */
+    History getHistory() {
+        return this.document.getHistory();
+    }
+
+    /**
+     * Gets the memory held by the canvas' layers, its cached picture, the
+     * tiles it displays and its undo history.
+     *
+     * @return the memory used, in bytes
+     */
+    long getImageBytes() {
+        return this.layers.getAllocatedBytes() + this.snapshot.getAllocatedBytes()
+                + this.raster.getAllocatedBytes() + this.document.getHistory().getSize();
+    }
 
-                //writing the file
-                ImageIO.write(img, extension, file);
-                this.edit = false;
+    /**
+     * Lets go of memory while the canvas is not shown. The cached picture, the
+     * cached layers and the displayed tiles are dropped, and the pixels of
+     * every layer can be spilled to the
+     * disk, from where they are read back as they are used. Nothing is spilled
+     * while an image is opening or a filter is running. The undo history is
+     * kept.
+     *
+     * @param spill true to also spill the pixels
+     * @return the memory let go of, in bytes
+     */
+    long trim(boolean spill) {
+        long before = this.getImageBytes();
+        this.snapshot = new CanvasSnapshot(this, this.raster);
+        this.raster.release();
+        this.layers.release();
+
+        if (spill && !this.isDisabled()) {
+            try {
+                this.layers.spill();
             } catch (IOException ex) {
-                System.out.println(ex.toString());
+                //the pixels stay in memory
+            }
+        }
+        return before - this.getImageBytes();
+    }
+
+    /**
+     * Shows the canvas again after it was trimmed.
+     */
+    void restore() {
+        if (this.view != null) {
+            this.raster.setView(this.view, this.zoom);
+        } else {
+            this.raster.repaint();
+        }
+    }
+
+    /**
+     * Deletes the files the canvas' layers were spilled into, if any. Called
+     * once the canvas is closed for good.
+     */
+    void dispose() {
+        this.layers.close();
+    }
+
+    /**
+     * Gets the document drawn on by the canvas.
+     *
+     * @return the document
+     */
+    Document getDocument() {
+        return this.document;
+    }
+
+    /**
+     * Adds a listener to allow the EyeDropper the ability to select a color
+     * from the canvas.
+     *
+     * @param listener the listener to register.
+     */
+    void addListener(EyeDropper color) {
+        this.colorPickedListeners.add(color);
+    }
+
+    /**
+     * Removes a listener added by addListener().
+     *
+     * @param listener the listener to remove.
+     */
+    void removeListener(EyeDropper color) {
+        this.colorPickedListeners.remove(color);
+    }
+
+    /**
+     * Undoes the last action. The action is kept for an eventual redo.
+     */
+    public void undo() {
+        //the lifted pixels are not part of the history yet
+        this.dropSelection();
+        if (!this.shared && this.document.undo()) {
+            this.showLayers();
+            this.edit = true;
+        }
+    }
+
+    /**
+     * Redoes the last 'undo' action.
+     */
+    public void redo() {
+        //the lifted pixels are not part of the history yet
+        this.dropSelection();
+        if (!this.shared && this.document.redo()) {
+            this.showLayers();
+            this.edit = true;
+        }
+    }
+
+    /**
+     * Checks to see if there is any action to undo.
+     *
+     * @return true if undo is possible, false otherwise.
+     */
+    public boolean undoAvailable() {
+        return !this.shared && this.document.getHistory().canUndo();
+    }
+
+    /**
+     * Checks to see if there is any undone action to redo.
+     *
+     * @return true if redo is possible.
+     */
+    public boolean redoAvailable() {
+        return !this.shared && this.document.getHistory().canRedo();
+    }
+
+    /**
+     * @return the layers of the picture, from the bottom one up
+     */
+    public List<Layer> getLayers() {
+        return this.layers.getLayers();
+    }
+
+    /**
+     * @return the index of the layer drawn on
+     */
+    public int getActiveLayer() {
+        return this.layers.getActive();
+    }
+
+    /**
+     * Counts the changes made to the layers, so a panel listing them knows to
+     * list them again.
+     *
+     * @return a counter bumped every time layers are added, removed, moved,
+     * selected or shown differently
+     */
+    public ReadOnlyIntegerProperty layerChangesProperty() {
+        return this.layerChanges.getReadOnlyProperty();
+    }
+
+    /**
+     * Makes a layer the one drawn on. Shapes still on the canvas as nodes are
+     * flattened into the layer drawn on before.
+     *
+     * @param index the layer's index, 0 is the bottom one
+     */
+    public void setActiveLayer(int index) {
+        if (index == this.layers.getActive() || this.shared) {
+            return;
+        }
+        this.dropSelection();
+        this.flatten();
+        this.layers.setActive(index);
+        this.document.layersChanged();
+        this.layerChanges.set(this.layerChanges.get() + 1);
+    }
+
+    /**
+     * Adds a transparent layer above the one drawn on, and draws on it. Can be
+     * undone.
+     */
+    public void addLayer() {
+        if (this.shared) {
+            return;
+        }
+        this.dropSelection();
+        this.flatten();
+        int index = this.layers.getActive() + 1;
+        Layer layer = this.layers.create("Layer " + (this.layers.getCount() + 1));
+        this.record(new LayerCommand(layer, -1, index));
+    }
+
+    /**
+     * Removes the layer drawn on. Can be undone. The last layer is never
+     * removed.
+     */
+    public void removeLayer() {
+        if (this.layers.getCount() == 1 || this.shared) {
+            return;
+        }
+        this.dropSelection();
+        this.flatten();
+        int index = this.layers.getActive();
+        this.record(new LayerCommand(this.layers.getActiveLayer(), index, -1));
+    }
+
+    /**
+     * Moves the layer drawn on up or down. Can be undone.
+     *
+     * @param by how many places to move the layer up, negative to move it down
+     */
+    public void moveLayer(int by) {
+        int from = this.layers.getActive();
+        int to = Math.max(0, Math.min(this.layers.getCount() - 1, from + by));
+        if (from != to && !this.shared) {
+            this.record(new LayerCommand(this.layers.getActiveLayer(), from, to));
+        }
+    }
+
+    /**
+     * Shows or hides a layer.
+     *
+     * @param index the layer's index
+     * @param visible true to make the layer part of the picture
+     */
+    public void setLayerVisible(int index, boolean visible) {
+        this.layers.getLayers().get(index).setVisible(visible);
+        this.layerShown();
+    }
+
+    /**
+     * Sets how opaque a whole layer is.
+     *
+     * @param index the layer's index
+     * @param opacity 0 for invisible, 1 for the pixels' own alpha
+     */
+    public void setLayerOpacity(int index, double opacity) {
+        this.layers.getLayers().get(index).setOpacity((int) Math.round(opacity * 255));
+        this.layerShown();
+    }
+
+    /**
+     * Sets how a layer is combined with the layers under it.
+     *
+     * @param index the layer's index
+     * @param mode the blend mode
+     */
+    public void setLayerMode(int index, BlendMode mode) {
+        this.layers.getLayers().get(index).setMode(mode);
+        this.layerShown();
+    }
+
+    /**
+     * Displays the picture again after a layer is shown differently.
+     */
+    private void layerShown() {
+        this.document.layersChanged();
+        this.showLayers();
+        this.edit = true;
+        this.layerChanges.set(this.layerChanges.get() + 1);
+    }
+
+    /**
+     * Checks if there are shape nodes on the canvas beside the raster layer.
+     *
+     * @return true if a shape can be removed from the pane
+     */
+    boolean hasShapes() {
+        return this.objects.getIndex().size() > 0;
+    }
+
+    /**
+     * Checks if a child of the canvas is part of the picture, rather than the
+     * raster layer or the outline of a selection.
+     *
+     * @param n the child
+     * @return true if the child is a shape of the picture
+     */
+    private boolean isShape(Node n) {
+        return n != this.raster && n != this.selection && n != this.objects.getBox();
+    }
+
+    /**
+     * Gets the shapes of the canvas as objects, with their spatial index.
+     *
+     * @return the object selection
+     */
+    ObjectSelection getObjects() {
+        return this.objects;
+    }
+
+    /**
+     * @return the width of the eraser
+     */
+    double getEraserWidth() {
+        return this.width * 5;
+    }
+
+    /**
+     * Gets the selection rectangle of the canvas.
+     *
+     * @return the selection tool
+     */
+    SelectObject getSelection() {
+        return this.selection;
+    }
+
+    /**
+     * Gets the cached picture of the canvas.
+     *
+     * @return the canvas' snapshot
+     */
+    CanvasSnapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Checks if there are any changes on the canvas. It resets to false when saving.
+     *
+     * @return True if changed. False if no changes.
+     */
+    public boolean hasChanged() {
+        return this.edit;
+    }
+
+    /**
+     * Displays an image from a file on the canvas. The image is decoded in the
+     * background. A small preview of it is shown stretched over the canvas as
+     * soon as it is ready, and replaced by the full image once decoding is
+     * done. The canvas cannot be drawn on while the image is loading. Opening
+     * can be undone to get the previous picture back.
+     *
+     * @param file the file from which to get the image
+     * @return the task opening the file, already started
+     */
+    public OpenTask openImageFromFile(File file) {
+        OpenTask task = new OpenTask(file);
+        Metrics.track(task, Metrics.beginFile(true, file));
+        ImageView preview = new ImageView();
+
+        //show the preview as soon as it is decoded
+        task.previewProperty().addListener(new ChangeListener<Image>() {
+            @Override
+            public void changed(ObservableValue<? extends Image> observable, Image oldValue, Image img) {
+                preview.setImage(img);
+                preview.setFitWidth(task.getImageWidth());
+                preview.setFitHeight(task.getImageHeight());
+                getChildren().add(preview);
+            }
+        });
+
+        //replace the preview with the full image, the previous picture can be restored by undo
+        task.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                getChildren().remove(preview);
+                dropSelection();
+                selection.empty();
+                getChildren().remove(selection);
+                LayerStack stack = task.getProject() != null ? task.getProject().getLayers() : new LayerStack(task.getValue());
+                record(new SwapCommand(stack, new RasterLayer(task.getValue())));
+                setProject(task.getProject());
+                edit = false;
+                setDisable(false);
+            }
+        });
+
+        //remove the preview if the image could not be opened
+        EventHandler<WorkerStateEvent> stopped = new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                getChildren().remove(preview);
+                setDisable(false);
             }
+        };
+        task.setOnCancelled(stopped);
+        task.setOnFailed(stopped);
+
+        this.setDisable(true);
+        MyCanvas.loader.execute(task);
+        return task;
+    }
+
+    /**
+     * Saves the canvas and anything on it in a file location. The pixels are
+     * copied right away, then the file is encoded and written in the
+     * background so the canvas stays usable. The canvas is considered saved
+     * once the copy is made, and changed again if writing fails.
+     *
+     * @param file the file in which to save the image
+     * @return the task writing the file, already started
+     */
+    public Task<Void> saveImageAs(File file) {
+        Metrics.FileEvent timing = Metrics.beginFile(false, file);
+
+        //a selection being moved is saved where it was put
+        this.dropSelection();
+        if (this.getChildren().contains(selection)) {
+            this.getChildren().remove(selection);
+        }
+
+        if (ProjectFile.isProject(file)) {
+            Task<Void> task = this.saveProject(file);
+            Metrics.track(task, timing);
+            return task;
+        }
+
+        //gets the file type extension
+        String extension = file.getName().substring(file.getName().lastIndexOf('.') + 1).toLowerCase();
+
+        //copies the canvas straight into the image's pixel array, formats without transparency get erased pixels as white
+        int w = this.snapshot.getWidth();
+        int h = this.snapshot.getHeight();
+        BufferedImage img = ImageEncoder.createImage(w, h, extension);
+        this.snapshot.read(0, 0, w, h, ((DataBufferInt) img.getRaster().getDataBuffer()).getData(), 0, w);
+        ImageEncoder.flatten(img, 0xffffffff);
+
+        SaveTask task = new SaveTask(img, file, extension);
+        Metrics.track(task, timing);
+        task.setOnFailed(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                //the file was not written, the changes are still unsaved
+                edit = true;
+            }
+        });
+
+        this.edit = false;
+        MyCanvas.worker.execute(task);
+        return task;
+    }
+
+    /**
+     * Saves the canvas as a project. Only what changed since the project was
+     * last saved or opened is copied and appended to the file, in the
+     * background. Shapes still on the canvas as nodes are flattened first,
+     * since a project only holds layers and operations. Every layer is saved
+     * with its own tiles and how it is shown.
+     *
+     * @param file the project file
+     * @return the task writing the file, already started
+     */
+    private Task<Void> saveProject(File file) {
+        if (this.hasShapes()) {
+            this.flatten();
+        }
+
+        if (this.project == null || !this.project.getFile().equals(file)) {
+            this.setProject(ProjectFile.create(file));
+        }
+
+        SaveTask task = new SaveTask(this.project.prepare(this.layers), file);
+        task.setOnFailed(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                //the file was not written, the changes are still unsaved
+                edit = true;
+            }
+        });
+
+        this.edit = false;
+        MyCanvas.worker.execute(task);
+        return task;
+    }
+
+    /**
+     * Changes the project the canvas saves into. The project keeps a journal
+     * of the operations applied to the document from then on.
+     *
+     * @param p the project, or null if the canvas is not a project
+     */
+    private void setProject(ProjectFile p) {
+        if (this.project != null) {
+            this.document.removeListener(this.project);
+        }
+        this.project = p;
+        if (p != null) {
+            this.document.addListener(p);
+        }
+    }
+
+    /**
+     * Runs a filter over the pixels of the active layer as a single action. The
+     * pixels are filtered in the background from a snapshot of the layer, which
+     * shares its tiles until they are written to, so the display and the
+     * memory manager keep using the layer meanwhile. The canvas is disabled so
+     * the layer does not change, then the filtered tiles are put in place all
+     * at once. Cancelling the task leaves the canvas as it was. Shapes still
+     * kept as nodes are not filtered.
+     *
+     * @param filter the filter to run
+     * @return the task filtering the canvas, already started
+     */
+    public Task<Void> applyFilter(Filter filter) {
+        FilterTask task = new FilterTask(new FilterOp(filter), this.document.getStore().snapshot());
+
+        task.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                setDisable(false);
+                apply(task.op);
+            }
+        });
+        EventHandler<WorkerStateEvent> stopped = new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                setDisable(false);
+            }
+        };
+        task.setOnCancelled(stopped);
+        task.setOnFailed(stopped);
+
+        this.setDisable(true);
+        MyCanvas.worker.execute(task);
+        return task;
+    }
+
+    /**
+     * Filters the pixels of the canvas in the background, ready to be put in
+     * place on the JavaFX thread.
+     */
+    private static class FilterTask extends Task<Void> {
+
+        //the operation filtering the pixels, and a snapshot of the pixels
+        private final FilterOp op;
+        private final TileStore store;
+
+        FilterTask(FilterOp op, TileStore store) {
+            this.op = op;
+            this.store = store;
+            this.updateTitle(FilterDialog.nameOf(op.getFilter().getKind()));
+        }
+
+        @Override
+        protected Void call() {
+            this.op.prepare(this.store, new Progress() {
+                @Override
+                public void progress(double done) {
+                    updateProgress(done, 1);
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return FilterTask.this.isCancelled();
+                }
+            });
+            return null;
+        }
+    }
+
+    /**
+     * Cutting shape nodes with the eraser. Undoing puts the whole shapes back
+     * in place of what was left of them.
+     */
+    private class ClipCommand implements Command {
+
+        //the shapes cut, what replaced each of them, and where they were
+        private final List<Shape> originals = new ArrayList<Shape>();
+        private final List<List<Shape>> pieces = new ArrayList<List<Shape>>();
+        private final List<Integer> at = new ArrayList<Integer>();
+
+        /**
+         * Cuts the part of a shape under the eraser away. The stroke and the
+         * fill of the shape are cut separately, so each piece keeps its color.
+         */
+        void cut(Shape s, Path eraser) {
+            Paint fill = s.getFill();
+            Paint stroke = s.getStroke();
+            List<Shape> left = new ArrayList<Shape>();
+
+            //the inside, without the outline
+            if (fill != null && !Color.TRANSPARENT.equals(fill)) {
+                s.setStroke(null);
+                this.keep(Shape.subtract(s, eraser), fill, left);
+                s.setStroke(stroke);
+            }
+
+            //the outline, without the inside
+            if (stroke != null && !Color.TRANSPARENT.equals(stroke)) {
+                s.setFill(null);
+                this.keep(Shape.subtract(s, eraser), stroke, left);
+                s.setFill(fill);
+            }
+
+            int i = getChildren().indexOf(s);
+            getChildren().remove(i);
+            getChildren().addAll(i, left);
+            this.originals.add(s);
+            this.pieces.add(left);
+            this.at.add(i);
+        }
+
+        /**
+         * Keeps what is left of a shape, painted with its color, unless
+         * nothing is left.
+         */
+        private void keep(Shape piece, Paint color, List<Shape> left) {
+            if (piece instanceof Path && ((Path) piece).getElements().isEmpty()) {
+                return;
+            }
+            piece.setFill(color);
+            piece.setStroke(null);
+            left.add(piece);
+        }
+
+        /**
+         * @return true if no shape was cut
+         */
+        boolean isEmpty() {
+            return this.originals.isEmpty();
+        }
+
+        @Override
+        public void undo() {
+            for (int i = this.originals.size() - 1; i >= 0; i--) {
+                getChildren().removeAll(this.pieces.get(i));
+                getChildren().add(Math.min(this.at.get(i), getChildren().size()), this.originals.get(i));
+            }
+        }
+
+        @Override
+        public void redo() {
+            for (int i = 0; i < this.originals.size(); i++) {
+                int to = getChildren().indexOf(this.originals.get(i));
+                getChildren().remove(to);
+                getChildren().addAll(to, this.pieces.get(i));
+            }
+        }
+
+        @Override
+        public long getSize() {
+            return 64 + this.originals.size() * 48L;
+        }
+
+        @Override
+        public boolean compact() {
+            return false;
+        }
+    }
+
+    /**
+     * Adding a shape node to the canvas. Undoing removes the node, redoing adds
+     * it back. Once the node is flattened into the raster layer, its pixels are
+     * restored instead.
+     */
+    private class NodeCommand implements Command {
+
+        //the node that was added
+        private final Shape shape;
+
+        //the change made by flattening the node, null while it is a node
+        private Command patch;
+
+        /**
+         * Records a node that was just added to the canvas.
+         */
+        NodeCommand(Shape shape) {
+            this.shape = shape;
+            shape.getProperties().put(NodeCommand.class, this);
+        }
+
+        /**
+         * Switches the command to the pixels of the flattened node.
+         */
+        void flattened(Command patch) {
+            this.patch = patch;
+            this.shape.getProperties().remove(NodeCommand.class);
+        }
+
+        @Override
+        public void undo() {
+            if (this.patch != null) {
+                this.patch.undo();
+            } else {
+                getChildren().remove(this.shape);
+            }
+        }
+
+        @Override
+        public void redo() {
+            if (this.patch != null) {
+                this.patch.redo();
+            } else {
+                getChildren().add(this.shape);
+            }
+        }
+
+        @Override
+        public long getSize() {
+            long size = 256;
+            if (this.patch != null) {
+                size += this.patch.getSize();
+            } else if (this.shape instanceof Path) {
+                size += ((Path) this.shape).getElements().size() * 64L;
+            }
+            return size;
+        }
+
+        @Override
+        public boolean compact() {
+            return this.patch != null && this.patch.compact();
+        }
+    }
+
+    /**
+     * Adding, removing or moving a layer. The layer drawn on before is drawn
+     * on again once undone.
+     */
+    private class LayerCommand implements Command {
+
+        //the layer added, removed or moved
+        private final Layer layer;
+
+        //index of the layer before and after, -1 where it is not in the stack
+        private final int from, to;
+
+        //the layer drawn on before
+        private final int active;
+
+        /**
+         * Adds, removes or moves a layer.
+         *
+         * @param layer the layer
+         * @param from its index, -1 to add it
+         * @param to its new index, -1 to remove it
+         */
+        LayerCommand(Layer layer, int from, int to) {
+            this.layer = layer;
+            this.from = from;
+            this.to = to;
+            this.active = layers.getActive();
+            this.redo();
+        }
+
+        @Override
+        public void undo() {
+            this.change(this.to, this.from);
+            layers.setActive(this.active);
+            this.show();
+        }
+
+        @Override
+        public void redo() {
+            this.change(this.from, this.to);
+            if (this.to >= 0) {
+                layers.setActive(this.to);
+            }
+            this.show();
+        }
+
+        /**
+         * Puts the layer from one index to another.
+         */
+        private void change(int from, int to) {
+            if (from < 0) {
+                layers.add(to, this.layer);
+            } else if (to < 0) {
+                layers.remove(from);
+            } else {
+                layers.move(from, to);
+            }
+        }
+
+        /**
+         * Draws on the active layer and displays the new picture.
+         */
+        private void show() {
+            document.layersChanged();
+            showLayers();
+            layerChanges.set(layerChanges.get() + 1);
+        }
+
+        @Override
+        public long getSize() {
+            return this.from >= 0 && this.to < 0 ? this.layer.getPixels().getAllocatedBytes() : 64;
+        }
+
+        @Override
+        public boolean compact() {
+            return false;
+        }
+    }
+
+    /**
+     * Replacing everything on the canvas with new layers, as done when
+     * opening an image. The previous layers and shapes are kept for undo.
+     */
+    private class SwapCommand implements Command {
+
+        //children of the canvas before and after the swap
+        private final List<Node> before, after;
+
+        //layers before and after the swap
+        private final LayerStack oldLayers, newLayers;
+
+        //raster layer before and after the swap
+        private final RasterLayer oldRaster, newRaster;
+
+        /**
+         * Replaces the canvas' children with a new layer.
+         */
+        SwapCommand(LayerStack stack, RasterLayer layer) {
+            this.before = new ArrayList<Node>(getChildren());
+            this.after = new ArrayList<Node>();
+            this.after.add(layer);
+            this.oldLayers = layers;
+            this.newLayers = stack;
+            this.oldRaster = raster;
+            this.newRaster = layer;
+            this.redo();
+        }
+
+        @Override
+        public void undo() {
+            setLayers(this.oldLayers, this.oldRaster);
+            getChildren().setAll(this.before);
+            showLayers();
+        }
+
+        @Override
+        public void redo() {
+            setLayers(this.newLayers, this.newRaster);
+            getChildren().setAll(this.after);
+            showLayers();
+        }
+
+        @Override
+        public long getSize() {
+            return this.oldLayers.getAllocatedBytes() + this.before.size() * 256L;
+        }
+
+        @Override
+        public boolean compact() {
+            return false;
         }
     }
 }
@@ -1,9 +1,11 @@
 package pain.t;
 
+import java.util.Arrays;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ColorPicker;
 import javafx.scene.control.Label;
 import javafx.scene.control.Separator;
@@ -11,7 +13,6 @@ import javafx.scene.control.Slider;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.ToggleButton;
 import javafx.scene.control.ToggleGroup;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
@@ -20,20 +21,46 @@ import javafx.scene.paint.Color;
  * A tool bar for the canvas. It allows the user the ability to select what
  * shapes they wish to draw as well as text. It gives the ability to change 
  * line and fill color for shapes. There are sliders for the line and text size
- * as well as an input box for the user to input text.
+ * as well as an input box for the user to input text. Each window has its own
+ * tool bar, used on the canvas of the document that is selected in it.
  *
  * @author Daniel Christensen
  */
 public class MyToolbar extends VBox {
 
-    private static ColorPicker cpLine = new ColorPicker(Color.BLACK);
-    private static ColorPicker cpFill = new ColorPicker(Color.TRANSPARENT);
-    private static double width;
-    private static double LineWidth = 1;
-    private static TextArea textLine = new TextArea();
+    private final ColorPicker cpLine = new ColorPicker(Color.BLACK);
+    private final ColorPicker cpFill = new ColorPicker(Color.TRANSPARENT);
 
+    //text written by the text tool, made the first time the tool is picked
+    private TextArea textLine;
+
+    //width of shapes, set by both sliders
+    private double width = 1;
+
+    //width of free hand strokes, set by the line width slider
+    private double LineWidth = 1;
+
+    //font size for text
+    private double fontSize = 40;
+
+    //paint bucket settings
+    private int fillTolerance = 32;
+    private boolean fillDiagonal = false;
+
+    //the icons of the tools, packed in one image
+    private static IconAtlas icons;
+
+    //the canvas the tools are used on
     private MyCanvas canvas;
 
+    //listener to know when a color is picked from the canvas using the EyeDropper tool
+    private final EyeDropper picked = new EyeDropper() {
+        @Override
+        public void colorPicked(Color c) {
+            cpLine.setValue(c);
+        }
+    };
+
     /**
      * Create a new tool bar. Contains all of the options for drawing on the
      * canvas.
@@ -42,7 +69,7 @@ public class MyToolbar extends VBox {
      */
     MyToolbar(MyCanvas c) {
 
-        this.canvas = c;
+        this.setCanvas(c);
 
         //Ability to change the line color
         cpLine.setOnAction(new EventHandler<ActionEvent>() {
@@ -62,14 +89,6 @@ public class MyToolbar extends VBox {
             }
         });
 
-        //listener to know when a color is picked from the canvas using the EyeDropper tool
-        c.addListener(new EyeDropper() {
-            @Override
-            public void colorPicked(Color c) {
-                cpLine.setValue(c);
-            }
-        });
-
         //Allows the user to either draw shapes, erase shapes, select parts of the canvas, or select a color
         ToggleGroup ModeToggle = new ToggleGroup();
 
@@ -77,9 +96,10 @@ public class MyToolbar extends VBox {
         ToggleButton Eraser = new ToggleButton();
         ToggleButton SelectionTool = new ToggleButton();
         ToggleButton EyeDropper = new ToggleButton(); //the dropper tool
+        ToggleButton ObjectTool = new ToggleButton("Objects"); //selects shapes kept as nodes
 
         //Allows user to select the buttons
-        ModeToggle.getToggles().addAll(DrawMode, SelectionTool, Eraser, EyeDropper);
+        ModeToggle.getToggles().addAll(DrawMode, SelectionTool, Eraser, EyeDropper, ObjectTool);
 
         //Shapes that the user can use when DrawMode is selected
         ToggleGroup ShapeToggle = new ToggleGroup();
@@ -90,14 +110,10 @@ public class MyToolbar extends VBox {
         ToggleButton Circle = new ToggleButton();
         ToggleButton Ellipse = new ToggleButton();
         ToggleButton Text = new ToggleButton("Text");
+        ToggleButton Fill = new ToggleButton("Fill"); //the paint bucket
 
         //Allows user to select shape and text button(s)
-        ShapeToggle.getToggles().addAll(Draw, DrawLine, Rectangle, Circle, Ellipse, Text);
-
-        //Text box that allows user to enter in text for the canvas
-        textLine.setPromptText("Insert Text Here");
-        textLine.setPrefRowCount(1);
-        textLine.setPrefColumnCount(1);
+        ShapeToggle.getToggles().addAll(Draw, DrawLine, Rectangle, Circle, Ellipse, Text, Fill);
 
         //Labels for toolbar
         Label lineWidth = new Label("Line Width: ");
@@ -105,6 +121,7 @@ public class MyToolbar extends VBox {
         Label lineColorLabel = new Label("Line Color: ");
         Label lineFillLabel = new Label("Fill Color: ");
         Label line_width = new Label("3.0");
+        Label fillToleranceLabel = new Label("Fill Tolerance: ");
 
         /**
          * *SLIDERS**
@@ -115,73 +132,41 @@ public class MyToolbar extends VBox {
         slider.setShowTickMarks(true);
         slider.valueProperty().addListener(e -> {
             LineWidth = slider.getValue();
-            canvas.setLineWidth(LineWidth);
+            width = LineWidth;
+            canvas.setLineWidth(width);
+            canvas.setPenWidth(LineWidth);
         });
 
-        //Slider for Text size
-        Slider textSlider = new Slider(0, 150, 50);
-        textSlider.setShowTickLabels(true);
-        textSlider.valueProperty().addListener(e -> {
-            width = textSlider.getValue();
-            if (Text.isSelected()) {
-                canvas.setLineWidth(1);
-                canvas.setFontSize(textSlider.getValue());
-                line_width.setText(String.format("%.1", width));
-                return;
+        //Slider for how close a color must be to the one clicked for the paint bucket to fill it
+        Slider fillSlider = new Slider(0, 255, 32);
+        fillSlider.setShowTickLabels(true);
+        fillSlider.valueProperty().addListener(e -> {
+            fillTolerance = (int) fillSlider.getValue();
+            canvas.setFillTolerance(fillTolerance);
+        });
+
+        //Lets the paint bucket go through diagonal gaps
+        CheckBox fillDiagonal = new CheckBox("Fill diagonally");
+        fillDiagonal.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                MyToolbar.this.fillDiagonal = fillDiagonal.isSelected();
+                canvas.setFillDiagonal(fillDiagonal.isSelected());
             }
-            line_width.setText(String.format("%.1", width));
-            canvas.setLineWidth(width);
         });
 
         /**
          * *Images and their Changes**
          */
-        Image pencilImage = new Image(getClass().getResourceAsStream("Images/pencil.png"));
-        Image lineImage = new Image(getClass().getResourceAsStream("Images/line.png"));
-        Image circleImage = new Image(getClass().getResourceAsStream("Images/circle.png"));
-        Image ellipseImage = new Image(getClass().getResourceAsStream("Images/ellipse.png"));
-        Image squareImage = new Image(getClass().getResourceAsStream("Images/square.png"));
-        Image scissorImage = new Image(getClass().getResourceAsStream("Images/Scissor.png"));
-        Image eraserImage = new Image(getClass().getResourceAsStream("Images/eraser.png"));
-        Image dropperImage = new Image(getClass().getResourceAsStream("Images/eyedropper.png"));
-
-        //ImageViews to place on buttons
-        ImageView pencilImageView = new ImageView(pencilImage);
-        ImageView lineImageView = new ImageView(lineImage);
-        ImageView circleImageView = new ImageView(circleImage);
-        ImageView ellipseImageView = new ImageView(ellipseImage);
-        ImageView rectangleImageView = new ImageView(squareImage);
-        ImageView scissorImageView = new ImageView(scissorImage);
-        ImageView eraserImageView = new ImageView(eraserImage);
-        ImageView dropperImageView = new ImageView(dropperImage);
-
-        //Putting the images on the buttons
-        Draw.setGraphic(pencilImageView);
-        Rectangle.setGraphic(rectangleImageView);
-        Circle.setGraphic(circleImageView);
-        Ellipse.setGraphic(ellipseImageView);
-        DrawLine.setGraphic(lineImageView);
-        SelectionTool.setGraphic(scissorImageView);
-        Eraser.setGraphic(eraserImageView);
-        EyeDropper.setGraphic(dropperImageView);
-
-        //Editing images to make them fit the size of the button
-        pencilImageView.setFitHeight(20);
-        pencilImageView.setFitWidth(20);
-        circleImageView.setFitHeight(20);
-        circleImageView.setFitWidth(20);
-        ellipseImageView.setFitHeight(20);
-        ellipseImageView.setFitWidth(20);
-        rectangleImageView.setFitHeight(20);
-        rectangleImageView.setFitWidth(20);
-        lineImageView.setFitHeight(20);
-        lineImageView.setFitWidth(20);
-        scissorImageView.setFitHeight(20);
-        scissorImageView.setFitWidth(20);
-        eraserImageView.setFitHeight(20);
-        eraserImageView.setFitWidth(20);
-        dropperImageView.setFitHeight(20);
-        dropperImageView.setFitWidth(20);
+        //Putting the images on the buttons, sized to fit them
+        this.setIcon(Draw, "pencil", "Draw");
+        this.setIcon(Rectangle, "square", "Rectangle");
+        this.setIcon(Circle, "circle", "Circle");
+        this.setIcon(Ellipse, "ellipse", "Ellipse");
+        this.setIcon(DrawLine, "line", "Line");
+        this.setIcon(SelectionTool, "Scissor", "Select");
+        this.setIcon(Eraser, "eraser", "Eraser");
+        this.setIcon(EyeDropper, "eyedropper", "Eye Dropper");
 
         /**
          * *Adding functionality to buttons**
@@ -235,11 +220,22 @@ public class MyToolbar extends VBox {
         Text.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent e) {
+                if (textLine == null) {
+                    showTextControls(Text, line_width);
+                }
                 canvas.setPen(MyCanvas.Pen.TEXT);
                 ModeToggle.selectToggle(DrawMode);
                 canvas.setMode(MyCanvas.Mode.DRAW);
             }
         });
+        Fill.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                canvas.setPen(MyCanvas.Pen.FILL);
+                ModeToggle.selectToggle(DrawMode);
+                canvas.setMode(MyCanvas.Mode.DRAW);
+            }
+        });
 
         SelectionTool.setOnAction(new EventHandler<ActionEvent>() {
             @Override
@@ -255,15 +251,23 @@ public class MyToolbar extends VBox {
             }
         });
 
+        ObjectTool.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                canvas.setMode(MyCanvas.Mode.OBJECT);
+            }
+        });
+
         //Align everything along the left side of the VBox
         this.setAlignment(Pos.TOP_LEFT);
 
         //Add everything to the VBox
         this.getChildren().addAll(
                 DrawOptions, Draw, Eraser, DrawLine, Rectangle, Circle,
-                Ellipse, SelectionTool, EyeDropper, new Separator(), lineWidth,
+                Ellipse, SelectionTool, ObjectTool, EyeDropper, new Separator(), lineWidth,
                 slider, lineColorLabel, cpLine, lineFillLabel, cpFill,
-                new Separator(), Text, textLine, textSlider
+                new Separator(), Text,
+                new Separator(), Fill, fillToleranceLabel, fillSlider, fillDiagonal
         );
 
         //Creating the spacing for the ToolBar
@@ -274,40 +278,93 @@ public class MyToolbar extends VBox {
 
     /**
      * *END OF MYTOOLBAR()**
-     * @return 
-     */
-    
-    /*
-     *Allows other classes to get the value from the text slider
-     *Returns the width which is a double
      */
-    
-    public static double getLineWidth() {
-        return LineWidth;
-    }
-    
+
     /**
-     * Gets Text from the input box
-     * @return String that user entered in the input box.
+     * Puts an icon on a tool's button, or its name if there is no icon.
+     *
+     * @param button the tool's button
+     * @param icon the icon's name
+     * @param name the tool's name
      */
-    public static String getText() {
-        return textLine.getText();
+    private void setIcon(ToggleButton button, String icon, String name) {
+        if (MyToolbar.icons == null) {
+            MyToolbar.icons = new IconAtlas();
+        }
+        ImageView view = MyToolbar.icons.view(icon, 20);
+        if (view != null) {
+            button.setGraphic(view);
+        } else {
+            button.setText(name);
+        }
     }
 
     /**
-     * Gets the line color that is currently in use.
-     * @return Color Line Color that is currently in use.
+     * Adds the text box and the text size slider under the text tool's
+     * button. They are only made once the text tool is picked, most
+     * drawings do not have text.
+     *
+     * @param Text the text tool's button
+     * @param line_width label showing the text size
      */
-    public static Color getLineColor() {
-        return cpLine.getValue();
+    private void showTextControls(ToggleButton Text, Label line_width) {
+        //Text box that allows user to enter in text for the canvas
+        textLine = new TextArea();
+        textLine.setPromptText("Insert Text Here");
+        textLine.setPrefRowCount(1);
+        textLine.setPrefColumnCount(1);
+        textLine.textProperty().addListener(e -> {
+            canvas.setText(textLine.getText());
+        });
+
+        //Slider for Text size, in whole sizes so dragging it does not make a font per tick
+        Slider textSlider = new Slider(0, 150, 50);
+        textSlider.setShowTickLabels(true);
+        textSlider.valueProperty().addListener((o, before, after) -> {
+            double size = Math.round(after.doubleValue());
+            if (size == Math.round(before.doubleValue())) {
+                return;
+            }
+            line_width.setText(String.format("%.1f", size));
+            if (Text.isSelected()) {
+                width = 1;
+                fontSize = size;
+                canvas.setLineWidth(1);
+                canvas.setFontSize(fontSize);
+                return;
+            }
+            width = size;
+            canvas.setLineWidth(width);
+        });
+
+        int at = this.getChildren().indexOf(Text) + 1;
+        this.getChildren().addAll(at, Arrays.asList(textLine, textSlider));
     }
 
     /**
-     * Gets the fill color that is currently in use.
-     * @return Color Fill Color that is in use. 
+     * Uses the tools on another canvas, such as the one of a document that
+     * was just selected. The canvas gets the colors, widths, text and tool
+     * that are selected in the tool bar.
+     *
+     * @param c the canvas to draw on from now on.
      */
-    public static Color getFillColor() {
-        return cpFill.getValue();
+    void setCanvas(MyCanvas c) {
+        if (this.canvas != null) {
+            this.canvas.removeListener(this.picked);
+            c.setPen(this.canvas.getPen());
+            c.setMode(this.canvas.getMode());
+        }
+        this.canvas = c;
+        c.addListener(this.picked);
+
+        c.setLineColor(this.cpLine.getValue());
+        c.SetFillColor(this.cpFill.getValue());
+        c.setLineWidth(this.width);
+        c.setPenWidth(this.LineWidth);
+        c.setFontSize(this.fontSize);
+        c.setText(this.textLine == null ? "" : this.textLine.getText());
+        c.setFillTolerance(this.fillTolerance);
+        c.setFillDiagonal(this.fillDiagonal);
     }
 
-}
+}
\ No newline at end of file
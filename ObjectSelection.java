@@ -0,0 +1,444 @@
+package pain.t;
+
+import java.util.ArrayList;
+import java.util.List;
+import javafx.beans.property.ReadOnlyProperty;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Bounds;
+import javafx.scene.Node;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import pain.t.engine.Command;
+import pain.t.engine.SpatialIndex;
+
+/**
+ * Selects the shapes on the canvas as objects, instead of the pixels under a
+ * rectangle. Clicking picks the top shape under the mouse, dragging on an
+ * empty spot selects every shape inside the dragged rectangle, and dragging a
+ * selected shape moves the selection. Dragging with the right button erases
+ * the shapes the mouse goes over. Moving and erasing can be undone.
+ *
+ * Every shape node of the canvas is kept in a spatial index, updated as nodes
+ * are added, removed or moved, so none of this looks at every node. Only
+ * shapes kept as nodes can be selected, shapes drawn into the raster layer are
+ * pixels.
+ *
+ * @author Daniel Christensen
+ */
+public class ObjectSelection {
+
+    //distance in pixels around the mouse that still hits a shape
+    private static final double TOLERANCE = 3;
+
+    //the canvas whose shapes are selected
+    private final MyCanvas canvas;
+
+    //every shape node of the canvas, by bounding box
+    private final SpatialIndex<Node> index = new SpatialIndex<Node>();
+
+    //keeps the index up to date when a node moves or changes size
+    private final ChangeListener<Bounds> moved = new ChangeListener<Bounds>() {
+        @Override
+        public void changed(ObservableValue<? extends Bounds> observable, Bounds oldValue, Bounds b) {
+            Node n = (Node) ((ReadOnlyProperty<?>) observable).getBean();
+            index.put(n, b.getMinX(), b.getMinY(), b.getWidth(), b.getHeight());
+        }
+    };
+
+    //the selected shapes, from the bottom to the top
+    private final List<Node> selected = new ArrayList<Node>();
+
+    //outline of the selection, or the rectangle being dragged
+    private final Rectangle box = new Rectangle();
+
+    //what the mouse is doing since it was pressed
+    private enum Drag {
+        NONE, MOVE, BAND, ERASE
+    }
+    private Drag drag = Drag.NONE;
+
+    //where the mouse was pressed and where it was last
+    private double startX, startY, lastX, lastY;
+
+    //shapes erased by the current drag, and where they were in the canvas' children
+    private final List<Node> erased = new ArrayList<Node>();
+    private final List<Integer> erasedAt = new ArrayList<Integer>();
+
+    /**
+     * Creates the object selection of a canvas.
+     *
+     * @param canvas the canvas
+     */
+    ObjectSelection(MyCanvas canvas) {
+        this.canvas = canvas;
+        this.box.setFill(null);
+        this.box.setStroke(Color.DODGERBLUE);
+        this.box.getStrokeDashArray().addAll(4.0, 4.0);
+        this.box.setMouseTransparent(true);
+    }
+
+    /**
+     * Gets the outline shown around the selection. It is a child of the canvas
+     * while shown, but not a shape of the picture.
+     *
+     * @return the outline
+     */
+    Rectangle getBox() {
+        return this.box;
+    }
+
+    /**
+     * @return the spatial index of the canvas' shapes
+     */
+    SpatialIndex<Node> getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @return the selected shapes, from the bottom to the top
+     */
+    List<Node> getSelected() {
+        return this.selected;
+    }
+
+    /**
+     * Starts indexing a shape added to the canvas.
+     *
+     * @param n the shape
+     */
+    void added(Node n) {
+        Bounds b = n.getBoundsInParent();
+        this.index.put(n, b.getMinX(), b.getMinY(), b.getWidth(), b.getHeight());
+        n.boundsInParentProperty().addListener(this.moved);
+    }
+
+    /**
+     * Stops indexing a shape removed from the canvas.
+     *
+     * @param n the shape
+     */
+    void removed(Node n) {
+        if (this.index.remove(n)) {
+            n.boundsInParentProperty().removeListener(this.moved);
+        }
+        if (this.selected.remove(n)) {
+            this.showSelection();
+        }
+    }
+
+    /**
+     * Finds the top shape at a point. The exact shape is checked, with a small
+     * tolerance so thin lines can be clicked.
+     *
+     * @param x point x position, in canvas coordinates
+     * @param y point y position, in canvas coordinates
+     * @return the shape, or null if there is none
+     */
+    Node pick(double x, double y) {
+        List<Node> found = this.index.query(x - TOLERANCE, y - TOLERANCE, TOLERANCE * 2, TOLERANCE * 2);
+        for (int i = found.size() - 1; i >= 0; i--) {
+            Node n = found.get(i);
+            if (this.hits(n, x, y)) {
+                return n;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the shapes entirely inside a rectangle.
+     *
+     * @param x rectangle x position, in canvas coordinates
+     * @param y rectangle y position, in canvas coordinates
+     * @param w rectangle width
+     * @param h rectangle height
+     * @return the shapes, from the bottom to the top
+     */
+    List<Node> within(double x, double y, double w, double h) {
+        List<Node> inside = new ArrayList<Node>();
+        Bounds area = new BoundingBox(x, y, w, h);
+        for (Node n : this.index.query(x, y, w, h)) {
+            if (area.contains(n.getBoundsInParent())) {
+                inside.add(n);
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Finds the shapes a stroke goes over, such as the path of an eraser.
+     *
+     * @param points x and y of every point of the stroke
+     * @param count number of points
+     * @param radius half the width of the stroke
+     * @return the shapes, from the bottom to the top
+     */
+    List<Node> along(float[] points, int count, double radius) {
+        List<Node> touched = new ArrayList<Node>();
+        for (Node n : this.index.query(points, count, radius)) {
+            //check the exact shape at points along the stroke, no further apart than the radius
+            boolean hit = false;
+            for (int i = 0; i < count && !hit; i++) {
+                int j = Math.max(i - 1, 0);
+                double dx = points[i * 2] - points[j * 2];
+                double dy = points[i * 2 + 1] - points[j * 2 + 1];
+                int steps = Math.max(1, (int) Math.ceil(Math.hypot(dx, dy) / Math.max(radius, 1)));
+                for (int s = 1; s <= steps && !hit; s++) {
+                    hit = this.hits(n, points[j * 2] + dx * s / steps, points[j * 2 + 1] + dy * s / steps, radius);
+                }
+            }
+            if (hit) {
+                touched.add(n);
+            }
+        }
+        return touched;
+    }
+
+    /**
+     * Handles the mouse being pressed in object mode.
+     *
+     * @param x mouse x position, in canvas coordinates
+     * @param y mouse y position, in canvas coordinates
+     * @param erase true to erase the shapes dragged over
+     */
+    void press(double x, double y, boolean erase) {
+        this.startX = this.lastX = x;
+        this.startY = this.lastY = y;
+
+        if (erase) {
+            this.drag = Drag.ERASE;
+            this.erased.clear();
+            this.erasedAt.clear();
+            this.erase(x, y);
+            return;
+        }
+
+        Node hit = this.pick(x, y);
+        if (hit == null) {
+            //dragging on an empty spot selects with a rectangle
+            this.drag = Drag.BAND;
+            this.select(new ArrayList<Node>());
+            this.box.setX(x);
+            this.box.setY(y);
+            this.box.setWidth(0);
+            this.box.setHeight(0);
+            this.show();
+        } else {
+            if (!this.selected.contains(hit)) {
+                List<Node> one = new ArrayList<Node>();
+                one.add(hit);
+                this.select(one);
+            }
+            this.drag = Drag.MOVE;
+        }
+    }
+
+    /**
+     * Handles the mouse being dragged in object mode, once per frame.
+     *
+     * @param x mouse x position, in canvas coordinates
+     * @param y mouse y position, in canvas coordinates
+     */
+    void drag(double x, double y) {
+        if (this.drag == Drag.MOVE) {
+            for (Node n : this.selected) {
+                n.setTranslateX(n.getTranslateX() + x - this.lastX);
+                n.setTranslateY(n.getTranslateY() + y - this.lastY);
+            }
+            this.showSelection();
+        } else if (this.drag == Drag.BAND) {
+            this.box.setX(Math.min(x, this.startX));
+            this.box.setY(Math.min(y, this.startY));
+            this.box.setWidth(Math.abs(x - this.startX));
+            this.box.setHeight(Math.abs(y - this.startY));
+        } else if (this.drag == Drag.ERASE) {
+            this.erase(x, y);
+        }
+        this.lastX = x;
+        this.lastY = y;
+    }
+
+    /**
+     * Handles the mouse being released in object mode. Moves and erasures are
+     * recorded as a single action.
+     */
+    void release() {
+        if (this.drag == Drag.MOVE && (this.lastX != this.startX || this.lastY != this.startY)) {
+            this.canvas.record(new MoveCommand(new ArrayList<Node>(this.selected), this.lastX - this.startX, this.lastY - this.startY));
+        } else if (this.drag == Drag.BAND) {
+            this.select(this.within(this.box.getX(), this.box.getY(), this.box.getWidth(), this.box.getHeight()));
+        } else if (this.drag == Drag.ERASE && !this.erased.isEmpty()) {
+            this.canvas.record(new RemoveCommand(new ArrayList<Node>(this.erased), new ArrayList<Integer>(this.erasedAt)));
+        }
+        this.drag = Drag.NONE;
+    }
+
+    /**
+     * Selects shapes, replacing the current selection.
+     *
+     * @param shapes the shapes to select
+     */
+    void select(List<Node> shapes) {
+        this.selected.clear();
+        this.selected.addAll(shapes);
+        this.showSelection();
+    }
+
+    /**
+     * Forgets the selection and hides its outline.
+     */
+    void clear() {
+        this.selected.clear();
+        this.canvas.getChildren().remove(this.box);
+    }
+
+    /**
+     * Removes the shapes a segment of the eraser's path goes over.
+     */
+    private void erase(double x, double y) {
+        float[] segment = {(float) this.lastX, (float) this.lastY, (float) x, (float) y};
+        double radius = Math.max(this.canvas.getEraserWidth() / 2, TOLERANCE);
+        for (Node n : this.along(segment, 2, radius)) {
+            this.erasedAt.add(this.canvas.getChildren().indexOf(n));
+            this.erased.add(n);
+            this.canvas.getChildren().remove(n);
+        }
+    }
+
+    /**
+     * Outlines the selected shapes, or hides the outline if nothing is
+     * selected.
+     */
+    private void showSelection() {
+        if (this.selected.isEmpty()) {
+            this.canvas.getChildren().remove(this.box);
+            return;
+        }
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Node n : this.selected) {
+            Bounds b = n.getBoundsInParent();
+            minX = Math.min(minX, b.getMinX());
+            minY = Math.min(minY, b.getMinY());
+            maxX = Math.max(maxX, b.getMaxX());
+            maxY = Math.max(maxY, b.getMaxY());
+        }
+        this.box.setX(minX);
+        this.box.setY(minY);
+        this.box.setWidth(maxX - minX);
+        this.box.setHeight(maxY - minY);
+        this.show();
+    }
+
+    /**
+     * Puts the outline on top of the canvas.
+     */
+    private void show() {
+        if (this.box.getParent() != this.canvas) {
+            this.canvas.getChildren().add(this.box);
+        }
+    }
+
+    /**
+     * Checks the exact shape of a node around a point.
+     */
+    private boolean hits(Node n, double x, double y) {
+        return this.hits(n, x, y, TOLERANCE);
+    }
+
+    /**
+     * Checks the exact shape of a node within a distance of a point.
+     */
+    private boolean hits(Node n, double x, double y, double r) {
+        return n.intersects(n.parentToLocal(new BoundingBox(x - r, y - r, r * 2, r * 2)));
+    }
+
+    /**
+     * Moving shapes by the same distance.
+     */
+    private static class MoveCommand implements Command {
+
+        //the shapes moved and how far
+        private final List<Node> shapes;
+        private final double dx, dy;
+
+        /**
+         * Records shapes that were just moved.
+         */
+        MoveCommand(List<Node> shapes, double dx, double dy) {
+            this.shapes = shapes;
+            this.dx = dx;
+            this.dy = dy;
+        }
+
+        @Override
+        public void undo() {
+            for (Node n : this.shapes) {
+                n.setTranslateX(n.getTranslateX() - this.dx);
+                n.setTranslateY(n.getTranslateY() - this.dy);
+            }
+        }
+
+        @Override
+        public void redo() {
+            for (Node n : this.shapes) {
+                n.setTranslateX(n.getTranslateX() + this.dx);
+                n.setTranslateY(n.getTranslateY() + this.dy);
+            }
+        }
+
+        @Override
+        public long getSize() {
+            return 64 + this.shapes.size() * 8L;
+        }
+
+        @Override
+        public boolean compact() {
+            return false;
+        }
+    }
+
+    /**
+     * Erasing shapes. Undoing puts them back where they were among the
+     * canvas' children.
+     */
+    private class RemoveCommand implements Command {
+
+        //the shapes erased, in the order they were erased, and where they were
+        private final List<Node> shapes;
+        private final List<Integer> at;
+
+        /**
+         * Records shapes that were just erased.
+         */
+        RemoveCommand(List<Node> shapes, List<Integer> at) {
+            this.shapes = shapes;
+            this.at = at;
+        }
+
+        @Override
+        public void undo() {
+            for (int i = this.shapes.size() - 1; i >= 0; i--) {
+                int to = Math.min(this.at.get(i), canvas.getChildren().size());
+                canvas.getChildren().add(to, this.shapes.get(i));
+            }
+        }
+
+        @Override
+        public void redo() {
+            canvas.getChildren().removeAll(this.shapes);
+        }
+
+        @Override
+        public long getSize() {
+            return 64 + this.shapes.size() * 16L;
+        }
+
+        @Override
+        public boolean compact() {
+            return false;
+        }
+    }
+}
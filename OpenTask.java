@@ -0,0 +1,122 @@
+package pain.t;
+
+import java.io.File;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.concurrent.Task;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import pain.t.engine.ImageDecoder;
+import pain.t.engine.ProjectFile;
+import pain.t.engine.TileStore;
+
+/**
+ * Decodes an image file into tiles in the background with an ImageDecoder. The
+ * decoder's small preview is published first so something can be shown right
+ * away, then the full resolution pixels are decoded. The task can be cancelled
+ * at any time.
+ *
+ * @author Daniel Christensen
+ */
+public class OpenTask extends Task<TileStore> {
+
+    //the file to open
+    private final File file;
+
+    //the preview, set on the JavaFX thread once it is ready
+    private final ReadOnlyObjectWrapper<Image> preview = new ReadOnlyObjectWrapper<Image>();
+
+    //dimensions of the image, known once the preview is ready
+    private volatile int w, h;
+
+    //the opened project, null when opening an image
+    private volatile ProjectFile project;
+
+    /**
+     * Creates a new task opening a file.
+     *
+     * @param file the image file to open
+     */
+    OpenTask(File file) {
+        this.file = file;
+        this.updateTitle("Opening " + file.getName());
+    }
+
+    /**
+     * Gets the preview of the image. It is null until the preview is ready.
+     *
+     * @return the preview property
+     */
+    public ReadOnlyObjectProperty<Image> previewProperty() {
+        return this.preview.getReadOnlyProperty();
+    }
+
+    /**
+     * @return the full width of the image, 0 until the preview is ready
+     */
+    public int getImageWidth() {
+        return this.w;
+    }
+
+    /**
+     * @return the full height of the image, 0 until the preview is ready
+     */
+    public int getImageHeight() {
+        return this.h;
+    }
+
+    /**
+     * Gets the project that was opened. Its tiles are read from the file as
+     * they are used.
+     *
+     * @return the project, or null if the file is an image
+     */
+    public ProjectFile getProject() {
+        return this.project;
+    }
+
+    @Override
+    protected TileStore call() throws Exception {
+        //a project only needs its index read, there is nothing to preview
+        if (ProjectFile.isProject(this.file)) {
+            this.project = ProjectFile.open(this.file);
+            return this.project.getLayers().getActiveLayer().getPixels();
+        }
+
+        return ImageDecoder.decode(this.file, new ImageDecoder.Listener() {
+            @Override
+            public void preview(int[] pixels, int pw, int ph, int w, int h) {
+                OpenTask.this.w = w;
+                OpenTask.this.h = h;
+                publishPreview(pixels, pw, ph);
+            }
+
+            @Override
+            public void progress(double done) {
+                updateProgress(done, 1);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return OpenTask.this.isCancelled();
+            }
+        });
+    }
+
+    /**
+     * Makes an image out of the preview pixels and publishes it on the JavaFX
+     * thread.
+     */
+    private void publishPreview(int[] pixels, int pw, int ph) {
+        Platform.runLater(new Runnable() {
+            @Override
+            public void run() {
+                WritableImage img = new WritableImage(pw, ph);
+                img.getPixelWriter().setPixels(0, 0, pw, ph, PixelFormat.getIntArgbInstance(), pixels, 0, pw);
+                preview.set(img);
+            }
+        });
+    }
+}
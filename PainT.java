@@ -1,26 +1,63 @@
 package pain.t;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
+import javafx.application.Platform;
 import static javafx.application.Application.launch;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.concurrent.Task;
+import javafx.concurrent.Worker;
+import javafx.concurrent.WorkerStateEvent;
 import javafx.event.ActionEvent;
+import javafx.event.Event;
 import javafx.event.EventHandler;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
 import javafx.scene.Scene;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.Label;
+import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuBar;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.SeparatorMenuItem;
+import javafx.scene.control.Tab;
+import javafx.scene.control.TextInputDialog;
+import javafx.scene.control.TabPane;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyCodeCombination;
 import javafx.scene.input.KeyCombination;
 import javafx.scene.layout.BorderPane;
-import javafx.scene.layout.VBox;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
+import javafx.scene.layout.StackPane;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
+import pain.t.engine.Document;
+import pain.t.engine.Filter;
+import pain.t.engine.MemoryManager;
+import pain.t.engine.RecoveryJournal;
+import pain.t.engine.SessionClient;
+import pain.t.engine.SessionRelay;
+import pain.t.engine.TileStore;
 
 /**
+ * The main window. Every open document has its own tab, the tool bar, the
+ * menus and the status bar act on the selected one.
+ *
  * @author Daniel Christensen
  */
 public class PainT extends Application {
@@ -35,22 +72,64 @@ public class PainT extends Application {
     final private double canvasWidth = WindowWidth - 162;
     final private double canvasHeight = WindowHeight - 33;
 
-    //The path of the currently open file
-    private String fileLocation = "";
+    //the open documents, one tab each
+    private TabPane tabs = new TabPane();
 
-    //Custom canvas for drawing on
-    private MyCanvas canvas = new MyCanvas(canvasWidth, canvasHeight);
+    //Custom tool bar for drawing options, used on the selected document
+    private MyToolbar toolbar;
+
+    //lists the layers of the selected document
+    private LayersPanel layersPanel;
+
+    //dialogs, made the first time they are needed and kept
+    private FileChooser openChooser, saveChooser;
+    private AlertBox alertBox;
+
+    //keeps the open documents within the memory budget
+    private MemoryManager memory = MemoryManager.getShared();
+
+    //the image being opened in the background, null if nothing is loading
+    private OpenTask opening;
+
+    //the filter running in the background, null if none is
+    private Task<Void> filtering;
+
+    //shows the progress of saving and opening
+    private Label statusLabel = new Label();
+    private ProgressBar statusProgress = new ProgressBar();
+    private Button statusCancel = new Button("Cancel");
+    private Label zoomLabel = new Label();
+
+    //true once every new document gets a recovery journal, false while crash recovery is off
+    private boolean journaling = false;
+
+    //why crash recovery is off, null if it is on or not started yet
+    private String journalOff;
+
+    //exchanges the changes of shared documents once per frame, running while one is shared
+    private AnimationTimer sessions;
+
+    //live frame time, latency and counters, shown over the window
+    private MetricsOverlay overlay = new MetricsOverlay();
+
+    //where the journal of each open document is kept between sessions
+    private static final File JOURNAL_DIR = new File(System.getProperty("user.home"), ".paint-journals");
+
+    //the single journal kept by earlier versions, recovered once like the others
+    private static final File OLD_JOURNAL = new File(System.getProperty("user.home"), ".paint-recovery");
+
+    //how --relay is used, printed when it is used wrong
+    private static final String RELAY_USAGE = "usage: PainT --relay [port]";
 
     @Override
     public void start(Stage stage) {
+        Metrics.phase("JavaFX started");
+
         //the main scene for everything to be placed on
         BorderPane borderPane = new BorderPane();
 
-        //contain the custom tool bar
-        VBox toolBox = new VBox();
-
-        //Custom tool bar for drawing options
-        MyToolbar toolbar = new MyToolbar(canvas);
+        //the first document, the tool bar and layers are made once the window is shown
+        MyCanvas first = this.addTab().getCanvas();
 
         //the menu bar and the menus
         MenuBar menuBar = new MenuBar();
@@ -67,51 +146,72 @@ public class PainT extends Application {
         Menu menuEdit = new Menu("Edit");
         MenuItem menuUndo = new MenuItem("Undo");
         MenuItem menuRedo = new MenuItem("Redo");
+        CheckMenuItem menuRaster = new CheckMenuItem("Flatten finished shapes");
+        menuRaster.setSelected(first.isRasterCommit());
+
+        //Menu View to go in the menu bar and its subheadings
+        Menu menuView = new Menu("View");
+        MenuItem menuZoomIn = new MenuItem("Zoom in");
+        MenuItem menuZoomOut = new MenuItem("Zoom out");
+        MenuItem menuActualSize = new MenuItem("Actual size");
+        MenuItem menuFit = new MenuItem("Fit in window");
+
+        //Menu Filters to go in the menu bar, one item per filter
+        Menu menuFilters = new Menu("Filters");
+        for (Filter.Kind kind : Filter.Kind.values()) {
+            MenuItem item = new MenuItem(FilterDialog.nameOf(kind) + "...");
+            item.setOnAction(new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent e) {
+                    startFilter(kind);
+                }
+            });
+            menuFilters.getItems().add(item);
+        }
+
+        //Menu Session to go in the menu bar and its subheadings
+        Menu menuSession = new Menu("Session");
+        MenuItem menuHost = new MenuItem("Host session...");
+        MenuItem menuJoin = new MenuItem("Join session...");
+        MenuItem menuLeave = new MenuItem("Leave session");
 
         //Menu Help to go in the menu bar and its subheadings
         Menu menuHelp = new Menu("Help");
         MenuItem help = new MenuItem("I dunno either");
+        MenuItem menuJournal = new MenuItem("Crash recovery");
+        CheckMenuItem menuMetrics = new CheckMenuItem("Show performance");
 
         /**
-         * Resets the canvas and asks the user if they would like to save
-         * changes
+         * Opens a new empty document in its own tab.
          */
         menuNew.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent e) {
-
-                //check if current file not saved
-                if (smartSave()) {
-                    canvas.reset();
-                    fileLocation = "";
-                }
+                addTab();
+                memory.check();
             }
         });
 
         /**
-         * Opens a menu for the user to choose a file from. If the previous file
-         * contains changes, it will prompt the user if they would like to save
-         * before resetting the canvas and opening the file.
+         * Opens a menu for the user to choose a file from. The file is opened
+         * in a new tab, unless nothing was done in the selected one yet.
          */
         menuOpen.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent e) {
-                FileChooser fileChooser = new FileChooser();
-                fileChooser.setTitle("Open image");
-                fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Image Files", "*.jpg", "*.png"));
+                if (openChooser == null) {
+                    openChooser = new FileChooser();
+                    openChooser.setTitle("Open image");
+                    openChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Image Files", "*.jpg", "*.png", "*.gif", "*.bmp", "*.ppm", "*.pgm", "*.paint"));
+                }
 
                 //show file chooser
-                File file = fileChooser.showOpenDialog(stage);
+                File file = openChooser.showOpenDialog(stage);
 
                 //check file exists
                 if (file != null) {
-
-                    //check if current file not saved
-                    if (smartSave()) {
-                        //reset canvas and load image
-                        canvas.openImageFromFile(file);
-                        fileLocation = file.getPath();
-                    }
+                    //load image in the background
+                    startOpen(getTab().isPristine() ? getTab() : addTab(), file);
                 }
             }
         });
@@ -147,18 +247,31 @@ public class PainT extends Application {
         });
 
         /**
-         * Close request: close the application. Checks if modifications have
-         * been made and asks the user to save previous work to prevent loss.
+         * Close request: close the application. Checks every document for
+         * modifications and asks the user to save previous work to prevent loss.
+         * The window closes once every save is written.
          */
         stage.setOnCloseRequest(new EventHandler<WindowEvent>() {
             @Override
             public void handle(WindowEvent we) {
+                we.consume();
+                quit(new ArrayList<Tab>(tabs.getTabs()), 0);
+            }
+        });
 
-                if (!smartSave()) {
-                    we.consume();
+        /**
+         * Selecting a tab makes its document the one the tool bar and the
+         * menus work on, and may trim the others.
+         */
+        tabs.getSelectionModel().selectedItemProperty().addListener(new ChangeListener<Tab>() {
+            @Override
+            public void changed(ObservableValue<? extends Tab> observable, Tab oldTab, Tab newTab) {
+                if (newTab != null) {
+                    showTab((DocumentTab) newTab, (DocumentTab) oldTab);
                 }
             }
         });
+        showTab(getTab(), null);
 
         /**
          * Menu Undo: undo last action. Last drawing on the canvas is removed,
@@ -167,7 +280,7 @@ public class PainT extends Application {
         menuUndo.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent e) {
-                canvas.undo();
+                getCanvas().undo();
             }
         });
 
@@ -178,7 +291,132 @@ public class PainT extends Application {
         menuRedo.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent e) {
-                canvas.redo();
+                getCanvas().redo();
+            }
+        });
+
+        /**
+         * Menu Host session: shares the selected document through a relay
+         * started by this instance, others can then join it.
+         */
+        menuHost.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                TextInputDialog dialog = new TextInputDialog("7070");
+                dialog.setTitle("Host session");
+                dialog.setHeaderText("Share this document with others on the network");
+                dialog.setContentText("Port:");
+                Optional<String> port = dialog.showAndWait();
+                if (port.isPresent()) {
+                    SessionRelay relay = null;
+                    try {
+                        relay = new SessionRelay(Integer.parseInt(port.get().trim()));
+                        startSession(getTab(), "localhost", relay.getPort(), relay);
+                        menuRaster.setSelected(true);
+                    } catch (IOException | NumberFormatException ex) {
+                        if (relay != null) {
+                            relay.close();
+                        }
+                        showSessionError("The session could not be hosted", ex.getMessage());
+                    }
+                }
+            }
+        });
+
+        /**
+         * Menu Join session: opens the document shared by a relay in a new
+         * tab, unless nothing was done in the selected one yet.
+         */
+        menuJoin.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                TextInputDialog dialog = new TextInputDialog("localhost:7070");
+                dialog.setTitle("Join session");
+                dialog.setHeaderText("Edit a document shared by someone else");
+                dialog.setContentText("Host and port:");
+                Optional<String> address = dialog.showAndWait();
+                if (address.isPresent()) {
+                    String[] parts = address.get().trim().split(":");
+                    try {
+                        int port = parts.length > 1 ? Integer.parseInt(parts[1]) : 7070;
+                        startSession(getTab().isPristine() ? getTab() : addTab(), parts[0], port, null);
+                        menuRaster.setSelected(true);
+                    } catch (IOException | NumberFormatException ex) {
+                        showSessionError("The session could not be joined", ex.getMessage());
+                    }
+                }
+            }
+        });
+
+        /**
+         * Menu Leave session: stops sharing the selected document.
+         */
+        menuLeave.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                if (getTab().getSession() != null) {
+                    getTab().leaveSession();
+                    statusLabel.setText("Left the session");
+                }
+            }
+        });
+
+        /**
+         * Menu Crash recovery: shows how much the recovery journal costs.
+         */
+        menuJournal.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                showJournalStats();
+            }
+        });
+
+        /**
+         * Menu Show performance: shows or hides the metrics overlay.
+         */
+        menuMetrics.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                overlay.setShowing(menuMetrics.isSelected());
+            }
+        });
+
+        /**
+         * Menu Flatten: choose if finished shapes are drawn into the canvas'
+         * pixels or kept as separate shapes.
+         */
+        menuRaster.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                getCanvas().setRasterCommit(menuRaster.isSelected());
+            }
+        });
+
+        /**
+         * Menu View: zoom the canvas in and out.
+         */
+        menuZoomIn.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                getTab().getViewport().zoomIn();
+            }
+        });
+        menuZoomOut.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                getTab().getViewport().zoomOut();
+            }
+        });
+        menuActualSize.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                getTab().getViewport().actualSize();
+            }
+        });
+        menuFit.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                getTab().getViewport().fit();
             }
         });
 
@@ -189,131 +427,824 @@ public class PainT extends Application {
         menuSaveAs.setAccelerator(new KeyCodeCombination(KeyCode.S, KeyCombination.CONTROL_DOWN, KeyCombination.SHIFT_DOWN));
         menuUndo.setAccelerator(new KeyCodeCombination(KeyCode.Z, KeyCombination.CONTROL_DOWN));
         menuRedo.setAccelerator(new KeyCodeCombination(KeyCode.Z, KeyCombination.CONTROL_DOWN, KeyCombination.SHIFT_DOWN));
+        menuMetrics.setAccelerator(new KeyCodeCombination(KeyCode.F3));
+        menuZoomIn.setAccelerator(new KeyCodeCombination(KeyCode.EQUALS, KeyCombination.CONTROL_DOWN));
+        menuZoomOut.setAccelerator(new KeyCodeCombination(KeyCode.MINUS, KeyCombination.CONTROL_DOWN));
+        menuActualSize.setAccelerator(new KeyCodeCombination(KeyCode.DIGIT0, KeyCombination.CONTROL_DOWN));
+        menuFit.setAccelerator(new KeyCodeCombination(KeyCode.DIGIT9, KeyCombination.CONTROL_DOWN));
 
         //Adding the menus to the MenuBar
         menuFile.getItems().addAll(menuNew, menuOpen, menuSave, menuSaveAs, menuClose);
-        menuEdit.getItems().addAll(menuUndo, menuRedo);
-        menuHelp.getItems().add(help);
-        menuBar.getMenus().addAll(menuFile, menuEdit, menuHelp);
+        menuEdit.getItems().addAll(menuUndo, menuRedo, new SeparatorMenuItem(), menuRaster);
+        menuView.getItems().addAll(menuZoomIn, menuZoomOut, menuActualSize, menuFit);
+        menuSession.getItems().addAll(menuHost, menuJoin, menuLeave);
+        menuHelp.getItems().addAll(help, menuJournal, menuMetrics);
+        menuBar.getMenus().addAll(menuFile, menuEdit, menuView, menuFilters, menuSession, menuHelp);
+
+        //Status bar, shows the progress of saving and opening, and the zoom on the right
+        Region spacer = new Region();
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        HBox statusBar = new HBox(10, statusProgress, statusLabel, statusCancel, spacer, zoomLabel);
+        statusBar.setAlignment(Pos.CENTER_LEFT);
+        statusBar.setPadding(new Insets(2, 10, 2, 10));
+        statusProgress.setVisible(false);
+        statusCancel.setVisible(false);
+
+        /**
+         * Cancel button: stops opening an image or running a filter.
+         */
+        statusCancel.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent e) {
+                if (opening != null) {
+                    opening.cancel();
+                }
+                if (filtering != null) {
+                    filtering.cancel();
+                }
+            }
+        });
 
-        //Window layout
-        toolBox.getChildren().add(toolbar);
-        borderPane.setCenter(canvas);
+        //Window layout, the tool bar and layers go on the sides once they are made
+        borderPane.setCenter(tabs);
         borderPane.setTop(menuBar);
-        borderPane.setLeft(toolbar);
+        borderPane.setBottom(statusBar);
+
+        //the metrics overlay sits in the top right corner, over everything
+        StackPane root = new StackPane(borderPane, overlay);
+        StackPane.setAlignment(overlay, Pos.TOP_RIGHT);
+        StackPane.setMargin(overlay, new Insets(35, 10, 0, 0));
 
         //Creating the Window
-        Scene scene = new Scene(borderPane, WindowWidth, WindowHeight);
+        Scene scene = new Scene(root, WindowWidth, WindowHeight);
+        Metrics.watch(scene, new Supplier<MyCanvas>() {
+            @Override
+            public MyCanvas get() {
+                return getCanvas();
+            }
+        });
         stage.setTitle("Pain(t)™");
         stage.setScene(scene);
         stage.show();
-
         this.primaryStage = stage;
+        Metrics.phase("window shown");
+
+        /**
+         * First frame: the window is drawn with the empty canvas, then the
+         * tool bar, the layers and the crash recovery journal are made.
+         */
+        afterFrame(scene, new Runnable() {
+            @Override
+            public void run() {
+                Metrics.phase("first frame");
+
+                toolbar = new MyToolbar(getCanvas());
+                layersPanel = new LayersPanel(getCanvas());
+                borderPane.setLeft(toolbar);
+                borderPane.setRight(layersPanel);
+                Metrics.phase("tools made");
+
+                startJournals();
+                Metrics.phase("journal started");
+
+                afterFrame(scene, new Runnable() {
+                    @Override
+                    public void run() {
+                        Metrics.phase("first interactive frame");
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs something once the next frame of a scene was laid out, after the
+     * frame is drawn.
+     *
+     * @param scene the scene
+     * @param then what to run
+     */
+    private static void afterFrame(Scene scene, Runnable then) {
+        scene.addPostLayoutPulseListener(new Runnable() {
+            @Override
+            public void run() {
+                scene.removePostLayoutPulseListener(this);
+                Platform.runLater(then);
+            }
+        });
+    }
+
+    /**
+     * Adds a tab with a new empty document and selects it. Closing the tab
+     * asks the user to save its changes first, and the last tab closed is
+     * replaced by a new empty one.
+     *
+     * @return the new tab
+     */
+    private DocumentTab addTab() {
+        DocumentTab tab = new DocumentTab(new MyCanvas(canvasWidth, canvasHeight));
+
+        /**
+         * Close request: checks if the document was modified and asks the
+         * user to save it, stops an image opening or a filter running in it.
+         */
+        tab.setOnCloseRequest(new EventHandler<Event>() {
+            @Override
+            public void handle(Event e) {
+                e.consume();
+                tabs.getSelectionModel().select(tab);
+                smartSave(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeTab(tab);
+                    }
+                });
+            }
+        });
+
+        /**
+         * Closed: the document's memory is not counted anymore.
+         */
+        tab.setOnClosed(new EventHandler<Event>() {
+            @Override
+            public void handle(Event e) {
+                tab.leaveSession();
+                tab.closeJournal();
+                memory.unregister(tab);
+                tab.getCanvas().dispose();
+                if (tabs.getTabs().isEmpty()) {
+                    addTab();
+                }
+            }
+        });
+
+        memory.register(tab);
+        tabs.getTabs().add(tab);
+        tabs.getSelectionModel().select(tab);
+        if (this.journaling) {
+            startJournal(tab);
+        }
+        return tab;
     }
 
     /**
-     * Checks if canvas has been edited since last save, and asks user if they
+     * Closes a tab whose changes were saved or not wanted, stopping an image
+     * opening or a filter running in it.
+     *
+     * @param tab the tab to close
+     */
+    private void closeTab(DocumentTab tab) {
+        if (!tabs.getTabs().contains(tab)) {
+            return;
+        }
+        if (tab.getCanvas().isDisabled()) {
+            if (opening != null) {
+                opening.cancel();
+            }
+            if (filtering != null) {
+                filtering.cancel();
+            }
+        }
+        tabs.getTabs().remove(tab);
+        Event.fireEvent(tab, new Event(Tab.CLOSED_EVENT));
+    }
+
+    /**
+     * Asks to save each document in turn, the window closes once the last
+     * one is saved or not wanted. Stops at the first one the user cancels or
+     * that could not be saved.
+     *
+     * @param remaining the tabs open when closing was asked
+     * @param i the tab to ask about next
+     */
+    private void quit(List<Tab> remaining, int i) {
+        if (i == remaining.size()) {
+            primaryStage.close();
+            return;
+        }
+
+        Tab tab = remaining.get(i);
+        if (!tabs.getTabs().contains(tab)) {
+            quit(remaining, i + 1);
+            return;
+        }
+        tabs.getSelectionModel().select(tab);
+        smartSave(new Runnable() {
+            @Override
+            public void run() {
+                quit(remaining, i + 1);
+            }
+        });
+    }
+
+    /**
+     * Makes a tab's document the one the tool bar and the menus work on. The
+     * documents not selected are trimmed if they hold more than the memory
+     * budget together.
+     *
+     * @param tab the tab selected
+     * @param previous the tab selected before, null if none
+     */
+    private void showTab(DocumentTab tab, DocumentTab previous) {
+        MyCanvas canvas = tab.getCanvas();
+        canvas.restore();
+
+        if (previous != null) {
+            if (canvas.isRasterCommit() != previous.getCanvas().isRasterCommit()) {
+                canvas.setRasterCommit(previous.getCanvas().isRasterCommit());
+            }
+        }
+        if (this.toolbar != null) {
+            this.toolbar.setCanvas(canvas);
+            this.layersPanel.setCanvas(canvas);
+        }
+        zoomLabel.textProperty().bind(tab.getViewport().zoomProperty().multiply(100).asString("%.0f%%"));
+
+        memory.touch(tab);
+        memory.check();
+    }
+
+    /**
+     * @return the tab of the selected document
+     */
+    private DocumentTab getTab() {
+        return (DocumentTab) tabs.getSelectionModel().getSelectedItem();
+    }
+
+    /**
+     * @return the canvas of the selected document
+     */
+    private MyCanvas getCanvas() {
+        return getTab().getCanvas();
+    }
+
+    /**
+     * Deletes the recovery journals once Pain(t) closes properly.
+     */
+    @Override
+    public void stop() {
+        for (Tab tab : tabs.getTabs()) {
+            ((DocumentTab) tab).closeJournal();
+        }
+    }
+
+    /**
+     * Starts writing every change to each document into a recovery journal
+     * of its own. If Pain(t) did not close properly last time, the user is
+     * asked if they want the pictures they were working on back, each one is
+     * opened in a tab and its journal carries on from it. Journals another
+     * Pain(t) still writes are left alone.
+     */
+    private void startJournals() {
+        if (!JOURNAL_DIR.isDirectory() && !JOURNAL_DIR.mkdirs()) {
+            this.journalOff = "cannot create " + JOURNAL_DIR;
+            statusLabel.setText("Crash recovery is off: " + this.journalOff);
+            return;
+        }
+
+        //every journal left behind, with the document it rebuilds
+        List<RecoveryJournal> found = new ArrayList<RecoveryJournal>();
+        List<Document> docs = new ArrayList<Document>();
+        List<File> files = new ArrayList<File>(Arrays.asList(JOURNAL_DIR.listFiles()));
+        if (OLD_JOURNAL.isFile()) {
+            files.add(OLD_JOURNAL);
+        }
+        for (File file : files) {
+            RecoveryJournal journal = null;
+            try {
+                journal = RecoveryJournal.open(file);
+                Document doc = journal.recover();
+                if (doc == null) {
+                    journal.close(true);
+                } else {
+                    found.add(journal);
+                    docs.add(doc);
+                }
+            } catch (IOException ex) {
+                //in use by another Pain(t), or unreadable, it is left as it is
+                if (journal != null) {
+                    journal.close(false);
+                }
+            }
+        }
+
+        if (!docs.isEmpty()) {
+            Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+            alert.setTitle("Ruh Row");
+            alert.setHeaderText("Pain(t) did not close properly last time");
+            alert.setContentText(docs.size() == 1 ? "Would you like to get back the picture you were working on?"
+                    : "Would you like to get back the " + docs.size() + " pictures you were working on?");
+            alert.getButtonTypes().setAll(ButtonType.YES, ButtonType.NO);
+            boolean recover = alert.showAndWait().orElse(ButtonType.NO) == ButtonType.YES;
+
+            for (int i = 0; i < docs.size(); i++) {
+                if (!recover) {
+                    found.get(i).close(true);
+                    continue;
+                }
+
+                DocumentTab tab = getTab().isPristine() && getTab().getJournal() == null ? getTab() : addTab();
+                tab.getCanvas().recover(docs.get(i));
+                try {
+                    tab.startJournal(found.get(i), true);
+                } catch (IOException ex) {
+                    statusLabel.setText("Crash recovery is off for " + tab.getText() + ": " + ex.getMessage());
+                }
+            }
+        }
+
+        //every other document gets a new journal, and so does every one opened from now on
+        this.journaling = true;
+        for (Tab tab : tabs.getTabs()) {
+            if (((DocumentTab) tab).getJournal() == null) {
+                startJournal((DocumentTab) tab);
+            }
+        }
+    }
+
+    /**
+     * Starts a new recovery journal for a document.
+     *
+     * @param tab the tab of the document
+     */
+    private void startJournal(DocumentTab tab) {
+        try {
+            tab.startJournal(RecoveryJournal.open(File.createTempFile("document-", ".journal", JOURNAL_DIR)), false);
+        } catch (IOException ex) {
+            this.journalOff = ex.getMessage();
+            statusLabel.setText("Crash recovery is off for " + tab.getText() + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Shares a tab's document through a relay. If this instance hosts the
+     * relay, its document becomes the shared picture, otherwise the tab gets
+     * the picture already shared. The changes are exchanged once per frame
+     * for as long as a document is shared.
+     *
+     * @param tab the tab of the document
+     * @param host the relay's host
+     * @param port the relay's port
+     * @param relay the relay this instance hosts, null to join someone else's
+     * @throws IOException if the relay cannot be reached
+     */
+    private void startSession(DocumentTab tab, String host, int port, SessionRelay relay) throws IOException {
+        MyCanvas canvas = tab.getCanvas();
+        SessionClient client = new SessionClient(host, port, canvas.getDocument(), new SessionClient.Handler() {
+            @Override
+            public void replaced(TileStore store) {
+                canvas.sharedReplaced(store);
+            }
+
+            @Override
+            public void closed(IOException ex) {
+                tab.leaveSession();
+                statusLabel.setText(ex == null ? "The session ended" : "The session was lost: " + ex.getMessage());
+            }
+        });
+        tab.joinSession(client, relay);
+        if (relay != null) {
+            client.share();
+            statusLabel.setText("Hosting a session on port " + port);
+        } else {
+            statusLabel.setText("Joined the session at " + host + ":" + port);
+        }
+
+        if (this.sessions == null) {
+            this.sessions = new AnimationTimer() {
+                @Override
+                public void handle(long now) {
+                    boolean any = false;
+                    for (Tab t : tabs.getTabs()) {
+                        DocumentTab shared = (DocumentTab) t;
+                        SessionClient session = shared.getSession();
+                        if (session != null) {
+                            any = true;
+                            if (session.frame()) {
+                                shared.getCanvas().sharedChanged();
+                            }
+                        }
+                    }
+                    if (!any) {
+                        this.stop();
+                    }
+                }
+            };
+        }
+        this.sessions.start();
+    }
+
+    /**
+     * Displays how much the recovery journal costs while drawing, and how
+     * much it wrote.
+     */
+    private void showJournalStats() {
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle("Crash recovery");
+        RecoveryJournal journal = getTab().getJournal();
+        if (journal == null) {
+            alert.setHeaderText(this.journalOff == null ? "Crash recovery is off" : "Crash recovery is off: " + this.journalOff);
+        } else {
+            alert.setHeaderText(journal.getFailure() == null ? "Every change to this document is written to "
+                    + journal.getFile().getName() : "The journal stopped: " + journal.getFailure().getMessage());
+            alert.setContentText(String.format("Changes queued: %d%n"
+                    + "Time spent queuing: %.1f \u00b5s on average, %.1f \u00b5s at most%n"
+                    + "Changes written: %d in %d batches, %d KB%n"
+                    + "Forced to the disk: %d times",
+                    journal.getQueued(), journal.getAverageNanos() / 1000.0, journal.getMaxNanos() / 1000.0,
+                    journal.getWritten(), journal.getBatches(), journal.getBytes() / 1024,
+                    journal.getSyncs()));
+        }
+        alert.show();
+    }
+
+    /**
+     * Checks if the selected canvas has been edited since last save, and asks user if they
      * want to save or not. If canvas has been changed, a
      * window is prompted asking the user if they want to save their work.
      * If they click 'yes', the save() function is called. If 'no', content is
-     * not saved. Returns true if smart saving worked successfully or if changes were not made.
-     * Returns false if saving failed.
+     * not saved. Once the file is written, or if saving was not wanted, then
+     * is run. It is not run if the user clicked <b>Cancel</b> or saving failed,
+     * in which case the error is shown instead.
      *
-     * @return  <code>true</code> if save completed or not wanted,
-     * <code>false</code> if user clicked <b>Cancel</b>, or saving failed.
+     * @param then what to do once the document is saved or not wanted
      */
-    private boolean smartSave() {
+    private void smartSave(Runnable then) {
 
         //checks for changes
-        if (canvas.hasChanged()) {
+        if (getCanvas().hasChanged()) {
 
             //creates an alert box to allow user to save changes or not
-            Optional<ButtonType> response = new AlertBox().showAndWait();
+            if (alertBox == null) {
+                alertBox = new AlertBox();
+            }
+            Optional<ButtonType> response = alertBox.showAndWait();
 
             //if user clicks 'yes', save the canvas and it's contents
-            //returns if it saved or not
+            //carries on once the file is written
             if (response.get() == ButtonType.YES) {
-                return save();
+                Task<Void> saving = save();
+                if (saving != null) {
+                    whenSaved(saving, then);
+                }
+                return;
             }
-            //returns true if user clicks 'cancel'
+            //carries on unless user clicks 'cancel'
             if (response.get() != ButtonType.CANCEL) {
-                return true;
-            } else {
-                return false;
+                then.run();
             }
 
         } else {
-            //return true if no changes to canvas;
-            return true;
+            //no changes to canvas, but a save may still be writing
+            whenSaved(getTab().getSaving(), then);
         }
     }
 
     /**
-     * Saves canvas and it's changes as a JPEG or PNG file. Sets the location of
-     * the file to fileLocation. If file location is empty, a window will be
-     * displayed for the user to choose the location. Returns true or false
-     * depending on if the file was save successfully or not.
+     * Saves canvas and it's changes as a JPEG, PNG or project file, in the
+     * selected tab's file. If the tab has no file yet, a window will be
+     * displayed for the user to choose the location. The file is written in
+     * the background, the task returned tells if it worked.
      *
-     * @return true if save completed, false otherwise
+     * @return the save running in the background, null if none was started
      */
-    private boolean save() {
+    private Task<Void> save() {
 
         //check if fileUrl is empty (new file)
-        if (fileLocation == "") {
+        if (getTab().getFileLocation().isEmpty()) {
             //call saveAs() to ask user where to save file
             return saveAs();
         } else {
-            File file = new File(fileLocation);
+            File file = new File(getTab().getFileLocation());
 
             //check if file exists
             if (file != null) {
-                //save the image into the file and return true
-                canvas.saveImageAs(file);
-                return true;
+                //save the image into the file
+                return startSave(file);
             } else {
-                //if problem with the file, return false
-                return false;
+                //if problem with the file, nothing is saved
+                return null;
             }
         }
     }
 
     /**
      * Saves the canvas and its changes as an image file. A window will be
-     * displayed to allow the user to chose the saving location. Returns true or
-     * false depending on if the file was saved successfully or not.
+     * displayed to allow the user to chose the saving location. The file is
+     * written in the background, the task returned tells if it worked.
      *
-     * @return true if save completed, false otherwise
+     * @return the save running in the background, null if none was started
      */
-    private boolean saveAs() {
+    private Task<Void> saveAs() {
         File file;
-        FileChooser fc = new FileChooser();
-        fc.setTitle("Save image as");
+        if (this.saveChooser == null) {
+            this.saveChooser = new FileChooser();
+            this.saveChooser.setTitle("Save image as");
 
-        //extension filters to restrain to only image files
-        fc.getExtensionFilters().addAll(
-                new FileChooser.ExtensionFilter("JPG", "*.jpg"),
-                new FileChooser.ExtensionFilter("PNG", "*.png"));
+            //extension filters to restrain to only image files
+            this.saveChooser.getExtensionFilters().addAll(
+                    new FileChooser.ExtensionFilter("JPG", "*.jpg"),
+                    new FileChooser.ExtensionFilter("PNG", "*.png"),
+                    new FileChooser.ExtensionFilter("Pain(t) project", "*.paint"));
+        }
 
         //show the file chooser
-        file = fc.showSaveDialog(PainT.primaryStage);
+        file = this.saveChooser.showSaveDialog(PainT.primaryStage);
 
         //check if file exists
         if (file != null) {
-            //save the image into the file, set the fileLocation to be the new path and return true
-            canvas.saveImageAs(file);
-            fileLocation = file.getPath();
-            return true;
+            //save the image into the file, set the fileLocation to be the new path
+            Task<Void> saving = startSave(file);
+            getTab().setFileLocation(file.getPath());
+            return saving;
         } else {
-            //Return false if there is an error
-            return false;
+            //nothing is saved if no file was chosen
+            return null;
+        }
+    }
+
+    /**
+     * Starts writing the canvas into a file in the background. The status bar
+     * shows the progress, and an error message is displayed if the file could
+     * not be written.
+     *
+     * @param file the file to save into
+     * @return the save running in the background
+     */
+    private Task<Void> startSave(File file) {
+        Task<Void> saving = getCanvas().saveImageAs(file);
+        getTab().setSaving(saving);
+
+        statusProgress.setVisible(true);
+        statusProgress.progressProperty().bind(saving.progressProperty());
+        statusLabel.setText("Saving " + file.getName() + "...");
+
+        saving.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                statusProgress.progressProperty().unbind();
+                statusProgress.setVisible(false);
+                statusLabel.setText("Saved " + file.getName());
+            }
+        });
+
+        //the canvas marks itself as changed again, tell the user what happened
+        EventHandler<WorkerStateEvent> failed = saving.getOnFailed();
+        saving.setOnFailed(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                failed.handle(event);
+                statusProgress.progressProperty().unbind();
+                statusProgress.setVisible(false);
+                statusLabel.setText("Could not save " + file.getName());
+                showSaveError(file, event.getSource().getException());
+            }
+        });
+        return saving;
+    }
+
+    /**
+     * Starts opening an image in the background. The status bar shows the
+     * progress and a button to cancel. The file becomes the tab's file once
+     * the image is fully loaded.
+     *
+     * @param tab the tab to open the image in
+     * @param file the image file to open
+     */
+    private void startOpen(DocumentTab tab, File file) {
+        if (opening != null) {
+            opening.cancel();
+        }
+        if (filtering != null) {
+            filtering.cancel();
+        }
+        opening = tab.getCanvas().openImageFromFile(file);
+
+        statusProgress.setVisible(true);
+        statusCancel.setVisible(true);
+        statusProgress.progressProperty().bind(opening.progressProperty());
+        statusLabel.setText("Opening " + file.getName() + "...");
+
+        //the canvas handles the task's events itself, run its handlers first
+        OpenTask task = opening;
+        EventHandler<WorkerStateEvent> succeeded = task.getOnSucceeded();
+        EventHandler<WorkerStateEvent> stopped = task.getOnFailed();
+
+        task.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                succeeded.handle(event);
+                tab.setFileLocation(file.getPath());
+                openFinished(task, "Opened " + file.getName());
+                memory.check();
+            }
+        });
+        task.setOnCancelled(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                stopped.handle(event);
+                openFinished(task, "Cancelled opening " + file.getName());
+            }
+        });
+        task.setOnFailed(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                stopped.handle(event);
+                openFinished(task, "Could not open " + file.getName());
+
+                Alert alert = new Alert(Alert.AlertType.ERROR);
+                alert.setTitle("Ruh Row");
+                alert.setHeaderText("Could not open " + file.getName());
+                alert.setContentText(task.getException() != null ? task.getException().getMessage() : null);
+                alert.show();
+            }
+        });
+    }
+
+    /**
+     * Asks for the parameters of a filter with a preview, then runs it over
+     * the whole canvas in the background. The status bar shows the progress
+     * and a button to cancel.
+     *
+     * @param kind the filter to run
+     */
+    private void startFilter(Filter.Kind kind) {
+        if (filtering != null || opening != null) {
+            return;
+        }
+
+        MyCanvas canvas = getCanvas();
+        Optional<Filter> filter = new FilterDialog(kind, canvas.getDocument().getStore()).showAndWait();
+        if (!filter.isPresent()) {
+            return;
+        }
+
+        Task<Void> task = canvas.applyFilter(filter.get());
+        filtering = task;
+        statusProgress.setVisible(true);
+        statusCancel.setVisible(true);
+        statusProgress.progressProperty().bind(task.progressProperty());
+        statusLabel.setText(task.getTitle() + "...");
+
+        //the canvas handles the task's events itself, run its handlers first
+        EventHandler<WorkerStateEvent> succeeded = task.getOnSucceeded();
+        EventHandler<WorkerStateEvent> stopped = task.getOnFailed();
+        task.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                succeeded.handle(event);
+                filterFinished(task.getTitle() + " done");
+            }
+        });
+        task.setOnCancelled(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                stopped.handle(event);
+                filterFinished(task.getTitle() + " cancelled");
+            }
+        });
+        task.setOnFailed(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                stopped.handle(event);
+                filterFinished(task.getTitle() + " failed");
+            }
+        });
+    }
+
+    /**
+     * Hides the progress of a filter that is done.
+     *
+     * @param message text to show in the status bar
+     */
+    private void filterFinished(String message) {
+        filtering = null;
+        statusProgress.progressProperty().unbind();
+        statusProgress.setVisible(false);
+        statusCancel.setVisible(false);
+        statusLabel.setText(message);
+    }
+
+    /**
+     * Hides the progress of an image that is done opening.
+     *
+     * @param task the task that finished
+     * @param message text to show in the status bar
+     */
+    private void openFinished(OpenTask task, String message) {
+        if (opening == task) {
+            opening = null;
+            statusProgress.progressProperty().unbind();
+            statusProgress.setVisible(false);
+            statusCancel.setVisible(false);
+            statusLabel.setText(message);
         }
     }
 
     /**
+     * Runs something once a save running in the background has written its
+     * file, without blocking while it does. Used before closing a document so
+     * the file is not cut short. Nothing is run if the save failed, its error
+     * is already shown.
+     *
+     * @param saving the save, null if there is none
+     * @param then what to do once the file is written
+     */
+    private void whenSaved(Task<Void> saving, Runnable then) {
+        if (saving == null || saving.getState() == Worker.State.SUCCEEDED || saving.getState() == Worker.State.CANCELLED) {
+            then.run();
+        } else if (!saving.isDone()) {
+            saving.addEventHandler(WorkerStateEvent.WORKER_STATE_SUCCEEDED, new EventHandler<WorkerStateEvent>() {
+                @Override
+                public void handle(WorkerStateEvent event) {
+                    then.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Displays an error message for a file that could not be saved.
+     *
+     * @param file the file that was being saved
+     * @param ex the reason it failed
+     */
+    private void showSaveError(File file, Throwable ex) {
+        Alert alert = new Alert(Alert.AlertType.ERROR);
+        alert.setTitle("Ruh Row");
+        alert.setHeaderText("Could not save " + file.getName());
+        alert.setContentText(ex != null ? ex.getMessage() : null);
+        alert.show();
+    }
+
+    /**
+     * Displays why a document could not be shared.
+     *
+     * @param header what failed
+     * @param reason why it failed
+     */
+    private void showSessionError(String header, String reason) {
+        Alert alert = new Alert(Alert.AlertType.ERROR);
+        alert.setTitle("Ruh Row");
+        alert.setHeaderText(header);
+        alert.setContentText(reason);
+        alert.show();
+    }
+
+    /**
+     * Opens the window, or converts images without one when the first
+     * argument is --batch, see Batch for the rest of the arguments. With
+     * --relay and an optional port, only a session relay is run.
+     *
      * @param args the command line arguments
      */
     public static void main(String[] args) {
+        //images are converted from the command line without a window
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(Batch.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        //a session relay also runs without a window, until the process is stopped
+        if (args.length > 0 && args[0].equals("--relay")) {
+            String[] relayArgs = Arrays.copyOfRange(args, 1, args.length);
+            try {
+                PainT.checkRelayArgs(relayArgs);
+            } catch (IllegalArgumentException ex) {
+                System.err.println(ex.getMessage());
+                System.err.println(RELAY_USAGE);
+                System.exit(2);
+            }
+            try {
+                SessionRelay.main(relayArgs);
+            } catch (IOException | InterruptedException ex) {
+                System.err.println(ex.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
         launch(args);
     }
 
+    /**
+     * Checks the arguments of --relay: nothing, or the port to listen on.
+     *
+     * @throws IllegalArgumentException if they are wrong
+     */
+    private static void checkRelayArgs(String[] args) {
+        if (args.length > 1) {
+            throw new IllegalArgumentException("Too many arguments for --relay");
+        }
+        if (args.length == 1) {
+            int port;
+            try {
+                port = Integer.parseInt(args[0]);
+            } catch (NumberFormatException ex) {
+                port = -1;
+            }
+            if (port < 0 || port > 65535) {
+                throw new IllegalArgumentException(args[0] + " is not a port");
+            }
+        }
+    }
+
 }
@@ -0,0 +1,443 @@
+package pain.t;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javafx.animation.AnimationTimer;
+import javafx.geometry.Bounds;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Group;
+import javafx.scene.Node;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.scene.paint.ImagePattern;
+import javafx.scene.shape.Rectangle;
+import pain.t.engine.MipPyramid;
+import pain.t.engine.Pixels;
+import pain.t.engine.TileStore;
+import pain.t.engine.PixelsOp;
+
+/**
+ * The pixels of the canvas. Finished shapes are drawn into this layer's store
+ * by the document when the user releases the mouse, so they no longer need to
+ * live in the scene graph as nodes. The pixels are kept in a TileStore, and
+ * only the tiles inside the part of the layer on screen are displayed, each by
+ * its own image. Zoomed out, the tiles come from a smaller copy of the store
+ * so a large picture is never scaled down whole. Only the tiles that changed
+ * since the last repaint are copied to the screen, untouched tiles are drawn
+ * as a plain rectangle of the background color. Transparent pixels, left by
+ * the eraser, show a checkerboard. The images of tiles that left the screen
+ * are kept for the next tiles shown by any layer, so documents share them.
+ *
+ * @author Daniel Christensen
+ */
+public class RasterLayer extends Group {
+
+    //the pixels of the layer
+    private final TileStore store;
+
+    //smaller copies of the pixels, shown when zoomed out
+    private MipPyramid pyramid;
+
+    //the tiles on screen, by level and position
+    private final Map<Long, Shown> shown = new HashMap<Long, Shown>();
+
+    //images of tiles that left the screen, reused by the next ones of every layer
+    private static final ArrayDeque<WritableImage> spare = new ArrayDeque<WritableImage>();
+
+    //the part of the layer on screen, in pixels, and how much it is zoomed
+    private Rectangle2D view;
+    private double zoom = 1;
+
+    //shows the tiles that were still left to make when the last repaint ran out of time
+    private final AnimationTimer catchUp;
+
+    //checkerboard shown under transparent pixels
+    private final Rectangle checker;
+
+    //size of a checkerboard square, in pixels
+    private static final int CHECKER_SIZE = 8;
+
+    //time a repaint may spend making zoomed out tiles before it leaves the rest for the next frame
+    private static final long MAKE_BUDGET = 8_000_000;
+
+    //most images kept for reuse, past that they are left to the garbage collector
+    private static final int SPARE_LIMIT = 64;
+
+    /**
+     * A tile on screen, either an image or a rectangle of the background color.
+     */
+    private static class Shown {
+
+        //the node showing the tile
+        Node node;
+
+        //the image of the tile, null if it is shown as a rectangle
+        WritableImage image;
+
+        //version of the tile when it was copied
+        int version;
+    }
+
+    /**
+     * Creates a new layer filled with a single color.
+     *
+     * @param w layer width
+     * @param h layer height
+     * @param background color to fill the layer with
+     */
+    public RasterLayer(int w, int h, Color background) {
+        this(new TileStore(w, h, toArgb(background)));
+    }
+
+    /**
+     * Creates a new layer containing an image. The image is copied tile by
+     * tile, so no second full size copy is made.
+     *
+     * @param img the image to copy into the layer
+     */
+    public RasterLayer(Image img) {
+        this(new TileStore((int) img.getWidth(), (int) img.getHeight(), 0));
+
+        PixelReader reader = img.getPixelReader();
+        for (int ty = 0; ty < this.store.getTilesY(); ty++) {
+            for (int tx = 0; tx < this.store.getTilesX(); tx++) {
+                int x = tx * TileStore.TILE_SIZE;
+                int y = ty * TileStore.TILE_SIZE;
+                int tw = Math.min(TileStore.TILE_SIZE, this.store.getWidth() - x);
+                int th = Math.min(TileStore.TILE_SIZE, this.store.getHeight() - y);
+                reader.getPixels(x, y, tw, th, PixelFormat.getIntArgbInstance(), this.store.tileForWrite(tx, ty), 0, TileStore.TILE_SIZE);
+            }
+        }
+        this.store.markDirty(0, 0, this.store.getWidth(), this.store.getHeight());
+    }
+
+    /**
+     * Creates a new layer displaying a store. Nothing is shown until it is
+     * repainted, and the whole layer is shown at full size until it is told
+     * which part of it is on screen.
+     *
+     * @param store the pixels to display
+     */
+    public RasterLayer(TileStore store) {
+        this.store = store;
+        this.pyramid = new MipPyramid(store);
+        this.view = new Rectangle2D(0, 0, store.getWidth(), store.getHeight());
+
+        //the checkerboard is under everything
+        this.checker = new Rectangle(0, 0, store.getWidth(), store.getHeight());
+        this.checker.setFill(RasterLayer.checkerboard());
+        this.getChildren().add(this.checker);
+
+        this.catchUp = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                repaint();
+            }
+        };
+    }
+
+    /**
+     * Renders nodes the engine cannot draw by itself into an operation. Each
+     * node is rendered on its own over a transparent background, and blended
+     * over the previous ones. The layer is not changed.
+     *
+     * @param nodes the nodes to render, they should be children of the canvas
+     * @return the operation blending the rendered pixels over the layer, or
+     * null if the nodes are outside of the layer
+     */
+    public PixelsOp render(Node... nodes) {
+        //the region of the layer touched by the nodes
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Node node : nodes) {
+            Bounds b = node.getBoundsInParent();
+            minX = Math.min(minX, b.getMinX());
+            minY = Math.min(minY, b.getMinY());
+            maxX = Math.max(maxX, b.getMaxX());
+            maxY = Math.max(maxY, b.getMaxY());
+        }
+
+        int x0 = Math.max((int) Math.floor(minX), 0);
+        int y0 = Math.max((int) Math.floor(minY), 0);
+        int x1 = Math.min((int) Math.ceil(maxX), this.store.getWidth());
+        int y1 = Math.min((int) Math.ceil(maxY), this.store.getHeight());
+
+        if (x1 <= x0 || y1 <= y0) {
+            return null;
+        }
+
+        int rw = x1 - x0;
+        int rh = y1 - y0;
+        int[] pixels = new int[rw * rh];
+        int[] src = new int[rw * rh];
+
+        //render each node alone, over a transparent background
+        SnapshotParameters params = new SnapshotParameters();
+        params.setFill(Color.TRANSPARENT);
+        params.setViewport(new Rectangle2D(x0, y0, rw, rh));
+
+        for (Node node : nodes) {
+            WritableImage shot = node.snapshot(params, null);
+            shot.getPixelReader().getPixels(0, 0, rw, rh, PixelFormat.getIntArgbInstance(), src, 0, rw);
+
+            for (int i = 0; i < src.length; i++) {
+                pixels[i] = Pixels.blend(pixels[i], src[i]);
+            }
+        }
+
+        return new PixelsOp(x0, y0, rw, rh, pixels, true);
+    }
+
+    /**
+     * Copies a region of the layer into a new array.
+     *
+     * @param x region x position
+     * @param y region y position
+     * @param rw region width
+     * @param rh region height
+     * @return the ARGB pixels of the region, row by row
+     */
+    public int[] read(int x, int y, int rw, int rh) {
+        int[] out = new int[rw * rh];
+        this.store.read(x, y, rw, rh, out, 0, rw);
+        return out;
+    }
+
+    /**
+     * Replaces a region of the layer and refreshes the tiles it touched.
+     *
+     * @param x region x position
+     * @param y region y position
+     * @param rw region width
+     * @param rh region height
+     * @param src the new ARGB pixels of the region, row by row
+     */
+    public void write(int x, int y, int rw, int rh, int[] src) {
+        this.store.write(x, y, rw, rh, src, 0, rw);
+        this.repaint();
+    }
+
+    /**
+     * Sets the part of the layer on screen. Only the tiles inside it are
+     * displayed, at the level matching the zoom.
+     *
+     * @param view the part of the layer on screen, in pixels of the layer
+     * @param zoom how many screen pixels one pixel of the layer takes
+     */
+    public void setView(Rectangle2D view, double zoom) {
+        this.view = view;
+        this.zoom = zoom;
+        this.repaint();
+    }
+
+    /**
+     * Copies the tiles on screen that changed since the last repaint to the
+     * screen, and drops the tiles that left it. Making the tiles of a zoomed
+     * out level can take a while, so past a few milliseconds the rest are left
+     * for the next frames.
+     */
+    public void repaint() {
+        this.pyramid.sync();
+
+        //each level halves the size, the one used is never smaller than what is on screen
+        int level = 0;
+        while (level + 1 < this.pyramid.getLevels() && this.zoom <= 1.0 / (2 << level)) {
+            level++;
+        }
+        TileStore source = this.pyramid.getLevel(level);
+        int size = TileStore.TILE_SIZE << level;
+
+        int tx0 = Math.max(0, (int) Math.floor(this.view.getMinX() / size));
+        int ty0 = Math.max(0, (int) Math.floor(this.view.getMinY() / size));
+        int tx1 = Math.min(source.getTilesX() - 1, (int) Math.ceil(this.view.getMaxX() / size) - 1);
+        int ty1 = Math.min(source.getTilesY() - 1, (int) Math.ceil(this.view.getMaxY() / size) - 1);
+
+        //tiles of another level or off screen are not needed anymore
+        Iterator<Map.Entry<Long, Shown>> it = this.shown.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Shown> e = it.next();
+            long key = e.getKey();
+            int tx = (int) (key & 0xffffff);
+            int ty = (int) ((key >> 24) & 0xffffff);
+            if ((key >>> 48) != level || tx < tx0 || tx > tx1 || ty < ty0 || ty > ty1) {
+                this.drop(e.getValue());
+                it.remove();
+            }
+        }
+
+        long deadline = System.nanoTime() + MAKE_BUDGET;
+        boolean behind = false;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                long key = ((long) level << 48) | ((long) ty << 24) | tx;
+                Shown s = this.shown.get(key);
+                if (s != null && this.pyramid.isReady(level, tx, ty) && s.version == source.getVersion(tx, ty)) {
+                    continue;
+                }
+                if (!this.pyramid.make(level, tx, ty, deadline)) {
+                    behind = true;
+                    continue;
+                }
+
+                int[] tile = source.getTile(tx, ty);
+                if (s == null) {
+                    s = new Shown();
+                    this.shown.put(key, s);
+                }
+
+                //where the tile is in the layer, and its size in the level
+                int x = tx * size;
+                int y = ty * size;
+                int tw = Math.min(TileStore.TILE_SIZE, source.getWidth() - tx * TileStore.TILE_SIZE);
+                int th = Math.min(TileStore.TILE_SIZE, source.getHeight() - ty * TileStore.TILE_SIZE);
+                double fw = Math.min(tw << level, this.store.getWidth() - x);
+                double fh = Math.min(th << level, this.store.getHeight() - y);
+
+                //the tile was never drawn on or was reset by an undo, show the background color
+                if (tile == null) {
+                    if (s.image != null || s.node == null) {
+                        this.drop(s);
+                        Rectangle fill = new Rectangle(x, y, fw, fh);
+                        fill.setFill(Color.rgb((this.store.getFill() >> 16) & 0xff, (this.store.getFill() >> 8) & 0xff,
+                                this.store.getFill() & 0xff, (this.store.getFill() >>> 24) / 255.0));
+                        s.node = fill;
+                        this.getChildren().add(fill);
+                    }
+                    s.version = source.getVersion(tx, ty);
+                    continue;
+                }
+
+                //the tile's image holds its background color from now on
+                if (s.image == null) {
+                    this.drop(s);
+                    s.image = RasterLayer.spare.isEmpty() ? new WritableImage(TileStore.TILE_SIZE, TileStore.TILE_SIZE) : RasterLayer.spare.pop();
+                    ImageView tileView = new ImageView(s.image);
+                    tileView.setViewport(new Rectangle2D(0, 0, tw, th));
+                    tileView.setX(x);
+                    tileView.setY(y);
+                    tileView.setFitWidth(fw);
+                    tileView.setFitHeight(fh);
+                    s.node = tileView;
+                    this.getChildren().add(tileView);
+                }
+
+                s.image.getPixelWriter().setPixels(0, 0, tw, th, PixelFormat.getIntArgbInstance(), tile, 0, TileStore.TILE_SIZE);
+                s.version = source.getVersion(tx, ty);
+            }
+        }
+
+        if (behind) {
+            this.catchUp.start();
+        } else {
+            this.catchUp.stop();
+        }
+    }
+
+    /**
+     * Takes a tile off the screen, keeping its image for another tile.
+     */
+    private void drop(Shown s) {
+        if (s.node != null) {
+            this.getChildren().remove(s.node);
+            s.node = null;
+        }
+        if (s.image != null) {
+            if (RasterLayer.spare.size() < SPARE_LIMIT) {
+                RasterLayer.spare.push(s.image);
+            }
+            s.image = null;
+        }
+    }
+
+    /**
+     * Takes every tile off the screen and lets go of the smaller copies of the
+     * pixels, to save memory while the layer is not looked at. The next
+     * repaint shows the tiles on screen again.
+     */
+    public void release() {
+        this.catchUp.stop();
+        for (Shown s : this.shown.values()) {
+            this.drop(s);
+        }
+        this.shown.clear();
+        this.pyramid = new MipPyramid(this.store);
+    }
+
+    /**
+     * @return the memory held by the images on screen and the smaller copies
+     * of the pixels, in bytes
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (int level = 1; level < this.pyramid.getLevels(); level++) {
+            bytes += this.pyramid.getLevel(level).getAllocatedBytes();
+        }
+        for (Shown s : this.shown.values()) {
+            if (s.image != null) {
+                bytes += TileStore.TILE_SIZE * TileStore.TILE_SIZE * 4;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Makes the light checkerboard pattern shown under transparent pixels.
+     */
+    private static ImagePattern checkerboard() {
+        WritableImage img = new WritableImage(CHECKER_SIZE * 2, CHECKER_SIZE * 2);
+        for (int y = 0; y < CHECKER_SIZE * 2; y++) {
+            for (int x = 0; x < CHECKER_SIZE * 2; x++) {
+                boolean dark = (x / CHECKER_SIZE + y / CHECKER_SIZE) % 2 == 1;
+                img.getPixelWriter().setArgb(x, y, dark ? 0xffcccccc : 0xffffffff);
+            }
+        }
+        return new ImagePattern(img, 0, 0, CHECKER_SIZE * 2, CHECKER_SIZE * 2, false);
+    }
+
+    /**
+     * Gets the store holding the pixels of the layer.
+     *
+     * @return the layer's store
+     */
+    public TileStore getStore() {
+        return this.store;
+    }
+
+    /**
+     * Gets the layer's width in pixels.
+     *
+     * @return the width
+     */
+    public int getPixelWidth() {
+        return this.store.getWidth();
+    }
+
+    /**
+     * Gets the layer's height in pixels.
+     *
+     * @return the height
+     */
+    public int getPixelHeight() {
+        return this.store.getHeight();
+    }
+
+    /**
+     * Converts a JavaFX color into an ARGB int.
+     *
+     * @param c the color
+     * @return the ARGB value
+     */
+    static int toArgb(Color c) {
+        return ((int) Math.round(c.getOpacity() * 255) << 24)
+                | ((int) Math.round(c.getRed() * 255) << 16)
+                | ((int) Math.round(c.getGreen() * 255) << 8)
+                | (int) Math.round(c.getBlue() * 255);
+    }
+}
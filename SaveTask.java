@@ -0,0 +1,82 @@
+package pain.t;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import javafx.concurrent.Task;
+import pain.t.engine.ImageEncoder;
+import pain.t.engine.Progress;
+import pain.t.engine.ProjectFile;
+
+/**
+ * Encodes an image and writes it to a file in the background. The image is a
+ * copy of the canvas made when saving started, so the user can keep drawing
+ * while the file is written. Progress is reported as the encoder goes. Projects
+ * are saved the same way, with the changes copied by ProjectFile.prepare().
+ *
+ * @author Daniel Christensen
+ */
+public class SaveTask extends Task<Void> {
+
+    //the copy of the canvas to write, null when saving a project
+    private final BufferedImage img;
+
+    //the changes to write into a project, null when saving an image
+    private final ProjectFile.Save save;
+
+    //where to write it, and the format to use
+    private final File file;
+    private final String format;
+
+    /**
+     * Creates a new save task.
+     *
+     * @param img the image to write, it must not be changed afterward
+     * @param file the file to write into
+     * @param format the image format, such as "png" or "jpg"
+     */
+    SaveTask(BufferedImage img, File file, String format) {
+        this.img = img;
+        this.save = null;
+        this.file = file;
+        this.format = format;
+        this.updateTitle("Saving " + file.getName());
+    }
+
+    /**
+     * Creates a new task saving a project.
+     *
+     * @param save the changes to write
+     * @param file the project file
+     */
+    SaveTask(ProjectFile.Save save, File file) {
+        this.img = null;
+        this.save = save;
+        this.file = file;
+        this.format = ProjectFile.EXTENSION;
+        this.updateTitle("Saving " + file.getName());
+    }
+
+    @Override
+    protected Void call() throws Exception {
+        Progress progress = new Progress() {
+            @Override
+            public void progress(double done) {
+                updateProgress(done, 1);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return SaveTask.this.isCancelled();
+            }
+        };
+
+        if (this.save != null) {
+            this.save.write(progress);
+        } else {
+            ImageEncoder.encode(this.img, this.file, this.format, progress);
+        }
+
+        this.updateMessage("Saved " + this.file.getName());
+        return null;
+    }
+}
@@ -1,13 +1,11 @@
 package pain.t;
 
 import javafx.event.EventHandler;
-import javafx.scene.Node;
-import javafx.scene.SnapshotParameters;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.paint.Color;
 import javafx.scene.paint.ImagePattern;
-import javafx.scene.shape.Rectangle;
 
 /**
  * Selects a part of the image in a rectangle. The image can then be moved
@@ -59,13 +57,9 @@ public class SelectObject extends MyRectangle {
             @Override
             public void handle(MouseEvent event) {
                 moved = true;
-                //moves the selection with the mouse
+                //moves the selection with the mouse, the content's pattern follows the rectangle
                 setX(event.getX() - xPos);
                 setY(event.getY() - yPos);
-
-                if (capturedCanvas != null) {
-                    setFill(new ImagePattern(capturedCanvas, getX(), getY(), getWidth(), getHeight(), false));
-                }
             }
         });
 
@@ -117,9 +111,14 @@ public class SelectObject extends MyRectangle {
     }
 
     /**
-     * Takes a snapshot of whatever is in the selection rectangle
+     * Takes a snapshot of whatever is in the selection rectangle. Only the
+     * selected region is copied. The content is displayed with a pattern that
+     * is relative to the rectangle, so moving the selection does not need a new
+     * one.
+     *
+     * @param source the cached picture of the canvas to copy from
      */
-    public void select() {
+    public void select(CanvasSnapshot source) {
 
         //coordinates of the selection, without the selection rectangle's borders
         int x = (int) this.getAbsX() + 1;
@@ -127,35 +126,46 @@ public class SelectObject extends MyRectangle {
         int w = (int) this.getWidth() - 2;
         int h = (int) this.getHeight() - 2;
 
-        if (w > 0 && h > 0) {
-            Node parent = this.getParent();
+        //keep the selection inside the canvas
+        w = Math.min(w, source.getWidth() - x);
+        h = Math.min(h, source.getHeight() - y);
+
+        if (x >= 0 && y >= 0 && w > 0 && h > 0) {
+            int[] pixels = new int[w * h];
+
+            //copy whatever is within the selection rectangle
+            source.read(x, y, w, h, pixels, 0, w);
+            this.capturedCanvas = new WritableImage(w, h);
+            this.capturedCanvas.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), pixels, 0, w);
 
-            //take a snapshot of whatever is within the selection rectangle
-            this.capturedCanvas = new WritableImage(parent.snapshot(new SnapshotParameters(), null).getPixelReader(), x, y, w, h);
-            this.setFill(new ImagePattern(capturedCanvas, getX(), getY(), getWidth(), getHeight(), false));
+            //the content sits inside the rectangle's 1 pixel border
+            double rw = this.getWidth();
+            double rh = this.getHeight();
+            this.setFill(new ImagePattern(capturedCanvas, 1 / rw, 1 / rh, w / rw, h / rh, true));
         }
     }
 
     /**
-     * Returns whatever was captured in the rectangle from the canvas
-     * 
-     * @return Shape. The rectangle that contains a part of the canvas or null
-     * if nothing has been captured.
+     * Checks if something has been captured in the selection.
+     *
+     * @return true if the selection has content
      */
-    public Rectangle getContent() {
-
-        if (this.capturedCanvas != null) {
-            int x = (int) this.getAbsX() + 1;
-            int y = (int) this.getAbsY() + 1;
-
-            Rectangle r = new Rectangle(x, y, this.capturedCanvas.getWidth(), this.capturedCanvas.getHeight());
-            r.setFill(new ImagePattern(this.capturedCanvas, x, y, this.capturedCanvas.getWidth(), this.capturedCanvas.getHeight(), false));
-            r.setStrokeWidth(0);
-            return r;
-        } else {
-            //if no content has been captured, return null
-            return null;
-        }
+    public boolean hasContent() {
+        return this.capturedCanvas != null;
+    }
+
+    /**
+     * @return the width of the captured content, 0 if nothing was captured
+     */
+    public int getContentWidth() {
+        return this.capturedCanvas == null ? 0 : (int) this.capturedCanvas.getWidth();
+    }
+
+    /**
+     * @return the height of the captured content, 0 if nothing was captured
+     */
+    public int getContentHeight() {
+        return this.capturedCanvas == null ? 0 : (int) this.capturedCanvas.getHeight();
     }
 
     /**
@@ -0,0 +1,262 @@
+package pain.t;
+
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.event.EventHandler;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Group;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Background;
+import javafx.scene.layout.BackgroundFill;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.transform.Scale;
+import javafx.scene.transform.Translate;
+
+/**
+ * Shows a canvas zoomed and scrolled, so pictures larger than the window can
+ * be looked at and drawn on. The canvas is scaled and moved as a whole, so the
+ * mouse positions it gets are still in canvas coordinates. The viewport tells
+ * the canvas which part of it is on screen, so only that part is displayed.
+ *
+ * The mouse wheel scrolls, and zooms around the mouse while control is held.
+ * Dragging with the middle button scrolls too.
+ *
+ * @author Daniel Christensen
+ */
+public class Viewport extends Pane {
+
+    //smallest and largest zoom
+    private static final double MIN_ZOOM = 1.0 / 64;
+    private static final double MAX_ZOOM = 32;
+
+    //how much one zoom in or out changes the zoom
+    private static final double ZOOM_STEP = 1.25;
+
+    //the canvas shown
+    private final MyCanvas canvas;
+
+    //moves and scales the canvas, in that order
+    private final Translate translate = new Translate();
+    private final Scale scale = new Scale(1, 1, 0, 0);
+
+    //how many screen pixels one canvas pixel takes
+    private final ReadOnlyDoubleWrapper zoom = new ReadOnlyDoubleWrapper(1);
+
+    //size of the picture last shown, the picture is fitted again once it changes
+    private int pictureWidth, pictureHeight;
+
+    //last position the middle button was dragged to
+    private double panX, panY;
+
+    /**
+     * Creates a new viewport showing a canvas.
+     *
+     * @param canvas the canvas to show
+     */
+    public Viewport(MyCanvas canvas) {
+        this.canvas = canvas;
+
+        Group content = new Group(canvas);
+        content.getTransforms().addAll(this.translate, this.scale);
+        this.getChildren().add(content);
+        this.setBackground(new Background(new BackgroundFill(Color.gray(0.6), null, null)));
+
+        //nothing is drawn outside of the viewport
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(this.widthProperty());
+        clip.heightProperty().bind(this.heightProperty());
+        this.setClip(clip);
+
+        /**
+         * Resizing the window or opening a picture of another size changes
+         * what is on screen.
+         */
+        ChangeListener<Object> resized = new ChangeListener<Object>() {
+            @Override
+            public void changed(ObservableValue<? extends Object> observable, Object oldValue, Object newValue) {
+                int w = canvas.getDocument().getStore().getWidth();
+                int h = canvas.getDocument().getStore().getHeight();
+                if ((w != pictureWidth || h != pictureHeight) && getWidth() > 0 && getHeight() > 0) {
+                    pictureWidth = w;
+                    pictureHeight = h;
+                    fit();
+                } else {
+                    update();
+                }
+            }
+        };
+        this.widthProperty().addListener(resized);
+        this.heightProperty().addListener(resized);
+        canvas.layoutBoundsProperty().addListener(resized);
+
+        /**
+         * The wheel scrolls, or zooms around the mouse with control held.
+         */
+        this.addEventFilter(ScrollEvent.SCROLL, new EventHandler<ScrollEvent>() {
+            @Override
+            public void handle(ScrollEvent event) {
+                if (event.isControlDown()) {
+                    zoomAt(event.getDeltaY() > 0 ? ZOOM_STEP : 1 / ZOOM_STEP, event.getX(), event.getY());
+                } else {
+                    scrollBy(event.getDeltaX(), event.getDeltaY());
+                }
+                event.consume();
+            }
+        });
+
+        /**
+         * Dragging with the middle button scrolls, the canvas never sees it.
+         */
+        this.addEventFilter(MouseEvent.ANY, new EventHandler<MouseEvent>() {
+            @Override
+            public void handle(MouseEvent event) {
+                if (event.getEventType() == MouseEvent.MOUSE_PRESSED && event.getButton() == MouseButton.MIDDLE) {
+                    panX = event.getX();
+                    panY = event.getY();
+                    event.consume();
+                } else if (event.getEventType() == MouseEvent.MOUSE_DRAGGED && event.isMiddleButtonDown()) {
+                    scrollBy(event.getX() - panX, event.getY() - panY);
+                    panX = event.getX();
+                    panY = event.getY();
+                    event.consume();
+                } else if (event.getButton() == MouseButton.MIDDLE) {
+                    event.consume();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return how many screen pixels one canvas pixel takes
+     */
+    public ReadOnlyDoubleProperty zoomProperty() {
+        return this.zoom.getReadOnlyProperty();
+    }
+
+    /**
+     * Zooms in around the middle of the viewport.
+     */
+    public void zoomIn() {
+        this.zoomAt(ZOOM_STEP, this.getWidth() / 2, this.getHeight() / 2);
+    }
+
+    /**
+     * Zooms out around the middle of the viewport.
+     */
+    public void zoomOut() {
+        this.zoomAt(1 / ZOOM_STEP, this.getWidth() / 2, this.getHeight() / 2);
+    }
+
+    /**
+     * Shows the picture at its real size, one canvas pixel per screen pixel.
+     */
+    public void actualSize() {
+        this.zoomAt(1 / this.zoom.get(), this.getWidth() / 2, this.getHeight() / 2);
+    }
+
+    /**
+     * Zooms out until the whole picture fits in the viewport. A picture that
+     * fits already is shown at its real size.
+     */
+    public void fit() {
+        int w = this.canvas.getDocument().getStore().getWidth();
+        int h = this.canvas.getDocument().getStore().getHeight();
+        double z = Math.min(1, Math.min(this.getWidth() / w, this.getHeight() / h));
+        this.setZoom(z);
+        this.translate.setX(0);
+        this.translate.setY(0);
+        this.update();
+    }
+
+    /**
+     * Changes the zoom, keeping the canvas point under a viewport position
+     * where it is.
+     *
+     * @param factor how much to multiply the zoom by
+     * @param x viewport x position
+     * @param y viewport y position
+     */
+    private void zoomAt(double factor, double x, double y) {
+        double before = this.zoom.get();
+        this.setZoom(before * factor);
+
+        //the canvas point under the position, before the zoom
+        double cx = (x - this.translate.getX()) / before;
+        double cy = (y - this.translate.getY()) / before;
+        this.translate.setX(x - cx * this.zoom.get());
+        this.translate.setY(y - cy * this.zoom.get());
+        this.update();
+    }
+
+    /**
+     * Sets the zoom, within its limits.
+     */
+    private void setZoom(double z) {
+        z = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, z));
+        this.zoom.set(z);
+        this.scale.setX(z);
+        this.scale.setY(z);
+    }
+
+    /**
+     * Scrolls the canvas.
+     *
+     * @param dx how far to move the canvas right, in screen pixels
+     * @param dy how far to move the canvas down, in screen pixels
+     */
+    private void scrollBy(double dx, double dy) {
+        this.translate.setX(this.translate.getX() + dx);
+        this.translate.setY(this.translate.getY() + dy);
+        this.update();
+    }
+
+    /**
+     * Keeps the picture on screen and tells the canvas which part of it is
+     * shown. A picture smaller than the viewport is centered, a larger one
+     * cannot be scrolled past its edges.
+     */
+    private void update() {
+        double z = this.zoom.get();
+        this.translate.setX(Viewport.clamp(this.translate.getX(), this.pictureWidthOnScreen(), this.getWidth()));
+        this.translate.setY(Viewport.clamp(this.translate.getY(), this.pictureHeightOnScreen(), this.getHeight()));
+
+        this.canvas.setView(new Rectangle2D(-this.translate.getX() / z, -this.translate.getY() / z,
+                Math.max(0, this.getWidth()) / z, Math.max(0, this.getHeight()) / z), z);
+    }
+
+    /**
+     * @return the width of the picture on screen
+     */
+    private double pictureWidthOnScreen() {
+        return this.canvas.getDocument().getStore().getWidth() * this.zoom.get();
+    }
+
+    /**
+     * @return the height of the picture on screen
+     */
+    private double pictureHeightOnScreen() {
+        return this.canvas.getDocument().getStore().getHeight() * this.zoom.get();
+    }
+
+    /**
+     * Keeps an offset of the picture on screen along one axis. Offsets are
+     * whole pixels, so the picture stays sharp at its real size.
+     *
+     * @param offset where the picture starts
+     * @param size size of the picture
+     * @param room size of the viewport
+     * @return the offset to use
+     */
+    private static double clamp(double offset, double size, double room) {
+        if (size <= room) {
+            return Math.round((room - size) / 2);
+        }
+        return Math.round(Math.max(room - size, Math.min(0, offset)));
+    }
+}
@@ -0,0 +1,70 @@
+package pain.t.bench;
+
+import java.util.Random;
+import pain.t.engine.Document;
+import pain.t.engine.StrokeOp;
+
+/**
+ * Builds the documents the benchmarks run on. The same size and number of
+ * strokes always give the same pixels, so runs on different commits measure
+ * the same work.
+ *
+ * @author Daniel Christensen
+ */
+final class Canvases {
+
+    //points in a generated stroke
+    static final int STROKE_POINTS = 64;
+
+    private Canvases() {
+    }
+
+    /**
+     * Reads a canvas size parameter such as "1000x800".
+     *
+     * @param size the size parameter
+     * @return the width and height
+     */
+    static int[] parse(String size) {
+        int x = size.indexOf('x');
+        return new int[]{Integer.parseInt(size.substring(0, x)), Integer.parseInt(size.substring(x + 1))};
+    }
+
+    /**
+     * Creates a white document with strokes applied to it.
+     *
+     * @param size the canvas size, such as "1000x800"
+     * @param strokes number of strokes to draw, each one is an undoable action
+     * @return the document
+     */
+    static Document create(String size, int strokes) {
+        int[] wh = parse(size);
+        Document doc = new Document(wh[0], wh[1], 0xffffffff);
+        Random random = new Random(42);
+        for (int i = 0; i < strokes; i++) {
+            doc.apply(new StrokeOp(stroke(random, wh[0], wh[1]), 0xff000000 | random.nextInt(), 3, false));
+        }
+        return doc;
+    }
+
+    /**
+     * Makes the points of a short wandering stroke, like a mouse drag.
+     *
+     * @param random where the positions come from
+     * @param w canvas width
+     * @param h canvas height
+     * @return the stroke's x and y pairs
+     */
+    static float[] stroke(Random random, int w, int h) {
+        float[] points = new float[STROKE_POINTS * 2];
+        float x = random.nextInt(w);
+        float y = random.nextInt(h);
+        for (int i = 0; i < STROKE_POINTS; i++) {
+            x = Math.max(0, Math.min(w - 1, x + random.nextInt(21) - 10));
+            y = Math.max(0, Math.min(h - 1, y + random.nextInt(21) - 10));
+            points[i * 2] = x;
+            points[i * 2 + 1] = y;
+        }
+        return points;
+    }
+}
@@ -0,0 +1,76 @@
+package pain.t.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pain.t.engine.Document;
+import pain.t.engine.TileStore;
+
+/**
+ * Picking colors with the eye dropper. The dropper used to take a snapshot of
+ * the whole canvas for every click, it now reads the pixel from the tiles.
+ * The old way is measured by copying the whole picture for a click, which is
+ * less than the snapshot cost since nothing is rendered.
+ *
+ * @author Daniel Christensen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EyedropperBenchmark {
+
+    //clicks per invocation
+    private static final int CLICKS = 1024;
+
+    @Param({"1000x800", "4000x3000"})
+    public String size;
+
+    @Param({"0", "1000"})
+    public int strokes;
+
+    //the canvas picked from
+    private TileStore store;
+
+    //x and y of every click
+    private int[] clicks;
+
+    @Setup
+    public void setup() {
+        Document doc = Canvases.create(this.size, this.strokes);
+        this.store = doc.getStore();
+
+        Random random = new Random(3);
+        this.clicks = new int[CLICKS * 2];
+        for (int i = 0; i < CLICKS; i++) {
+            this.clicks[i * 2] = random.nextInt(this.store.getWidth());
+            this.clicks[i * 2 + 1] = random.nextInt(this.store.getHeight());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLICKS)
+    public int pick() {
+        int sum = 0;
+        for (int i = 0; i < CLICKS; i++) {
+            sum += this.store.getPixel(this.clicks[i * 2], this.clicks[i * 2 + 1]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int pickFromCopy() {
+        TileStore store = this.store;
+        int w = store.getWidth();
+        int[] picture = new int[w * store.getHeight()];
+        store.read(0, 0, w, store.getHeight(), picture, 0, w);
+        return picture[this.clicks[1] * w + this.clicks[0]];
+    }
+}
@@ -0,0 +1,59 @@
+package pain.t.bench;
+
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pain.t.engine.Document;
+import pain.t.engine.FillOp;
+import pain.t.engine.TileStore;
+
+/**
+ * Filling the background of a canvas with the paint bucket. The fill and the
+ * canvas alternate between two colors so every invocation fills the same area.
+ * Only the fill is measured, not the copies kept for undo.
+ *
+ * @author Daniel Christensen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FillBenchmark {
+
+    @Param({"1000x800", "4096x4096"})
+    public String size;
+
+    @Param({"0", "1000"})
+    public int strokes;
+
+    @Param({"false", "true"})
+    public boolean diagonal;
+
+    //the canvas filled
+    private TileStore store;
+
+    //color the background has now
+    private int color = 0xffffffff;
+
+    @Setup
+    public void setup() {
+        Document doc = Canvases.create(this.size, this.strokes);
+        this.store = doc.getStore();
+    }
+
+    @Benchmark
+    public TileStore fill() {
+        int next = this.color == 0xffffffff ? 0xffeeeeee : 0xffffffff;
+        FillOp op = new FillOp(0, 0, next, 0, this.diagonal);
+        Rectangle area = op.getBounds(this.store);
+        op.draw(this.store, area);
+        this.color = next;
+        return this.store;
+    }
+}
@@ -0,0 +1,64 @@
+package pain.t.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pain.t.engine.Filter;
+import pain.t.engine.FilterOp;
+import pain.t.engine.Progress;
+import pain.t.engine.TileStore;
+
+/**
+ * Running filters over a whole canvas. The tiles are filtered by the common
+ * ForkJoin pool, run with -Djava.util.concurrent.ForkJoinPool.common.parallelism
+ * set to different values to see how it scales with cores.
+ *
+ * @author Daniel Christensen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FilterBenchmark {
+
+    @Param({"1000x800", "4000x3000"})
+    public String size;
+
+    @Param({"BLUR", "SHARPEN", "GRAYSCALE", "LEVELS"})
+    public Filter.Kind kind;
+
+    //the canvas filtered
+    private TileStore store;
+
+    //the filter run
+    private Filter filter;
+
+    @Setup
+    public void setup() {
+        this.store = Canvases.create(this.size, 1000).getStore();
+        switch (this.kind) {
+            case BLUR:
+                this.filter = Filter.create(this.kind, 5);
+                break;
+            case SHARPEN:
+                this.filter = Filter.create(this.kind, 2, 1);
+                break;
+            case LEVELS:
+                this.filter = Filter.create(this.kind, 20, 235, 1.2, 0, 255);
+                break;
+            default:
+                this.filter = Filter.create(this.kind);
+                break;
+        }
+    }
+
+    @Benchmark
+    public boolean filter() {
+        return new FilterOp(this.filter).prepare(this.store, Progress.NONE);
+    }
+}
@@ -0,0 +1,55 @@
+package pain.t.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pain.t.engine.Document;
+
+/**
+ * Undoing and redoing on deep histories. One step measures the cost of the
+ * last action alone, unwinding undoes every action then redoes them all.
+ *
+ * @author Daniel Christensen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HistoryBenchmark {
+
+    @Param({"1000x800", "4000x3000"})
+    public String size;
+
+    @Param({"100", "1000", "10000"})
+    public int strokes;
+
+    //the canvas with its history
+    private Document doc;
+
+    @Setup
+    public void setup() {
+        this.doc = Canvases.create(this.size, this.strokes);
+    }
+
+    @Benchmark
+    public boolean step() {
+        return this.doc.undo() & this.doc.redo();
+    }
+
+    @Benchmark
+    public int unwind() {
+        int n = 0;
+        while (this.doc.undo()) {
+            n++;
+        }
+        while (this.doc.redo()) {
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,68 @@
+package pain.t.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pain.t.engine.MipPyramid;
+import pain.t.engine.TileStore;
+
+/**
+ * Keeping the zoomed out copies of a canvas up to date. A stroke sized patch
+ * is drawn, then the tile of the smallest level over it is made again, as the
+ * canvas does every frame while it is drawn on zoomed out. The whole smallest
+ * level is made once in the setup, so only the tiles the patch touched are
+ * made here.
+ *
+ * @author Daniel Christensen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MipBenchmark {
+
+    @Param({"1000x800", "4096x4096", "8192x8192"})
+    public String size;
+
+    //the canvas and its copies
+    private TileStore store;
+    private MipPyramid pyramid;
+
+    //the patch drawn, and where it goes next
+    private final int[] patch = new int[64 * 64];
+    private int at;
+
+    @Setup
+    public void setup() {
+        this.store = Canvases.create(this.size, 0).getStore();
+        this.pyramid = new MipPyramid(this.store);
+
+        int level = this.pyramid.getLevels() - 1;
+        TileStore smallest = this.pyramid.getLevel(level);
+        for (int ty = 0; ty < smallest.getTilesY(); ty++) {
+            for (int tx = 0; tx < smallest.getTilesX(); tx++) {
+                this.pyramid.getTile(level, tx, ty);
+            }
+        }
+    }
+
+    @Benchmark
+    public int[] drawAndShrink() {
+        //the patch walks along the diagonal, changing color so every tile under it changes
+        int x = this.at % (this.store.getWidth() - 64);
+        int y = this.at % (this.store.getHeight() - 64);
+        Arrays.fill(this.patch, 0xff000000 | this.at);
+        this.store.write(x, y, 64, 64, this.patch, 0, 64);
+        this.at += 97;
+
+        int level = this.pyramid.getLevels() - 1;
+        this.pyramid.sync();
+        return this.pyramid.getTile(level, (x >> level) / TileStore.TILE_SIZE, (y >> level) / TileStore.TILE_SIZE);
+    }
+}
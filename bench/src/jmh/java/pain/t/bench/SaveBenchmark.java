@@ -0,0 +1,63 @@
+package pain.t.bench;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pain.t.engine.Document;
+import pain.t.engine.TileStore;
+
+/**
+ * Copying the canvas into an image before it is encoded, the loop saving an
+ * image used to do one pixel at a time. The old loop is measured on a copy of
+ * the whole picture, standing for the snapshot it read from.
+ *
+ * @author Daniel Christensen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SaveBenchmark {
+
+    @Param({"1000x800", "4000x3000"})
+    public String size;
+
+    @Param({"0", "1000"})
+    public int strokes;
+
+    //the canvas to save
+    private Document doc;
+
+    @Setup
+    public void setup() {
+        this.doc = Canvases.create(this.size, this.strokes);
+    }
+
+    @Benchmark
+    public BufferedImage copy() {
+        return this.doc.toImage();
+    }
+
+    @Benchmark
+    public BufferedImage copyPixelByPixel() {
+        TileStore store = this.doc.getStore();
+        int w = store.getWidth(), h = store.getHeight();
+        BufferedImage snapshot = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        store.read(0, 0, w, h, ((DataBufferInt) snapshot.getRaster().getDataBuffer()).getData(), 0, w);
+
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) {
+                img.setRGB(x, y, snapshot.getRGB(x, y));
+            }
+        }
+        return img;
+    }
+}
@@ -0,0 +1,81 @@
+package pain.t.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pain.t.engine.Command;
+import pain.t.engine.Document;
+import pain.t.engine.MoveOp;
+import pain.t.engine.TileStore;
+
+/**
+ * Selecting half of a large canvas and moving it. Selecting copies the pixels
+ * under the selection rectangle, dropping the selection applies a MoveOp,
+ * which is undone right away so every invocation moves the same pixels.
+ * Selecting used to take a snapshot of the whole canvas and crop it, measured
+ * without the rendering by copying the whole picture first.
+ *
+ * @author Daniel Christensen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SelectBenchmark {
+
+    @Param({"1000x800", "4000x3000"})
+    public String size;
+
+    @Param({"0", "1000"})
+    public int strokes;
+
+    //the canvas selected from
+    private Document doc;
+
+    //the selected region, a quarter of the canvas in from the top-left
+    private int x, y, w, h;
+
+    //where the copied pixels go
+    private int[] pixels;
+
+    @Setup
+    public void setup() {
+        this.doc = Canvases.create(this.size, this.strokes);
+        TileStore store = this.doc.getStore();
+        this.x = store.getWidth() / 4;
+        this.y = store.getHeight() / 4;
+        this.w = store.getWidth() / 2;
+        this.h = store.getHeight() / 2;
+        this.pixels = new int[this.w * this.h];
+    }
+
+    @Benchmark
+    public int[] select() {
+        this.doc.getStore().read(this.x, this.y, this.w, this.h, this.pixels, 0, this.w);
+        return this.pixels;
+    }
+
+    @Benchmark
+    public int[] selectFromCopy() {
+        TileStore store = this.doc.getStore();
+        int sw = store.getWidth();
+        int[] picture = new int[sw * store.getHeight()];
+        store.read(0, 0, sw, store.getHeight(), picture, 0, sw);
+        for (int row = 0; row < this.h; row++) {
+            System.arraycopy(picture, (this.y + row) * sw + this.x, this.pixels, row * this.w, this.w);
+        }
+        return this.pixels;
+    }
+
+    @Benchmark
+    public Command move() {
+        Command c = this.doc.draw(new MoveOp(this.x, this.y, this.w, this.h, 37, 21, 0xffffffff));
+        c.undo();
+        return c;
+    }
+}
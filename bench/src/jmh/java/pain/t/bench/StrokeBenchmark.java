@@ -0,0 +1,64 @@
+package pain.t.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import pain.t.engine.Command;
+import pain.t.engine.Document;
+import pain.t.engine.StrokeBuffer;
+import pain.t.engine.StrokeOp;
+
+/**
+ * Inserting a free hand stroke: collecting the mouse positions, then drawing
+ * the stroke into the document's tiles. The drawn stroke is undone right away
+ * so every invocation draws on the same pixels.
+ *
+ * @author Daniel Christensen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StrokeBenchmark {
+
+    @Param({"1000x800", "4000x3000"})
+    public String size;
+
+    @Param({"0", "1000"})
+    public int strokes;
+
+    //the canvas drawn on
+    private Document doc;
+
+    //mouse positions of the stroke
+    private float[] points;
+
+    @Setup
+    public void setup() {
+        this.doc = Canvases.create(this.size, this.strokes);
+        int[] wh = Canvases.parse(this.size);
+        this.points = Canvases.stroke(new Random(7), wh[0], wh[1]);
+    }
+
+    @Benchmark
+    public float[] collect() {
+        StrokeBuffer buffer = new StrokeBuffer(0.5);
+        for (int i = 0; i < this.points.length; i += 2) {
+            buffer.add(this.points[i], this.points[i + 1]);
+        }
+        return buffer.toArray();
+    }
+
+    @Benchmark
+    public Command insert() {
+        Command c = this.doc.draw(new StrokeOp(this.points, 0xff0000ff, 5, false));
+        c.undo();
+        return c;
+    }
+}
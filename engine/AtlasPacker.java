@@ -0,0 +1,135 @@
+package pain.t.engine;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * Packs icons into a single image, so the program loads and decodes one file
+ * at start instead of one per icon. The icons are put on shelves, the tallest
+ * first. The atlas comes with an index giving where each icon is in it, one
+ * line per icon: its name, x, y, width and height.
+ *
+ * The build runs it on a copy of the icons in "Images/" before packaging
+ * them, through the packIcons task.
+ *
+ * @author Daniel Christensen
+ */
+public class AtlasPacker {
+
+    //name of the packed image and of its index, next to the icons
+    public static final String ATLAS = "icons.png";
+    public static final String INDEX = "icons.txt";
+
+    //widest the atlas gets before starting a new shelf
+    private static final int MAX_WIDTH = 512;
+
+    //space left around each icon, so filtering does not bleed into the next one
+    private static final int PADDING = 1;
+
+    /**
+     * Packs every PNG of a directory, except a previous atlas, into an atlas
+     * and its index written in the same directory.
+     *
+     * @param args the directory holding the icons
+     * @throws IOException if an icon could not be read or the atlas written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: AtlasPacker <icon directory>");
+            System.exit(2);
+        }
+
+        File dir = new File(args[0]);
+        File[] files = dir.listFiles((d, name) -> name.toLowerCase().endsWith(".png") && !name.equals(ATLAS));
+        if (files == null || files.length == 0) {
+            System.err.println("no icons in " + dir);
+            System.exit(1);
+        }
+        Arrays.sort(files);
+
+        int count = AtlasPacker.pack(files, new File(dir, ATLAS), new File(dir, INDEX));
+        System.out.println(count + " icons packed into " + new File(dir, ATLAS));
+    }
+
+    /**
+     * Packs images into an atlas. Each icon is named after its file, without
+     * the extension.
+     *
+     * @param files the icons
+     * @param atlas where to write the packed image
+     * @param index where to write where each icon is
+     * @return the number of icons packed
+     * @throws IOException if an icon could not be read or the atlas written
+     */
+    public static int pack(File[] files, File atlas, File index) throws IOException {
+        List<Icon> icons = new ArrayList<Icon>();
+        for (File f : files) {
+            BufferedImage img = ImageIO.read(f);
+            if (img == null) {
+                throw new IOException(f + " is not an image");
+            }
+            String name = f.getName().substring(0, f.getName().lastIndexOf('.'));
+            icons.add(new Icon(name, img));
+        }
+
+        //shelves, the tallest icons first so each shelf wastes little height
+        List<Icon> byHeight = new ArrayList<Icon>(icons);
+        byHeight.sort(Comparator.comparingInt((Icon i) -> i.image.getHeight()).reversed());
+        int x = 0, y = 0, shelf = 0, width = 0;
+        for (Icon icon : byHeight) {
+            int w = icon.image.getWidth() + 2 * PADDING;
+            int h = icon.image.getHeight() + 2 * PADDING;
+            if (x > 0 && x + w > MAX_WIDTH) {
+                x = 0;
+                y += shelf;
+                shelf = 0;
+            }
+            icon.x = x + PADDING;
+            icon.y = y + PADDING;
+            x += w;
+            shelf = Math.max(shelf, h);
+            width = Math.max(width, x);
+        }
+
+        BufferedImage packed = new BufferedImage(width, y + shelf, BufferedImage.TYPE_INT_ARGB);
+        for (Icon icon : icons) {
+            int w = icon.image.getWidth();
+            int h = icon.image.getHeight();
+            packed.setRGB(icon.x, icon.y, w, h, icon.image.getRGB(0, 0, w, h, null, 0, w), 0, w);
+        }
+        if (!ImageIO.write(packed, "png", atlas)) {
+            throw new IOException("No PNG writer");
+        }
+
+        try (PrintWriter out = new PrintWriter(index, StandardCharsets.UTF_8.name())) {
+            for (Icon icon : icons) {
+                out.println(icon.name + " " + icon.x + " " + icon.y + " "
+                        + icon.image.getWidth() + " " + icon.image.getHeight());
+            }
+        }
+        return icons.size();
+    }
+
+    /**
+     * An icon and where it goes in the atlas.
+     */
+    private static class Icon {
+
+        private final String name;
+        private final BufferedImage image;
+        private int x, y;
+
+        Icon(String name, BufferedImage image) {
+            this.name = name;
+            this.image = image;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package pain.t.engine;
+
+/**
+ * How the pixels of a layer are combined with the layers under it. Each mode
+ * mixes the color channels of the layer and the pixels under it, the result
+ * is then blended over them by the layer's alpha and opacity. Where the pixels
+ * under the layer are transparent, the layer's own color is used.
+ *
+ * @author Daniel Christensen
+ */
+public enum BlendMode {
+
+    NORMAL {
+        @Override
+        int mix(int under, int over) {
+            return over;
+        }
+    },
+    MULTIPLY {
+        @Override
+        int mix(int under, int over) {
+            return under * over / 255;
+        }
+    },
+    SCREEN {
+        @Override
+        int mix(int under, int over) {
+            return under + over - under * over / 255;
+        }
+    },
+    OVERLAY {
+        @Override
+        int mix(int under, int over) {
+            return under < 128 ? 2 * under * over / 255 : 255 - 2 * (255 - under) * (255 - over) / 255;
+        }
+    },
+    DARKEN {
+        @Override
+        int mix(int under, int over) {
+            return Math.min(under, over);
+        }
+    },
+    LIGHTEN {
+        @Override
+        int mix(int under, int over) {
+            return Math.max(under, over);
+        }
+    },
+    DIFFERENCE {
+        @Override
+        int mix(int under, int over) {
+            return Math.abs(under - over);
+        }
+    };
+
+    /**
+     * Mixes one color channel of a layer with the one under it.
+     *
+     * @param under the channel under the layer, 0 to 255
+     * @param over the channel of the layer, 0 to 255
+     * @return the mixed channel, 0 to 255
+     */
+    abstract int mix(int under, int over);
+
+    /**
+     * Blends pixels of a layer over the pixels under it.
+     *
+     * @param dst the pixels under the layer, replaced by the result
+     * @param src the pixels of the layer
+     * @param opacity opacity of the layer, 0 to 255
+     */
+    public void blend(int[] dst, int[] src, int opacity) {
+        if (opacity == 0) {
+            return;
+        }
+
+        for (int i = 0; i < dst.length; i++) {
+            int s = src[i];
+            int sa = opacity == 255 ? s >>> 24 : (s >>> 24) * opacity / 255;
+            if (sa == 0) {
+                continue;
+            }
+
+            int d = dst[i];
+            if (this == NORMAL) {
+                dst[i] = Pixels.blend(d, (sa << 24) | (s & 0xffffff));
+                continue;
+            }
+
+            //the mixed color is only fully used where the pixels under the layer are opaque
+            int da = d >>> 24;
+            int outA = sa + da * (255 - sa) / 255;
+            int out = outA << 24;
+            for (int shift = 16; shift >= 0; shift -= 8) {
+                int cs = (s >> shift) & 0xff;
+                int cd = (d >> shift) & 0xff;
+                int mixed = ((255 - da) * cs + da * this.mix(cd, cs)) / 255;
+                out |= Math.min(255, (mixed * sa + cd * da * (255 - sa) / 255) / outA) << shift;
+            }
+            dst[i] = out;
+        }
+    }
+}
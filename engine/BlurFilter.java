@@ -0,0 +1,155 @@
+package pain.t.engine;
+
+/**
+ * A Gaussian blur. The kernel is separable, so a block is blurred along its
+ * rows first, then along its columns, instead of reading every pixel of a
+ * square around each pixel. Colors are weighted by their alpha, so
+ * transparent pixels do not darken the edges next to them.
+ *
+ * @author Daniel Christensen
+ */
+public class BlurFilter extends Filter {
+
+    //sum of the kernel's weights, weights are fixed point
+    private static final int ONE = 1 << 16;
+
+    //how far the blur reaches, as given
+    private final double radius;
+
+    //the radius rounded up to whole pixels
+    private final int reach;
+
+    //weight of each pixel, from -reach to reach, adding up to ONE
+    private final int[] kernel;
+
+    /**
+     * Creates a new blur.
+     *
+     * @param radius how far the blur reaches, in pixels. 0 changes nothing
+     */
+    public BlurFilter(double radius) {
+        this.radius = Math.max(0, radius);
+        this.reach = (int) Math.ceil(this.radius);
+        this.kernel = BlurFilter.kernel(this.radius, this.reach);
+    }
+
+    @Override
+    public Kind getKind() {
+        return Kind.BLUR;
+    }
+
+    @Override
+    public double[] getParameters() {
+        return new double[]{this.radius};
+    }
+
+    @Override
+    public int getRadius() {
+        return this.reach;
+    }
+
+    @Override
+    public Filter scaled(double scale) {
+        return new BlurFilter(this.radius * scale);
+    }
+
+    @Override
+    public void apply(int[] src, int w, int h, int[] dst) {
+        int r = this.reach;
+        int ow = w - 2 * r;
+        int oh = h - 2 * r;
+        if (r == 0) {
+            System.arraycopy(src, 0, dst, 0, ow * oh);
+            return;
+        }
+
+        //colors multiplied by their alpha, still packed as ARGB
+        int[] pre = new int[w * h];
+        for (int i = 0; i < pre.length; i++) {
+            int c = src[i];
+            int a = c >>> 24;
+            pre[i] = a == 255 ? c : (a << 24) | ((((c >> 16) & 0xff) * a + 127) / 255 << 16)
+                    | ((((c >> 8) & 0xff) * a + 127) / 255 << 8) | (((c & 0xff) * a + 127) / 255);
+        }
+
+        //along the rows, for every row of the margin too
+        int[] rows = new int[ow * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < ow; x++) {
+                int sa = 0, sr = 0, sg = 0, sb = 0;
+                int at = y * w + x;
+                for (int k = 0; k < this.kernel.length; k++) {
+                    int p = pre[at + k];
+                    int weight = this.kernel[k];
+                    sa += (p >>> 24) * weight;
+                    sr += ((p >> 16) & 0xff) * weight;
+                    sg += ((p >> 8) & 0xff) * weight;
+                    sb += (p & 0xff) * weight;
+                }
+                rows[y * ow + x] = pack(sa, sr, sg, sb);
+            }
+        }
+
+        //along the columns, back to plain colors
+        for (int y = 0; y < oh; y++) {
+            for (int x = 0; x < ow; x++) {
+                int sa = 0, sr = 0, sg = 0, sb = 0;
+                int at = y * ow + x;
+                for (int k = 0; k < this.kernel.length; k++) {
+                    int p = rows[at + k * ow];
+                    int weight = this.kernel[k];
+                    sa += (p >>> 24) * weight;
+                    sr += ((p >> 16) & 0xff) * weight;
+                    sg += ((p >> 8) & 0xff) * weight;
+                    sb += (p & 0xff) * weight;
+                }
+                dst[y * ow + x] = unpremultiply(pack(sa, sr, sg, sb));
+            }
+        }
+    }
+
+    /**
+     * Rounds fixed point sums of the four channels into an ARGB value.
+     */
+    private static int pack(int a, int r, int g, int b) {
+        return ((a + ONE / 2) >> 16 << 24) | ((r + ONE / 2) >> 16 << 16) | ((g + ONE / 2) >> 16 << 8) | ((b + ONE / 2) >> 16);
+    }
+
+    /**
+     * Divides the colors of a premultiplied ARGB value by its alpha.
+     */
+    private static int unpremultiply(int p) {
+        int a = p >>> 24;
+        if (a == 255 || a == 0) {
+            return a == 0 ? 0 : p;
+        }
+        int r = Math.min(255, (((p >> 16) & 0xff) * 255 + a / 2) / a);
+        int g = Math.min(255, (((p >> 8) & 0xff) * 255 + a / 2) / a);
+        int b = Math.min(255, ((p & 0xff) * 255 + a / 2) / a);
+        return Pixels.argb(a, r, g, b);
+    }
+
+    /**
+     * Makes the weights of a Gaussian whose radius holds three standard
+     * deviations.
+     */
+    private static int[] kernel(double radius, int reach) {
+        int[] kernel = new int[reach * 2 + 1];
+        double sigma = Math.max(radius / 3, 0.3);
+        double[] weights = new double[kernel.length];
+        double total = 0;
+        for (int i = -reach; i <= reach; i++) {
+            weights[i + reach] = Math.exp(-(i * i) / (2 * sigma * sigma));
+            total += weights[i + reach];
+        }
+
+        //rounding is made up for in the middle, so the weights add up exactly
+        int sum = 0;
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] = (int) Math.round(weights[i] / total * ONE);
+            sum += kernel[i];
+        }
+        kernel[reach] += ONE - sum;
+        return kernel;
+    }
+}
@@ -0,0 +1,37 @@
+package pain.t.engine;
+
+/**
+ * An action on the canvas that can be undone and redone. Each command keeps
+ * only what it needs to go back and forth, and reports how much memory that
+ * takes so the History can stay within its budget.
+ *
+ * @author Daniel Christensen
+ */
+public interface Command {
+
+    /**
+     * Reverts the action.
+     */
+    void undo();
+
+    /**
+     * Performs the action again after it was undone.
+     */
+    void redo();
+
+    /**
+     * Gets an estimate of the memory held by the command.
+     *
+     * @return the size in bytes
+     */
+    long getSize();
+
+    /**
+     * Reduces the memory held by the command, for example by compressing it.
+     * Called on old commands when the history is over its budget.
+     *
+     * @return true if the command got smaller, false if it cannot be compacted
+     * any further
+     */
+    boolean compact();
+}
@@ -0,0 +1,66 @@
+package pain.t.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several commands that are undone and redone together, such as the hole left
+ * behind by a selection and the selection dropped somewhere else.
+ *
+ * @author Daniel Christensen
+ */
+public class CommandGroup implements Command {
+
+    //the commands, in the order they were done
+    private final List<Command> commands = new ArrayList<Command>();
+
+    /**
+     * Adds a command at the end of the group.
+     *
+     * @param c the command, already done
+     */
+    public void add(Command c) {
+        if (c != null) {
+            this.commands.add(c);
+        }
+    }
+
+    /**
+     * @return true if the group has no commands
+     */
+    public boolean isEmpty() {
+        return this.commands.isEmpty();
+    }
+
+    @Override
+    public void undo() {
+        for (int i = this.commands.size() - 1; i >= 0; i--) {
+            this.commands.get(i).undo();
+        }
+    }
+
+    @Override
+    public void redo() {
+        for (Command c : this.commands) {
+            c.redo();
+        }
+    }
+
+    @Override
+    public long getSize() {
+        long size = 16;
+        for (Command c : this.commands) {
+            size += c.getSize();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean compact() {
+        boolean smaller = false;
+        for (Command c : this.commands) {
+            smaller |= c.compact();
+        }
+        return smaller;
+    }
+}
@@ -0,0 +1,89 @@
+package pain.t.engine;
+
+/**
+ * Maps every value of red, green and blue to a new value through a table,
+ * such as brightness and contrast or levels. Transparency is kept.
+ *
+ * @author Daniel Christensen
+ */
+public class CurveFilter extends PointFilter {
+
+    //what the filter is, and what it was created with
+    private final Kind kind;
+    private final double[] parameters;
+
+    //new value of each channel value
+    private final int[] table;
+
+    private CurveFilter(Kind kind, double[] parameters, int[] table) {
+        this.kind = kind;
+        this.parameters = parameters;
+        this.table = table;
+    }
+
+    /**
+     * Creates a filter changing the brightness and the contrast.
+     *
+     * @param brightness from -100, black, to 100, white. 0 changes nothing
+     * @param contrast from -100, gray, to 100. 0 changes nothing
+     * @return the filter
+     */
+    public static CurveFilter brightnessContrast(double brightness, double contrast) {
+        double c = Math.max(-100, Math.min(100, contrast)) * 2.55;
+        double factor = 259 * (c + 255) / (255 * (259 - c));
+        double shift = Math.max(-100, Math.min(100, brightness)) * 2.55;
+
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = clamp((v - 128) * factor + 128 + shift);
+        }
+        return new CurveFilter(Kind.BRIGHTNESS_CONTRAST, new double[]{brightness, contrast}, table);
+    }
+
+    /**
+     * Creates a filter stretching a range of values over another one. Values
+     * below the input black point become the output black point, values above
+     * the input white point become the output white point.
+     *
+     * @param inBlack input black point, 0 to 255
+     * @param inWhite input white point, 0 to 255
+     * @param gamma brightness of the middle values, 1 changes nothing
+     * @param outBlack output black point, 0 to 255
+     * @param outWhite output white point, 0 to 255
+     * @return the filter
+     */
+    public static CurveFilter levels(double inBlack, double inWhite, double gamma, double outBlack, double outWhite) {
+        double range = Math.max(1, inWhite - inBlack);
+        double power = 1 / Math.max(0.01, gamma);
+
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            double t = Math.max(0, Math.min(1, (v - inBlack) / range));
+            table[v] = clamp(outBlack + Math.pow(t, power) * (outWhite - outBlack));
+        }
+        return new CurveFilter(Kind.LEVELS, new double[]{inBlack, inWhite, gamma, outBlack, outWhite}, table);
+    }
+
+    @Override
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    @Override
+    public double[] getParameters() {
+        return this.parameters.clone();
+    }
+
+    @Override
+    protected int filter(int argb) {
+        return (argb & 0xff000000) | (this.table[(argb >> 16) & 0xff] << 16)
+                | (this.table[(argb >> 8) & 0xff] << 8) | this.table[argb & 0xff];
+    }
+
+    /**
+     * Rounds a value into 0 to 255.
+     */
+    private static int clamp(double v) {
+        return (int) Math.max(0, Math.min(255, Math.round(v)));
+    }
+}
@@ -0,0 +1,357 @@
+package pain.t.engine;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A picture being edited, without any user interface. It holds the layers and
+ * the undo history, and changes the pixels of the active layer by applying
+ * operations. Nothing in
+ * here needs JavaFX, so documents can be opened, drawn on and saved by a server
+ * or a batch job as well as by the editor.
+ *
+ * @author Daniel Christensen
+ */
+public class Document {
+
+    //the layers, operations draw into the active one
+    private LayerStack layers;
+
+    //the changes that can be undone
+    private final History history = new History();
+
+    //told about every operation, undo and redo
+    private final List<Listener> listeners = new ArrayList<Listener>();
+
+    /**
+     * Receives the changes made to a document, such as to write them to a
+     * journal. Called on the thread that changes the document.
+     */
+    public interface Listener {
+
+        /**
+         * Called after an operation was applied.
+         *
+         * @param op the operation
+         */
+        void applied(Operation op);
+
+        /**
+         * Called after an operation was undone.
+         *
+         * @param op the operation
+         */
+        void undone(Operation op);
+
+        /**
+         * Called after an undone operation was applied again.
+         *
+         * @param op the operation
+         */
+        void redone(Operation op);
+
+        /**
+         * Called after the layers were replaced, such as when an image is
+         * opened. Operations before this one do not apply to the new layers.
+         *
+         * @param layers the new layers
+         */
+        void replaced(LayerStack layers);
+
+        /**
+         * Called after layers were added, removed, moved or shown
+         * differently, or another layer was made the active one. Operations
+         * before this one still apply to the layers they were drawn on.
+         *
+         * @param layers the layers
+         */
+        void layersChanged(LayerStack layers);
+    }
+
+    /**
+     * Creates a new blank document.
+     *
+     * @param w document width
+     * @param h document height
+     * @param fill ARGB background color
+     */
+    public Document(int w, int h, int fill) {
+        this(new TileStore(w, h, fill));
+    }
+
+    /**
+     * Creates a document with a single layer out of existing pixels.
+     *
+     * @param store the pixels
+     */
+    public Document(TileStore store) {
+        this(new LayerStack(store));
+    }
+
+    /**
+     * Creates a document out of existing layers.
+     *
+     * @param layers the layers
+     */
+    public Document(LayerStack layers) {
+        this.layers = layers;
+    }
+
+    /**
+     * Opens an image file as a new document.
+     *
+     * @param file the image file
+     * @return the document
+     * @throws IOException if the file cannot be read or decoded
+     */
+    public static Document open(File file) throws IOException {
+        return new Document(ImageDecoder.decode(file, new ImageDecoder.Listener() {
+            @Override
+            public void preview(int[] pixels, int pw, int ph, int w, int h) {
+            }
+
+            @Override
+            public void progress(double done) {
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        }));
+    }
+
+    /**
+     * Applies operations and records them as a single change that can be
+     * undone.
+     *
+     * @param ops the operations, applied in order
+     * @return the recorded change, or null if every operation is entirely
+     * outside of the document
+     */
+    public Command apply(Operation... ops) {
+        CommandGroup group = new CommandGroup();
+        Command last = null;
+        for (Operation op : ops) {
+            Command c = this.draw(op);
+            if (c != null) {
+                group.add(c);
+                last = c;
+            }
+        }
+
+        if (last == null) {
+            return null;
+        }
+        Command c = ops.length == 1 ? last : group;
+        this.history.push(c);
+        return c;
+    }
+
+    /**
+     * Applies an operation without adding it to the history. The caller
+     * decides what to do with the change, such as keeping it in a command of
+     * its own. Listeners are still told about it.
+     *
+     * @param op the operation
+     * @return the change, or null if the operation is entirely outside of the
+     * document
+     */
+    public Command draw(Operation op) {
+        TileStore store = this.getStore();
+        Rectangle clip = op.getBounds(store).intersection(new Rectangle(0, 0, store.getWidth(), store.getHeight()));
+        if (clip.isEmpty()) {
+            return null;
+        }
+
+        TilePatch patch = new TilePatch(store, clip.x, clip.y, clip.width, clip.height);
+        op.draw(store, clip);
+        patch.finish();
+
+        for (Listener l : this.listeners) {
+            l.applied(op);
+        }
+        return new OpCommand(op, patch);
+    }
+
+    /**
+     * Records a change that was made without an operation.
+     *
+     * @param c the change
+     */
+    public void record(Command c) {
+        this.history.push(c);
+    }
+
+    /**
+     * Undoes the last change.
+     *
+     * @return true if there was a change to undo
+     */
+    public boolean undo() {
+        return this.history.undo();
+    }
+
+    /**
+     * Redoes the last undone change.
+     *
+     * @return true if there was a change to redo
+     */
+    public boolean redo() {
+        return this.history.redo();
+    }
+
+    /**
+     * @return the pixels of the active layer, which operations draw into
+     */
+    public TileStore getStore() {
+        return this.layers.getActiveLayer().getPixels();
+    }
+
+    /**
+     * @return the layers
+     */
+    public LayerStack getLayers() {
+        return this.layers;
+    }
+
+    /**
+     * Replaces the layers, such as when an image is opened. The history is
+     * kept, the caller records the swap if it should be undoable.
+     *
+     * @param layers the new layers
+     */
+    public void setLayers(LayerStack layers) {
+        this.layers = layers;
+
+        for (Listener l : this.listeners) {
+            l.replaced(layers);
+        }
+    }
+
+    /**
+     * Tells the listeners that layers were added, removed, moved or shown
+     * differently, or that another layer is drawn on. The caller changes the
+     * layers itself, and records the change if it should be undoable.
+     */
+    public void layersChanged() {
+        for (Listener l : this.listeners) {
+            l.layersChanged(this.layers);
+        }
+    }
+
+    /**
+     * Adds a listener told about the changes made to the document.
+     *
+     * @param l the listener
+     */
+    public void addListener(Listener l) {
+        this.listeners.add(l);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param l the listener
+     */
+    public void removeListener(Listener l) {
+        this.listeners.remove(l);
+    }
+
+    /**
+     * @return the undo history
+     */
+    public History getHistory() {
+        return this.history;
+    }
+
+    /**
+     * Copies the picture the layers make into an opaque image, transparent
+     * pixels are shown over white.
+     *
+     * @return the image
+     */
+    public BufferedImage toImage() {
+        return this.toImage("jpg");
+    }
+
+    /**
+     * Copies the picture the layers make into an image ready to be saved in a
+     * format. The image keeps transparent pixels if the format does,
+     * otherwise they are shown over white.
+     *
+     * @param format the image format, such as "png" or "jpg"
+     * @return the image
+     */
+    public BufferedImage toImage(String format) {
+        TileStore picture = this.layers.update();
+        BufferedImage img = ImageEncoder.createImage(picture.getWidth(), picture.getHeight(), format);
+        int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        picture.read(0, 0, img.getWidth(), img.getHeight(), data, 0, img.getWidth());
+        ImageEncoder.flatten(img, 0xffffffff);
+        return img;
+    }
+
+    /**
+     * Saves the document as an image file.
+     *
+     * @param file the file to write into, its extension picks the format
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        String format = ImageEncoder.formatOf(file);
+        ImageEncoder.encode(this.toImage(format), file, format, Progress.NONE);
+    }
+
+    /**
+     * An operation that was applied, kept with the pixels it changed. Undoing
+     * and redoing it tells the listeners.
+     */
+    private class OpCommand implements Command {
+
+        //the operation
+        private final Operation op;
+
+        //the pixels it changed
+        private final TilePatch patch;
+
+        /**
+         * Records an operation that was just applied.
+         */
+        OpCommand(Operation op, TilePatch patch) {
+            this.op = op;
+            this.patch = patch;
+        }
+
+        @Override
+        public void undo() {
+            this.patch.undo();
+            for (Listener l : listeners) {
+                l.undone(this.op);
+            }
+        }
+
+        @Override
+        public void redo() {
+            this.patch.redo();
+            for (Listener l : listeners) {
+                l.redone(this.op);
+            }
+        }
+
+        @Override
+        public long getSize() {
+            return this.op.getMemorySize() + this.patch.getSize();
+        }
+
+        @Override
+        public boolean compact() {
+            return this.patch.compact();
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package pain.t.engine;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Filling the area around a point with a color, like a paint bucket. The area
+ * is every pixel connected to the point whose color is close enough to the
+ * point's color. Which pixels that is depends on what is already drawn, so the
+ * area is only found once the operation is applied to a store.
+ *
+ * The area is found one row span at a time with a stack of seeds, without
+ * recursion, and marked in a bit mask kept per tile. The mask is then written
+ * into the tiles, several tiles at once for large areas.
+ *
+ * @author Daniel Christensen
+ */
+public class FillOp extends Operation {
+
+    //areas covering more tiles than this are written by several threads
+    private static final int PARALLEL_TILES = 4;
+
+    //words of 64 pixels in a row of a tile
+    private static final int WORDS = TileStore.TILE_SIZE / 64;
+
+    //the point the fill starts from
+    private final int x, y;
+
+    //color filled with, as ARGB
+    private final int color;
+
+    //largest difference in any channel, from 0 to 255, for a pixel to be filled
+    private final int tolerance;
+
+    //true to also spread to diagonal neighbors
+    private final boolean diagonal;
+
+    //the area found by getBounds(TileStore), until it is drawn
+    private Scan scan;
+
+    /**
+     * Creates a new fill.
+     *
+     * @param x x position of the point to fill from
+     * @param y y position of the point to fill from
+     * @param color color to fill with, as ARGB
+     * @param tolerance largest difference in any channel, from 0 to 255,
+     * between the point's color and a pixel that is filled
+     * @param diagonal true to spread to the 8 neighbors of a pixel, false for
+     * only the 4 sharing a side
+     */
+    public FillOp(int x, int y, int color, int tolerance, boolean diagonal) {
+        this.x = x;
+        this.y = y;
+        this.color = color;
+        this.tolerance = Math.max(0, Math.min(255, tolerance));
+        this.diagonal = diagonal;
+    }
+
+    /**
+     * @return the x position of the point filled from
+     */
+    public int getX() {
+        return this.x;
+    }
+
+    /**
+     * @return the y position of the point filled from
+     */
+    public int getY() {
+        return this.y;
+    }
+
+    /**
+     * @return the color filled with, as ARGB
+     */
+    public int getColor() {
+        return this.color;
+    }
+
+    /**
+     * @return the largest difference in any channel for a pixel to be filled
+     */
+    public int getTolerance() {
+        return this.tolerance;
+    }
+
+    /**
+     * @return true if the fill spreads to diagonal neighbors
+     */
+    public boolean isDiagonal() {
+        return this.diagonal;
+    }
+
+    /**
+     * Any pixel may be filled until the store is known.
+     */
+    @Override
+    public Rectangle getBounds() {
+        return new Rectangle(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Finds the area filled in the store, so only its tiles are recorded. The
+     * area is kept for draw().
+     */
+    @Override
+    public Rectangle getBounds(TileStore store) {
+        this.scan = new Scan(store);
+        return this.scan.bounds;
+    }
+
+    @Override
+    public void draw(TileStore store, Rectangle clip) {
+        //the store changed since the area was found, find it again
+        Scan found = this.scan;
+        if (found == null || found.store != store || found.modCount != store.getModCount()) {
+            found = new Scan(store);
+        }
+        Scan s = found;
+        this.scan = null;
+
+        Rectangle area = s.bounds.intersection(clip);
+        if (area.isEmpty()) {
+            return;
+        }
+
+        int tx0 = area.x / TileStore.TILE_SIZE;
+        int ty0 = area.y / TileStore.TILE_SIZE;
+        int tx1 = (area.x + area.width - 1) / TileStore.TILE_SIZE;
+        int ty1 = (area.y + area.height - 1) / TileStore.TILE_SIZE;
+
+        //tiles are allocated here, only their pixels are written by other threads
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                if (s.mask[ty * s.tilesX + tx] == null) {
+                    continue;
+                }
+                int[] tile = store.tileForWrite(tx, ty);
+                int col = tx, row = ty;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        s.write(tile, col, row, area);
+                        return null;
+                    }
+                });
+            }
+        }
+
+        run(tasks);
+        store.markDirty(area.x, area.y, area.width, area.height);
+    }
+
+    /**
+     * The area filled in a store, found from the point. Pixels are kept as
+     * bits, 64 to a word, in words of their own for each tile, only for the
+     * tiles the fill reaches. The pixels close enough to the point's color are
+     * found a tile at a time, the first time the fill reaches the tile. Once
+     * the fill turns out to be large, a tile reached is done by several
+     * threads along with its neighbors, which the fill is likely to reach
+     * next. Tiles the fill never gets near are never read.
+     */
+    private class Scan {
+
+        //the store searched, and its change counter at the time
+        private final TileStore store;
+        private final long modCount;
+
+        //document size, number of tiles and number of words in a row
+        private final int w, h, tilesX, tilesY, stride;
+
+        //one bit per pixel of each tile, set for pixels close enough to the point's color
+        private final long[][] matching;
+
+        //one bit per pixel of each tile, set for the pixels filled, null for tiles with none
+        private final long[][] mask;
+
+        //true for tiles whose matching bits are known
+        private final boolean[] classified;
+        private int count = 0;
+
+        //color of the point filled from
+        private final int target;
+
+        //seeds still to fill from, x and y one after the other
+        private int[] stack = new int[256];
+        private int top = 0;
+
+        //smallest rectangle around the pixels filled
+        private Rectangle bounds = new Rectangle();
+
+        Scan(TileStore store) {
+            this.store = store;
+            this.modCount = store.getModCount();
+            this.w = store.getWidth();
+            this.h = store.getHeight();
+            this.tilesX = store.getTilesX();
+            this.tilesY = store.getTilesY();
+            this.stride = (this.w + 63) >>> 6;
+            this.classified = new boolean[this.tilesX * this.tilesY];
+            this.matching = new long[this.classified.length][];
+            this.mask = new long[this.classified.length][];
+
+            if (x < 0 || y < 0 || x >= this.w || y >= this.h) {
+                this.target = 0;
+                return;
+            }
+            this.target = store.getPixel(x, y);
+            this.fill();
+        }
+
+        /**
+         * Fills every span connected to the point, one row span at a time.
+         */
+        private void fill() {
+            int minX = x, minY = y, maxX = x, maxY = y;
+            this.push(x, y);
+
+            while (this.top > 0) {
+                int sy = this.stack[--this.top];
+                int sx = this.stack[--this.top];
+                if ((this.open(sy, sx >>> 6) & (1L << sx)) == 0) {
+                    continue;
+                }
+
+                //widen the seed into the whole span of its row
+                int l = this.left(sx, sy);
+                int r = this.right(sx, sy);
+                this.mark(sy, l, r);
+
+                minX = Math.min(minX, l);
+                maxX = Math.max(maxX, r);
+                minY = Math.min(minY, sy);
+                maxY = Math.max(maxY, sy);
+
+                //look for more spans touching this one, above and below
+                int nl = diagonal ? Math.max(l - 1, 0) : l;
+                int nr = diagonal ? Math.min(r + 1, this.w - 1) : r;
+                if (sy > 0) {
+                    this.seed(nl, nr, sy - 1);
+                }
+                if (sy < this.h - 1) {
+                    this.seed(nl, nr, sy + 1);
+                }
+            }
+            this.bounds = new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        }
+
+        /**
+         * Gets a word of the pixels still to be filled in a row.
+         */
+        private long open(int py, int word) {
+            int t = (py / TileStore.TILE_SIZE) * this.tilesX + word / WORDS;
+            if (!this.classified[t]) {
+                this.classify(t);
+            }
+            int i = (py % TileStore.TILE_SIZE) * WORDS + word % WORDS;
+            long[] filled = this.mask[t];
+            return this.matching[t][i] & ~(filled == null ? 0 : filled[i]);
+        }
+
+        /**
+         * Walks left from an open pixel while the pixels are open.
+         *
+         * @return the last open pixel reached
+         */
+        private int left(int px, int py) {
+            int word = px >>> 6;
+            long bits = ~this.open(py, word) << (63 - (px & 63));
+            while (bits == 0 && word > 0) {
+                word--;
+                px = (word << 6) + 63;
+                bits = ~this.open(py, word);
+            }
+            return bits == 0 ? 0 : px - Long.numberOfLeadingZeros(bits) + 1;
+        }
+
+        /**
+         * Walks right from an open pixel while the pixels are open.
+         *
+         * @return the last open pixel reached
+         */
+        private int right(int px, int py) {
+            int word = px >>> 6;
+            long bits = ~this.open(py, word) >>> (px & 63);
+            while (bits == 0 && word < this.stride - 1) {
+                word++;
+                px = word << 6;
+                bits = ~this.open(py, word);
+            }
+            //the bits past the end of a row are never open, only a row filling its last word ends open
+            return bits == 0 ? this.w - 1 : px + Long.numberOfTrailingZeros(bits) - 1;
+        }
+
+        /**
+         * Adds a seed for every run of open pixels in part of a row.
+         */
+        private void seed(int l, int r, int py) {
+            for (int word = l >>> 6; word <= r >>> 6; word++) {
+                long bits = this.open(py, word);
+                if (word == l >>> 6) {
+                    bits &= -1L << l;
+                }
+                if (word == r >>> 6) {
+                    bits &= -1L >>> (63 - (r & 63));
+                }
+
+                //a run going on from the last word gets a second seed, it is skipped once filled
+                while (bits != 0) {
+                    this.push((word << 6) + Long.numberOfTrailingZeros(bits), py);
+                    bits &= bits + (bits & -bits);
+                }
+            }
+        }
+
+        /**
+         * Marks the pixels of a row span as filled.
+         */
+        private void mark(int py, int l, int r) {
+            int first = l >>> 6;
+            int last = r >>> 6;
+            for (int word = first; word <= last; word++) {
+                long bits = -1L;
+                if (word == first) {
+                    bits &= -1L << l;
+                }
+                if (word == last) {
+                    bits &= -1L >>> (63 - (r & 63));
+                }
+
+                int t = (py / TileStore.TILE_SIZE) * this.tilesX + word / WORDS;
+                if (this.mask[t] == null) {
+                    this.mask[t] = new long[TileStore.TILE_SIZE * WORDS];
+                }
+                this.mask[t][(py % TileStore.TILE_SIZE) * WORDS + word % WORDS] |= bits;
+            }
+        }
+
+        /**
+         * Finds the pixels of a tile close enough to the point's color. Once
+         * the fill has reached many tiles, the tile's neighbors are done along
+         * with it.
+         */
+        private void classify(int t) {
+            if (++this.count < PARALLEL_TILES * PARALLEL_TILES) {
+                this.classify(t, this.store.getTile(t % this.tilesX, t / this.tilesX));
+                this.classified[t] = true;
+                return;
+            }
+
+            //tiles are read here, only their pixels are compared by other threads
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            int tx = t % this.tilesX;
+            int ty = t / this.tilesX;
+            for (int ny = Math.max(ty - 1, 0); ny <= Math.min(ty + 1, this.tilesY - 1); ny++) {
+                for (int nx = Math.max(tx - 1, 0); nx <= Math.min(tx + 1, this.tilesX - 1); nx++) {
+                    int at = ny * this.tilesX + nx;
+                    if (!this.classified[at]) {
+                        int[] tile = this.store.getTile(nx, ny);
+                        tasks.add(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                classify(at, tile);
+                                return null;
+                            }
+                        });
+                        this.classified[at] = true;
+                    }
+                }
+            }
+            run(tasks);
+        }
+
+        /**
+         * Sets the matching bits of one tile.
+         */
+        private void classify(int t, int[] tile) {
+            int x0 = (t % this.tilesX) * TileStore.TILE_SIZE;
+            int y0 = (t / this.tilesX) * TileStore.TILE_SIZE;
+            int x1 = Math.min(this.w, x0 + TileStore.TILE_SIZE);
+            int y1 = Math.min(this.h, y0 + TileStore.TILE_SIZE);
+            boolean fill = this.matches(this.store.getFill());
+            long[] words = new long[TileStore.TILE_SIZE * WORDS];
+
+            for (int py = y0; py < y1; py++) {
+                int row = (py - y0) * WORDS - (x0 >>> 6);
+                int off = (py - y0) * TileStore.TILE_SIZE - x0;
+                for (int wx = x0; wx < x1; wx += 64) {
+                    int end = Math.min(x1, wx + 64);
+                    long bits = 0;
+                    if (tile == null) {
+                        bits = fill ? -1L >>> (64 - (end - wx)) : 0;
+                    } else {
+                        for (int px = end - 1; px >= wx; px--) {
+                            bits = (bits << 1) | (this.matches(tile[off + px]) ? 1 : 0);
+                        }
+                    }
+                    words[row + (wx >>> 6)] = bits;
+                }
+            }
+            this.matching[t] = words;
+        }
+
+        /**
+         * Checks if a color is close enough to the point's color.
+         */
+        private boolean matches(int c) {
+            if (c == this.target) {
+                return true;
+            }
+            return tolerance > 0
+                    && Math.abs((c >>> 24) - (this.target >>> 24)) <= tolerance
+                    && Math.abs(((c >> 16) & 0xff) - ((this.target >> 16) & 0xff)) <= tolerance
+                    && Math.abs(((c >> 8) & 0xff) - ((this.target >> 8) & 0xff)) <= tolerance
+                    && Math.abs((c & 0xff) - (this.target & 0xff)) <= tolerance;
+        }
+
+        private void push(int px, int py) {
+            if (this.top + 2 > this.stack.length) {
+                this.stack = Arrays.copyOf(this.stack, this.stack.length * 2);
+            }
+            this.stack[this.top++] = px;
+            this.stack[this.top++] = py;
+        }
+
+        /**
+         * Writes the fill color into the pixels of one tile that are in the
+         * mask and in the area, one run of set bits at a time.
+         */
+        void write(int[] tile, int tx, int ty, Rectangle area) {
+            int x0 = Math.max(area.x, tx * TileStore.TILE_SIZE);
+            int y0 = Math.max(area.y, ty * TileStore.TILE_SIZE);
+            int x1 = Math.min(area.x + area.width, (tx + 1) * TileStore.TILE_SIZE);
+            int y1 = Math.min(area.y + area.height, (ty + 1) * TileStore.TILE_SIZE);
+            long[] filled = this.mask[ty * this.tilesX + tx];
+
+            for (int py = y0; py < y1; py++) {
+                int row = (py % TileStore.TILE_SIZE) * WORDS - tx * WORDS;
+                int off = (py % TileStore.TILE_SIZE) * TileStore.TILE_SIZE - tx * TileStore.TILE_SIZE;
+                for (int wx = x0 & ~63; wx < x1; wx += 64) {
+                    long bits = filled[row + (wx >>> 6)];
+                    if (wx < x0) {
+                        bits &= -1L << x0;
+                    }
+                    if (wx + 64 > x1) {
+                        bits &= -1L >>> (64 - (x1 - wx));
+                    }
+
+                    //one run of filled pixels at a time
+                    while (bits != 0) {
+                        int start = Long.numberOfTrailingZeros(bits);
+                        int stop = Long.numberOfTrailingZeros(~(bits >>> start)) + start;
+                        Arrays.fill(tile, off + wx + start, off + wx + stop, color);
+                        bits = stop == 64 ? 0 : bits & (-1L << stop);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs tasks on the common pool when there are enough of them to be worth
+     * it, or on this thread.
+     */
+    private static void run(List<Callable<Void>> tasks) {
+        try {
+            if (tasks.size() > PARALLEL_TILES) {
+                for (Future<Void> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                    f.get();
+                }
+            } else {
+                for (Callable<Void> t : tasks) {
+                    t.call();
+                }
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException("Fill failed", ex);
+        }
+    }
+}
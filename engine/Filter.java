@@ -0,0 +1,90 @@
+package pain.t.engine;
+
+/**
+ * Changes the pixels of an image as a whole, such as blurring it or making it
+ * gray. A filter works on blocks of pixels, so a large image can be filtered a
+ * tile at a time by several threads with a FilterOp. Each block comes with a
+ * margin of the pixels around it, as wide as the filter reaches.
+ *
+ * @author Daniel Christensen
+ */
+public abstract class Filter {
+
+    /**
+     * The filters there are, used to write them into files.
+     */
+    public enum Kind {
+        BLUR, SHARPEN, GRAYSCALE, BRIGHTNESS_CONTRAST, LEVELS
+    }
+
+    /**
+     * Creates a filter from its kind and parameters, as given by getKind()
+     * and getParameters().
+     *
+     * @param kind the kind of filter
+     * @param p the parameters
+     * @return the filter
+     * @throws IllegalArgumentException if there are not enough parameters
+     */
+    public static Filter create(Kind kind, double... p) {
+        try {
+            switch (kind) {
+                case BLUR:
+                    return new BlurFilter(p[0]);
+                case SHARPEN:
+                    return new SharpenFilter(p[0], p[1]);
+                case GRAYSCALE:
+                    return new GrayscaleFilter();
+                case BRIGHTNESS_CONTRAST:
+                    return CurveFilter.brightnessContrast(p[0], p[1]);
+                default:
+                    return CurveFilter.levels(p[0], p[1], p[2], p[3], p[4]);
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Missing parameters for " + kind, ex);
+        }
+    }
+
+    /**
+     * @return the kind of filter
+     */
+    public abstract Kind getKind();
+
+    /**
+     * @return the parameters the filter was created with
+     */
+    public abstract double[] getParameters();
+
+    /**
+     * Gets how far from a pixel the filter reads. Filters changing each pixel
+     * on its own return 0.
+     *
+     * @return the width of the margin around a block, in pixels
+     */
+    public int getRadius() {
+        return 0;
+    }
+
+    /**
+     * Gets the same filter for a copy of the image scaled down, used to preview
+     * it. Distances, such as a blur radius, are scaled with the image.
+     *
+     * @param scale the size of the copy compared to the image, up to 1
+     * @return the filter for the copy
+     */
+    public Filter scaled(double scale) {
+        return this;
+    }
+
+    /**
+     * Filters a block of pixels.
+     *
+     * @param src the block surrounded by its margin, row by row. Past the
+     * edges of the image, the margin repeats the edge pixels.
+     * @param w width of the block with its margin
+     * @param h height of the block with its margin
+     * @param dst where to write the filtered block, without its margin, row
+     * by row
+     */
+    public abstract void apply(int[] src, int w, int h, int[] dst);
+}
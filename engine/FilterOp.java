@@ -0,0 +1,267 @@
+package pain.t.engine;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Running a filter over the whole document. Every tile is filtered on its own
+ * by the common ForkJoin pool, reading the pixels around it that the filter
+ * reaches, so large images are filtered by every core at once.
+ *
+ * Filtering can take a while, so it can be done ahead with prepare(), in the
+ * background and with a way to cancel it. Applying the operation then only
+ * puts the filtered tiles in place.
+ *
+ * @author Daniel Christensen
+ */
+public class FilterOp extends Operation {
+
+    //the filter run
+    private final Filter filter;
+
+    //tiles filtered by prepare(), the store they came from and its change counter at the time
+    private int[][] prepared;
+    private TileStore source;
+    private long modCount;
+
+    /**
+     * Creates a new operation running a filter.
+     *
+     * @param filter the filter
+     */
+    public FilterOp(Filter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @return the filter run
+     */
+    public Filter getFilter() {
+        return this.filter;
+    }
+
+    /**
+     * Filters every tile of a store without changing it, to be put in place
+     * once the operation is applied. Can be called from any thread, as long
+     * as nothing changes the store meanwhile. A snapshot() of the store can be
+     * filtered instead, so the store itself is not touched by this thread, and
+     * the tiles are put in place if the store did not change since.
+     *
+     * @param store the store about to be filtered, or a snapshot of it
+     * @param progress told how much is done, and checked between tiles
+     * @return false if it was cancelled
+     */
+    public boolean prepare(TileStore store, Progress progress) {
+        int[][] tiles = FilterOp.filter(this.filter, store, progress);
+        if (tiles == null) {
+            return false;
+        }
+        this.prepared = tiles;
+        this.source = store;
+        this.modCount = store.getModCount();
+        return true;
+    }
+
+    /**
+     * Every pixel is filtered.
+     */
+    @Override
+    public Rectangle getBounds() {
+        return new Rectangle(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void draw(TileStore store, Rectangle clip) {
+        //the tiles were prepared for this store as it is now, or are filtered here
+        int[][] tiles = this.prepared;
+        if (tiles == null || !this.source.isSameAs(store) || this.modCount != store.getModCount()) {
+            tiles = FilterOp.filter(this.filter, store, Progress.NONE);
+        }
+        this.prepared = null;
+        this.source = null;
+
+        for (int ty = clip.y / TileStore.TILE_SIZE; ty <= (clip.y + clip.height - 1) / TileStore.TILE_SIZE; ty++) {
+            for (int tx = clip.x / TileStore.TILE_SIZE; tx <= (clip.x + clip.width - 1) / TileStore.TILE_SIZE; tx++) {
+                store.setTile(tx, ty, tiles[ty * store.getTilesX() + tx]);
+            }
+        }
+    }
+
+    @Override
+    public long getMemorySize() {
+        return 64 + this.filter.getParameters().length * 8;
+    }
+
+    /**
+     * Filters a copy of a store, used to preview a filter.
+     *
+     * @param filter the filter
+     * @param store the pixels to filter, they are not changed
+     * @return the filtered pixels, row by row
+     */
+    public static int[] preview(Filter filter, TileStore store) {
+        int[][] tiles = FilterOp.filter(filter, store, Progress.NONE);
+        int w = store.getWidth();
+        int h = store.getHeight();
+        int[] pixels = new int[w * h];
+
+        for (int ty = 0; ty < store.getTilesY(); ty++) {
+            for (int tx = 0; tx < store.getTilesX(); tx++) {
+                int x0 = tx * TileStore.TILE_SIZE;
+                int y0 = ty * TileStore.TILE_SIZE;
+                int tw = Math.min(TileStore.TILE_SIZE, w - x0);
+                for (int row = y0; row < Math.min(h, y0 + TileStore.TILE_SIZE); row++) {
+                    System.arraycopy(tiles[ty * store.getTilesX() + tx], (row - y0) * TileStore.TILE_SIZE, pixels, row * w + x0, tw);
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Makes a small copy of a store to preview filters on. Each pixel of the
+     * copy is the average of a square of pixels of the store.
+     *
+     * @param store the pixels to copy
+     * @param largest largest width or height of the copy
+     * @return the copy, or the store itself if it is small enough already
+     */
+    public static TileStore proxy(TileStore store, int largest) {
+        int w = store.getWidth();
+        int h = store.getHeight();
+        int step = (Math.max(w, h) + largest - 1) / largest;
+        if (step <= 1) {
+            return store;
+        }
+
+        int pw = (w + step - 1) / step;
+        int ph = (h + step - 1) / step;
+        int[] small = new int[pw * ph];
+        int[] rows = new int[w * step];
+        for (int py = 0; py < ph; py++) {
+            int y0 = py * step;
+            int rh = Math.min(step, h - y0);
+            store.read(0, y0, w, rh, rows, 0, w);
+
+            for (int px = 0; px < pw; px++) {
+                int x0 = px * step;
+                int rw = Math.min(step, w - x0);
+                int a = 0, r = 0, g = 0, b = 0;
+                for (int y = 0; y < rh; y++) {
+                    for (int x = x0; x < x0 + rw; x++) {
+                        int c = rows[y * w + x];
+                        a += c >>> 24;
+                        r += (c >> 16) & 0xff;
+                        g += (c >> 8) & 0xff;
+                        b += c & 0xff;
+                    }
+                }
+                int n = rw * rh;
+                small[py * pw + px] = Pixels.argb(a / n, r / n, g / n, b / n);
+            }
+        }
+
+        TileStore proxy = new TileStore(pw, ph, store.getFill());
+        proxy.write(0, 0, pw, ph, small, 0, pw);
+        return proxy;
+    }
+
+    /**
+     * Filters every tile of a store into new tiles, several tiles at once.
+     *
+     * @return the filtered tiles, or null if it was cancelled
+     */
+    private static int[][] filter(Filter filter, TileStore store, Progress progress) {
+        int count = store.getTilesX() * store.getTilesY();
+        int[][] out = new int[count][];
+        AtomicInteger done = new AtomicInteger();
+
+        //tiles are read here first, a tile still in the file can only be read by one thread
+        for (int i = 0; i < count; i++) {
+            store.getTile(i % store.getTilesX(), i / store.getTilesX());
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < count; i++) {
+            int at = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (!progress.isCancelled()) {
+                        out[at] = FilterOp.filterTile(filter, store, at % store.getTilesX(), at / store.getTilesX());
+                        progress.progress(done.incrementAndGet() / (double) count);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException("Filtering failed", ex);
+        }
+        return progress.isCancelled() ? null : out;
+    }
+
+    /**
+     * Filters one tile.
+     *
+     * @return the filtered pixels, laid out as a tile
+     */
+    private static int[] filterTile(Filter filter, TileStore store, int tx, int ty) {
+        int r = filter.getRadius();
+        int x0 = tx * TileStore.TILE_SIZE;
+        int y0 = ty * TileStore.TILE_SIZE;
+        int tw = Math.min(TileStore.TILE_SIZE, store.getWidth() - x0);
+        int th = Math.min(TileStore.TILE_SIZE, store.getHeight() - y0);
+
+        int[] block = new int[(tw + 2 * r) * (th + 2 * r)];
+        FilterOp.read(store, x0 - r, y0 - r, tw + 2 * r, th + 2 * r, block);
+        int[] filtered = new int[tw * th];
+        filter.apply(block, tw + 2 * r, th + 2 * r, filtered);
+
+        //a whole tile is already laid out as one
+        if (tw == TileStore.TILE_SIZE && th == TileStore.TILE_SIZE) {
+            return filtered;
+        }
+        int[] tile = new int[TileStore.TILE_SIZE * TileStore.TILE_SIZE];
+        Arrays.fill(tile, store.getFill());
+        for (int row = 0; row < th; row++) {
+            System.arraycopy(filtered, row * tw, tile, row * TileStore.TILE_SIZE, tw);
+        }
+        return tile;
+    }
+
+    /**
+     * Copies a region that may reach outside of the store. Pixels outside
+     * repeat the closest pixel at the edge.
+     */
+    private static void read(TileStore store, int x, int y, int w, int h, int[] dst) {
+        int ix0 = Math.max(x, 0);
+        int iy0 = Math.max(y, 0);
+        int ix1 = Math.min(x + w, store.getWidth());
+        int iy1 = Math.min(y + h, store.getHeight());
+        store.read(ix0, iy0, ix1 - ix0, iy1 - iy0, dst, (iy0 - y) * w + (ix0 - x), w);
+
+        for (int row = iy0 - y; row < iy1 - y; row++) {
+            int base = row * w;
+            Arrays.fill(dst, base, base + ix0 - x, dst[base + ix0 - x]);
+            Arrays.fill(dst, base + ix1 - x, base + w, dst[base + ix1 - x - 1]);
+        }
+        for (int row = 0; row < iy0 - y; row++) {
+            System.arraycopy(dst, (iy0 - y) * w, dst, row * w, w);
+        }
+        for (int row = iy1 - y; row < h; row++) {
+            System.arraycopy(dst, (iy1 - y - 1) * w, dst, row * w, w);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package pain.t.engine;
+
+import java.awt.BasicStroke;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
+import java.awt.geom.AffineTransform;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Fonts and rasterized lines of text, shared by every document. Fonts are
+ * kept by family and size, so drawing hundreds of labels does not make
+ * hundreds of fonts. A line of text is laid out and rasterized once, then
+ * blended wherever it is drawn again with the same font, colors and position
+ * within a pixel, such as when it is redone or replayed.
+ *
+ * @author Daniel Christensen
+ */
+public final class GlyphCache {
+
+    //context used to lay out text, the same as antialiased drawing uses
+    private static final FontRenderContext CONTEXT = new FontRenderContext(new AffineTransform(), true, true);
+
+    //most fonts kept
+    private static final int FONT_LIMIT = 64;
+
+    //most bytes of rasterized text kept
+    private static final long RUN_BUDGET = 16L << 20;
+
+    //positions are rounded to this fraction of a pixel, so text moved by whole pixels is reused
+    private static final int SUBPIXELS = 4;
+
+    //fonts by family and size, the least recently used first
+    private static final LinkedHashMap<String, Font> fonts = new LinkedHashMap<String, Font>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Font> eldest) {
+            return this.size() > FONT_LIMIT;
+        }
+    };
+
+    //rasterized text, the least recently used first
+    private static final LinkedHashMap<Key, Run> runs = new LinkedHashMap<Key, Run>(16, 0.75f, true);
+
+    //bytes held by the rasterized text
+    private static long runBytes = 0;
+
+    private GlyphCache() {
+    }
+
+    /**
+     * Gets a plain font, made only the first time it is asked for.
+     *
+     * @param family the font family
+     * @param size the font size, in pixels
+     * @return the font
+     */
+    public static Font font(String family, double size) {
+        String key = family + ':' + size;
+        synchronized (fonts) {
+            Font font = fonts.get(key);
+            if (font == null) {
+                font = new Font(family, Font.PLAIN, 1).deriveFont((float) size);
+                fonts.put(key, font);
+            }
+            return font;
+        }
+    }
+
+    /**
+     * Gets a line of text rasterized with an outline and a fill. The pixels
+     * are made the first time, and must not be changed.
+     *
+     * @param text the text, not empty
+     * @param family the font family
+     * @param size the font size, in pixels
+     * @param fx where the baseline starts within its pixel, 0 to 1
+     * @param fy where the baseline is within its pixel, 0 to 1
+     * @param stroke outline color, as ARGB
+     * @param fill fill color, as ARGB
+     * @return the rasterized text
+     */
+    static Run run(String text, String family, double size, double fx, double fy, int stroke, int fill) {
+        Key key = new Key(text, family, size, (int) Math.round(fx * SUBPIXELS), (int) Math.round(fy * SUBPIXELS),
+                stroke, fill);
+        synchronized (runs) {
+            Run run = runs.get(key);
+            if (run != null) {
+                return run;
+            }
+        }
+
+        //rasterized outside of the lock, a line drawn twice at once is only kept once
+        Run run = rasterize(key);
+        synchronized (runs) {
+            long bytes = run.pixels.length * 4L;
+            if (bytes <= RUN_BUDGET / 4 && runs.put(key, run) == null) {
+                runBytes += bytes;
+                while (runBytes > RUN_BUDGET) {
+                    Map.Entry<Key, Run> eldest = runs.entrySet().iterator().next();
+                    runBytes -= eldest.getValue().pixels.length * 4L;
+                    runs.remove(eldest.getKey());
+                }
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Forgets every rasterized line of text.
+     */
+    public static void clear() {
+        synchronized (runs) {
+            runs.clear();
+            runBytes = 0;
+        }
+    }
+
+    /**
+     * @return the bytes held by the rasterized text
+     */
+    public static long getAllocatedBytes() {
+        synchronized (runs) {
+            return runBytes;
+        }
+    }
+
+    /**
+     * Lays out and rasterizes a line of text over transparent pixels.
+     */
+    private static Run rasterize(Key key) {
+        double fx = (double) key.fx / SUBPIXELS;
+        double fy = (double) key.fy / SUBPIXELS;
+        TextLayout layout = new TextLayout(key.text, font(key.family, key.size), CONTEXT);
+        Shape outline = layout.getOutline(AffineTransform.getTranslateInstance(fx, fy));
+        Rectangle r = outline.getBounds();
+        r.grow(2, 2);
+
+        int[] pixels = new int[r.width * r.height];
+        Graphics2D g = PaintOperation.wrap(pixels, r.width, r.height).createGraphics();
+        g.translate(-r.x, -r.y);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+        if ((key.fill >>> 24) != 0) {
+            g.setColor(new java.awt.Color(key.fill, true));
+            g.fill(outline);
+        }
+        if ((key.stroke >>> 24) != 0) {
+            g.setColor(new java.awt.Color(key.stroke, true));
+            g.setStroke(new BasicStroke(1));
+            g.draw(outline);
+        }
+        g.dispose();
+
+        return new Run(r.x, r.y, r.width, r.height, pixels);
+    }
+
+    /**
+     * A rasterized line of text, placed relative to the pixel its baseline
+     * starts in.
+     */
+    static final class Run {
+
+        //position of the pixels relative to the baseline's pixel, and their size
+        final int x, y, w, h;
+
+        //the text over transparent pixels, row by row
+        final int[] pixels;
+
+        Run(int x, int y, int w, int h, int[] pixels) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.pixels = pixels;
+        }
+    }
+
+    /**
+     * Everything a rasterized line of text depends on.
+     */
+    private static final class Key {
+
+        private final String text, family;
+        private final double size;
+        private final int fx, fy, stroke, fill;
+
+        Key(String text, String family, double size, int fx, int fy, int stroke, int fill) {
+            this.text = text;
+            this.family = family;
+            this.size = size;
+            this.fx = fx;
+            this.fy = fy;
+            this.stroke = stroke;
+            this.fill = fill;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return this.text.equals(k.text) && this.family.equals(k.family) && this.size == k.size
+                    && this.fx == k.fx && this.fy == k.fy && this.stroke == k.stroke && this.fill == k.fill;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.text, this.family, this.size, this.fx, this.fy, this.stroke, this.fill);
+        }
+    }
+}
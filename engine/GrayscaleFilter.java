@@ -0,0 +1,27 @@
+package pain.t.engine;
+
+/**
+ * Turns colors into shades of gray of the same brightness. Transparency is
+ * kept.
+ *
+ * @author Daniel Christensen
+ */
+public class GrayscaleFilter extends PointFilter {
+
+    @Override
+    public Kind getKind() {
+        return Kind.GRAYSCALE;
+    }
+
+    @Override
+    public double[] getParameters() {
+        return new double[0];
+    }
+
+    @Override
+    protected int filter(int argb) {
+        //weights of red, green and blue in the brightness, out of 256
+        int y = (((argb >> 16) & 0xff) * 77 + ((argb >> 8) & 0xff) * 150 + (argb & 0xff) * 29) >> 8;
+        return (argb & 0xff000000) | (y << 16) | (y << 8) | y;
+    }
+}
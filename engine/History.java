@@ -0,0 +1,199 @@
+package pain.t.engine;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * The undo and redo history of a canvas. The memory held by the commands is
+ * kept under a budget: when it is exceeded, the oldest commands are compacted
+ * first, and dropped if that is not enough. The most recent command is always
+ * kept.
+ *
+ * @author Daniel Christensen
+ */
+public class History {
+
+    //default memory budget, in bytes
+    public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+    //commands that can be undone, the most recent last
+    private final Deque<Entry> done = new ArrayDeque<Entry>();
+
+    //commands that were undone and can be redone, the most recently undone last
+    private final Deque<Entry> undone = new ArrayDeque<Entry>();
+
+    //memory allowed for the commands
+    private long budget;
+
+    //memory held by the commands, the sum of the entries' sizes
+    private long size = 0;
+
+    /**
+     * Creates a new empty history with the default budget.
+     */
+    public History() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Creates a new empty history.
+     *
+     * @param budget memory allowed for the commands, in bytes
+     */
+    public History(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Adds a command that was just done. Anything that could be redone is
+     * forgotten.
+     *
+     * @param c the command
+     */
+    public void push(Command c) {
+        this.clearRedo();
+
+        Entry e = new Entry(c);
+        this.done.addLast(e);
+        this.size += e.size;
+        this.trim();
+    }
+
+    /**
+     * Undoes the most recent command.
+     *
+     * @return true if a command was undone
+     */
+    public boolean undo() {
+        if (this.done.isEmpty()) {
+            return false;
+        }
+        Entry e = this.done.removeLast();
+        e.command.undo();
+        this.undone.addLast(e);
+        return true;
+    }
+
+    /**
+     * Redoes the most recently undone command.
+     *
+     * @return true if a command was redone
+     */
+    public boolean redo() {
+        if (this.undone.isEmpty()) {
+            return false;
+        }
+        Entry e = this.undone.removeLast();
+        e.command.redo();
+        this.done.addLast(e);
+        return true;
+    }
+
+    /**
+     * @return true if there is a command to undo
+     */
+    public boolean canUndo() {
+        return !this.done.isEmpty();
+    }
+
+    /**
+     * @return true if there is a command to redo
+     */
+    public boolean canRedo() {
+        return !this.undone.isEmpty();
+    }
+
+    /**
+     * Forgets every command that can be redone.
+     */
+    public void clearRedo() {
+        for (Entry e : this.undone) {
+            this.size -= e.size;
+        }
+        this.undone.clear();
+    }
+
+    /**
+     * Forgets every command.
+     */
+    public void clear() {
+        this.done.clear();
+        this.undone.clear();
+        this.size = 0;
+    }
+
+    /**
+     * @return the number of commands that can be undone
+     */
+    public int getDepth() {
+        return this.done.size();
+    }
+
+    /**
+     * @return the memory held by the commands, in bytes
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return the memory allowed for the commands, in bytes
+     */
+    public long getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Changes the memory allowed for the commands. Old commands are compacted
+     * or dropped right away if needed.
+     *
+     * @param budget the new budget, in bytes
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+        this.trim();
+    }
+
+    /**
+     * Brings the memory held back under the budget, compacting the oldest
+     * commands first, then dropping them.
+     */
+    private void trim() {
+        //compact from the oldest, the newest are the most likely to be undone
+        Iterator<Entry> it = this.done.iterator();
+        while (this.size > this.budget && it.hasNext()) {
+            Entry e = it.next();
+            if (e == this.done.peekLast()) {
+                break;
+            }
+
+            if (e.command.compact()) {
+                long after = e.command.getSize();
+                this.size += after - e.size;
+                e.size = after;
+            }
+        }
+
+        //still too much, forget the oldest commands
+        while (this.size > this.budget && this.done.size() > 1) {
+            this.size -= this.done.removeFirst().size;
+        }
+    }
+
+    /**
+     * A command with the memory it was counted for. Some commands grow or
+     * shrink after they were pushed, so the size they had when counted is
+     * what gets taken off again, and it only changes when compacted.
+     */
+    private static class Entry {
+
+        private final Command command;
+        private long size;
+
+        Entry(Command command) {
+            this.command = command;
+            this.size = command.getSize();
+        }
+    }
+}
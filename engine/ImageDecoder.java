@@ -0,0 +1,289 @@
+package pain.t.engine;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes an image file into tiles. A small preview of the image is handed to
+ * the listener first, then the full resolution pixels are decoded. Uncompressed
+ * BMP and PPM files are mapped into memory instead of being decoded.
+ *
+ * @author Daniel Christensen
+ */
+public class ImageDecoder {
+
+    //largest width or height of the preview
+    public static final int PREVIEW_SIZE = 1024;
+
+    /**
+     * Receives the preview and the progress of a decode.
+     */
+    public interface Listener extends Progress {
+
+        /**
+         * Called once the preview is ready, on the decoding thread. It is not
+         * called if the image is small enough to not need one.
+         *
+         * @param pixels the preview's ARGB pixels, row by row
+         * @param pw preview width
+         * @param ph preview height
+         * @param w full width of the image
+         * @param h full height of the image
+         */
+        void preview(int[] pixels, int pw, int ph, int w, int h);
+    }
+
+    //the file to decode
+    private final File file;
+
+    //told about the preview and the progress
+    private final Listener listener;
+
+    /**
+     * Creates a decoder, used by decode().
+     */
+    private ImageDecoder(File file, Listener listener) {
+        this.file = file;
+        this.listener = listener;
+    }
+
+    /**
+     * Decodes an image file.
+     *
+     * @param file the image file
+     * @param listener receives the preview and the progress, and can cancel
+     * @return the pixels of the image
+     * @throws IOException if the file cannot be read or decoded
+     * @throws CancellationException if the listener cancelled the decode
+     */
+    public static TileStore decode(File file, Listener listener) throws IOException {
+        ImageDecoder decoder = new ImageDecoder(file, listener);
+        if (MappedImage.canMap(file)) {
+            return decoder.readMapped();
+        }
+        return decoder.readDecoded();
+    }
+
+    /**
+     * Reads the size of an image from its header, without decoding it.
+     *
+     * @param file the image file
+     * @return the width and height of the image
+     * @throws IOException if the file cannot be read or is not an image
+     */
+    public static Dimension readSize(File file) throws IOException {
+        if (MappedImage.canMap(file)) {
+            MappedImage img = MappedImage.open(file);
+            return new Dimension(img.getWidth(), img.getHeight());
+        }
+
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Cannot open " + file.getName());
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads an uncompressed image by mapping its file.
+     */
+    private TileStore readMapped() throws IOException {
+        MappedImage img = MappedImage.open(this.file);
+        int w = img.getWidth();
+        int h = img.getHeight();
+
+        //sample the mapped pixels for the preview
+        int step = ImageDecoder.previewStep(w, h);
+        int pw = (w + step - 1) / step;
+        int ph = (h + step - 1) / step;
+        int[] small = new int[pw * ph];
+        for (int y = 0; y < ph; y++) {
+            for (int x = 0; x < pw; x++) {
+                small[y * pw + x] = img.getPixel(x * step, y * step);
+            }
+        }
+        this.listener.preview(small, pw, ph, w, h);
+
+        TileStore store = new TileStore(w, h, 0);
+        for (int ty = 0; ty < store.getTilesY(); ty++) {
+            this.checkCancelled();
+
+            for (int tx = 0; tx < store.getTilesX(); tx++) {
+                int x = tx * TileStore.TILE_SIZE;
+                int tw = Math.min(TileStore.TILE_SIZE, w - x);
+                int th = Math.min(TileStore.TILE_SIZE, h - ty * TileStore.TILE_SIZE);
+                int[] tile = store.tileForWrite(tx, ty);
+
+                for (int row = 0; row < th; row++) {
+                    img.readRow(x, ty * TileStore.TILE_SIZE + row, tw, tile, row * TileStore.TILE_SIZE);
+                }
+            }
+            this.listener.progress((ty + 1) / (double) store.getTilesY());
+        }
+        store.markDirty(0, 0, w, h);
+        return store;
+    }
+
+    /**
+     * Decodes a compressed image with ImageIO, a subsampled preview first.
+     */
+    private TileStore readDecoded() throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(this.file)) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Cannot open " + this.file.getName());
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                reader.addIIOReadProgressListener(new ReadListener());
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+
+                //a quick, subsampled decode for the preview
+                int step = ImageDecoder.previewStep(w, h);
+                if (step > 1) {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(step, step, 0, 0);
+                    BufferedImage small = reader.read(0, param);
+                    this.checkCancelled();
+                    this.listener.preview(small.getRGB(0, 0, small.getWidth(), small.getHeight(), null, 0, small.getWidth()),
+                            small.getWidth(), small.getHeight(), w, h);
+                }
+
+                BufferedImage full = reader.read(0);
+                this.checkCancelled();
+                return ImageDecoder.toTiles(full, this.listener);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Copies a decoded image into tiles.
+     *
+     * @param img the image
+     * @param progress checked for cancelling between tile rows
+     * @return the pixels of the image
+     */
+    public static TileStore toTiles(BufferedImage img, Progress progress) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        TileStore store = new TileStore(w, h, 0);
+        boolean direct = img.getType() == BufferedImage.TYPE_INT_ARGB || img.getType() == BufferedImage.TYPE_INT_RGB;
+        int[] data = direct ? ((DataBufferInt) img.getRaster().getDataBuffer()).getData() : null;
+
+        for (int ty = 0; ty < store.getTilesY(); ty++) {
+            if (progress.isCancelled()) {
+                throw new CancellationException();
+            }
+
+            for (int tx = 0; tx < store.getTilesX(); tx++) {
+                int x = tx * TileStore.TILE_SIZE;
+                int y = ty * TileStore.TILE_SIZE;
+                int tw = Math.min(TileStore.TILE_SIZE, w - x);
+                int th = Math.min(TileStore.TILE_SIZE, h - y);
+                int[] tile = store.tileForWrite(tx, ty);
+
+                if (data != null) {
+                    for (int row = 0; row < th; row++) {
+                        System.arraycopy(data, (y + row) * w + x, tile, row * TileStore.TILE_SIZE, tw);
+                    }
+                    if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+                        for (int i = 0; i < tile.length; i++) {
+                            tile[i] |= 0xff000000;
+                        }
+                    }
+                } else {
+                    img.getRGB(x, y, tw, th, tile, 0, TileStore.TILE_SIZE);
+                }
+            }
+        }
+        store.markDirty(0, 0, w, h);
+        return store;
+    }
+
+    /**
+     * Gets how many pixels to skip between two preview pixels.
+     */
+    private static int previewStep(int w, int h) {
+        return Math.max(1, (Math.max(w, h) + PREVIEW_SIZE - 1) / PREVIEW_SIZE);
+    }
+
+    /**
+     * Stops the decoding if the listener cancelled it.
+     */
+    private void checkCancelled() {
+        if (this.listener.isCancelled()) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Reports the decoding progress, and stops the reader when the decode is
+     * cancelled.
+     */
+    private class ReadListener implements IIOReadProgressListener {
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            listener.progress(percentageDone / 100);
+            if (listener.isCancelled()) {
+                source.abort();
+            }
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+        }
+
+        @Override
+        public void readAborted(ImageReader source) {
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package pain.t.engine;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes an image and writes it to a file, reporting progress as the encoder
+ * goes.
+ *
+ * @author Daniel Christensen
+ */
+public class ImageEncoder {
+
+    /**
+     * Gets the format to save a file as from its name.
+     *
+     * @param file the file
+     * @return the file's extension, or "png" if it has none
+     */
+    public static String formatOf(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "png" : name.substring(dot + 1).toLowerCase();
+    }
+
+    /**
+     * Checks if a format keeps transparent pixels.
+     *
+     * @param format the image format, such as "png" or "jpg"
+     * @return true if the format has an alpha channel
+     */
+    public static boolean hasAlpha(String format) {
+        return format.equals("png") || format.equals("tif") || format.equals("tiff");
+    }
+
+    /**
+     * Creates an image to copy ARGB pixels into before encoding it in a
+     * format. The image keeps transparency if the format does, otherwise it
+     * is opaque and flatten() must be called once the pixels are copied.
+     *
+     * @param w image width
+     * @param h image height
+     * @param format the image format, such as "png" or "jpg"
+     * @return the image, its pixels can be written through its DataBufferInt
+     */
+    public static BufferedImage createImage(int w, int h, String format) {
+        return new BufferedImage(w, h, hasAlpha(format) ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Blends the ARGB pixels copied into an opaque image over a background
+     * color, so transparent pixels do not come out black. Images with an alpha
+     * channel are left as they are.
+     *
+     * @param img an image made by createImage(), with ARGB pixels copied into it
+     * @param background the opaque color transparent pixels are shown over
+     */
+    public static void flatten(BufferedImage img, int background) {
+        if (img.getType() != BufferedImage.TYPE_INT_RGB) {
+            return;
+        }
+
+        int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < data.length; i++) {
+            if ((data[i] >>> 24) != 255) {
+                data[i] = Pixels.blend(background, data[i]);
+            }
+        }
+    }
+
+    /**
+     * Encodes an image into a file. An existing file is replaced.
+     *
+     * @param img the image to write
+     * @param file the file to write into
+     * @param format the image format, such as "png" or "jpg"
+     * @param progress receives the progress, and can cancel
+     * @throws IOException if the format is not supported or the file cannot be
+     * written
+     */
+    public static void encode(BufferedImage img, File file, String format, Progress progress) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(format);
+        if (!writers.hasNext()) {
+            throw new IOException("Cannot save images as ." + format);
+        }
+
+        ImageWriter writer = writers.next();
+        writer.addIIOWriteProgressListener(new IIOWriteProgressListener() {
+            @Override
+            public void imageProgress(ImageWriter source, float percentageDone) {
+                progress.progress(percentageDone / 100);
+                if (progress.isCancelled()) {
+                    source.abort();
+                }
+            }
+
+            @Override
+            public void imageStarted(ImageWriter source, int imageIndex) {
+                progress.progress(0);
+            }
+
+            @Override
+            public void imageComplete(ImageWriter source) {
+                progress.progress(1);
+            }
+
+            @Override
+            public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {
+            }
+
+            @Override
+            public void thumbnailProgress(ImageWriter source, float percentageDone) {
+            }
+
+            @Override
+            public void thumbnailComplete(ImageWriter source) {
+            }
+
+            @Override
+            public void writeAborted(ImageWriter source) {
+            }
+        });
+
+        //an existing file is replaced
+        file.delete();
+
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            if (out == null) {
+                throw new IOException("Cannot write to " + file.getPath());
+            }
+            writer.setOutput(out);
+            writer.write(img);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
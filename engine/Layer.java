@@ -0,0 +1,151 @@
+package pain.t.engine;
+
+/**
+ * One layer of a document: its own pixels, and how they are combined with the
+ * layers under it. Changing how a layer is shown bumps its revision, so the
+ * composited picture knows to be made again.
+ *
+ * @author Daniel Christensen
+ */
+public class Layer {
+
+    //number of layers made so far, each one gets its own id
+    private static long count = 0;
+
+    //tells layers apart in the composited picture's signatures
+    private final long id;
+
+    //the layer's pixels
+    private final TileStore pixels;
+
+    //name shown to the user
+    private String name;
+
+    //true if the layer is part of the picture
+    private boolean visible = true;
+
+    //how opaque the whole layer is, 0 to 255
+    private int opacity = 255;
+
+    //how the layer is combined with the ones under it
+    private BlendMode mode = BlendMode.NORMAL;
+
+    //bumped every time visible, opacity or mode change
+    private int revision = 0;
+
+    /**
+     * Creates a new layer showing pixels.
+     *
+     * @param name name shown to the user
+     * @param pixels the layer's pixels
+     */
+    public Layer(String name, TileStore pixels) {
+        synchronized (Layer.class) {
+            this.id = ++Layer.count;
+        }
+        this.name = name;
+        this.pixels = pixels;
+    }
+
+    /**
+     * @return the layer's pixels
+     */
+    public TileStore getPixels() {
+        return this.pixels;
+    }
+
+    /**
+     * @return the name shown to the user
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @param name the new name shown to the user
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return true if the layer is part of the picture
+     */
+    public boolean isVisible() {
+        return this.visible;
+    }
+
+    /**
+     * Shows or hides the layer.
+     *
+     * @param visible true to make the layer part of the picture
+     */
+    public void setVisible(boolean visible) {
+        if (this.visible != visible) {
+            this.visible = visible;
+            this.revision++;
+        }
+    }
+
+    /**
+     * @return how opaque the whole layer is, 0 to 255
+     */
+    public int getOpacity() {
+        return this.opacity;
+    }
+
+    /**
+     * Sets how opaque the whole layer is.
+     *
+     * @param opacity 0 for invisible, 255 for the pixels' own alpha
+     */
+    public void setOpacity(int opacity) {
+        opacity = Math.max(0, Math.min(255, opacity));
+        if (this.opacity != opacity) {
+            this.opacity = opacity;
+            this.revision++;
+        }
+    }
+
+    /**
+     * @return how the layer is combined with the ones under it
+     */
+    public BlendMode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Sets how the layer is combined with the ones under it.
+     *
+     * @param mode the blend mode
+     */
+    public void setMode(BlendMode mode) {
+        if (this.mode != mode) {
+            this.mode = mode;
+            this.revision++;
+        }
+    }
+
+    /**
+     * Checks if the layer is shown exactly as its pixels are.
+     *
+     * @return true if the layer is visible, fully opaque and blended normally
+     */
+    public boolean isPlain() {
+        return this.visible && this.opacity == 255 && this.mode == BlendMode.NORMAL;
+    }
+
+    /**
+     * @return the id telling this layer apart from every other one
+     */
+    long getId() {
+        return this.id;
+    }
+
+    /**
+     * @return the number of times visible, opacity or mode changed
+     */
+    int getRevision() {
+        return this.revision;
+    }
+}
@@ -0,0 +1,599 @@
+package pain.t.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The layers of a document, from the bottom one up, and the picture they make
+ * together. Drawing goes into the active layer. A document with a single plain
+ * layer is shown as that layer's pixels, nothing is composited.
+ *
+ * Otherwise the picture is kept as tiles of its own, each one only made again
+ * once a tile under it changed in one of the layers, or a layer changed how it
+ * is shown. The layers under the active one are kept composited together, and
+ * so are the layers above it when they are all blended normally, so a change
+ * to the active layer only blends three tiles together however many layers
+ * there are. Each tile of these caches remembers a signature of the layer
+ * tiles it was made from, and is only made again once it no longer matches.
+ * While the layers stay in the same order and are shown the same way, only
+ * the tiles whose version changed in a layer that was drawn on are looked at,
+ * so drawing costs about the same however many layers there are.
+ *
+ * @author Daniel Christensen
+ */
+public class LayerStack {
+
+    //pixels in a tile
+    private static final int TILE_PIXELS = TileStore.TILE_SIZE * TileStore.TILE_SIZE;
+
+    //the layers, from the bottom one up
+    private final List<Layer> layers = new ArrayList<Layer>();
+
+    //the layer drawn on
+    private int active = 0;
+
+    //dimensions of the layers
+    private final int w, h, tilesX, tilesY;
+
+    //the composited picture, null while there is a single plain layer
+    private TileStore picture;
+
+    //the layers under the active one composited together, and the ones above it
+    private TileStore below, above;
+
+    //signature of the layer tiles each tile of the picture and the caches was made from
+    private long[] pictureSigs, belowSigs, aboveSigs;
+
+    //true if the layers above the active one are kept composited together
+    private boolean aboveGrouped;
+
+    //signature of every layer's changes when the picture was last brought up to date
+    private long seen;
+
+    //signature of the order of the layers, how each is shown and which one is active, at that time
+    private long shape;
+
+    //the change counter and tile versions of each layer at that time
+    private final Map<Layer, Seen> seenLayers = new IdentityHashMap<Layer, Seen>();
+
+    //tiles found changed in the layers, reused by each update
+    private boolean[] dirty;
+
+    //a tile of a single color, standing in for tiles that are not allocated
+    private final int[] fillTile = new int[TILE_PIXELS];
+    private int fillTileColor = 0;
+
+    /**
+     * Creates a stack with a single layer.
+     *
+     * @param background the pixels of the bottom layer
+     */
+    public LayerStack(TileStore background) {
+        this.w = background.getWidth();
+        this.h = background.getHeight();
+        this.tilesX = background.getTilesX();
+        this.tilesY = background.getTilesY();
+        this.layers.add(new Layer("Background", background));
+    }
+
+    /**
+     * Creates a stack out of existing layers, such as ones read from a file.
+     *
+     * @param layers the layers, from the bottom one up, all the same size
+     * @param active the index of the layer drawn on
+     */
+    public LayerStack(List<Layer> layers, int active) {
+        TileStore first = layers.get(0).getPixels();
+        this.w = first.getWidth();
+        this.h = first.getHeight();
+        this.tilesX = first.getTilesX();
+        this.tilesY = first.getTilesY();
+        for (Layer l : layers) {
+            this.add(this.layers.size(), l);
+        }
+        this.setActive(active);
+    }
+
+    /**
+     * @return the layers, from the bottom one up
+     */
+    public List<Layer> getLayers() {
+        return Collections.unmodifiableList(this.layers);
+    }
+
+    /**
+     * @return the number of layers
+     */
+    public int getCount() {
+        return this.layers.size();
+    }
+
+    /**
+     * @return the index of the layer drawn on
+     */
+    public int getActive() {
+        return this.active;
+    }
+
+    /**
+     * @return the layer drawn on
+     */
+    public Layer getActiveLayer() {
+        return this.layers.get(this.active);
+    }
+
+    /**
+     * Makes a layer the one drawn on.
+     *
+     * @param index the layer's index, 0 is the bottom one
+     */
+    public void setActive(int index) {
+        this.active = Math.max(0, Math.min(this.layers.size() - 1, index));
+    }
+
+    /**
+     * Makes a new transparent layer, the size of the others.
+     *
+     * @param name name shown to the user
+     * @return the layer, not added yet
+     */
+    public Layer create(String name) {
+        return new Layer(name, new TileStore(this.w, this.h, 0));
+    }
+
+    /**
+     * Adds a layer.
+     *
+     * @param index where the layer goes, 0 is under every other one
+     * @param layer the layer, the size of the others
+     */
+    public void add(int index, Layer layer) {
+        if (layer.getPixels().getWidth() != this.w || layer.getPixels().getHeight() != this.h) {
+            throw new IllegalArgumentException("A layer must be the size of the others");
+        }
+        this.layers.add(index, layer);
+        if (index <= this.active && this.layers.size() > 1) {
+            this.active++;
+        }
+    }
+
+    /**
+     * Removes a layer. The last layer cannot be removed.
+     *
+     * @param index the layer's index
+     * @return the removed layer
+     */
+    public Layer remove(int index) {
+        if (this.layers.size() == 1) {
+            throw new IllegalStateException("A document needs a layer");
+        }
+        Layer removed = this.layers.remove(index);
+        if (index < this.active || this.active == this.layers.size()) {
+            this.active--;
+        }
+        return removed;
+    }
+
+    /**
+     * Moves a layer up or down. The active layer stays the same layer.
+     *
+     * @param from the layer's index
+     * @param to its new index
+     */
+    public void move(int from, int to) {
+        Layer activeLayer = this.getActiveLayer();
+        this.layers.add(to, this.layers.remove(from));
+        this.active = this.layers.indexOf(activeLayer);
+    }
+
+    /**
+     * Brings the picture up to date with the layers. Only the tiles whose
+     * layer tiles changed are made again.
+     *
+     * @return the picture, which is the layer's own pixels while there is a
+     * single plain layer
+     */
+    public TileStore update() {
+        if (this.layers.size() == 1 && this.layers.get(0).isPlain()) {
+            this.picture = null;
+            this.release();
+            return this.layers.get(0).getPixels();
+        }
+
+        this.aboveGrouped = true;
+        for (int i = this.active + 1; i < this.layers.size(); i++) {
+            Layer l = this.layers.get(i);
+            this.aboveGrouped &= !l.isVisible() || l.getMode() == BlendMode.NORMAL;
+        }
+
+        //the colors of tiles that no layer allocated, they are not allocated either
+        int belowFill = this.fillOf(0, this.active);
+        int aboveFill = this.fillOf(this.active + 1, this.layers.size());
+        if (this.below == null || this.below.getFill() != belowFill) {
+            this.below = new TileStore(this.w, this.h, belowFill);
+            this.belowSigs = new long[this.tilesX * this.tilesY];
+        }
+        if (this.above == null || this.above.getFill() != aboveFill) {
+            this.above = new TileStore(this.w, this.h, aboveFill);
+            this.aboveSigs = new long[this.tilesX * this.tilesY];
+        }
+        int[] fill = {belowFill};
+        for (int i = this.active; i < this.layers.size(); i++) {
+            Layer l = this.layers.get(i);
+            if (i > this.active && this.aboveGrouped) {
+                BlendMode.NORMAL.blend(fill, new int[]{aboveFill}, 255);
+                break;
+            } else if (l.isVisible()) {
+                l.getMode().blend(fill, new int[]{l.getPixels().getFill()}, l.getOpacity());
+            }
+        }
+        if (this.picture == null || this.picture.getFill() != fill[0]) {
+            this.picture = new TileStore(this.w, this.h, fill[0]);
+            this.pictureSigs = new long[this.tilesX * this.tilesY];
+            this.seen = 0;
+            this.seenLayers.clear();
+        }
+
+        //nothing changed since the last time, no tile needs to be looked at
+        long stamp = this.stamp();
+        if (stamp == this.seen) {
+            return this.picture;
+        }
+        this.seen = stamp;
+
+        //layers were only drawn on, only the tiles they changed are looked at
+        long shape = this.shape();
+        if (shape == this.shape && this.findDirty()) {
+            for (int i = 0; i < this.dirty.length; i++) {
+                if (this.dirty[i]) {
+                    this.dirty[i] = false;
+                    this.refresh(i % this.tilesX, i / this.tilesX);
+                }
+            }
+            return this.picture;
+        }
+        this.shape = shape;
+        if (this.dirty != null) {
+            Arrays.fill(this.dirty, false);
+        }
+
+        this.seenLayers.clear();
+        for (Layer l : this.layers) {
+            this.seenLayers.put(l, new Seen(l.getPixels()));
+        }
+        for (int ty = 0; ty < this.tilesY; ty++) {
+            for (int tx = 0; tx < this.tilesX; tx++) {
+                this.refresh(tx, ty);
+            }
+        }
+        return this.picture;
+    }
+
+    /**
+     * Makes a tile of the picture again if the layer tiles under it changed.
+     */
+    private void refresh(int tx, int ty) {
+        long sig = this.signature(0, this.layers.size(), tx, ty);
+        if (this.pictureSigs[ty * this.tilesX + tx] != sig) {
+            this.compose(tx, ty);
+            this.pictureSigs[ty * this.tilesX + tx] = sig;
+        }
+    }
+
+    /**
+     * Marks the tiles whose version changed in the layers drawn on since the
+     * picture was last brought up to date. Layers that were not drawn on are
+     * skipped by their change counter.
+     *
+     * @return false if a layer was not seen before, so every tile has to be
+     * looked at
+     */
+    private boolean findDirty() {
+        if (this.dirty == null) {
+            this.dirty = new boolean[this.tilesX * this.tilesY];
+        }
+        for (Layer l : this.layers) {
+            Seen s = this.seenLayers.get(l);
+            if (s == null) {
+                return false;
+            }
+            TileStore pixels = l.getPixels();
+            if (s.modCount == pixels.getModCount()) {
+                continue;
+            }
+            s.modCount = pixels.getModCount();
+            for (int i = 0; i < s.versions.length; i++) {
+                int version = pixels.getVersion(i % this.tilesX, i / this.tilesX);
+                if (s.versions[i] != version) {
+                    s.versions[i] = version;
+                    this.dirty[i] = true;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes one tile of the picture: the layers under the active one, the
+     * active layer blended over them, then the layers above it.
+     */
+    private void compose(int tx, int ty) {
+        if (this.isEmpty(0, this.layers.size(), tx, ty)) {
+            if (this.picture.getTile(tx, ty) != null) {
+                this.picture.setTile(tx, ty, null);
+            }
+            return;
+        }
+
+        int[] out = this.picture.tileForWrite(tx, ty);
+        int[] under = this.cached(this.below, this.belowSigs, 0, this.active, tx, ty);
+        if (under != null) {
+            System.arraycopy(under, 0, out, 0, TILE_PIXELS);
+        } else {
+            Arrays.fill(out, this.below.getFill());
+        }
+
+        int[] layer = this.tileOf(this.getActiveLayer(), tx, ty);
+        int[] over = null;
+        if (this.aboveGrouped) {
+            over = this.cached(this.above, this.aboveSigs, this.active + 1, this.layers.size(), tx, ty);
+            if (over == null) {
+                over = new int[TILE_PIXELS];
+                Arrays.fill(over, this.above.getFill());
+            }
+        }
+        this.blendOver(out, layer, over, tx, ty);
+        this.picture.markDirty(tx * TileStore.TILE_SIZE, ty * TileStore.TILE_SIZE, 1, 1);
+    }
+
+    /**
+     * Blends the active layer over the layers under it, then the layers above
+     * it over the result.
+     *
+     * @param dst the layers under the active one, replaced by the result
+     * @param layer the pixels of the active layer
+     * @param over the layers above composited together, or null if they are
+     * not kept together and are blended one after the other
+     */
+    private void blendOver(int[] dst, int[] layer, int[] over, int tx, int ty) {
+        Layer active = this.getActiveLayer();
+        if (active.isVisible()) {
+            active.getMode().blend(dst, layer, active.getOpacity());
+        }
+        if (this.aboveGrouped) {
+            BlendMode.NORMAL.blend(dst, over, 255);
+        } else {
+            this.blendRange(dst, this.active + 1, this.layers.size(), tx, ty);
+        }
+    }
+
+    /**
+     * Gets a tile of a cache, making it again if the layer tiles it is made
+     * from changed.
+     *
+     * @param cache the cache
+     * @param sigs the signature of each tile of the cache
+     * @param from first layer composited into the cache
+     * @param to layer after the last one composited into it
+     * @return the tile, or null if it only holds the cache's fill color
+     */
+    private int[] cached(TileStore cache, long[] sigs, int from, int to, int tx, int ty) {
+        int i = ty * this.tilesX + tx;
+        long sig = this.signature(from, to, tx, ty);
+        if (sigs[i] == sig) {
+            return cache.getTile(tx, ty);
+        }
+        sigs[i] = sig;
+
+        if (this.isEmpty(from, to, tx, ty)) {
+            if (cache.getTile(tx, ty) != null) {
+                cache.setTile(tx, ty, null);
+            }
+            return null;
+        }
+
+        int[] tile = cache.tileForWrite(tx, ty);
+        Arrays.fill(tile, 0);
+        this.blendRange(tile, from, to, tx, ty);
+        return tile;
+    }
+
+    /**
+     * Blends the tiles of a range of layers over pixels, one after the other.
+     */
+    private void blendRange(int[] dst, int from, int to, int tx, int ty) {
+        for (int i = from; i < to; i++) {
+            Layer l = this.layers.get(i);
+            if (l.isVisible()) {
+                l.getMode().blend(dst, this.tileOf(l, tx, ty), l.getOpacity());
+            }
+        }
+    }
+
+    /**
+     * Checks if none of the visible layers of a range allocated a tile, so the
+     * tile is the range's fill color.
+     */
+    private boolean isEmpty(int from, int to, int tx, int ty) {
+        for (int i = from; i < to; i++) {
+            Layer l = this.layers.get(i);
+            if (l.isVisible() && l.getPixels().getTile(tx, ty) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the color of tiles that no layer of a range allocated, composited
+     * over transparent pixels. It is worked out the same way as an allocated
+     * tile, so both always match.
+     */
+    private int fillOf(int from, int to) {
+        int[] dst = new int[1];
+        for (int i = from; i < to; i++) {
+            Layer l = this.layers.get(i);
+            if (l.isVisible()) {
+                l.getMode().blend(dst, new int[]{l.getPixels().getFill()}, l.getOpacity());
+            }
+        }
+        return dst[0];
+    }
+
+    /**
+     * Gets the pixels of a layer's tile, standing in a tile of its fill color
+     * if it is not allocated.
+     */
+    private int[] tileOf(Layer layer, int tx, int ty) {
+        int[] tile = layer.getPixels().getTile(tx, ty);
+        return tile != null ? tile : this.filled(layer.getPixels().getFill());
+    }
+
+    /**
+     * @return a tile of a single color, not to be changed
+     */
+    private int[] filled(int color) {
+        if (this.fillTileColor != color) {
+            Arrays.fill(this.fillTile, color);
+            this.fillTileColor = color;
+        }
+        return this.fillTile;
+    }
+
+    /**
+     * Signs the tiles of a range of layers at a position, and how each layer
+     * is shown. The signature changes when any of them does.
+     */
+    private long signature(int from, int to, int tx, int ty) {
+        long sig = LayerStack.mix(from, to);
+        for (int i = from; i < to; i++) {
+            Layer l = this.layers.get(i);
+            sig = LayerStack.mix(sig, l.getId());
+            sig = LayerStack.mix(sig, ((long) l.getRevision() << 32) | (l.getPixels().getVersion(tx, ty) & 0xffffffffL));
+        }
+
+        //zero is left for tiles that were never made
+        return sig == 0 ? 1 : sig;
+    }
+
+    /**
+     * Signs the changes made to every layer, to find out quickly that nothing
+     * changed.
+     */
+    private long stamp() {
+        long sig = LayerStack.mix(this.layers.size(), this.active);
+        for (Layer l : this.layers) {
+            sig = LayerStack.mix(sig, l.getId());
+            sig = LayerStack.mix(sig, l.getPixels().getModCount() * 31 + l.getRevision());
+        }
+        return sig;
+    }
+
+    /**
+     * Signs the order of the layers, how each one is shown and which one is
+     * active, leaving out their pixels.
+     */
+    private long shape() {
+        long sig = LayerStack.mix(this.layers.size(), this.active);
+        for (Layer l : this.layers) {
+            sig = LayerStack.mix(sig, l.getId());
+            sig = LayerStack.mix(sig, l.getRevision());
+        }
+        return sig;
+    }
+
+    /**
+     * Mixes a value into a signature, every bit of it changing about half of
+     * the bits of the result.
+     */
+    private static long mix(long sig, long value) {
+        sig = (sig ^ value) * 0xbf58476d1ce4e5b9L;
+        sig = (sig ^ (sig >>> 27)) * 0x94d049bb133111ebL;
+        return sig ^ (sig >>> 31);
+    }
+
+    /**
+     * Lets go of the cached layers under and above the active one. They are
+     * made again as the picture needs them.
+     */
+    public void release() {
+        this.below = null;
+        this.above = null;
+        this.belowSigs = null;
+        this.aboveSigs = null;
+    }
+
+    /**
+     * Spills the pixels of every layer and of the picture to the disk, they
+     * are read back as they are used.
+     *
+     * @throws IOException if some pixels could not be written, they stay in
+     * memory then
+     */
+    public void spill() throws IOException {
+        this.release();
+        for (Layer l : this.layers) {
+            SpillFile.spill(l.getPixels());
+        }
+        if (this.picture != null) {
+            SpillFile.spill(this.picture);
+        }
+    }
+
+    /**
+     * Deletes the files the layers were spilled into. Called once the
+     * document is closed for good.
+     */
+    public void close() {
+        for (Layer l : this.layers) {
+            if (l.getPixels().getSource() instanceof SpillFile) {
+                ((SpillFile) l.getPixels().getSource()).close();
+            }
+        }
+        if (this.picture != null && this.picture.getSource() instanceof SpillFile) {
+            ((SpillFile) this.picture.getSource()).close();
+        }
+    }
+
+    /**
+     * @return the memory held by the layers, the picture and the caches, in
+     * bytes
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (Layer l : this.layers) {
+            bytes += l.getPixels().getAllocatedBytes();
+        }
+        for (TileStore store : new TileStore[]{this.picture, this.below, this.above}) {
+            if (store != null) {
+                bytes += store.getAllocatedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * How far the changes to a layer's pixels were looked at.
+     */
+    private static class Seen {
+
+        //the change counter of the pixels
+        private long modCount;
+
+        //the version of each tile
+        private final int[] versions;
+
+        Seen(TileStore pixels) {
+            this.modCount = pixels.getModCount();
+            this.versions = new int[pixels.getTilesX() * pixels.getTilesY()];
+            for (int i = 0; i < this.versions.length; i++) {
+                this.versions[i] = pixels.getVersion(i % pixels.getTilesX(), i / pixels.getTilesX());
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package pain.t.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An uncompressed image file (BMP or PPM/PGM) mapped into memory. The pixels
+ * are read straight from the mapped file, so opening a large image does not
+ * copy the whole file onto the heap first.
+ *
+ * @author Daniel Christensen
+ */
+public class MappedImage {
+
+    //the mapped file
+    private final MappedByteBuffer data;
+
+    //dimensions of the image
+    private final int w, h;
+
+    //position of the first byte of the pixels
+    private final int offset;
+
+    //bytes per pixel and per row
+    private final int bpp, stride;
+
+    //true if rows are stored from the bottom of the image to the top
+    private final boolean bottomUp;
+
+    //true for BMP files, which store pixels as BGR
+    private final boolean bgr;
+
+    /**
+     * Creates a mapped image, used by open().
+     */
+    private MappedImage(MappedByteBuffer data, int w, int h, int offset, int bpp, int stride, boolean bottomUp, boolean bgr) {
+        this.data = data;
+        this.w = w;
+        this.h = h;
+        this.offset = offset;
+        this.bpp = bpp;
+        this.stride = stride;
+        this.bottomUp = bottomUp;
+        this.bgr = bgr;
+    }
+
+    /**
+     * Checks if a file can be mapped instead of decoded.
+     *
+     * @param file the file to check
+     * @return true for BMP, PPM and PGM files
+     */
+    public static boolean canMap(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".bmp") || name.endsWith(".ppm") || name.endsWith(".pgm");
+    }
+
+    /**
+     * Maps an image file into memory and reads its header.
+     *
+     * @param file a BMP, PPM or PGM file
+     * @return the mapped image
+     * @throws IOException if the file cannot be read or its format is not
+     * supported
+     */
+    public static MappedImage open(File file) throws IOException {
+        MappedByteBuffer data;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            //the mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (data.limit() > 2 && data.get(0) == 'B' && data.get(1) == 'M') {
+            return MappedImage.bmp(data);
+        } else if (data.limit() > 2 && data.get(0) == 'P' && (data.get(1) == '6' || data.get(1) == '5')) {
+            return MappedImage.pnm(data);
+        }
+        throw new IOException(file.getName() + " is not a BMP or PPM image");
+    }
+
+    /**
+     * Reads the header of an uncompressed 24 or 32 bit BMP file.
+     */
+    private static MappedImage bmp(MappedByteBuffer data) throws IOException {
+        data.order(ByteOrder.LITTLE_ENDIAN);
+
+        int offset = data.getInt(10);
+        int w = data.getInt(18);
+        int h = data.getInt(22);
+        int bits = data.getShort(28);
+        int compression = data.getInt(30);
+
+        //only plain BGR and BGRA pixels can be read in place
+        if ((bits != 24 && bits != 32) || (compression != 0 && compression != 3)) {
+            throw new IOException("Only uncompressed 24 and 32 bit BMP images can be opened");
+        }
+
+        int bpp = bits / 8;
+        int stride = (w * bpp + 3) & ~3;
+        return new MappedImage(data, w, Math.abs(h), offset, bpp, stride, h > 0, true);
+    }
+
+    /**
+     * Reads the header of a binary PPM (P6) or PGM (P5) file.
+     */
+    private static MappedImage pnm(MappedByteBuffer data) throws IOException {
+        int[] pos = {2};
+        int w = MappedImage.headerInt(data, pos);
+        int h = MappedImage.headerInt(data, pos);
+        int max = MappedImage.headerInt(data, pos);
+
+        if (max > 255) {
+            throw new IOException("Only 8 bit PPM and PGM images can be opened");
+        }
+
+        //a single whitespace separates the header from the pixels
+        int bpp = data.get(1) == '6' ? 3 : 1;
+        return new MappedImage(data, w, h, pos[0] + 1, bpp, w * bpp, false, false);
+    }
+
+    /**
+     * Reads the next number of a PPM header, skipping whitespace and comments.
+     *
+     * @param pos position to read from, moved past the number
+     */
+    private static int headerInt(MappedByteBuffer data, int[] pos) throws IOException {
+        int c = data.get(pos[0]);
+        while (Character.isWhitespace(c) || c == '#') {
+            if (c == '#') {
+                while (data.get(pos[0]) != '\n') {
+                    pos[0]++;
+                }
+            }
+            c = data.get(++pos[0]);
+        }
+
+        if (c < '0' || c > '9') {
+            throw new IOException("Broken PPM header");
+        }
+
+        int value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + c - '0';
+            c = data.get(++pos[0]);
+        }
+        return value;
+    }
+
+    /**
+     * @return the image width
+     */
+    public int getWidth() {
+        return this.w;
+    }
+
+    /**
+     * @return the image height
+     */
+    public int getHeight() {
+        return this.h;
+    }
+
+    /**
+     * Gets the color of one pixel.
+     *
+     * @param x pixel x position
+     * @param y pixel y position
+     * @return the ARGB color
+     */
+    public int getPixel(int x, int y) {
+        int row = this.bottomUp ? this.h - 1 - y : y;
+        return this.pixelAt(this.offset + row * this.stride + x * this.bpp);
+    }
+
+    /**
+     * Copies part of a row of pixels into an array.
+     *
+     * @param x first pixel of the row to copy
+     * @param y row to copy
+     * @param count number of pixels to copy
+     * @param dst array to copy into, as ARGB
+     * @param off index in dst of the first pixel
+     */
+    public void readRow(int x, int y, int count, int[] dst, int off) {
+        int row = this.bottomUp ? this.h - 1 - y : y;
+        int p = this.offset + row * this.stride + x * this.bpp;
+
+        for (int i = 0; i < count; i++, p += this.bpp) {
+            dst[off + i] = this.pixelAt(p);
+        }
+    }
+
+    /**
+     * Converts the pixel stored at a position of the file to ARGB.
+     */
+    private int pixelAt(int p) {
+        if (this.bpp == 1) {
+            int g = this.data.get(p) & 0xff;
+            return 0xff000000 | (g << 16) | (g << 8) | g;
+        }
+
+        int c0 = this.data.get(p) & 0xff;
+        int c1 = this.data.get(p + 1) & 0xff;
+        int c2 = this.data.get(p + 2) & 0xff;
+
+        if (this.bgr) {
+            return 0xff000000 | (c2 << 16) | (c1 << 8) | c0;
+        }
+        return 0xff000000 | (c0 << 16) | (c1 << 8) | c2;
+    }
+}
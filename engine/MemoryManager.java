@@ -0,0 +1,163 @@
+package pain.t.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the open documents within one memory budget. Every document tells the
+ * manager how much memory it holds and when it is used. Once the documents
+ * hold more than the budget, the ones used the longest ago are asked to let go
+ * of memory, first their caches, which are simply made again, then their
+ * pixels, which are spilled to the disk and read back as they are used. The
+ * document used last is never trimmed, it is the one being worked on.
+ *
+ * @author Daniel Christensen
+ */
+public class MemoryManager {
+
+    /**
+     * Something holding memory the manager can ask back, such as a document.
+     */
+    public interface Client {
+
+        /**
+         * @return the memory held, in bytes
+         */
+        long getMemoryUsage();
+
+        /**
+         * Lets go of memory.
+         *
+         * @param spill false to only drop caches, true to also spill the
+         * pixels to the disk
+         * @return the memory let go of, in bytes
+         */
+        long trim(boolean spill);
+    }
+
+    //the manager of the documents of the window
+    private static final MemoryManager shared = new MemoryManager(
+            Long.getLong("pain.t.memory", Runtime.getRuntime().maxMemory() / 2 >> 20) << 20);
+
+    //the clients, from the one used the longest ago to the one used last
+    private final List<Client> clients = new ArrayList<Client>();
+
+    //memory the clients may hold together, in bytes
+    private long budget;
+
+    //number of times clients were trimmed, and the memory they let go of
+    private int trims = 0;
+    private long trimmed = 0;
+
+    /**
+     * Creates a new manager.
+     *
+     * @param budget memory the clients may hold together, in bytes
+     */
+    public MemoryManager(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Gets the manager shared by every document of the application. Its budget
+     * is half of the heap, or the number of megabytes in the pain.t.memory
+     * system property.
+     *
+     * @return the shared manager
+     */
+    public static MemoryManager getShared() {
+        return MemoryManager.shared;
+    }
+
+    /**
+     * Adds a client, as the one used last.
+     *
+     * @param client the client to add
+     */
+    public synchronized void register(Client client) {
+        this.clients.remove(client);
+        this.clients.add(client);
+    }
+
+    /**
+     * Removes a client, its memory is not counted anymore.
+     *
+     * @param client the client to remove
+     */
+    public synchronized void unregister(Client client) {
+        this.clients.remove(client);
+    }
+
+    /**
+     * Marks a client as the one used last, so it is trimmed last.
+     *
+     * @param client the client used
+     */
+    public synchronized void touch(Client client) {
+        if (this.clients.remove(client)) {
+            this.clients.add(client);
+        }
+    }
+
+    /**
+     * Trims the clients used the longest ago until all of them together are
+     * within the budget. Caches are dropped from every client before any
+     * pixels are spilled.
+     *
+     * @return the memory the clients hold afterwards, in bytes
+     */
+    public synchronized long check() {
+        long used = this.getUsage();
+        for (int pass = 0; pass < 2 && used > this.budget; pass++) {
+            for (int i = 0; i < this.clients.size() - 1 && used > this.budget; i++) {
+                long freed = this.clients.get(i).trim(pass == 1);
+                used -= freed;
+                this.trims++;
+                this.trimmed += freed;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return the memory all of the clients hold, in bytes
+     */
+    public synchronized long getUsage() {
+        long used = 0;
+        for (Client client : this.clients) {
+            used += client.getMemoryUsage();
+        }
+        return used;
+    }
+
+    /**
+     * @return the memory the clients may hold together, in bytes
+     */
+    public synchronized long getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Sets the memory the clients may hold together. Nothing is trimmed until
+     * the next check.
+     *
+     * @param budget the new budget, in bytes
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return the number of times a client was trimmed
+     */
+    public synchronized int getTrims() {
+        return this.trims;
+    }
+
+    /**
+     * @return the memory clients let go of since the start, in bytes
+     */
+    public synchronized long getTrimmed() {
+        return this.trimmed;
+    }
+}
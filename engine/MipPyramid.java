@@ -0,0 +1,237 @@
+package pain.t.engine;
+
+import java.util.Arrays;
+
+/**
+ * Smaller copies of a store, used to show it zoomed out. Level 1 is half the
+ * width and height of the store, level 2 a quarter, and so on until the whole
+ * picture fits in one tile. Each pixel of a level is the average of the square
+ * of store pixels it covers.
+ *
+ * Tiles of a level are only made when they are asked for, each from the four
+ * tiles under it in the level above, so making one is always quick and the
+ * work for a deep level can be spread over several frames. A tile is made
+ * again once a store tile under it changed.
+ *
+ * @author Daniel Christensen
+ */
+public class MipPyramid {
+
+    //deepest level made, a whole store tile is one pixel of it
+    private static final int MAX_LEVEL = 8;
+
+    //half a tile, the part of a tile that one tile of the level above covers
+    private static final int HALF = TileStore.TILE_SIZE / 2;
+
+    //the full size pixels
+    private final TileStore base;
+
+    //every level, level 0 is the store itself
+    private final TileStore[] levels;
+
+    //true for the tiles of each level that were never made or whose store tiles changed
+    private final boolean[][] stale;
+
+    //version of each store tile when the levels were last told about it
+    private final int[] seen;
+
+    //the store's change counter when it was last looked at
+    private long modCount = -1;
+
+    /**
+     * Creates the levels of a store. Nothing is made until it is asked for.
+     *
+     * @param base the full size pixels
+     */
+    public MipPyramid(TileStore base) {
+        this.base = base;
+
+        int count = 1;
+        while (count <= MAX_LEVEL && Math.max(base.getWidth(), base.getHeight()) >> (count - 1) > TileStore.TILE_SIZE) {
+            count++;
+        }
+
+        this.levels = new TileStore[count];
+        this.stale = new boolean[count][];
+        this.levels[0] = base;
+        for (int level = 1; level < count; level++) {
+            int w = Math.max(1, (base.getWidth() + (1 << level) - 1) >> level);
+            int h = Math.max(1, (base.getHeight() + (1 << level) - 1) >> level);
+            this.levels[level] = new TileStore(w, h, base.getFill());
+            this.stale[level] = new boolean[this.levels[level].getTilesX() * this.levels[level].getTilesY()];
+            Arrays.fill(this.stale[level], true);
+        }
+
+        //every tile of the levels is out of date already, later changes are found by sync()
+        this.seen = new int[base.getTilesX() * base.getTilesY()];
+        for (int ty = 0; ty < base.getTilesY(); ty++) {
+            for (int tx = 0; tx < base.getTilesX(); tx++) {
+                this.seen[ty * base.getTilesX() + tx] = base.getVersion(tx, ty);
+            }
+        }
+        this.modCount = base.getModCount();
+    }
+
+    /**
+     * @return the number of levels, including the store itself
+     */
+    public int getLevels() {
+        return this.levels.length;
+    }
+
+    /**
+     * Gets the pixels of a level. Its tiles may be out of date, they are
+     * brought up to date by getTile().
+     *
+     * @param level the level, 0 is the store itself
+     * @return the level's pixels
+     */
+    public TileStore getLevel(int level) {
+        return this.levels[level];
+    }
+
+    /**
+     * Finds the tiles of every level that a change to the store made out of
+     * date. Only compares the store's tile versions, nothing is made here.
+     */
+    public void sync() {
+        if (this.modCount == this.base.getModCount()) {
+            return;
+        }
+        this.modCount = this.base.getModCount();
+
+        for (int ty = 0; ty < this.base.getTilesY(); ty++) {
+            for (int tx = 0; tx < this.base.getTilesX(); tx++) {
+                int i = ty * this.base.getTilesX() + tx;
+                int version = this.base.getVersion(tx, ty);
+                if (this.seen[i] == version) {
+                    continue;
+                }
+                this.seen[i] = version;
+                for (int level = 1; level < this.levels.length; level++) {
+                    this.stale[level][(ty >> level) * this.levels[level].getTilesX() + (tx >> level)] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a tile of a level is up to date, so getting it is quick.
+     *
+     * @param level the level
+     * @param tx tile column in the level
+     * @param ty tile row in the level
+     * @return true if the tile does not need to be made
+     */
+    public boolean isReady(int level, int tx, int ty) {
+        return level == 0 || !this.stale[level][ty * this.levels[level].getTilesX() + tx];
+    }
+
+    /**
+     * Gets a tile of a level, making it first if it is out of date. sync()
+     * should be called after the store changed.
+     *
+     * @param level the level
+     * @param tx tile column in the level
+     * @param ty tile row in the level
+     * @return the tile's pixels, or null if it only holds the store's fill color
+     */
+    public int[] getTile(int level, int tx, int ty) {
+        this.make(level, tx, ty, Long.MAX_VALUE);
+        return this.levels[level].getTile(tx, ty);
+    }
+
+    /**
+     * Makes a tile of a level and the tiles under it that are out of date,
+     * stopping once a deadline passed. Calling it again carries on where it
+     * stopped.
+     *
+     * @param level the level
+     * @param tx tile column in the level
+     * @param ty tile row in the level
+     * @param deadline System.nanoTime() after which no more tiles are made
+     * @return true if the tile is up to date
+     */
+    public boolean make(int level, int tx, int ty, long deadline) {
+        if (this.isReady(level, tx, ty)) {
+            return true;
+        }
+
+        //the tiles under it in the level above, some are outside of it at the right and bottom
+        TileStore above = this.levels[level - 1];
+        int[][] quarters = new int[4][];
+        for (int q = 0; q < 4; q++) {
+            int qx = tx * 2 + (q & 1);
+            int qy = ty * 2 + (q >> 1);
+            if (qx < above.getTilesX() && qy < above.getTilesY()) {
+                if (!this.make(level - 1, qx, qy, deadline)) {
+                    return false;
+                }
+                quarters[q] = above.getTile(qx, qy);
+            }
+        }
+        if (System.nanoTime() > deadline) {
+            return false;
+        }
+
+        this.shrink(level, tx, ty, quarters);
+        this.stale[level][ty * this.levels[level].getTilesX() + tx] = false;
+        return true;
+    }
+
+    /**
+     * Averages the four tiles under a tile of a level into it, every square of
+     * two by two pixels becoming one pixel.
+     */
+    private void shrink(int level, int tx, int ty, int[][] quarters) {
+        TileStore store = this.levels[level];
+        TileStore above = this.levels[level - 1];
+
+        //a tile over tiles that were never drawn on only holds the fill color
+        if (quarters[0] == null && quarters[1] == null && quarters[2] == null && quarters[3] == null) {
+            if (store.getTile(tx, ty) != null) {
+                store.setTile(tx, ty, null);
+            }
+            return;
+        }
+
+        int[] out = store.tileForWrite(tx, ty);
+        int fill = this.base.getFill();
+        for (int q = 0; q < 4; q++) {
+            int qx = tx * 2 + (q & 1);
+            int qy = ty * 2 + (q >> 1);
+            if (qx >= above.getTilesX() || qy >= above.getTilesY()) {
+                continue;
+            }
+            int[] src = quarters[q];
+
+            //the pixels of the quarter that are inside the level above
+            int sw = Math.min(TileStore.TILE_SIZE, above.getWidth() - qx * TileStore.TILE_SIZE);
+            int sh = Math.min(TileStore.TILE_SIZE, above.getHeight() - qy * TileStore.TILE_SIZE);
+            int ox = (q & 1) * HALF;
+            int oy = (q >> 1) * HALF;
+
+            for (int y = 0; y * 2 < sh; y++) {
+                int at = (oy + y) * TileStore.TILE_SIZE + ox;
+                if (src == null) {
+                    Arrays.fill(out, at, at + (sw + 1) / 2, fill);
+                    continue;
+                }
+
+                //the last row and column may only have one pixel in the square
+                int row = y * 2 * TileStore.TILE_SIZE;
+                int next = y * 2 + 1 < sh ? row + TileStore.TILE_SIZE : row;
+                for (int x = 0; x * 2 < sw; x++) {
+                    int x0 = x * 2;
+                    int x1 = x0 + 1 < sw ? x0 + 1 : x0;
+                    int c0 = src[row + x0], c1 = src[row + x1], c2 = src[next + x0], c3 = src[next + x1];
+                    out[at + x] = Pixels.argb(((c0 >>> 24) + (c1 >>> 24) + (c2 >>> 24) + (c3 >>> 24) + 2) >> 2,
+                            (((c0 >> 16) & 0xff) + ((c1 >> 16) & 0xff) + ((c2 >> 16) & 0xff) + ((c3 >> 16) & 0xff) + 2) >> 2,
+                            (((c0 >> 8) & 0xff) + ((c1 >> 8) & 0xff) + ((c2 >> 8) & 0xff) + ((c3 >> 8) & 0xff) + 2) >> 2,
+                            ((c0 & 0xff) + (c1 & 0xff) + (c2 & 0xff) + (c3 & 0xff) + 2) >> 2);
+                }
+            }
+        }
+        store.markDirty(tx * TileStore.TILE_SIZE, ty * TileStore.TILE_SIZE, 1, 1);
+    }
+}
@@ -0,0 +1,106 @@
+package pain.t.engine;
+
+import java.awt.Rectangle;
+
+/**
+ * Moving a rectangle of pixels somewhere else. The rectangle's old place is
+ * filled with a color and its content is blended at the new place.
+ *
+ * @author Daniel Christensen
+ */
+public class MoveOp extends Operation {
+
+    //the rectangle that is moved
+    private final int x, y, w, h;
+
+    //how far it moves
+    private final int dx, dy;
+
+    //color left behind, as ARGB
+    private final int hole;
+
+    /**
+     * Creates a new move.
+     *
+     * @param x x position of the rectangle to move
+     * @param y y position of the rectangle to move
+     * @param w rectangle width
+     * @param h rectangle height
+     * @param dx distance to move along x
+     * @param dy distance to move along y
+     * @param hole color left behind, as ARGB
+     */
+    public MoveOp(int x, int y, int w, int h, int dx, int dy, int hole) {
+        this.x = x;
+        this.y = y;
+        this.w = w;
+        this.h = h;
+        this.dx = dx;
+        this.dy = dy;
+        this.hole = hole;
+    }
+
+    /**
+     * @return the rectangle that is moved, at its old place
+     */
+    public Rectangle getSource() {
+        return new Rectangle(this.x, this.y, this.w, this.h);
+    }
+
+    /**
+     * @return the distance moved along x
+     */
+    public int getDx() {
+        return this.dx;
+    }
+
+    /**
+     * @return the distance moved along y
+     */
+    public int getDy() {
+        return this.dy;
+    }
+
+    /**
+     * @return the color left behind, as ARGB
+     */
+    public int getHole() {
+        return this.hole;
+    }
+
+    @Override
+    public Rectangle getBounds() {
+        return this.getSource().union(new Rectangle(this.x + this.dx, this.y + this.dy, this.w, this.h));
+    }
+
+    @Override
+    public void draw(TileStore store, Rectangle clip) {
+        Rectangle doc = new Rectangle(0, 0, store.getWidth(), store.getHeight());
+        Rectangle src = this.getSource().intersection(doc);
+        if (src.isEmpty()) {
+            return;
+        }
+
+        //take the content, then leave the hole
+        int[] content = new int[src.width * src.height];
+        store.read(src.x, src.y, src.width, src.height, content, 0, src.width);
+        store.fill(src.x, src.y, src.width, src.height, this.hole);
+
+        Rectangle dst = new Rectangle(src.x + this.dx, src.y + this.dy, src.width, src.height).intersection(doc);
+        if (dst.isEmpty()) {
+            return;
+        }
+
+        int[] pixels = new int[dst.width * dst.height];
+        store.read(dst.x, dst.y, dst.width, dst.height, pixels, 0, dst.width);
+        for (int row = 0; row < dst.height; row++) {
+            for (int col = 0; col < dst.width; col++) {
+                int sx = dst.x + col - this.dx - src.x;
+                int sy = dst.y + row - this.dy - src.y;
+                int i = row * dst.width + col;
+                pixels[i] = Pixels.blend(pixels[i], content[sy * src.width + sx]);
+            }
+        }
+        store.write(dst.x, dst.y, dst.width, dst.height, pixels, 0, dst.width);
+    }
+}
@@ -0,0 +1,217 @@
+package pain.t.engine;
+
+import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Writes operations as bytes and reads them back, for project files and
+ * journals. Each operation starts with a byte telling its type.
+ *
+ * @author Daniel Christensen
+ */
+public class OpCodec {
+
+    //operation types
+    private static final byte SHAPE = 1, STROKE = 2, TEXT = 3, MOVE = 4, PIXELS = 5, FILL = 6, FILTER = 7;
+
+    /**
+     * Writes an operation.
+     *
+     * @param out where to write
+     * @param op the operation
+     * @throws IOException if writing fails, or the operation is of an unknown
+     * type
+     */
+    public static void write(DataOutput out, Operation op) throws IOException {
+        if (op instanceof ShapeOp) {
+            ShapeOp s = (ShapeOp) op;
+            out.writeByte(SHAPE);
+            out.writeByte(s.getKind().ordinal());
+            for (double d : s.getGeometry()) {
+                out.writeDouble(d);
+            }
+            out.writeInt(s.getStroke());
+            out.writeInt(s.getFill());
+            out.writeDouble(s.getWidth());
+        } else if (op instanceof StrokeOp) {
+            StrokeOp s = (StrokeOp) op;
+            out.writeByte(STROKE);
+            float[] points = s.getPoints();
+            out.writeInt(points.length);
+            for (float f : points) {
+                out.writeFloat(f);
+            }
+            out.writeInt(s.getColor());
+            out.writeDouble(s.getWidth());
+            out.writeBoolean(s.isErase());
+        } else if (op instanceof TextOp) {
+            TextOp t = (TextOp) op;
+            out.writeByte(TEXT);
+            out.writeDouble(t.getX());
+            out.writeDouble(t.getY());
+            out.writeUTF(t.getText());
+            out.writeDouble(t.getSize());
+            out.writeInt(t.getStroke());
+            out.writeInt(t.getFill());
+        } else if (op instanceof MoveOp) {
+            MoveOp m = (MoveOp) op;
+            Rectangle r = m.getSource();
+            out.writeByte(MOVE);
+            out.writeInt(r.x);
+            out.writeInt(r.y);
+            out.writeInt(r.width);
+            out.writeInt(r.height);
+            out.writeInt(m.getDx());
+            out.writeInt(m.getDy());
+            out.writeInt(m.getHole());
+        } else if (op instanceof FillOp) {
+            FillOp f = (FillOp) op;
+            out.writeByte(FILL);
+            out.writeInt(f.getX());
+            out.writeInt(f.getY());
+            out.writeInt(f.getColor());
+            out.writeByte(f.getTolerance());
+            out.writeBoolean(f.isDiagonal());
+        } else if (op instanceof FilterOp) {
+            Filter f = ((FilterOp) op).getFilter();
+            out.writeByte(FILTER);
+            out.writeByte(f.getKind().ordinal());
+            double[] p = f.getParameters();
+            out.writeByte(p.length);
+            for (double d : p) {
+                out.writeDouble(d);
+            }
+        } else if (op instanceof PixelsOp) {
+            PixelsOp p = (PixelsOp) op;
+            Rectangle r = p.getBounds();
+            out.writeByte(PIXELS);
+            out.writeInt(r.x);
+            out.writeInt(r.y);
+            out.writeInt(r.width);
+            out.writeInt(r.height);
+            out.writeBoolean(p.isBlend());
+            byte[] packed = OpCodec.deflate(p.getPixels(), 0, p.getPixels().length);
+            out.writeInt(packed.length);
+            out.write(packed);
+        } else {
+            throw new IOException("Cannot write " + op.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Reads an operation.
+     *
+     * @param in where to read from
+     * @return the operation
+     * @throws IOException if reading fails or the bytes are not an operation
+     */
+    public static Operation read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case SHAPE: {
+                ShapeOp.Kind kind = ShapeOp.Kind.values()[in.readByte()];
+                double a = in.readDouble(), b = in.readDouble(), c = in.readDouble(), d = in.readDouble();
+                return new ShapeOp(kind, a, b, c, d, in.readInt(), in.readInt(), in.readDouble());
+            }
+            case STROKE: {
+                float[] points = new float[in.readInt()];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = in.readFloat();
+                }
+                return new StrokeOp(points, in.readInt(), in.readDouble(), in.readBoolean());
+            }
+            case TEXT: {
+                double x = in.readDouble(), y = in.readDouble();
+                String text = in.readUTF();
+                return new TextOp(x, y, text, in.readDouble(), in.readInt(), in.readInt());
+            }
+            case MOVE:
+                return new MoveOp(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            case PIXELS: {
+                int x = in.readInt(), y = in.readInt(), w = in.readInt(), h = in.readInt();
+                boolean blend = in.readBoolean();
+                byte[] packed = new byte[in.readInt()];
+                in.readFully(packed);
+                int[] pixels = new int[w * h];
+                OpCodec.inflate(packed, 0, packed.length, pixels);
+                return new PixelsOp(x, y, w, h, pixels, blend);
+            }
+            case FILL:
+                return new FillOp(in.readInt(), in.readInt(), in.readInt(), in.readUnsignedByte(), in.readBoolean());
+            case FILTER: {
+                Filter.Kind kind = Filter.Kind.values()[in.readByte()];
+                double[] p = new double[in.readUnsignedByte()];
+                for (int i = 0; i < p.length; i++) {
+                    p[i] = in.readDouble();
+                }
+                return new FilterOp(Filter.create(kind, p));
+            }
+            default:
+                throw new IOException("Unknown operation type " + type);
+        }
+    }
+
+    /**
+     * Compresses pixels.
+     *
+     * @param pixels the pixels
+     * @param off index of the first pixel
+     * @param len number of pixels
+     * @return the compressed bytes
+     */
+    public static byte[] deflate(int[] pixels, int off, int len) {
+        ByteBuffer raw = ByteBuffer.allocate(len * 4);
+        raw.asIntBuffer().put(pixels, off, len);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw.array());
+        deflater.finish();
+        byte[] out = new byte[len * 4 / 8 + 64];
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            size += deflater.deflate(out, size, out.length - size);
+        }
+        deflater.end();
+        return Arrays.copyOf(out, size);
+    }
+
+    /**
+     * Decompresses pixels compressed by deflate().
+     *
+     * @param packed the compressed bytes
+     * @param off index of the first compressed byte
+     * @param len number of compressed bytes
+     * @param pixels the array to fill, its length is the number of pixels
+     * @throws IOException if the bytes are corrupted
+     */
+    public static void inflate(byte[] packed, int off, int len, int[] pixels) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(packed, off, len);
+        byte[] raw = new byte[pixels.length * 4];
+        try {
+            int size = 0;
+            while (size < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, size, raw.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated pixels");
+                }
+                size += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupted pixels", ex);
+        } finally {
+            inflater.end();
+        }
+        ByteBuffer.wrap(raw).asIntBuffer().get(pixels);
+    }
+}
@@ -0,0 +1,53 @@
+package pain.t.engine;
+
+import java.awt.Rectangle;
+
+/**
+ * Something drawn on a document, such as a shape, a free hand stroke, some text
+ * or a moved selection. An operation knows the region it changes and how to
+ * change the pixels of that region. Applying it to a Document records the
+ * change so it can be undone.
+ *
+ * @author Daniel Christensen
+ */
+public abstract class Operation {
+
+    /**
+     * Gets the region of the document the operation may change. It can reach
+     * outside of the document.
+     *
+     * @return the region, in document coordinates
+     */
+    public abstract Rectangle getBounds();
+
+    /**
+     * Gets the region of a store the operation may change. Most operations
+     * know it from their own geometry, an operation depending on the pixels
+     * already drawn, such as a fill, looks at the store.
+     *
+     * @param store the pixels about to be changed
+     * @return the region, in document coordinates
+     */
+    public Rectangle getBounds(TileStore store) {
+        return this.getBounds();
+    }
+
+    /**
+     * Changes the pixels of a store. Only the pixels inside the clip need to be
+     * changed, the tiles outside of it are not recorded for undo.
+     *
+     * @param store the pixels to change
+     * @param clip the part of getBounds(store) inside the document
+     */
+    public abstract void draw(TileStore store, Rectangle clip);
+
+    /**
+     * Gets an estimate of the memory held by the operation, for the History's
+     * budget.
+     *
+     * @return the size in bytes
+     */
+    public long getMemorySize() {
+        return 64;
+    }
+}
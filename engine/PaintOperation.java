@@ -0,0 +1,68 @@
+package pain.t.engine;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * An operation drawn with Java2D. The region it changes is copied out of the
+ * store, wrapped in an image to paint on, and copied back. Java2D does not need
+ * a display, so documents can be drawn on by a server.
+ *
+ * @author Daniel Christensen
+ */
+public abstract class PaintOperation extends Operation {
+
+    /**
+     * Paints the operation.
+     *
+     * @param g graphics in document coordinates, with antialiasing on
+     */
+    protected abstract void paint(Graphics2D g);
+
+    @Override
+    public void draw(TileStore store, Rectangle clip) {
+        int[] pixels = new int[clip.width * clip.height];
+        store.read(clip.x, clip.y, clip.width, clip.height, pixels, 0, clip.width);
+
+        Graphics2D g = PaintOperation.wrap(pixels, clip.width, clip.height).createGraphics();
+        g.translate(-clip.x, -clip.y);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+        this.paint(g);
+        g.dispose();
+
+        store.write(clip.x, clip.y, clip.width, clip.height, pixels, 0, clip.width);
+    }
+
+    /**
+     * Makes an ARGB image that draws straight into an array of pixels.
+     *
+     * @param pixels the pixels, row by row
+     * @param w image width
+     * @param h image height
+     * @return the image
+     */
+    public static BufferedImage wrap(int[] pixels, int w, int h) {
+        DataBufferInt buffer = new DataBufferInt(pixels, pixels.length);
+        WritableRaster raster = Raster.createPackedRaster(buffer, w, h, w,
+                new int[]{0xff0000, 0xff00, 0xff, 0xff000000}, null);
+        return new BufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+    }
+
+    /**
+     * Converts an ARGB int into a Java2D color.
+     *
+     * @param argb the ARGB value
+     * @return the color
+     */
+    protected static java.awt.Color color(int argb) {
+        return new java.awt.Color(argb, true);
+    }
+}
@@ -0,0 +1,51 @@
+package pain.t.engine;
+
+/**
+ * Helpers for working with ARGB int pixels.
+ *
+ * @author Daniel Christensen
+ */
+public class Pixels {
+
+    /**
+     * Blends a non premultiplied ARGB color over another one.
+     *
+     * @param dst the color underneath
+     * @param src the color on top
+     * @return the resulting color
+     */
+    public static int blend(int dst, int src) {
+        int sa = src >>> 24;
+        if (sa == 255) {
+            return src;
+        }
+        if (sa == 0) {
+            return dst;
+        }
+
+        int da = dst >>> 24;
+        int outA = sa + da * (255 - sa) / 255;
+        if (outA == 0) {
+            return 0;
+        }
+
+        int r = (((src >> 16) & 0xff) * sa + ((dst >> 16) & 0xff) * da * (255 - sa) / 255) / outA;
+        int g = (((src >> 8) & 0xff) * sa + ((dst >> 8) & 0xff) * da * (255 - sa) / 255) / outA;
+        int b = ((src & 0xff) * sa + (dst & 0xff) * da * (255 - sa) / 255) / outA;
+
+        return (outA << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Makes an ARGB color out of its components.
+     *
+     * @param a alpha, 0 to 255
+     * @param r red, 0 to 255
+     * @param g green, 0 to 255
+     * @param b blue, 0 to 255
+     * @return the ARGB value
+     */
+    public static int argb(int a, int r, int g, int b) {
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+}
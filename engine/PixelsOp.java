@@ -0,0 +1,88 @@
+package pain.t.engine;
+
+import java.awt.Rectangle;
+
+/**
+ * A rectangle of pixels put on the document, either replacing what is there or
+ * blended over it. Used for anything that was rendered outside of the engine,
+ * such as a shape the engine cannot describe.
+ *
+ * @author Daniel Christensen
+ */
+public class PixelsOp extends Operation {
+
+    //where the pixels go
+    private final int x, y, w, h;
+
+    //the ARGB pixels, row by row
+    private final int[] pixels;
+
+    //true to blend the pixels over the document, false to replace it
+    private final boolean blend;
+
+    /**
+     * Creates a new rectangle of pixels.
+     *
+     * @param x x position
+     * @param y y position
+     * @param w width
+     * @param h height
+     * @param pixels the ARGB pixels, row by row. They are used as is, not
+     * copied.
+     * @param blend true to blend the pixels over the document, false to replace
+     * it
+     */
+    public PixelsOp(int x, int y, int w, int h, int[] pixels, boolean blend) {
+        this.x = x;
+        this.y = y;
+        this.w = w;
+        this.h = h;
+        this.pixels = pixels;
+        this.blend = blend;
+    }
+
+    /**
+     * @return the ARGB pixels, row by row
+     */
+    public int[] getPixels() {
+        return this.pixels;
+    }
+
+    /**
+     * @return true if the pixels are blended over the document
+     */
+    public boolean isBlend() {
+        return this.blend;
+    }
+
+    @Override
+    public long getMemorySize() {
+        return 64 + this.pixels.length * 4L;
+    }
+
+    @Override
+    public Rectangle getBounds() {
+        return new Rectangle(this.x, this.y, this.w, this.h);
+    }
+
+    @Override
+    public void draw(TileStore store, Rectangle clip) {
+        int[] dst = new int[clip.width * clip.height];
+        if (this.blend) {
+            store.read(clip.x, clip.y, clip.width, clip.height, dst, 0, clip.width);
+        }
+
+        for (int row = 0; row < clip.height; row++) {
+            int s = (clip.y + row - this.y) * this.w + clip.x - this.x;
+            int d = row * clip.width;
+            if (this.blend) {
+                for (int col = 0; col < clip.width; col++) {
+                    dst[d + col] = Pixels.blend(dst[d + col], this.pixels[s + col]);
+                }
+            } else {
+                System.arraycopy(this.pixels, s, dst, d, clip.width);
+            }
+        }
+        store.write(clip.x, clip.y, clip.width, clip.height, dst, 0, clip.width);
+    }
+}
@@ -0,0 +1,25 @@
+package pain.t.engine;
+
+/**
+ * A filter that changes each pixel on its own, without looking at its
+ * neighbors.
+ *
+ * @author Daniel Christensen
+ */
+public abstract class PointFilter extends Filter {
+
+    /**
+     * Filters one pixel.
+     *
+     * @param argb the pixel's color
+     * @return the new color
+     */
+    protected abstract int filter(int argb);
+
+    @Override
+    public void apply(int[] src, int w, int h, int[] dst) {
+        for (int i = 0; i < w * h; i++) {
+            dst[i] = this.filter(src[i]);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package pain.t.engine;
+
+/**
+ * Receives the progress of a long running job, such as decoding or encoding an
+ * image, and tells it when to stop.
+ *
+ * @author Daniel Christensen
+ */
+public interface Progress {
+
+    /**
+     * Does nothing and never cancels.
+     */
+    Progress NONE = new Progress() {
+        @Override
+        public void progress(double done) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    /**
+     * Called as the job goes.
+     *
+     * @param done how much of the job is done, from 0 to 1
+     */
+    void progress(double done);
+
+    /**
+     * Checked by the job from time to time.
+     *
+     * @return true if the job should stop
+     */
+    boolean isCancelled();
+}
@@ -0,0 +1,824 @@
+package pain.t.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The native file format of Pain(t). A project file keeps the layers of a
+ * document, each layer's tiles compressed one by one, and a journal of the
+ * operations drawn on it. Saving only appends the tiles that changed since the
+ * last save and the new journal entries, followed by a new index telling how
+ * each layer is shown and where the latest copy of each of its tiles is. Once
+ * the records that were replaced take more room than the ones still in use,
+ * the whole file is written again. Opening maps the file into memory and reads
+ * each tile the first time it is used. Before the file is written again, the
+ * map is let go of, and the new file is mapped in its place, so tiles not read
+ * yet come from the new file.
+ *
+ * The file starts with a header (magic number, version), followed by records
+ * (type byte, payload length int, payload). Every index record is followed by
+ * a trailer (position of the index long, end magic number int), so the last
+ * 12 bytes of the file lead to the current index. Files of version 1 hold a
+ * single layer, they are written again as version 2 the first time they are
+ * saved.
+ *
+ * @author Daniel Christensen
+ */
+public class ProjectFile implements Document.Listener {
+
+    //file name extension of projects
+    public static final String EXTENSION = "paint";
+
+    //magic numbers at the start of the file and at the end of each trailer
+    private static final int MAGIC = 0x50414e54;
+    private static final int END = 0x494e4458;
+
+    //version of the format written
+    private static final int VERSION = 2;
+
+    //sizes of the header, of a trailer and of a record's type and length
+    private static final int HEADER = 8;
+    private static final int TRAILER = 12;
+    private static final int RECORD = 5;
+
+    //record types
+    private static final byte TILE = 1, JOURNAL = 2, INDEX = 3;
+
+    //journal entry types
+    private static final byte OP = 1, UNDO = 2, REDO = 3;
+
+    //files smaller than this are never compacted
+    private static final long COMPACT_MIN = 1 << 20;
+
+    //the project file
+    private final File file;
+
+    //version of the format the file is in, the one written once it was written again
+    private int version = VERSION;
+
+    //the layers the file holds, null until it was written or read
+    private LayerStack layers;
+
+    //where the tiles of each layer's pixels are in the file
+    private Map<TileStore, Tiles> tiles = new IdentityHashMap<TileStore, Tiles>();
+
+    //journal entries made since the last save
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream journal = new DataOutputStream(this.pending);
+
+    //true once the layers were replaced, the journal in the file no longer applies
+    private boolean restart = false;
+
+    //position and size of each journal record in the file
+    private final List<long[]> chunks = new ArrayList<long[]>();
+
+    //end of the last trailer, and bytes of the header, tiles and journal in use
+    private volatile long length, live;
+
+    //true if a save failed and the file may not match what was saved
+    private volatile boolean broken = false;
+
+    //the file as it was opened or last written again
+    private MappedByteBuffer map;
+
+    //held while reading a tile from the map, and while the map is replaced
+    private final Object mapping = new Object();
+
+    /**
+     * Creates a project, used by create() and open().
+     */
+    private ProjectFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Checks if a file is a project from its name.
+     *
+     * @param file the file
+     * @return true if the file has the project extension
+     */
+    public static boolean isProject(File file) {
+        return file.getName().toLowerCase().endsWith("." + EXTENSION);
+    }
+
+    /**
+     * Creates a new project. Nothing is written until the first save.
+     *
+     * @param file where the project will be saved
+     * @return the project
+     */
+    public static ProjectFile create(File file) {
+        return new ProjectFile(file);
+    }
+
+    /**
+     * Opens a project. Only the index is read, the tiles are read as they are
+     * used.
+     *
+     * @param file the project file
+     * @return the project
+     * @throws IOException if the file cannot be read or is not a project
+     */
+    public static ProjectFile open(File file) throws IOException {
+        ProjectFile project = new ProjectFile(file);
+        project.read();
+        return project;
+    }
+
+    /**
+     * @return the project file
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Gets the layers of an opened project. Tiles are read from the file the
+     * first time they are used.
+     *
+     * @return the layers, or null for a project that was never saved
+     */
+    public LayerStack getLayers() {
+        return this.layers;
+    }
+
+    /**
+     * Reads the journal and works out which operations are part of the
+     * picture, leaving out the ones that were undone. The journal does not
+     * tell which layer each operation was drawn on.
+     *
+     * @return the operations, in the order they were applied
+     * @throws IOException if the journal cannot be read
+     */
+    public synchronized List<Operation> getOperations() throws IOException {
+        List<Operation> done = new ArrayList<Operation>();
+        Deque<Operation> undone = new ArrayDeque<Operation>();
+
+        try (FileChannel ch = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            for (long[] chunk : this.chunks) {
+                ByteBuffer b = ByteBuffer.allocate((int) chunk[1] - RECORD);
+                ch.read(b, chunk[0] + RECORD);
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(b.array()));
+                while (in.available() > 0) {
+                    byte type = in.readByte();
+                    if (type == OP) {
+                        done.add(OpCodec.read(in));
+                        undone.clear();
+                    } else if (type == UNDO && !done.isEmpty()) {
+                        undone.push(done.remove(done.size() - 1));
+                    } else if (type == REDO && !undone.isEmpty()) {
+                        done.add(undone.pop());
+                    }
+                }
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Saves layers into the project right away, on the calling thread.
+     *
+     * @param layers the layers to save
+     * @throws IOException if the file cannot be written
+     */
+    public void save(LayerStack layers) throws IOException {
+        this.prepare(layers).write(Progress.NONE);
+    }
+
+    /**
+     * Gets ready to save layers into the project. The tiles that changed since
+     * the last save are shared with the save, each layer copies a tile before
+     * writing into it again, so the pixels can keep changing while the file
+     * is written. How each layer is shown is copied as it is now. Must be
+     * called on the thread that changes the layers.
+     *
+     * @param layers the layers to save
+     * @return the save, to be written on any thread
+     */
+    public Save prepare(LayerStack layers) {
+        boolean keepJournal = !this.restart && layers == this.layers;
+
+        Map<TileStore, Tiles> kept = new IdentityHashMap<TileStore, Tiles>();
+        for (Layer l : layers.getLayers()) {
+            Tiles t = this.tiles.get(l.getPixels());
+            kept.put(l.getPixels(), t != null ? t : new Tiles(l.getPixels()));
+        }
+
+        //pixels of layers not saved anymore that were not read yet would not be in the file anymore
+        for (Tiles t : this.tiles.values()) {
+            if (!kept.containsKey(t.store) && t.store.getSource() == t) {
+                t.store.loadAll();
+            }
+        }
+        boolean full = this.broken || !keepJournal || this.version < VERSION
+                || this.length > COMPACT_MIN && this.length - this.live > this.live;
+
+        Part[] parts = new Part[layers.getCount()];
+        synchronized (this.mapping) {
+            for (int k = 0; k < parts.length; k++) {
+                Layer l = layers.getLayers().get(k);
+                TileStore store = l.getPixels();
+                Tiles t = kept.get(store);
+
+                int n = store.getTilesX() * store.getTilesY();
+                int[] versions = new int[n];
+                int[][] tiles = new int[n][];
+                boolean[] changed = new boolean[n];
+                long[] raw = new long[n];
+
+                for (int i = 0; i < n; i++) {
+                    int tx = i % store.getTilesX();
+                    int ty = i / store.getTilesX();
+                    versions[i] = store.getVersion(tx, ty);
+
+                    if (!full && t.saved != null && t.saved[i] == versions[i]) {
+                        continue;
+                    }
+
+                    //tiles never read from this file are copied from it as they are
+                    if (store.getSource() == t && !store.isLoaded(tx, ty) && t.mapped[i] != 0) {
+                        raw[i] = t.mapped[i];
+                    } else {
+                        changed[i] = true;
+                        tiles[i] = store.shareTile(tx, ty);
+                    }
+                }
+
+                parts[k] = new Part(t, l.getName(), l.isVisible(), l.getOpacity(), l.getMode(), store.getFill(),
+                        store.getTilesX(), tiles, changed, raw);
+                t.saved = versions;
+            }
+        }
+
+        TileStore first = layers.getLayers().get(0).getPixels();
+        Save save = new Save(first.getWidth(), first.getHeight(), layers.getActive(), full, keepJournal,
+                parts, this.pending.toByteArray());
+
+        this.layers = layers;
+        this.tiles = kept;
+        this.pending.reset();
+        this.restart = false;
+        return save;
+    }
+
+    @Override
+    public void applied(Operation op) {
+        try {
+            this.journal.writeByte(OP);
+            OpCodec.write(this.journal, op);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void undone(Operation op) {
+        this.pending.write(UNDO);
+    }
+
+    @Override
+    public void redone(Operation op) {
+        this.pending.write(REDO);
+    }
+
+    @Override
+    public void replaced(LayerStack layers) {
+        this.pending.reset();
+        this.restart = true;
+    }
+
+    @Override
+    public void layersChanged(LayerStack layers) {
+        //the next index tells how the layers are, the journal still applies
+    }
+
+    /**
+     * Maps the file and reads its current index.
+     */
+    private void read() throws IOException {
+        this.map = this.map();
+        this.length = this.map.capacity();
+        if (this.length < HEADER + TRAILER) {
+            throw new IOException(this.file.getName() + " is not a Pain(t) project");
+        }
+
+        ByteBuffer b = this.map.duplicate();
+        if (b.getInt(0) != MAGIC) {
+            throw new IOException(this.file.getName() + " is not a Pain(t) project");
+        }
+        this.version = b.getInt(4);
+        if (this.version > VERSION) {
+            throw new IOException(this.file.getName() + " was saved by a newer version of Pain(t)");
+        }
+        if (b.getInt((int) this.length - 4) != END) {
+            throw new IOException(this.file.getName() + " is damaged");
+        }
+
+        long index = b.getLong((int) this.length - TRAILER);
+        b.position((int) index);
+        if (b.get() != INDEX) {
+            throw new IOException(this.file.getName() + " is damaged");
+        }
+        byte[] payload = new byte[b.getInt()];
+        b.get(payload);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        int w = in.readInt();
+        int h = in.readInt();
+        List<Layer> list = new ArrayList<Layer>();
+        int active = 0;
+        if (this.version == 1) {
+            list.add(new Layer("Background", this.readTiles(in, w, h, in.readInt())));
+        } else {
+            int count = in.readInt();
+            active = in.readInt();
+            for (int k = 0; k < count; k++) {
+                String name = in.readUTF();
+                boolean visible = in.readBoolean();
+                int opacity = in.readUnsignedByte();
+                BlendMode mode = BlendMode.valueOf(in.readUTF());
+
+                Layer l = new Layer(name, this.readTiles(in, w, h, in.readInt()));
+                l.setVisible(visible);
+                l.setOpacity(opacity);
+                l.setMode(mode);
+                list.add(l);
+            }
+        }
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            this.chunks.add(new long[]{in.readLong(), in.readInt()});
+        }
+
+        this.layers = new LayerStack(list, active);
+        this.live = this.measure(this.tiles.values());
+    }
+
+    /**
+     * Reads where the tiles of a layer are from the index, the layer's
+     * pixels read them from the file as they are used.
+     *
+     * @return the pixels
+     */
+    private TileStore readTiles(DataInputStream in, int w, int h, int fill) throws IOException {
+        TileStore pixels = new TileStore(w, h, fill);
+        Tiles t = new Tiles(pixels);
+        for (int i = 0; i < t.offsets.length; i++) {
+            t.offsets[i] = in.readLong();
+            if (t.offsets[i] != 0) {
+                t.sizes[i] = RECORD + this.map.getInt((int) t.offsets[i] + 1);
+            }
+        }
+
+        t.mapped = t.offsets.clone();
+        t.saved = new int[t.offsets.length];
+        pixels.setSource(t);
+        this.tiles.put(pixels, t);
+        return pixels;
+    }
+
+    /**
+     * Adds up the bytes of the header, of the tiles of some layers and of
+     * the journal.
+     */
+    private long measure(Iterable<Tiles> layers) {
+        long bytes = HEADER;
+        for (Tiles t : layers) {
+            for (int size : t.sizes) {
+                bytes += size;
+            }
+        }
+        for (long[] chunk : this.chunks) {
+            bytes += chunk[1];
+        }
+        return bytes;
+    }
+
+    /**
+     * Maps the whole file into memory.
+     */
+    private MappedByteBuffer map() throws IOException {
+        try (FileChannel ch = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException(this.file.getName() + " is too large to open");
+            }
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    /**
+     * Lets go of a map right away instead of when it is garbage collected, so
+     * the file can be replaced on systems that do not allow replacing a mapped
+     * file. Nothing may read from the map afterwards.
+     */
+    private static void unmap(MappedByteBuffer map) {
+        try {
+            Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+            Field instance = unsafe.getDeclaredField("theUnsafe");
+            instance.setAccessible(true);
+            unsafe.getMethod("invokeCleaner", ByteBuffer.class).invoke(instance.get(null), map);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            //left to the garbage collector
+        }
+    }
+
+    /**
+     * Makes a tile record.
+     */
+    private static ByteBuffer tileRecord(int tx, int ty, int[] tile) {
+        byte[] packed = OpCodec.deflate(tile, 0, tile.length);
+        ByteBuffer b = ByteBuffer.allocate(RECORD + 8 + packed.length);
+        b.put(TILE).putInt(8 + packed.length).putInt(tx).putInt(ty).put(packed);
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Writes a whole buffer at a position of a channel.
+     *
+     * @return the position after the buffer
+     */
+    private static long writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            pos += ch.write(b, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Where the tiles of a layer's pixels are in the file. Tiles not read yet
+     * are read from the map by the pixels themselves.
+     */
+    private class Tiles implements TileSource {
+
+        //the layer's pixels
+        private final TileStore store;
+
+        //version of each tile when it was last written, null until it was
+        private int[] saved;
+
+        //position and size of each tile's record in the file, 0 for tiles that are only the fill color
+        private long[] offsets;
+        private int[] sizes;
+
+        //where each tile not read yet is in the map
+        private long[] mapped;
+
+        Tiles(TileStore store) {
+            int n = store.getTilesX() * store.getTilesY();
+            this.store = store;
+            this.offsets = new long[n];
+            this.sizes = new int[n];
+            this.mapped = new long[n];
+        }
+
+        @Override
+        public int[] loadTile(int tx, int ty) {
+            byte[] packed;
+            synchronized (mapping) {
+                long pos = this.mapped[ty * this.store.getTilesX() + tx];
+                if (pos == 0) {
+                    return null;
+                }
+
+                ByteBuffer b = map.duplicate();
+                b.position((int) pos + 1);
+                packed = new byte[b.getInt() - 8];
+                b.position(b.position() + 8);
+                b.get(packed);
+            }
+
+            int[] tile = new int[TileStore.TILE_SIZE * TileStore.TILE_SIZE];
+            try {
+                OpCodec.inflate(packed, 0, packed.length, tile);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return tile;
+        }
+    }
+
+    /**
+     * A layer as prepare() copied it, with the tiles to write.
+     */
+    private static class Part {
+
+        //where the layer's tiles go in the file
+        private final Tiles target;
+
+        //how the layer is shown
+        private final String name;
+        private final boolean visible;
+        private final int opacity;
+        private final BlendMode mode;
+
+        //color of the tiles that are not allocated, and tiles in a row
+        private final int fill, tilesX;
+
+        //the tiles to write, shared with the layer, null for tiles that are only the fill color
+        private final int[][] tiles;
+
+        //true for the tiles to write
+        private final boolean[] changed;
+
+        //position in the mapped file of tiles to copy without reading them, 0 for none
+        private final long[] raw;
+
+        Part(Tiles target, String name, boolean visible, int opacity, BlendMode mode, int fill, int tilesX,
+                int[][] tiles, boolean[] changed, long[] raw) {
+            this.target = target;
+            this.name = name;
+            this.visible = visible;
+            this.opacity = opacity;
+            this.mode = mode;
+            this.fill = fill;
+            this.tilesX = tilesX;
+            this.tiles = tiles;
+            this.changed = changed;
+            this.raw = raw;
+        }
+    }
+
+    /**
+     * The changes copied by prepare(), written into the file by write().
+     */
+    public class Save {
+
+        //dimensions of the layers
+        private final int w, h;
+
+        //index of the layer drawn on
+        private final int active;
+
+        //true to write the whole file again, false to append to it
+        private final boolean full;
+
+        //true to keep the journal already in the file
+        private final boolean keepJournal;
+
+        //the layers, from the bottom one up
+        private final Part[] parts;
+
+        //the new journal entries
+        private final byte[] entries;
+
+        /**
+         * Creates a save, used by prepare().
+         */
+        Save(int w, int h, int active, boolean full, boolean keepJournal, Part[] parts, byte[] entries) {
+            this.w = w;
+            this.h = h;
+            this.active = active;
+            this.full = full;
+            this.keepJournal = keepJournal;
+            this.parts = parts;
+            this.entries = entries;
+        }
+
+        /**
+         * @return true if the whole file is written, false if only the changes
+         * are appended
+         */
+        public boolean isFull() {
+            return this.full;
+        }
+
+        /**
+         * Writes the changes into the file.
+         *
+         * @param progress receives the progress
+         * @throws IOException if the file cannot be written. The next save
+         * writes the whole file again.
+         */
+        public void write(Progress progress) throws IOException {
+            synchronized (ProjectFile.this) {
+                try {
+                    if (this.full) {
+                        this.rewrite(progress);
+                    } else {
+                        this.append(progress);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    broken = true;
+                    throw ex;
+                }
+                broken = false;
+            }
+        }
+
+        /**
+         * Appends the changed tiles, the journal and a new index to the file.
+         */
+        private void append(Progress progress) throws IOException {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                try {
+                    long pos = this.writeChanges(ch, length, progress);
+                    ch.truncate(pos);
+                    ch.force(false);
+                    length = pos;
+                } catch (IOException ex) {
+                    //leave the last complete index at the end of the file
+                    ch.truncate(length);
+                    throw ex;
+                }
+            }
+        }
+
+        /**
+         * Writes everything into a new file, then replaces the project file
+         * with it.
+         */
+        private void rewrite(Progress progress) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            List<long[]> oldChunks = new ArrayList<long[]>(chunks);
+            for (Part part : this.parts) {
+                part.target.offsets = new long[part.tiles.length];
+                part.target.sizes = new int[part.tiles.length];
+            }
+            chunks.clear();
+
+            try {
+                this.writeAll(tmp, oldChunks, progress);
+            } catch (IOException ex) {
+                //the project file was not touched, its journal is still there
+                chunks.clear();
+                chunks.addAll(oldChunks);
+                tmp.delete();
+                throw ex;
+            }
+
+            synchronized (mapping) {
+                if (map == null) {
+                    replace(tmp);
+                    version = VERSION;
+                    return;
+                }
+
+                //tiles not read yet are read from the new file, where they were copied
+                unmap(map);
+                map = null;
+                try {
+                    replace(tmp);
+                    version = VERSION;
+                    for (Part part : this.parts) {
+                        part.target.mapped = part.target.offsets.clone();
+                    }
+                } finally {
+                    map = map();
+                }
+            }
+        }
+
+        /**
+         * Replaces the project file with a new one.
+         */
+        private void replace(File tmp) throws IOException {
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        /**
+         * Writes every tile and the journal into a new file.
+         */
+        private void writeAll(File tmp, List<long[]> oldChunks, Progress progress) throws IOException {
+            try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                long pos = writeFully(ch, header, 0);
+
+                //tiles that were never read are copied straight from the old file
+                for (Part part : this.parts) {
+                    for (int i = 0; i < part.raw.length; i++) {
+                        if (part.raw[i] != 0) {
+                            ByteBuffer b = map.duplicate();
+                            b.position((int) part.raw[i]);
+                            b.limit((int) part.raw[i] + RECORD + map.getInt((int) part.raw[i] + 1));
+                            part.target.offsets[i] = pos;
+                            part.target.sizes[i] = b.remaining();
+                            pos = writeFully(ch, b, pos);
+                        }
+                    }
+                }
+
+                //so is the journal, unless the layers were replaced since
+                if (this.keepJournal && file.exists()) {
+                    try (FileChannel old = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        for (long[] chunk : oldChunks) {
+                            ByteBuffer b = ByteBuffer.allocate((int) chunk[1]);
+                            old.read(b, chunk[0]);
+                            b.flip();
+                            chunks.add(new long[]{pos, chunk[1]});
+                            pos = writeFully(ch, b, pos);
+                        }
+                    }
+                }
+
+                pos = this.writeChanges(ch, pos, progress);
+                ch.force(false);
+                length = pos;
+            }
+        }
+
+        /**
+         * Writes the changed tiles, the journal entries, the index and a
+         * trailer.
+         *
+         * @return the position after the trailer
+         */
+        private long writeChanges(FileChannel ch, long pos, Progress progress) throws IOException {
+            int count = 0;
+            for (Part part : this.parts) {
+                for (boolean c : part.changed) {
+                    count += c ? 1 : 0;
+                }
+            }
+
+            int done = 0;
+            List<Tiles> written = new ArrayList<Tiles>();
+            for (Part part : this.parts) {
+                Tiles t = part.target;
+                written.add(t);
+                for (int i = 0; i < part.tiles.length; i++) {
+                    if (!part.changed[i]) {
+                        continue;
+                    }
+
+                    if (part.tiles[i] == null) {
+                        t.offsets[i] = 0;
+                        t.sizes[i] = 0;
+                    } else {
+                        ByteBuffer b = tileRecord(i % part.tilesX, i / part.tilesX, part.tiles[i]);
+                        t.offsets[i] = pos;
+                        t.sizes[i] = b.remaining();
+                        pos = writeFully(ch, b, pos);
+                    }
+                    progress.progress(++done / (double) (count + 1));
+                }
+            }
+
+            if (this.entries.length > 0) {
+                ByteBuffer b = ByteBuffer.allocate(RECORD + this.entries.length);
+                b.put(JOURNAL).putInt(this.entries.length).put(this.entries).flip();
+                chunks.add(new long[]{pos, b.remaining()});
+                pos = writeFully(ch, b, pos);
+            }
+
+            //the index, then the trailer pointing at it
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(bytes);
+            index.writeInt(this.w);
+            index.writeInt(this.h);
+            index.writeInt(this.parts.length);
+            index.writeInt(this.active);
+            for (Part part : this.parts) {
+                index.writeUTF(part.name);
+                index.writeBoolean(part.visible);
+                index.writeByte(part.opacity);
+                index.writeUTF(part.mode.name());
+                index.writeInt(part.fill);
+                for (long offset : part.target.offsets) {
+                    index.writeLong(offset);
+                }
+            }
+            index.writeInt(chunks.size());
+            for (long[] chunk : chunks) {
+                index.writeLong(chunk[0]);
+                index.writeInt((int) chunk[1]);
+            }
+
+            ByteBuffer b = ByteBuffer.allocate(RECORD + bytes.size() + TRAILER);
+            b.put(INDEX).putInt(bytes.size()).put(bytes.toByteArray());
+            b.putLong(pos).putInt(END).flip();
+
+            pos = writeFully(ch, b, pos);
+            live = measure(written);
+            progress.progress(1);
+            return pos;
+        }
+    }
+}
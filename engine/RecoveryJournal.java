@@ -0,0 +1,653 @@
+package pain.t.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Writes every change made to a document into a file, so the picture can be
+ * rebuilt if Pain(t) does not close properly. The journal starts with the
+ * document's layers, followed by the operations applied, undone and redone,
+ * and by the layers again every time they change. A layer's pixels are only
+ * written the first time the journal sees the layer, from a snapshot sharing
+ * its tiles, afterwards the layer is referred to by an id.
+ * The thread changing the document only puts the changes in a queue. A writer
+ * thread wakes up once per batch interval to encode everything queued, and
+ * forces it to the disk at most once per sync interval. Queuing never wakes
+ * the writer, so drawing does not wait for it even on a single core.
+ *
+ * Each entry is a type byte, a payload length int, the payload and the CRC32
+ * of the payload, so a journal cut short by a crash is read up to its last
+ * complete entry. The file is locked while the journal is open, so a second
+ * Pain(t) does not write into it.
+ *
+ * @author Daniel Christensen
+ */
+public class RecoveryJournal implements Document.Listener {
+
+    //time between two batches written, in milliseconds
+    public static final long BATCH_INTERVAL = 100;
+
+    //longest time changes wait before being forced to the disk, in milliseconds
+    public static final long SYNC_INTERVAL = 1000;
+
+    //magic number at the start of the file
+    private static final int MAGIC = 0x50524a31;
+
+    //entry types, BASE is only read from journals written by earlier versions
+    private static final byte BASE = 1, OP = 2, UNDO = 3, REDO = 4, LAYERS = 5;
+
+    //the journal file, its channel and the lock keeping other instances out
+    private final File file;
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    //changes waiting to be written
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<Object>();
+
+    //writes the changes, null until start()
+    private Thread writer;
+
+    //set to stop the writer once everything queued is written
+    private volatile boolean closing = false;
+
+    //length of the journal up to its last complete entry, known once read
+    private long valid = 0;
+
+    //the id of every layer whose pixels were written, layers that are not used anymore are forgotten
+    private final Map<Layer, Integer> known = new WeakHashMap<Layer, Integer>();
+
+    //id of the next layer seen
+    private int nextId = 0;
+
+    //why the writer stopped, null while it works
+    private volatile IOException failure;
+
+    //cost for the thread changing the document: changes queued, total and longest time spent
+    private long queued = 0, queuedNanos = 0, maxNanos = 0;
+
+    //work done by the writer
+    private volatile long written = 0, bytes = 0, batches = 0, syncs = 0;
+
+    /**
+     * Opens a journal, used by open().
+     */
+    private RecoveryJournal(File file, FileChannel channel, FileLock lock) {
+        this.file = file;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens a journal file and locks it. Nothing is read or written yet.
+     *
+     * @param file the journal file, created if needed
+     * @return the journal
+     * @throws IOException if the file cannot be opened, or another Pain(t) is
+     * using it
+     */
+    public static RecoveryJournal open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Another Pain(t) is using " + file.getName());
+        }
+        return new RecoveryJournal(file, channel, lock);
+    }
+
+    /**
+     * @return the journal file
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Rebuilds the document the journal was written for. Entries cut short by
+     * a crash are left out.
+     *
+     * @return the document with its history, or null if the journal has no
+     * operation worth recovering
+     * @throws IOException if the journal cannot be read
+     */
+    public Document recover() throws IOException {
+        this.channel.position(0);
+        CountingStream counter = new CountingStream(new BufferedInputStream(Channels.newInputStream(this.channel)));
+        DataInputStream in = new DataInputStream(counter);
+
+        Document doc = null;
+        Map<Integer, Layer> layers = new HashMap<Integer, Layer>();
+        boolean work = false;
+        try {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            this.valid = counter.count;
+
+            while (true) {
+                byte type = in.readByte();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+
+                DataInputStream entry = new DataInputStream(new ByteArrayInputStream(payload));
+                if (type == BASE || type == LAYERS) {
+                    boolean replaced = type == BASE || entry.readBoolean();
+                    LayerStack stack = type == BASE ? new LayerStack(RecoveryJournal.readBase(entry))
+                            : RecoveryJournal.readLayers(entry, layers);
+                    if (doc == null) {
+                        doc = new Document(stack);
+                    } else {
+                        doc.setLayers(stack);
+                        if (replaced) {
+                            doc.getHistory().clear();
+                        }
+                    }
+                } else if (doc != null && type == OP) {
+                    doc.apply(OpCodec.read(entry));
+                    work = true;
+                } else if (doc != null && type == UNDO) {
+                    doc.undo();
+                } else if (doc != null && type == REDO) {
+                    doc.redo();
+                }
+                this.valid = counter.count;
+            }
+        } catch (EOFException | IllegalArgumentException | NegativeArraySizeException ex) {
+            //the last entry was cut short, everything before it is kept
+        }
+
+        //the journal carries on referring to the layers it already holds
+        for (Map.Entry<Integer, Layer> e : layers.entrySet()) {
+            this.known.put(e.getValue(), e.getKey());
+            this.nextId = Math.max(this.nextId, e.getKey() + 1);
+        }
+        return work ? doc : null;
+    }
+
+    /**
+     * Starts journaling. Either the journal read by recover() is kept and
+     * written after, or it is replaced by a new one starting with the given
+     * layers.
+     *
+     * @param keep true to keep writing after the recovered entries
+     * @param base the layers the new journal starts from, when not kept
+     * @throws IOException if the file cannot be written
+     */
+    public void start(boolean keep, LayerStack base) throws IOException {
+        if (keep) {
+            this.channel.truncate(this.valid);
+        } else {
+            this.channel.truncate(0);
+        }
+        this.channel.position(this.channel.size());
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(this.channel), 1 << 16));
+        if (!keep) {
+            out.writeInt(MAGIC);
+            this.known.clear();
+            this.replaced(base);
+        }
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write(out);
+            }
+        }, "Pain(t) journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Stops journaling. Everything queued is written first.
+     *
+     * @param delete true to delete the journal, when the document was closed
+     * properly and there is nothing to recover
+     */
+    public void close(boolean delete) {
+        if (this.writer != null) {
+            this.closing = true;
+            LockSupport.unpark(this.writer);
+            try {
+                this.writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            if (delete) {
+                this.channel.truncate(0);
+            }
+            this.lock.release();
+            this.channel.close();
+        } catch (IOException ex) {
+            //the journal is left as it is, it is only read after a crash
+        }
+        if (delete) {
+            this.file.delete();
+        }
+    }
+
+    @Override
+    public void applied(Operation op) {
+        this.enqueue(new Entry(OP, op));
+    }
+
+    @Override
+    public void undone(Operation op) {
+        this.enqueue(new Entry(UNDO, null));
+    }
+
+    @Override
+    public void redone(Operation op) {
+        this.enqueue(new Entry(REDO, null));
+    }
+
+    @Override
+    public void replaced(LayerStack layers) {
+        long start = System.nanoTime();
+        this.enqueue(this.describe(true, layers), start);
+    }
+
+    @Override
+    public void layersChanged(LayerStack layers) {
+        long start = System.nanoTime();
+        this.enqueue(this.describe(false, layers), start);
+    }
+
+    /**
+     * Copies how the layers are now. The layers keep changing after this,
+     * the writer gets snapshots of the pixels of the layers it has not seen
+     * yet, sharing their tiles until either side writes into one.
+     */
+    private Layers describe(boolean replaced, LayerStack layers) {
+        Layers e = new Layers(replaced, layers.getActive(), layers.getCount());
+        for (int k = 0; k < e.ids.length; k++) {
+            Layer l = layers.getLayers().get(k);
+            Integer id = this.known.get(l);
+            if (id == null) {
+                id = this.nextId++;
+                this.known.put(l, id);
+                e.pixels[k] = l.getPixels().snapshot();
+            }
+            e.ids[k] = id;
+            e.names[k] = l.getName();
+            e.visible[k] = l.isVisible();
+            e.opacity[k] = l.getOpacity();
+            e.modes[k] = l.getMode();
+        }
+        return e;
+    }
+
+    /**
+     * @return the number of changes queued
+     */
+    public long getQueued() {
+        return this.queued;
+    }
+
+    /**
+     * @return the average time spent queuing a change, in nanoseconds
+     */
+    public long getAverageNanos() {
+        return this.queued == 0 ? 0 : this.queuedNanos / this.queued;
+    }
+
+    /**
+     * @return the longest time spent queuing a change, in nanoseconds
+     */
+    public long getMaxNanos() {
+        return this.maxNanos;
+    }
+
+    /**
+     * @return the number of changes written
+     */
+    public long getWritten() {
+        return this.written;
+    }
+
+    /**
+     * @return the bytes written
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * @return the number of batches written
+     */
+    public long getBatches() {
+        return this.batches;
+    }
+
+    /**
+     * @return the number of times the journal was forced to the disk
+     */
+    public long getSyncs() {
+        return this.syncs;
+    }
+
+    /**
+     * @return why the journal stopped being written, null if it works
+     */
+    public IOException getFailure() {
+        return this.failure;
+    }
+
+    /**
+     * Queues a change and measures how long it took.
+     */
+    private void enqueue(Object entry) {
+        this.enqueue(entry, System.nanoTime());
+    }
+
+    /**
+     * Queues a change and measures how long it took since start.
+     */
+    private void enqueue(Object entry, long start) {
+        if (this.failure == null) {
+            this.queue.add(entry);
+        }
+
+        long nanos = System.nanoTime() - start;
+        this.queued++;
+        this.queuedNanos += nanos;
+        this.maxNanos = Math.max(this.maxNanos, nanos);
+    }
+
+    /**
+     * Runs on the writer thread until the journal is closed.
+     */
+    private void write(DataOutputStream out) {
+        List<Object> batch = new ArrayList<Object>();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream entry = new DataOutputStream(payload);
+        long lastSync = System.nanoTime();
+        boolean dirty = false;
+
+        try {
+            boolean last = false;
+            while (!last) {
+                //read the flag first, so nothing queued before closing is missed
+                last = this.closing;
+                if (!last) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(BATCH_INTERVAL));
+                }
+
+                for (Object e = this.queue.poll(); e != null; e = this.queue.poll()) {
+                    batch.add(e);
+                }
+                for (Object e : batch) {
+                    payload.reset();
+                    byte type = RecoveryJournal.encode(e, entry);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload.toByteArray());
+
+                    out.writeByte(type);
+                    out.writeInt(payload.size());
+                    payload.writeTo(out);
+                    out.writeInt((int) crc.getValue());
+                    this.bytes += 9 + payload.size();
+                    this.written++;
+                }
+
+                if (!batch.isEmpty()) {
+                    out.flush();
+                    this.batches++;
+                    dirty = true;
+                    batch.clear();
+                }
+
+                //force the batches to the disk once per interval, or when closing
+                long now = System.nanoTime();
+                if (dirty && (last || now - lastSync >= TimeUnit.MILLISECONDS.toNanos(SYNC_INTERVAL))) {
+                    this.channel.force(false);
+                    this.syncs++;
+                    lastSync = now;
+                    dirty = false;
+                }
+            }
+        } catch (IOException ex) {
+            this.failure = ex;
+            this.queue.clear();
+        }
+    }
+
+    /**
+     * Writes the payload of an entry.
+     *
+     * @return the entry's type
+     */
+    private static byte encode(Object e, DataOutputStream out) throws IOException {
+        if (e instanceof Layers) {
+            Layers layers = (Layers) e;
+            out.writeBoolean(layers.replaced);
+            out.writeInt(layers.active);
+            out.writeInt(layers.ids.length);
+            for (int k = 0; k < layers.ids.length; k++) {
+                out.writeInt(layers.ids[k]);
+                out.writeUTF(layers.names[k]);
+                out.writeBoolean(layers.visible[k]);
+                out.writeByte(layers.opacity[k]);
+                out.writeUTF(layers.modes[k].name());
+
+                TileStore pixels = layers.pixels[k];
+                out.writeBoolean(pixels != null);
+                if (pixels != null) {
+                    RecoveryJournal.writeTiles(pixels, out);
+                }
+            }
+            return LAYERS;
+        }
+
+        Entry entry = (Entry) e;
+        if (entry.op != null) {
+            OpCodec.write(out, entry.op);
+        }
+        return entry.type;
+    }
+
+    /**
+     * Writes the dimensions and the allocated tiles of pixels.
+     */
+    private static void writeTiles(TileStore pixels, DataOutputStream out) throws IOException {
+        out.writeInt(pixels.getWidth());
+        out.writeInt(pixels.getHeight());
+        out.writeInt(pixels.getFill());
+
+        //tiles are packed as they are read, so tiles not read yet are never all in memory at once
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream packed = new DataOutputStream(bytes);
+        int count = 0;
+        for (int ty = 0; ty < pixels.getTilesY(); ty++) {
+            for (int tx = 0; tx < pixels.getTilesX(); tx++) {
+                int[] tile = pixels.getTile(tx, ty);
+                if (tile != null) {
+                    byte[] data = OpCodec.deflate(tile, 0, tile.length);
+                    packed.writeInt(tx);
+                    packed.writeInt(ty);
+                    packed.writeInt(data.length);
+                    packed.write(data);
+                    count++;
+                }
+            }
+        }
+        out.writeInt(count);
+        bytes.writeTo(out);
+    }
+
+    /**
+     * Reads the layers of a layers entry. Layers whose pixels were written
+     * before are looked up by their id.
+     *
+     * @param seen every layer read so far by its id, new ones are added
+     */
+    private static LayerStack readLayers(DataInputStream in, Map<Integer, Layer> seen) throws IOException {
+        int active = in.readInt();
+        int count = in.readInt();
+        List<Layer> layers = new ArrayList<Layer>();
+        for (int k = 0; k < count; k++) {
+            int id = in.readInt();
+            String name = in.readUTF();
+            boolean visible = in.readBoolean();
+            int opacity = in.readUnsignedByte();
+            BlendMode mode = BlendMode.valueOf(in.readUTF());
+
+            Layer l = in.readBoolean() ? new Layer(name, RecoveryJournal.readBase(in)) : seen.get(id);
+            if (l == null) {
+                throw new IllegalArgumentException("Unknown layer " + id);
+            }
+            l.setName(name);
+            l.setVisible(visible);
+            l.setOpacity(opacity);
+            l.setMode(mode);
+            seen.put(id, l);
+            layers.add(l);
+        }
+        return new LayerStack(layers, active);
+    }
+
+    /**
+     * Reads pixels written by writeTiles(), as base entries hold them.
+     */
+    private static TileStore readBase(DataInputStream in) throws IOException {
+        TileStore store = new TileStore(in.readInt(), in.readInt(), in.readInt());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int tx = in.readInt();
+            int ty = in.readInt();
+            byte[] packed = new byte[in.readInt()];
+            in.readFully(packed);
+            OpCodec.inflate(packed, 0, packed.length, store.tileForWrite(tx, ty));
+        }
+        store.markDirty(0, 0, store.getWidth(), store.getHeight());
+        return store;
+    }
+
+    /**
+     * An operation, an undo or a redo waiting to be written.
+     */
+    private static class Entry {
+
+        //the entry's type
+        private final byte type;
+
+        //the operation applied, null for undo and redo
+        private final Operation op;
+
+        Entry(byte type, Operation op) {
+            this.type = type;
+            this.op = op;
+        }
+    }
+
+    /**
+     * How the layers were when they were replaced or changed, waiting to be
+     * written.
+     */
+    private static class Layers {
+
+        //true if the layers were replaced, the history before does not apply to them
+        private final boolean replaced;
+
+        //index of the layer drawn on
+        private final int active;
+
+        //each layer's id and how it is shown, from the bottom one up
+        private final int[] ids;
+        private final String[] names;
+        private final boolean[] visible;
+        private final int[] opacity;
+        private final BlendMode[] modes;
+
+        //snapshots of the pixels of the layers not seen before, null for the others
+        private final TileStore[] pixels;
+
+        Layers(boolean replaced, int active, int count) {
+            this.replaced = replaced;
+            this.active = active;
+            this.ids = new int[count];
+            this.names = new String[count];
+            this.visible = new boolean[count];
+            this.opacity = new int[count];
+            this.modes = new BlendMode[count];
+            this.pixels = new TileStore[count];
+        }
+    }
+
+    /**
+     * Counts the bytes read, to know where the last complete entry ends.
+     */
+    private static class CountingStream extends FilterInputStream {
+
+        //bytes read so far
+        private long count = 0;
+
+        CountingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                this.count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                this.count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            this.count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package pain.t.engine;
+
+/**
+ * Resizing pixels. Each pixel of the result is a weighted average of the
+ * pixels around the matching spot of the source, the weights falling off
+ * linearly with the distance. Shrinking widens the weights so every source
+ * pixel still counts, which keeps thin lines and fine detail from turning
+ * into noise. Rows are resized first, then columns.
+ *
+ * @author Daniel Christensen
+ */
+public class Resample {
+
+    //sum of the weights of one pixel, weights are fixed point
+    private static final int ONE = 1 << 16;
+
+    //source rows read at once
+    private static final int BAND = TileStore.TILE_SIZE;
+
+    private Resample() {
+    }
+
+    /**
+     * Resizes pixels into a new store. The source is not changed.
+     *
+     * @param src the pixels to resize
+     * @param w width of the result
+     * @param h height of the result
+     * @return the resized pixels, with the source's fill color
+     */
+    public static TileStore resize(TileStore src, int w, int h) {
+        int sw = src.getWidth();
+        int sh = src.getHeight();
+        int[][] across = Resample.weights(sw, w);
+        int[][] down = Resample.weights(sh, h);
+
+        //every source row resized to the new width
+        int[] rows = new int[w * sh];
+        int[] band = new int[sw * BAND];
+        for (int y0 = 0; y0 < sh; y0 += BAND) {
+            int bh = Math.min(BAND, sh - y0);
+            src.read(0, y0, sw, bh, band, 0, sw);
+            for (int y = 0; y < bh; y++) {
+                Resample.filter(band, y * sw, 1, across, rows, (y0 + y) * w, 1, w);
+            }
+        }
+
+        //then every column to the new height, a band of rows at a time
+        TileStore out = new TileStore(w, h, src.getFill());
+        int[] result = new int[w * BAND];
+        for (int y0 = 0; y0 < h; y0 += BAND) {
+            int bh = Math.min(BAND, h - y0);
+            int[][] part = new int[bh][];
+            System.arraycopy(down, y0, part, 0, bh);
+            for (int x = 0; x < w; x++) {
+                Resample.filter(rows, x, w, part, result, x, w, bh);
+            }
+            out.write(0, y0, w, bh, result, 0, w);
+        }
+        return out;
+    }
+
+    /**
+     * Resizes one line of pixels, a row or a column.
+     *
+     * @param src the source pixels
+     * @param off index of the line's first pixel in src
+     * @param stride distance in src between two pixels of the line
+     * @param weights for each result pixel, its first source pixel followed by
+     * the weight of each source pixel from there
+     * @param dst where the result goes
+     * @param at index of the result's first pixel in dst
+     * @param step distance in dst between two pixels of the result
+     * @param n number of result pixels
+     */
+    private static void filter(int[] src, int off, int stride, int[][] weights, int[] dst, int at, int step, int n) {
+        for (int i = 0; i < n; i++) {
+            int[] wt = weights[i];
+            int a = 0, r = 0, g = 0, b = 0;
+            int p = off + wt[0] * stride;
+            for (int k = 1; k < wt.length; k++, p += stride) {
+                int c = src[p];
+                a += (c >>> 24) * wt[k];
+                r += ((c >> 16) & 0xff) * wt[k];
+                g += ((c >> 8) & 0xff) * wt[k];
+                b += (c & 0xff) * wt[k];
+            }
+            dst[at + i * step] = ((a + ONE / 2) >> 16 << 24) | ((r + ONE / 2) >> 16 << 16) | ((g + ONE / 2) >> 16 << 8) | ((b + ONE / 2) >> 16);
+        }
+    }
+
+    /**
+     * Works out which source pixels make each result pixel along one axis,
+     * and how much each of them counts.
+     *
+     * @param from source size
+     * @param to result size
+     * @return for each result pixel, its first source pixel followed by the
+     * weights, adding up to ONE
+     */
+    private static int[][] weights(int from, int to) {
+        double ratio = from / (double) to;
+        double reach = Math.max(1, ratio);
+        int[][] weights = new int[to][];
+
+        for (int i = 0; i < to; i++) {
+            double center = (i + 0.5) * ratio - 0.5;
+            int first = Math.max(0, (int) Math.floor(center - reach) + 1);
+            int last = Math.min(from - 1, (int) Math.ceil(center + reach) - 1);
+            if (last < first) {
+                first = last = Math.max(0, Math.min(from - 1, (int) Math.round(center)));
+            }
+
+            double[] raw = new double[last - first + 1];
+            double total = 0;
+            for (int j = first; j <= last; j++) {
+                raw[j - first] = Math.max(0, 1 - Math.abs(j - center) / reach);
+                total += raw[j - first];
+            }
+
+            //rounding is made up for on the largest weight, so they add up exactly
+            int[] wt = new int[raw.length + 1];
+            wt[0] = first;
+            int sum = 0, largest = 1;
+            for (int k = 0; k < raw.length; k++) {
+                wt[k + 1] = total > 0 ? (int) Math.round(raw[k] / total * ONE) : ONE / raw.length;
+                sum += wt[k + 1];
+                if (wt[k + 1] > wt[largest]) {
+                    largest = k + 1;
+                }
+            }
+            wt[largest] += ONE - sum;
+            weights[i] = wt;
+        }
+        return weights;
+    }
+}
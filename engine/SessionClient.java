@@ -0,0 +1,479 @@
+package pain.t.engine;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares a document with other instances through a SessionRelay. Operations
+ * applied to the document are sent once per frame, and operations sent by the
+ * others are applied once per frame, in the order the relay passed them on.
+ *
+ * Local operations are shown right away, before the relay has ordered them.
+ * The client keeps the pixels as of the last operation ordered by the relay.
+ * When an operation of another client comes in before the local ones it was
+ * ordered ahead of, the region they touch is put back as it was, the other
+ * client's operation applied, and the local ones drawn again over it. Every
+ * client so ends up with the pixels of every operation applied in the relay's
+ * order.
+ *
+ * Everything but the sending and receiving happens on the thread calling
+ * frame(), which must be the one changing the document.
+ *
+ * @author Daniel Christensen
+ */
+public class SessionClient implements Document.Listener, Closeable {
+
+    /**
+     * Told about what the session does to the document.
+     */
+    public interface Handler {
+
+        /**
+         * Called when another client shared its picture. The document should
+         * show the new pixels from then on, through Document.setLayers().
+         *
+         * @param store the shared pixels
+         */
+        void replaced(TileStore store);
+
+        /**
+         * Called once the connection to the relay is lost.
+         *
+         * @param ex why it was lost, null if the relay closed it
+         */
+        void closed(IOException ex);
+    }
+
+    //the document shared
+    private final Document document;
+
+    //told about pictures and the end of the session
+    private final Handler handler;
+
+    //connection to the relay
+    private final Socket socket;
+
+    //messages received, waiting for the next frame
+    private final ConcurrentLinkedQueue<byte[]> incoming = new ConcurrentLinkedQueue<byte[]>();
+
+    //messages waiting to be written to the relay, an empty one stops the writing
+    private final BlockingQueue<byte[]> sending = new LinkedBlockingQueue<byte[]>();
+
+    //set by the receiving thread once the connection is lost
+    private volatile boolean ended = false;
+    private volatile IOException failure;
+
+    //this client's id, given by the relay
+    private int id = 0;
+
+    //the pixels as of the last operation ordered by the relay, null until there is a picture
+    private TileStore confirmed;
+
+    //true from sharing a picture until the relay passes it back
+    private boolean sharing = false;
+
+    //local operations not sent yet, and the ones sent but not passed back by the relay
+    private final List<Operation> outgoing = new ArrayList<Operation>();
+    private final ArrayDeque<Operation> pending = new ArrayDeque<Operation>();
+
+    //true while the client itself draws into the document
+    private boolean applying = false;
+
+    //traffic, in bytes
+    private final AtomicLong sent = new AtomicLong(), received = new AtomicLong();
+
+    /**
+     * Connects to a relay and starts listening to it. The document is only
+     * shared once a picture is: the one shared by share(), or the one the
+     * relay already has.
+     *
+     * @param host the relay's host
+     * @param port the relay's port
+     * @param document the document to share
+     * @param handler told about pictures shared by others and the end of the
+     * session
+     * @throws IOException if the relay cannot be reached
+     */
+    public SessionClient(String host, int port, Document document, Handler handler) throws IOException {
+        this.document = document;
+        this.handler = handler;
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        InputStream in = new BufferedInputStream(this.socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(this.socket.getOutputStream());
+
+        Thread receiving = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        byte[] message = WireCodec.readFrame(in);
+                        received.addAndGet(message.length);
+                        incoming.add(message);
+                    }
+                } catch (IOException ex) {
+                    if (!socket.isClosed()) {
+                        failure = ex;
+                    }
+                }
+                ended = true;
+            }
+        }, "Session receiver");
+        receiving.setDaemon(true);
+        receiving.start();
+
+        Thread writing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        byte[] message = sending.take();
+                        if (message.length == 0) {
+                            return;
+                        }
+                        WireCodec.writeFrame(out, message);
+                        sent.addAndGet(message.length);
+                        if (sending.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                } catch (IOException | InterruptedException ex) {
+                    //the connection is closed
+                }
+            }
+        }, "Session sender");
+        writing.setDaemon(true);
+        writing.start();
+
+        document.addListener(this);
+    }
+
+    /**
+     * Shares the document's pixels as they are, replacing the picture of
+     * every client.
+     */
+    public void share() {
+        TileStore store = this.document.getStore();
+        this.confirmed = copy(store);
+        this.pending.clear();
+        this.outgoing.clear();
+        this.sharing = true;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(SessionRelay.PICTURE);
+            WireCodec.writeVarint(out, store.getWidth());
+            WireCodec.writeVarint(out, store.getHeight());
+            out.writeInt(store.getFill());
+            for (int ty = 0; ty < store.getTilesY(); ty++) {
+                for (int tx = 0; tx < store.getTilesX(); tx++) {
+                    int[] tile = store.getTile(tx, ty);
+                    if (tile == null) {
+                        out.writeBoolean(false);
+                    } else {
+                        byte[] packed = OpCodec.deflate(tile, 0, tile.length);
+                        out.writeBoolean(true);
+                        WireCodec.writeVarint(out, packed.length);
+                        out.write(packed);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            //writing into memory does not fail
+        }
+        this.sending.add(bytes.toByteArray());
+    }
+
+    /**
+     * Sends the operations applied since the last frame as one message, and
+     * applies the operations received since then. Called once per frame.
+     *
+     * @return true if the document's pixels were changed
+     */
+    public boolean frame() {
+        if (!this.outgoing.isEmpty()) {
+            try {
+                byte[] ops = WireCodec.writeAll(this.outgoing);
+                byte[] message = new byte[ops.length + 1];
+                message[0] = SessionRelay.OPS;
+                System.arraycopy(ops, 0, message, 1, ops.length);
+                this.sending.add(message);
+                this.pending.addAll(this.outgoing);
+            } catch (IOException ex) {
+                //an operation that cannot be sent stays local
+            }
+            this.outgoing.clear();
+        }
+
+        boolean changed = false;
+        byte[] message;
+        while ((message = this.incoming.poll()) != null) {
+            try {
+                changed |= this.receive(message);
+            } catch (IOException ex) {
+                this.failure = ex;
+                this.close();
+            }
+        }
+
+        if (this.ended && this.incoming.isEmpty()) {
+            this.ended = false;
+            this.document.removeListener(this);
+            this.handler.closed(this.failure);
+        }
+        return changed;
+    }
+
+    /**
+     * Applies a message of the relay.
+     *
+     * @return true if the document's pixels were changed
+     */
+    private boolean receive(byte[] message) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+        byte type = in.readByte();
+        if (type == SessionRelay.WELCOME) {
+            this.id = (int) WireCodec.readVarint(in);
+            return false;
+        }
+
+        int origin = (int) WireCodec.readVarint(in);
+        if (type == SessionRelay.PICTURE) {
+            if (origin == this.id) {
+                this.sharing = false;
+                return false;
+            }
+            if (this.sharing) {
+                //the picture this client shared comes after it
+                return false;
+            }
+
+            TileStore store = readPicture(in);
+            this.confirmed = copy(store);
+            this.pending.clear();
+            this.outgoing.clear();
+            this.applying = true;
+            try {
+                this.handler.replaced(store);
+            } finally {
+                this.applying = false;
+            }
+            return true;
+        }
+
+        if (type != SessionRelay.OPS) {
+            throw new IOException("Unknown message type " + type);
+        }
+        if (this.confirmed == null || this.sharing) {
+            //no picture yet, or the picture this client shared replaces these
+            return false;
+        }
+
+        Operation[] ops = WireCodec.readAll(in);
+        if (origin == this.id) {
+            //already shown, they are now in order
+            for (int i = 0; i < ops.length && !this.pending.isEmpty(); i++) {
+                drawOn(this.confirmed, this.pending.poll());
+            }
+            return false;
+        }
+
+        for (Operation op : ops) {
+            drawOn(this.confirmed, op);
+        }
+
+        this.applying = true;
+        try {
+            if (this.pending.isEmpty() && this.outgoing.isEmpty()) {
+                for (Operation op : ops) {
+                    this.document.draw(op);
+                }
+            } else {
+                //the local operations come after these, draw them again over them
+                List<Operation> touching = new ArrayList<Operation>(Arrays.asList(ops));
+                touching.addAll(this.pending);
+                touching.addAll(this.outgoing);
+                Rectangle region = null;
+                for (Operation op : touching) {
+                    region = union(region, bounds(this.confirmed, op));
+                    if (op instanceof FillOp) {
+                        //how far a fill spread depends on the pixels, the document shows the local operations over them
+                        region = union(region, bounds(this.document.getStore(), op));
+                    }
+                }
+                if (region != null) {
+                    int[] pixels = new int[region.width * region.height];
+                    this.confirmed.read(region.x, region.y, region.width, region.height, pixels, 0, region.width);
+                    this.document.draw(new PixelsOp(region.x, region.y, region.width, region.height, pixels, false));
+                }
+                for (Operation op : this.pending) {
+                    this.document.draw(op);
+                }
+                for (Operation op : this.outgoing) {
+                    this.document.draw(op);
+                }
+            }
+        } finally {
+            this.applying = false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true once a picture is shared, operations are only sent then
+     */
+    public boolean isShared() {
+        return this.confirmed != null;
+    }
+
+    /**
+     * @return the number of local operations the relay has not ordered yet
+     */
+    public int getPending() {
+        return this.pending.size() + this.outgoing.size();
+    }
+
+    /**
+     * @return the bytes sent to the relay so far
+     */
+    public long getBytesSent() {
+        return this.sent.get();
+    }
+
+    /**
+     * @return the bytes received from the relay so far
+     */
+    public long getBytesReceived() {
+        return this.received.get();
+    }
+
+    /**
+     * Leaves the session. The document is kept as it is.
+     */
+    @Override
+    public void close() {
+        this.document.removeListener(this);
+        this.sending.add(new byte[0]);
+        try {
+            this.socket.close();
+        } catch (IOException ex) {
+            //already closed
+        }
+    }
+
+    @Override
+    public void applied(Operation op) {
+        if (!this.applying && this.confirmed != null) {
+            this.outgoing.add(op);
+        }
+    }
+
+    @Override
+    public void undone(Operation op) {
+        //undoing is turned off while sharing
+    }
+
+    @Override
+    public void redone(Operation op) {
+        //redoing is turned off while sharing
+    }
+
+    @Override
+    public void replaced(LayerStack layers) {
+        //an image opened in a shared document is shared with everyone
+        if (!this.applying && this.confirmed != null) {
+            this.share();
+        }
+    }
+
+    @Override
+    public void layersChanged(LayerStack layers) {
+        //layers cannot be changed while sharing
+    }
+
+    /**
+     * Reads a picture written by share().
+     */
+    private static TileStore readPicture(DataInputStream in) throws IOException {
+        int w = (int) WireCodec.readVarint(in);
+        int h = (int) WireCodec.readVarint(in);
+        TileStore store = new TileStore(w, h, in.readInt());
+        for (int ty = 0; ty < store.getTilesY(); ty++) {
+            for (int tx = 0; tx < store.getTilesX(); tx++) {
+                if (in.readBoolean()) {
+                    byte[] packed = new byte[(int) WireCodec.readVarint(in)];
+                    in.readFully(packed);
+                    int[] tile = new int[TileStore.TILE_SIZE * TileStore.TILE_SIZE];
+                    OpCodec.inflate(packed, 0, packed.length, tile);
+                    store.setTile(tx, ty, tile);
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Copies every tile of a store into a new one.
+     */
+    private static TileStore copy(TileStore store) {
+        TileStore copy = new TileStore(store.getWidth(), store.getHeight(), store.getFill());
+        for (int ty = 0; ty < store.getTilesY(); ty++) {
+            for (int tx = 0; tx < store.getTilesX(); tx++) {
+                int[] tile = store.copyTile(tx, ty);
+                if (tile != null) {
+                    copy.setTile(tx, ty, tile);
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Gets the part of a store an operation changes.
+     */
+    private static Rectangle bounds(TileStore store, Operation op) {
+        return op.getBounds(store).intersection(new Rectangle(0, 0, store.getWidth(), store.getHeight()));
+    }
+
+    /**
+     * Adds a rectangle to a region, leaving out empty rectangles.
+     *
+     * @param region the region so far, null if it is empty
+     * @return the new region, null if it is still empty
+     */
+    private static Rectangle union(Rectangle region, Rectangle r) {
+        if (r.isEmpty()) {
+            return region;
+        }
+        return region == null ? r : region.union(r);
+    }
+
+    /**
+     * Applies an operation to a store, as Document.draw() does.
+     */
+    private static void drawOn(TileStore store, Operation op) {
+        Rectangle clip = bounds(store, op);
+        if (!clip.isEmpty()) {
+            op.draw(store, clip);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package pain.t.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes the changes of a shared document between the instances editing it.
+ * Every message a client sends is stamped with the client's id and sent to
+ * every client, the sender included, in the order the relay received them.
+ * Clients apply the changes in that order, so they all end up with the same
+ * pixels.
+ *
+ * The relay keeps every message since the last picture a client shared, so a
+ * client joining later catches up. It never decodes operations, it only
+ * passes their bytes along.
+ *
+ * Run it on its own with <pre>gradle run --args="--relay 7070"</pre> or let an
+ * instance host it.
+ *
+ * @author Daniel Christensen
+ */
+public class SessionRelay implements Closeable {
+
+    //message types, from the relay to a client
+    static final byte WELCOME = 1;
+
+    //message types, from a client to every client
+    static final byte PICTURE = 2, OPS = 3;
+
+    //accepts the clients
+    private final ServerSocket server;
+
+    //the clients connected
+    private final List<Connection> clients = new ArrayList<Connection>();
+
+    //the messages since the last picture, as sent to the clients
+    private final List<byte[]> log = new ArrayList<byte[]>();
+
+    //id of the next client
+    private int nextId = 1;
+
+    /**
+     * Starts a relay accepting clients in the background.
+     *
+     * @param port the port to listen on, 0 for any free one
+     * @throws IOException if the port cannot be listened on
+     */
+    public SessionRelay(int port) throws IOException {
+        this.server = new ServerSocket();
+        this.server.setReuseAddress(true);
+        this.server.bind(new InetSocketAddress(port));
+
+        Thread accepting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "Session relay");
+        accepting.setDaemon(true);
+        accepting.start();
+    }
+
+    /**
+     * Runs a relay until the process is stopped.
+     *
+     * @param args the port to listen on
+     * @throws IOException if the port cannot be listened on
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+        SessionRelay relay = new SessionRelay(port);
+        System.out.println("Relaying on port " + relay.getPort());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * @return the port the relay listens on
+     */
+    public int getPort() {
+        return this.server.getLocalPort();
+    }
+
+    /**
+     * @return the number of clients connected
+     */
+    public synchronized int getClients() {
+        return this.clients.size();
+    }
+
+    /**
+     * Stops accepting clients and disconnects every one.
+     */
+    @Override
+    public void close() {
+        try {
+            this.server.close();
+        } catch (IOException ex) {
+            //closing anyway
+        }
+        synchronized (this) {
+            for (Connection c : this.clients) {
+                c.close();
+            }
+            this.clients.clear();
+            this.log.clear();
+        }
+    }
+
+    /**
+     * Accepts clients until the relay is closed.
+     */
+    private void accept() {
+        while (!this.server.isClosed()) {
+            try {
+                Socket socket = this.server.accept();
+                socket.setTcpNoDelay(true);
+                Connection c;
+                synchronized (this) {
+                    c = new Connection(this.nextId++, socket);
+
+                    //the client is told its id, then catches up
+                    ByteArrayOutputStream welcome = new ByteArrayOutputStream();
+                    welcome.write(WELCOME);
+                    WireCodec.writeVarint(new DataOutputStream(welcome), c.id);
+                    c.send(welcome.toByteArray());
+                    for (byte[] message : this.log) {
+                        c.send(message);
+                    }
+                    c.flush();
+                    this.clients.add(c);
+                }
+                c.start();
+            } catch (IOException ex) {
+                //the server was closed, or the client left right away
+            }
+        }
+    }
+
+    /**
+     * Sends a client's message to every client, and keeps it for the ones
+     * joining later.
+     *
+     * @param from the client
+     * @param message the message, its type first
+     */
+    private synchronized void relay(Connection from, byte[] message) throws IOException {
+        if (message.length == 0 || message[0] != PICTURE && message[0] != OPS) {
+            throw new IOException("Unknown message type");
+        }
+
+        //the message is stamped with its sender
+        ByteArrayOutputStream stamped = new ByteArrayOutputStream(message.length + 4);
+        stamped.write(message[0]);
+        WireCodec.writeVarint(new DataOutputStream(stamped), from.id);
+        stamped.write(message, 1, message.length - 1);
+        byte[] out = stamped.toByteArray();
+
+        //a picture replaces everything before it
+        if (message[0] == PICTURE) {
+            this.log.clear();
+        }
+        this.log.add(out);
+
+        for (Connection c : new ArrayList<Connection>(this.clients)) {
+            try {
+                c.send(out);
+                c.flush();
+            } catch (IOException ex) {
+                c.close();
+                this.clients.remove(c);
+            }
+        }
+    }
+
+    /**
+     * Forgets a client that left.
+     */
+    private synchronized void left(Connection c) {
+        c.close();
+        this.clients.remove(c);
+    }
+
+    /**
+     * A client connected to the relay.
+     */
+    private class Connection implements Runnable {
+
+        //the client's id, stamped on its messages
+        private final int id;
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Connection(int id, Socket socket) throws IOException {
+            this.id = id;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * Reads the client's messages in the background.
+         */
+        void start() {
+            Thread reading = new Thread(this, "Session client " + this.id);
+            reading.setDaemon(true);
+            reading.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    relay(this, WireCodec.readFrame(this.in));
+                }
+            } catch (IOException ex) {
+                left(this);
+            }
+        }
+
+        void send(byte[] message) throws IOException {
+            WireCodec.writeFrame(this.out, message);
+        }
+
+        void flush() throws IOException {
+            this.out.flush();
+        }
+
+        void close() {
+            try {
+                this.socket.close();
+            } catch (IOException ex) {
+                //already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package pain.t.engine;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * A line, rectangle or ellipse with an outline and a fill.
+ *
+ * @author Daniel Christensen
+ */
+public class ShapeOp extends PaintOperation {
+
+    /**
+     * The kinds of shapes that can be drawn.
+     */
+    public enum Kind {
+        LINE, RECT, ELLIPSE
+    }
+
+    //the kind of shape
+    private final Kind kind;
+
+    //line: start and end points. rect: position and size. ellipse: center and radii
+    private final double a, b, c, d;
+
+    //colors, as ARGB
+    private final int stroke, fill;
+
+    //outline width
+    private final double width;
+
+    /**
+     * Creates a new shape.
+     *
+     * @param kind the kind of shape
+     * @param a line start x, rectangle x or ellipse center x
+     * @param b line start y, rectangle y or ellipse center y
+     * @param c line end x, rectangle width or ellipse x radius
+     * @param d line end y, rectangle height or ellipse y radius
+     * @param stroke outline color, as ARGB
+     * @param fill fill color, as ARGB. Lines are not filled.
+     * @param width outline width
+     */
+    public ShapeOp(Kind kind, double a, double b, double c, double d, int stroke, int fill, double width) {
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+        this.stroke = stroke;
+        this.fill = fill;
+        this.width = width;
+    }
+
+    /**
+     * @return the kind of shape
+     */
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    /**
+     * Gets the geometry of the shape.
+     *
+     * @return the line's points, the rectangle's position and size or the
+     * ellipse's center and radii
+     */
+    public double[] getGeometry() {
+        return new double[]{this.a, this.b, this.c, this.d};
+    }
+
+    /**
+     * @return the outline color, as ARGB
+     */
+    public int getStroke() {
+        return this.stroke;
+    }
+
+    /**
+     * @return the fill color, as ARGB
+     */
+    public int getFill() {
+        return this.fill;
+    }
+
+    /**
+     * @return the outline width
+     */
+    public double getWidth() {
+        return this.width;
+    }
+
+    @Override
+    public Rectangle getBounds() {
+        //square caps and miter joins can reach further than half the width
+        double pad = this.width + 2;
+        Rectangle2D r = this.toShape().getBounds2D();
+        return new Rectangle2D.Double(r.getX() - pad, r.getY() - pad, r.getWidth() + pad * 2, r.getHeight() + pad * 2).getBounds();
+    }
+
+    @Override
+    protected void paint(Graphics2D g) {
+        Shape s = this.toShape();
+
+        if (this.kind != Kind.LINE && (this.fill >>> 24) != 0) {
+            g.setColor(color(this.fill));
+            g.fill(s);
+        }
+        if (this.width > 0 && (this.stroke >>> 24) != 0) {
+            g.setColor(color(this.stroke));
+            g.setStroke(new BasicStroke((float) this.width, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER));
+            g.draw(s);
+        }
+    }
+
+    /**
+     * Makes the Java2D shape to draw.
+     */
+    private Shape toShape() {
+        switch (this.kind) {
+            case LINE:
+                return new Line2D.Double(this.a, this.b, this.c, this.d);
+            case RECT:
+                return new Rectangle2D.Double(this.a, this.b, this.c, this.d);
+            default:
+                return new Ellipse2D.Double(this.a - this.c, this.b - this.d, this.c * 2, this.d * 2);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package pain.t.engine;
+
+/**
+ * Sharpens edges with an unsharp mask: the difference between the image and a
+ * blurred copy of it is added back to the image. Transparency is kept.
+ *
+ * @author Daniel Christensen
+ */
+public class SharpenFilter extends Filter {
+
+    //the blur the image is compared to
+    private final BlurFilter blur;
+
+    //how much of the difference is added, 1 doubles it
+    private final double amount;
+
+    /**
+     * Creates a new sharpen filter.
+     *
+     * @param radius how far from an edge it is sharpened, in pixels
+     * @param amount how much the edges are sharpened, 0 changes nothing
+     */
+    public SharpenFilter(double radius, double amount) {
+        this.blur = new BlurFilter(radius);
+        this.amount = Math.max(0, amount);
+    }
+
+    @Override
+    public Kind getKind() {
+        return Kind.SHARPEN;
+    }
+
+    @Override
+    public double[] getParameters() {
+        return new double[]{this.blur.getParameters()[0], this.amount};
+    }
+
+    @Override
+    public int getRadius() {
+        return this.blur.getRadius();
+    }
+
+    @Override
+    public Filter scaled(double scale) {
+        return new SharpenFilter(this.blur.getParameters()[0] * scale, this.amount);
+    }
+
+    @Override
+    public void apply(int[] src, int w, int h, int[] dst) {
+        int r = this.blur.getRadius();
+        int ow = w - 2 * r;
+        int oh = h - 2 * r;
+        this.blur.apply(src, w, h, dst);
+
+        //the amount as fixed point, out of 256
+        int k = (int) Math.round(this.amount * 256);
+        for (int y = 0; y < oh; y++) {
+            for (int x = 0; x < ow; x++) {
+                int c = src[(y + r) * w + x + r];
+                int b = dst[y * ow + x];
+                dst[y * ow + x] = (c & 0xff000000)
+                        | (sharpen((c >> 16) & 0xff, (b >> 16) & 0xff, k) << 16)
+                        | (sharpen((c >> 8) & 0xff, (b >> 8) & 0xff, k) << 8)
+                        | sharpen(c & 0xff, b & 0xff, k);
+            }
+        }
+    }
+
+    /**
+     * Pushes a channel value away from its blurred value.
+     */
+    private static int sharpen(int v, int blurred, int k) {
+        return Math.max(0, Math.min(255, v + (((v - blurred) * k) >> 8)));
+    }
+}
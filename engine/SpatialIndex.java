@@ -0,0 +1,407 @@
+package pain.t.engine;
+
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the objects under a point, inside a rectangle or along a stroke
+ * without looking at every object. Objects are kept by their bounding box in a
+ * uniform grid of square cells, so a query only visits the cells it touches.
+ * Objects covering too many cells are kept in a separate list that every query
+ * checks, so a huge shape does not fill the whole grid.
+ *
+ * Only bounding boxes are compared, the caller checks the exact shape of the
+ * objects found if it needs to. Results are in the order the objects were
+ * added, from the bottom to the top.
+ *
+ * @param <T> the type of objects indexed, compared by identity
+ * @author Daniel Christensen
+ */
+public class SpatialIndex<T> {
+
+    //default width and height of a cell, in pixels
+    public static final double DEFAULT_CELL = 128;
+
+    //objects covering more cells than this are not put in the grid
+    private static final int MAX_CELLS = 256;
+
+    //sorts the results from the bottom to the top
+    private static final Comparator<Entry<?>> BY_ORDER = new Comparator<Entry<?>>() {
+        @Override
+        public int compare(Entry<?> a, Entry<?> b) {
+            return Long.compare(a.order, b.order);
+        }
+    };
+
+    //width and height of a cell
+    private final double cell;
+
+    //the objects in each cell, by cell key
+    private final Map<Long, List<Entry<T>>> cells = new HashMap<Long, List<Entry<T>>>();
+
+    //every object and where it is
+    private final Map<T, Entry<T>> entries = new IdentityHashMap<T, Entry<T>>();
+
+    //objects too large for the grid
+    private final List<Entry<T>> large = new ArrayList<Entry<T>>();
+
+    //number given to the next object added, and to the next query
+    private long nextOrder = 0;
+    private int stamp = 0;
+
+    /**
+     * Creates a new empty index with the default cell size.
+     */
+    public SpatialIndex() {
+        this(DEFAULT_CELL);
+    }
+
+    /**
+     * Creates a new empty index.
+     *
+     * @param cell width and height of a cell, in pixels
+     */
+    public SpatialIndex(double cell) {
+        this.cell = cell;
+    }
+
+    /**
+     * Adds an object, or moves it if it is already indexed. A moved object
+     * keeps its place in the order.
+     *
+     * @param item the object
+     * @param x bounding box x position
+     * @param y bounding box y position
+     * @param w bounding box width
+     * @param h bounding box height
+     */
+    public void put(T item, double x, double y, double w, double h) {
+        Entry<T> e = this.entries.get(item);
+        if (e == null) {
+            e = new Entry<T>(item, this.nextOrder++);
+            this.entries.put(item, e);
+        } else {
+            this.unlink(e);
+        }
+
+        e.minX = x;
+        e.minY = y;
+        e.maxX = x + w;
+        e.maxY = y + h;
+        this.link(e);
+    }
+
+    /**
+     * Removes an object.
+     *
+     * @param item the object
+     * @return true if the object was indexed
+     */
+    public boolean remove(T item) {
+        Entry<T> e = this.entries.remove(item);
+        if (e == null) {
+            return false;
+        }
+        this.unlink(e);
+        return true;
+    }
+
+    /**
+     * @param item the object
+     * @return true if the object is indexed
+     */
+    public boolean contains(T item) {
+        return this.entries.containsKey(item);
+    }
+
+    /**
+     * @return the number of objects indexed
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Removes every object.
+     */
+    public void clear() {
+        this.cells.clear();
+        this.entries.clear();
+        this.large.clear();
+    }
+
+    /**
+     * Finds the objects whose bounding box contains a point.
+     *
+     * @param x point x position
+     * @param y point y position
+     * @return the objects, from the bottom to the top
+     */
+    public List<T> query(double x, double y) {
+        List<Entry<T>> found = new ArrayList<Entry<T>>();
+
+        //a point is in a single cell, nothing can be found twice
+        List<Entry<T>> cell = this.cells.get(key(this.cellOf(x), this.cellOf(y)));
+        if (cell != null) {
+            for (Entry<T> e : cell) {
+                if (e.contains(x, y)) {
+                    found.add(e);
+                }
+            }
+        }
+        for (Entry<T> e : this.large) {
+            if (e.contains(x, y)) {
+                found.add(e);
+            }
+        }
+        return results(found);
+    }
+
+    /**
+     * Finds the objects whose bounding box intersects a rectangle.
+     *
+     * @param x rectangle x position
+     * @param y rectangle y position
+     * @param w rectangle width
+     * @param h rectangle height
+     * @return the objects, from the bottom to the top
+     */
+    public List<T> query(double x, double y, double w, double h) {
+        List<Entry<T>> found = new ArrayList<Entry<T>>();
+        int stamp = ++this.stamp;
+        double maxX = x + w;
+        double maxY = y + h;
+
+        int cx0 = this.cellOf(x), cy0 = this.cellOf(y), cx1 = this.cellOf(maxX), cy1 = this.cellOf(maxY);
+        if ((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > this.entries.size()) {
+            //the rectangle covers more cells than there are objects, check them all
+            for (Entry<T> e : this.entries.values()) {
+                if (e.intersects(x, y, maxX, maxY)) {
+                    found.add(e);
+                }
+            }
+            return results(found);
+        }
+
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                List<Entry<T>> cell = this.cells.get(key(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (Entry<T> e : cell) {
+                    if (e.stamp != stamp && e.intersects(x, y, maxX, maxY)) {
+                        e.stamp = stamp;
+                        found.add(e);
+                    }
+                }
+            }
+        }
+        for (Entry<T> e : this.large) {
+            if (e.intersects(x, y, maxX, maxY)) {
+                found.add(e);
+            }
+        }
+        return results(found);
+    }
+
+    /**
+     * Finds the objects whose bounding box comes within a distance of a
+     * stroke, such as the path of an eraser.
+     *
+     * @param points x and y of every point of the stroke, one after the other
+     * @param count number of points
+     * @param radius largest distance from the stroke
+     * @return the objects, from the bottom to the top
+     */
+    public List<T> query(float[] points, int count, double radius) {
+        List<Entry<T>> found = new ArrayList<Entry<T>>();
+        int stamp = ++this.stamp;
+        Line2D.Double segment = new Line2D.Double();
+
+        for (int i = 0; i < count; i++) {
+            //a single point is a segment of no length
+            int j = Math.max(i - 1, 0);
+            segment.setLine(points[j * 2], points[j * 2 + 1], points[i * 2], points[i * 2 + 1]);
+            if (i == 0 && count > 1) {
+                continue;
+            }
+
+            int cx0 = this.cellOf(Math.min(segment.x1, segment.x2) - radius);
+            int cy0 = this.cellOf(Math.min(segment.y1, segment.y2) - radius);
+            int cx1 = this.cellOf(Math.max(segment.x1, segment.x2) + radius);
+            int cy1 = this.cellOf(Math.max(segment.y1, segment.y2) + radius);
+            for (int cy = cy0; cy <= cy1; cy++) {
+                for (int cx = cx0; cx <= cx1; cx++) {
+                    List<Entry<T>> cell = this.cells.get(key(cx, cy));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (Entry<T> e : cell) {
+                        if (e.stamp != stamp && e.near(segment, radius)) {
+                            e.stamp = stamp;
+                            found.add(e);
+                        }
+                    }
+                }
+            }
+            for (Entry<T> e : this.large) {
+                if (e.stamp != stamp && e.near(segment, radius)) {
+                    e.stamp = stamp;
+                    found.add(e);
+                }
+            }
+        }
+        return results(found);
+    }
+
+    /**
+     * Sorts the entries found from the bottom to the top and gets their objects.
+     */
+    private static <T> List<T> results(List<Entry<T>> found) {
+        Collections.sort(found, BY_ORDER);
+        List<T> items = new ArrayList<T>(found.size());
+        for (Entry<T> e : found) {
+            items.add(e.item);
+        }
+        return items;
+    }
+
+    /**
+     * Puts an entry in the cells under its bounding box, or in the large list.
+     */
+    private void link(Entry<T> e) {
+        e.cx0 = this.cellOf(e.minX);
+        e.cy0 = this.cellOf(e.minY);
+        e.cx1 = this.cellOf(e.maxX);
+        e.cy1 = this.cellOf(e.maxY);
+
+        if ((long) (e.cx1 - e.cx0 + 1) * (e.cy1 - e.cy0 + 1) > MAX_CELLS) {
+            e.large = true;
+            this.large.add(e);
+            return;
+        }
+
+        e.large = false;
+        for (int cy = e.cy0; cy <= e.cy1; cy++) {
+            for (int cx = e.cx0; cx <= e.cx1; cx++) {
+                List<Entry<T>> cell = this.cells.get(key(cx, cy));
+                if (cell == null) {
+                    cell = new ArrayList<Entry<T>>(4);
+                    this.cells.put(key(cx, cy), cell);
+                }
+                cell.add(e);
+            }
+        }
+    }
+
+    /**
+     * Takes an entry out of the cells it is in.
+     */
+    private void unlink(Entry<T> e) {
+        if (e.large) {
+            this.large.remove(e);
+            return;
+        }
+
+        for (int cy = e.cy0; cy <= e.cy1; cy++) {
+            for (int cx = e.cx0; cx <= e.cx1; cx++) {
+                Long key = key(cx, cy);
+                List<Entry<T>> cell = this.cells.get(key);
+                if (cell != null) {
+                    cell.remove(e);
+                    if (cell.isEmpty()) {
+                        this.cells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the column or row of the cell holding a coordinate.
+     */
+    private int cellOf(double v) {
+        return (int) Math.floor(v / this.cell);
+    }
+
+    /**
+     * Gets the key of a cell in the map.
+     */
+    private static Long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    /**
+     * An indexed object with its bounding box and the cells it is in.
+     */
+    private static class Entry<T> {
+
+        //the object, and when it was added
+        private final T item;
+        private final long order;
+
+        //bounding box
+        private double minX, minY, maxX, maxY;
+
+        //cells covered by the bounding box
+        private int cx0, cy0, cx1, cy1;
+
+        //true if kept in the large list instead of the grid
+        private boolean large;
+
+        //last query that found this entry, so it is found once
+        private int stamp;
+
+        Entry(T item, long order) {
+            this.item = item;
+            this.order = order;
+        }
+
+        boolean contains(double x, double y) {
+            return x >= this.minX && x <= this.maxX && y >= this.minY && y <= this.maxY;
+        }
+
+        boolean intersects(double x0, double y0, double x1, double y1) {
+            return this.minX <= x1 && this.maxX >= x0 && this.minY <= y1 && this.maxY >= y0;
+        }
+
+        /**
+         * Checks if the bounding box comes within a distance of a segment.
+         */
+        boolean near(Line2D segment, double radius) {
+            //quick rejection with the box grown by the radius
+            if (!this.intersects(Math.min(segment.getX1(), segment.getX2()) - radius, Math.min(segment.getY1(), segment.getY2()) - radius,
+                    Math.max(segment.getX1(), segment.getX2()) + radius, Math.max(segment.getY1(), segment.getY2()) + radius)) {
+                return false;
+            }
+
+            Rectangle2D box = new Rectangle2D.Double(this.minX, this.minY, this.maxX - this.minX, this.maxY - this.minY);
+            if (box.contains(segment.getP1()) || box.intersectsLine(segment)) {
+                return true;
+            }
+
+            //the closest points are a corner of the box or an end of the segment
+            double r2 = radius * radius;
+            return segment.ptSegDistSq(this.minX, this.minY) <= r2 || segment.ptSegDistSq(this.maxX, this.minY) <= r2
+                    || segment.ptSegDistSq(this.minX, this.maxY) <= r2 || segment.ptSegDistSq(this.maxX, this.maxY) <= r2
+                    || distanceSq(segment.getX1(), segment.getY1()) <= r2 || distanceSq(segment.getX2(), segment.getY2()) <= r2;
+        }
+
+        /**
+         * Gets the squared distance between a point and the bounding box.
+         */
+        double distanceSq(double x, double y) {
+            double dx = Math.max(Math.max(this.minX - x, 0), x - this.maxX);
+            double dy = Math.max(Math.max(this.minY - y, 0), y - this.maxY);
+            return dx * dx + dy * dy;
+        }
+    }
+}
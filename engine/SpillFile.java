@@ -0,0 +1,159 @@
+package pain.t.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A temporary file holding the tiles of a store that was let go of to save
+ * memory. The tiles are written as they are, without compressing them, so
+ * spilling and reading them back is about as quick as the disk. Tiles the
+ * store never read from its own source, such as a project file, are not
+ * written, they are still read from there.
+ *
+ * A store is spilled into the same file every time, and tiles that did not
+ * change since they were last written are not written again.
+ *
+ * @author Daniel Christensen
+ */
+public class SpillFile implements TileSource {
+
+    //bytes of one tile in the file
+    private static final int TILE_BYTES = TileStore.TILE_SIZE * TileStore.TILE_SIZE * 4;
+
+    //where a tile is in the file when it only holds the fill color, or is still in the previous source
+    private static final long FILL = -1;
+    private static final long PREVIOUS = -2;
+
+    //the store spilled
+    private final TileStore store;
+
+    //where the store's tiles came from before it was first spilled, null if nowhere
+    private final TileSource previous;
+
+    //the file and its channel
+    private final File file;
+    private final FileChannel channel;
+
+    //position of each tile in the file
+    private final long[] offsets;
+
+    //version of each tile when it was written
+    private final int[] versions;
+
+    //end of the file, where the next tile goes
+    private long end = 0;
+
+    /**
+     * Creates the file of a store, used by spill().
+     */
+    private SpillFile(TileStore store) throws IOException {
+        this.store = store;
+        this.previous = store.getSource();
+        this.file = File.createTempFile("paint-spill", ".tiles");
+        this.file.deleteOnExit();
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.offsets = new long[store.getTilesX() * store.getTilesY()];
+        this.versions = new int[this.offsets.length];
+        Arrays.fill(this.offsets, PREVIOUS);
+        Arrays.fill(this.versions, -1);
+    }
+
+    /**
+     * Writes the tiles of a store into its spill file and lets go of them.
+     * They are read back one at a time as they are used again.
+     *
+     * @param store the store to spill
+     * @return the store's spill file
+     * @throws IOException if the tiles could not be written, the store keeps
+     * them then
+     */
+    public static SpillFile spill(TileStore store) throws IOException {
+        SpillFile spill = store.getSource() instanceof SpillFile && ((SpillFile) store.getSource()).store == store
+                ? (SpillFile) store.getSource() : new SpillFile(store);
+        spill.write();
+        store.unload(spill);
+        return spill;
+    }
+
+    /**
+     * Writes the tiles that are in memory and changed since they were last
+     * written.
+     */
+    private synchronized void write() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(TILE_BYTES);
+        for (int ty = 0; ty < this.store.getTilesY(); ty++) {
+            for (int tx = 0; tx < this.store.getTilesX(); tx++) {
+                int i = ty * this.store.getTilesX() + tx;
+                if (!this.store.isLoaded(tx, ty) || this.versions[i] == this.store.getVersion(tx, ty)) {
+                    continue;
+                }
+
+                int[] tile = this.store.getTile(tx, ty);
+                this.versions[i] = this.store.getVersion(tx, ty);
+                if (tile == null) {
+                    this.offsets[i] = FILL;
+                    continue;
+                }
+
+                buffer.clear();
+                buffer.asIntBuffer().put(tile);
+                while (buffer.hasRemaining()) {
+                    this.channel.write(buffer, this.end + buffer.position());
+                }
+                this.offsets[i] = this.end;
+                this.end += TILE_BYTES;
+            }
+        }
+    }
+
+    @Override
+    public synchronized int[] loadTile(int tx, int ty) {
+        long pos = this.offsets[ty * this.store.getTilesX() + tx];
+        if (pos == FILL) {
+            return null;
+        } else if (pos == PREVIOUS) {
+            return this.previous != null ? this.previous.loadTile(tx, ty) : null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(TILE_BYTES);
+        try {
+            while (buffer.hasRemaining()) {
+                if (this.channel.read(buffer, pos + buffer.position()) < 0) {
+                    throw new IOException("The spill file was cut short");
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        int[] tile = new int[TileStore.TILE_SIZE * TileStore.TILE_SIZE];
+        buffer.flip();
+        buffer.asIntBuffer().get(tile);
+        return tile;
+    }
+
+    /**
+     * @return the size of the file, in bytes
+     */
+    public long getSize() {
+        return this.end;
+    }
+
+    /**
+     * Closes and deletes the file. The store cannot read its spilled tiles
+     * anymore, so this is only done once it is not used.
+     */
+    public synchronized void close() {
+        try {
+            this.channel.close();
+        } catch (IOException ex) {
+            //nothing left to do with it
+        }
+        this.file.delete();
+    }
+}
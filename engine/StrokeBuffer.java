@@ -0,0 +1,148 @@
+package pain.t.engine;
+
+import java.util.Arrays;
+
+/**
+ * The points of a free hand stroke, kept as pairs of floats in a growing
+ * array. Points are simplified as they are added: a point is dropped when the
+ * line that skips it stays within the tolerance of every point skipped so far,
+ * so straight parts of a stroke only keep their ends. Adding a point does not
+ * allocate unless the array has to grow.
+ *
+ * @author Daniel Christensen
+ */
+public class StrokeBuffer {
+
+    //most skipped points checked against a new segment, bounds the work per point
+    private static final int MAX_SKIPPED = 64;
+
+    //x and y of every kept point, one after the other
+    private float[] points;
+
+    //number of kept points
+    private int size = 0;
+
+    //points dropped since the second to last kept point, as x and y pairs
+    private final float[] skipped = new float[MAX_SKIPPED * 2];
+    private int skippedCount = 0;
+
+    //largest distance allowed between a dropped point and the stroke
+    private final float tolerance;
+
+    /**
+     * Creates a new empty stroke.
+     *
+     * @param tolerance largest distance, in pixels, between a dropped point and
+     * the simplified stroke. 0 keeps every point.
+     */
+    public StrokeBuffer(double tolerance) {
+        this.tolerance = (float) tolerance;
+        this.points = new float[64];
+    }
+
+    /**
+     * Adds a point at the end of the stroke. The last point kept so far may be
+     * replaced by this one if it is not needed to stay within the tolerance.
+     *
+     * @param x point x position
+     * @param y point y position
+     */
+    public void add(double x, double y) {
+        float fx = (float) x;
+        float fy = (float) y;
+
+        if (this.size >= 2) {
+            //ignore points on top of the last one
+            float lx = this.points[this.size * 2 - 2];
+            float ly = this.points[this.size * 2 - 1];
+            if (Math.abs(fx - lx) < 0.5f && Math.abs(fy - ly) < 0.5f) {
+                return;
+            }
+
+            //try to skip the last point: the new segment must stay close to it and to the ones skipped before
+            float px = this.points[this.size * 2 - 4];
+            float py = this.points[this.size * 2 - 3];
+            if (this.skippedCount < MAX_SKIPPED && distance(lx, ly, px, py, fx, fy) <= this.tolerance && this.fits(px, py, fx, fy)) {
+                this.skipped[this.skippedCount * 2] = lx;
+                this.skipped[this.skippedCount * 2 + 1] = ly;
+                this.skippedCount++;
+                this.points[this.size * 2 - 2] = fx;
+                this.points[this.size * 2 - 1] = fy;
+                return;
+            }
+            this.skippedCount = 0;
+        }
+
+        if (this.size * 2 == this.points.length) {
+            this.points = Arrays.copyOf(this.points, this.points.length * 2);
+        }
+        this.points[this.size * 2] = fx;
+        this.points[this.size * 2 + 1] = fy;
+        this.size++;
+    }
+
+    /**
+     * @return the number of points kept
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param i index of a kept point
+     * @return the x position of the point
+     */
+    public double getX(int i) {
+        return this.points[i * 2];
+    }
+
+    /**
+     * @param i index of a kept point
+     * @return the y position of the point
+     */
+    public double getY(int i) {
+        return this.points[i * 2 + 1];
+    }
+
+    /**
+     * Copies the kept points, as x and y pairs.
+     *
+     * @return a new array of 2 * size() floats
+     */
+    public float[] toArray() {
+        return Arrays.copyOf(this.points, this.size * 2);
+    }
+
+    /**
+     * Shrinks the array to the number of kept points. Called once the stroke is
+     * finished.
+     */
+    public void trim() {
+        this.points = Arrays.copyOf(this.points, Math.max(this.size * 2, 2));
+    }
+
+    /**
+     * Checks that every skipped point stays within the tolerance of a segment.
+     */
+    private boolean fits(float ax, float ay, float bx, float by) {
+        for (int i = 0; i < this.skippedCount; i++) {
+            if (distance(this.skipped[i * 2], this.skipped[i * 2 + 1], ax, ay, bx, by) > this.tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Distance between a point and a segment.
+     */
+    private static float distance(float x, float y, float ax, float ay, float bx, float by) {
+        float dx = bx - ax;
+        float dy = by - ay;
+        float len = dx * dx + dy * dy;
+        float t = len == 0 ? 0 : Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / len));
+        float ex = ax + t * dx - x;
+        float ey = ay + t * dy - y;
+        return (float) Math.sqrt(ex * ex + ey * ey);
+    }
+}
@@ -0,0 +1,119 @@
+package pain.t.engine;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Path2D;
+
+/**
+ * A free hand stroke, or an eraser stroke.
+ *
+ * @author Daniel Christensen
+ */
+public class StrokeOp extends PaintOperation {
+
+    //the points of the stroke, as x and y pairs
+    private final float[] points;
+
+    //stroke color, as ARGB
+    private final int color;
+
+    //stroke width
+    private final double width;
+
+    //true for the eraser
+    private final boolean erase;
+
+    /**
+     * Creates a new stroke.
+     *
+     * @param points the points of the stroke, as x and y pairs. It is used as
+     * is, not copied.
+     * @param color stroke color, as ARGB
+     * @param width stroke width
+     * @param erase true if the stroke replaces the pixels under it with its
+     * color instead of blending over them
+     */
+    public StrokeOp(float[] points, int color, double width, boolean erase) {
+        this.points = points;
+        this.color = color;
+        this.width = width;
+        this.erase = erase;
+    }
+
+    /**
+     * @return the points of the stroke, as x and y pairs
+     */
+    public float[] getPoints() {
+        return this.points;
+    }
+
+    /**
+     * @return the stroke color, as ARGB
+     */
+    public int getColor() {
+        return this.color;
+    }
+
+    /**
+     * @return the stroke width
+     */
+    public double getWidth() {
+        return this.width;
+    }
+
+    /**
+     * @return true if the stroke erases
+     */
+    public boolean isErase() {
+        return this.erase;
+    }
+
+    @Override
+    public long getMemorySize() {
+        return 64 + this.points.length * 4L;
+    }
+
+    @Override
+    public Rectangle getBounds() {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < this.points.length; i += 2) {
+            minX = Math.min(minX, this.points[i]);
+            maxX = Math.max(maxX, this.points[i]);
+            minY = Math.min(minY, this.points[i + 1]);
+            maxY = Math.max(maxY, this.points[i + 1]);
+        }
+
+        int pad = (int) Math.ceil(this.width / 2) + 2;
+        return new Rectangle((int) Math.floor(minX) - pad, (int) Math.floor(minY) - pad,
+                (int) Math.ceil(maxX - minX) + pad * 2 + 1, (int) Math.ceil(maxY - minY) + pad * 2 + 1);
+    }
+
+    @Override
+    protected void paint(Graphics2D g) {
+        if (this.points.length < 2) {
+            return;
+        }
+
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, this.points.length / 2);
+        path.moveTo(this.points[0], this.points[1]);
+        for (int i = 2; i < this.points.length; i += 2) {
+            path.lineTo(this.points[i], this.points[i + 1]);
+        }
+
+        //a single point is drawn as a dot
+        if (this.points.length == 2) {
+            path.lineTo(this.points[0], this.points[1]);
+        }
+
+        //the eraser replaces pixels instead of blending over them
+        if (this.erase) {
+            g.setComposite(AlphaComposite.Src);
+        }
+        g.setColor(color(this.color));
+        g.setStroke(new BasicStroke((float) this.width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.draw(path);
+    }
+}
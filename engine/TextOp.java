@@ -0,0 +1,142 @@
+package pain.t.engine;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+/**
+ * A line of text, drawn with an outline and a fill. The text is rasterized
+ * through the shared GlyphCache, and blended over the pixels every time it is
+ * drawn.
+ *
+ * @author Daniel Christensen
+ */
+public class TextOp extends PaintOperation {
+
+    //font family text is drawn with
+    private static final String FAMILY = Font.SANS_SERIF;
+
+    //position of the start of the text's baseline
+    private final double x, y;
+
+    //the text to draw
+    private final String text;
+
+    //font size, in pixels
+    private final double size;
+
+    //colors, as ARGB
+    private final int stroke, fill;
+
+    /**
+     * Creates new text.
+     *
+     * @param x x position of the start of the baseline
+     * @param y y position of the baseline
+     * @param text the text to draw
+     * @param size font size, in pixels
+     * @param stroke outline color, as ARGB
+     * @param fill fill color, as ARGB
+     */
+    public TextOp(double x, double y, String text, double size, int stroke, int fill) {
+        this.x = x;
+        this.y = y;
+        this.text = text;
+        this.size = size;
+        this.stroke = stroke;
+        this.fill = fill;
+    }
+
+    /**
+     * @return the x position of the start of the baseline
+     */
+    public double getX() {
+        return this.x;
+    }
+
+    /**
+     * @return the y position of the baseline
+     */
+    public double getY() {
+        return this.y;
+    }
+
+    /**
+     * @return the text
+     */
+    public String getText() {
+        return this.text;
+    }
+
+    /**
+     * @return the font size, in pixels
+     */
+    public double getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return the outline color, as ARGB
+     */
+    public int getStroke() {
+        return this.stroke;
+    }
+
+    /**
+     * @return the fill color, as ARGB
+     */
+    public int getFill() {
+        return this.fill;
+    }
+
+    @Override
+    public Rectangle getBounds() {
+        if (this.text.isEmpty()) {
+            return new Rectangle((int) this.x, (int) this.y, 0, 0);
+        }
+        GlyphCache.Run run = this.run();
+        return new Rectangle((int) Math.floor(this.x) + run.x, (int) Math.floor(this.y) + run.y, run.w, run.h);
+    }
+
+    @Override
+    public void draw(TileStore store, Rectangle clip) {
+        if (this.text.isEmpty()) {
+            return;
+        }
+
+        //blend the rasterized text instead of laying it out and painting it again
+        GlyphCache.Run run = this.run();
+        int rx = (int) Math.floor(this.x) + run.x;
+        int ry = (int) Math.floor(this.y) + run.y;
+        int[] dst = new int[clip.width * clip.height];
+        store.read(clip.x, clip.y, clip.width, clip.height, dst, 0, clip.width);
+        for (int row = 0; row < clip.height; row++) {
+            int s = (clip.y + row - ry) * run.w + clip.x - rx;
+            int d = row * clip.width;
+            for (int col = 0; col < clip.width; col++) {
+                dst[d + col] = Pixels.blend(dst[d + col], run.pixels[s + col]);
+            }
+        }
+        store.write(clip.x, clip.y, clip.width, clip.height, dst, 0, clip.width);
+    }
+
+    @Override
+    protected void paint(Graphics2D g) {
+        if (this.text.isEmpty()) {
+            return;
+        }
+
+        GlyphCache.Run run = this.run();
+        g.drawImage(PaintOperation.wrap(run.pixels, run.w, run.h),
+                (int) Math.floor(this.x) + run.x, (int) Math.floor(this.y) + run.y, null);
+    }
+
+    /**
+     * Gets the text laid out and rasterized. It is not kept by the operation,
+     * so text in the history does not hold on to its pixels.
+     */
+    private GlyphCache.Run run() {
+        return GlyphCache.run(this.text, FAMILY, this.size, this.x - Math.floor(this.x),
+                this.y - Math.floor(this.y), this.stroke, this.fill);
+    }
+}
@@ -0,0 +1,201 @@
+package pain.t.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A change made to the pixels of a TileStore. Keeps a copy of every tile the
+ * change touched, from before and after the change, so it can be undone and
+ * redone. Once compacted, the copies are kept compressed and only expanded
+ * when needed.
+ *
+ * @author Daniel Christensen
+ */
+public class TilePatch implements Command {
+
+    //the store that was changed
+    private final TileStore store;
+
+    //columns and rows of the touched tiles
+    private final int[] columns, rows;
+
+    //copies of the touched tiles, null for tiles that were never written
+    private int[][] before, after;
+
+    //the same copies once compressed
+    private byte[][] beforeZ, afterZ;
+
+    /**
+     * Starts recording a change by copying the tiles of a region. Call finish()
+     * once the region has been changed.
+     *
+     * @param store the store about to be changed
+     * @param x region x position
+     * @param y region y position
+     * @param w region width
+     * @param h region height
+     */
+    public TilePatch(TileStore store, int x, int y, int w, int h) {
+        this.store = store;
+
+        int tx0 = x / TileStore.TILE_SIZE;
+        int ty0 = y / TileStore.TILE_SIZE;
+        int tx1 = (x + w - 1) / TileStore.TILE_SIZE;
+        int ty1 = (y + h - 1) / TileStore.TILE_SIZE;
+        int count = (tx1 - tx0 + 1) * (ty1 - ty0 + 1);
+
+        this.columns = new int[count];
+        this.rows = new int[count];
+        this.before = new int[count][];
+
+        int i = 0;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                this.columns[i] = tx;
+                this.rows[i] = ty;
+                this.before[i] = store.copyTile(tx, ty);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Copies the tiles after the change.
+     *
+     * @return this patch
+     */
+    public TilePatch finish() {
+        this.after = new int[this.columns.length][];
+        for (int i = 0; i < this.columns.length; i++) {
+            this.after[i] = this.store.copyTile(this.columns[i], this.rows[i]);
+        }
+        return this;
+    }
+
+    @Override
+    public void undo() {
+        this.restore(this.before, this.beforeZ);
+    }
+
+    @Override
+    public void redo() {
+        this.restore(this.after, this.afterZ);
+    }
+
+    @Override
+    public long getSize() {
+        long size = 64 + this.columns.length * 8L;
+        size += sizeOf(this.before) + sizeOf(this.after) + sizeOf(this.beforeZ) + sizeOf(this.afterZ);
+        return size;
+    }
+
+    @Override
+    public boolean compact() {
+        if (this.beforeZ != null) {
+            return false;
+        }
+        this.beforeZ = compress(this.before);
+        this.afterZ = compress(this.after);
+        this.before = null;
+        this.after = null;
+        return true;
+    }
+
+    /**
+     * Puts copies of the tiles back into the store.
+     */
+    private void restore(int[][] tiles, byte[][] compressed) {
+        for (int i = 0; i < this.columns.length; i++) {
+            int[] tile;
+            if (tiles != null) {
+                tile = tiles[i] == null ? null : tiles[i].clone();
+            } else {
+                tile = expand(compressed[i]);
+            }
+            this.store.setTile(this.columns[i], this.rows[i], tile);
+        }
+    }
+
+    /**
+     * Compresses tiles with deflate.
+     */
+    private static byte[][] compress(int[][] tiles) {
+        byte[][] out = new byte[tiles.length][];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteBuffer bytes = ByteBuffer.allocate(TileStore.TILE_SIZE * TileStore.TILE_SIZE * 4);
+        byte[] chunk = new byte[8192];
+
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] == null) {
+                continue;
+            }
+
+            bytes.clear();
+            bytes.asIntBuffer().put(tiles[i]);
+            deflater.reset();
+            deflater.setInput(bytes.array());
+            deflater.finish();
+
+            ByteArrayOutputStream z = new ByteArrayOutputStream();
+            while (!deflater.finished()) {
+                z.write(chunk, 0, deflater.deflate(chunk));
+            }
+            out[i] = z.toByteArray();
+        }
+        deflater.end();
+        return out;
+    }
+
+    /**
+     * Expands a tile compressed by compress().
+     */
+    private static int[] expand(byte[] z) {
+        if (z == null) {
+            return null;
+        }
+
+        byte[] bytes = new byte[TileStore.TILE_SIZE * TileStore.TILE_SIZE * 4];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(z);
+            inflater.inflate(bytes);
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException("Corrupted undo history", ex);
+        } finally {
+            inflater.end();
+        }
+
+        int[] tile = new int[TileStore.TILE_SIZE * TileStore.TILE_SIZE];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(tile);
+        return tile;
+    }
+
+    /**
+     * Memory held by a set of tile copies.
+     */
+    private static long sizeOf(int[][] tiles) {
+        long size = 0;
+        if (tiles != null) {
+            for (int[] t : tiles) {
+                size += t == null ? 8 : 16 + t.length * 4L;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Memory held by a set of compressed tile copies.
+     */
+    private static long sizeOf(byte[][] tiles) {
+        long size = 0;
+        if (tiles != null) {
+            for (byte[] t : tiles) {
+                size += t == null ? 8 : 16 + t.length;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,19 @@
+package pain.t.engine;
+
+/**
+ * Somewhere the tiles of a TileStore can be read from on demand, such as a
+ * project file mapped into memory.
+ *
+ * @author Daniel Christensen
+ */
+public interface TileSource {
+
+    /**
+     * Reads a tile.
+     *
+     * @param tx tile column
+     * @param ty tile row
+     * @return the tile's pixels, or null if the tile is only the fill color
+     */
+    int[] loadTile(int tx, int ty);
+}
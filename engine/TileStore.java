@@ -0,0 +1,449 @@
+package pain.t.engine;
+
+import java.util.Arrays;
+
+/**
+ * Stores the pixels of a document as square tiles of ARGB ints. A tile is only
+ * allocated once something is written into it, until then it reads as the fill
+ * color. Every tile has a version that is bumped each time it is changed, so
+ * the display, the snapshot and the save can each find the tiles that changed
+ * since they last looked at them. Tiles can also come from a TileSource, such as
+ * a project file, in which case each one is only read the first time it is
+ * used.
+ *
+ * A tile can be shared with a save or a filter running on another thread, the
+ * store then copies it before writing into it again, so they keep seeing the
+ * pixels as they were.
+ *
+ * @author Daniel Christensen
+ */
+public class TileStore {
+
+    //width and height of a tile in pixels
+    public static final int TILE_SIZE = 256;
+
+    //dimensions of the document in pixels
+    private final int w, h;
+
+    //number of tiles along each axis
+    private final int tilesX, tilesY;
+
+    //the tiles, row by row, null until written to
+    private final int[][] tiles;
+
+    //change counter of each tile
+    private final int[] versions;
+
+    //true for tiles also held by someone else, copied before being written to
+    private final boolean[] shared;
+
+    //color of the pixels in tiles that are not allocated
+    private final int fill;
+
+    //total number of changes made to the store
+    private long modCount = 0;
+
+    //where tiles that were not read yet come from, null if every tile is in memory
+    private TileSource source;
+
+    //true for tiles that still have to be read from the source
+    private boolean[] lazy;
+
+    //the store this one is a snapshot of, null if it is not one
+    private TileStore origin;
+
+    /**
+     * Creates a new empty store.
+     *
+     * @param w document width
+     * @param h document height
+     * @param fill ARGB color of the untouched pixels
+     */
+    public TileStore(int w, int h, int fill) {
+        this.w = Math.max(w, 1);
+        this.h = Math.max(h, 1);
+        this.tilesX = (this.w + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (this.h + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = new int[this.tilesX * this.tilesY][];
+        this.versions = new int[this.tilesX * this.tilesY];
+        this.shared = new boolean[this.tilesX * this.tilesY];
+        this.fill = fill;
+    }
+
+    /**
+     * @return the document width
+     */
+    public int getWidth() {
+        return this.w;
+    }
+
+    /**
+     * @return the document height
+     */
+    public int getHeight() {
+        return this.h;
+    }
+
+    /**
+     * @return the number of tile columns
+     */
+    public int getTilesX() {
+        return this.tilesX;
+    }
+
+    /**
+     * @return the number of tile rows
+     */
+    public int getTilesY() {
+        return this.tilesY;
+    }
+
+    /**
+     * @return the ARGB color of pixels that were never written
+     */
+    public int getFill() {
+        return this.fill;
+    }
+
+    /**
+     * Gets the color of one pixel.
+     *
+     * @param x pixel x position
+     * @param y pixel y position
+     * @return the ARGB color
+     */
+    public int getPixel(int x, int y) {
+        int[] tile = this.tile((y / TILE_SIZE) * this.tilesX + x / TILE_SIZE);
+        if (tile == null) {
+            return this.fill;
+        }
+        return tile[(y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE];
+    }
+
+    /**
+     * Copies a region of the document into an array. The region must be
+     * inside the document.
+     *
+     * @param x region x position
+     * @param y region y position
+     * @param rw region width
+     * @param rh region height
+     * @param dst the array to copy into
+     * @param off index in dst of the region's top-left pixel
+     * @param scan distance in dst between two rows
+     */
+    public void read(int x, int y, int rw, int rh, int[] dst, int off, int scan) {
+        for (int ty = y / TILE_SIZE; ty <= (y + rh - 1) / TILE_SIZE; ty++) {
+            for (int tx = x / TILE_SIZE; tx <= (x + rw - 1) / TILE_SIZE; tx++) {
+                //part of the region inside this tile
+                int x0 = Math.max(x, tx * TILE_SIZE);
+                int y0 = Math.max(y, ty * TILE_SIZE);
+                int x1 = Math.min(x + rw, (tx + 1) * TILE_SIZE);
+                int y1 = Math.min(y + rh, (ty + 1) * TILE_SIZE);
+                int[] tile = this.tile(ty * this.tilesX + tx);
+
+                for (int row = y0; row < y1; row++) {
+                    int d = off + (row - y) * scan + (x0 - x);
+                    if (tile == null) {
+                        Arrays.fill(dst, d, d + x1 - x0, this.fill);
+                    } else {
+                        System.arraycopy(tile, (row % TILE_SIZE) * TILE_SIZE + x0 % TILE_SIZE, dst, d, x1 - x0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies an array into a region of the document. The tiles touched are
+     * allocated if needed and marked as changed.
+     *
+     * @param x region x position
+     * @param y region y position
+     * @param rw region width
+     * @param rh region height
+     * @param src the pixels to copy
+     * @param off index in src of the region's top-left pixel
+     * @param scan distance in src between two rows
+     */
+    public void write(int x, int y, int rw, int rh, int[] src, int off, int scan) {
+        for (int ty = y / TILE_SIZE; ty <= (y + rh - 1) / TILE_SIZE; ty++) {
+            for (int tx = x / TILE_SIZE; tx <= (x + rw - 1) / TILE_SIZE; tx++) {
+                int x0 = Math.max(x, tx * TILE_SIZE);
+                int y0 = Math.max(y, ty * TILE_SIZE);
+                int x1 = Math.min(x + rw, (tx + 1) * TILE_SIZE);
+                int y1 = Math.min(y + rh, (ty + 1) * TILE_SIZE);
+                int[] tile = this.tileForWrite(tx, ty);
+
+                for (int row = y0; row < y1; row++) {
+                    System.arraycopy(src, off + (row - y) * scan + (x0 - x), tile, (row % TILE_SIZE) * TILE_SIZE + x0 % TILE_SIZE, x1 - x0);
+                }
+            }
+        }
+        this.markDirty(x, y, rw, rh);
+    }
+
+    /**
+     * Fills a region of the document with a single color. The tiles touched
+     * are allocated if needed and marked as changed.
+     *
+     * @param x region x position
+     * @param y region y position
+     * @param rw region width
+     * @param rh region height
+     * @param argb the color to fill with
+     */
+    public void fill(int x, int y, int rw, int rh, int argb) {
+        for (int ty = y / TILE_SIZE; ty <= (y + rh - 1) / TILE_SIZE; ty++) {
+            for (int tx = x / TILE_SIZE; tx <= (x + rw - 1) / TILE_SIZE; tx++) {
+                int x0 = Math.max(x, tx * TILE_SIZE);
+                int y0 = Math.max(y, ty * TILE_SIZE);
+                int x1 = Math.min(x + rw, (tx + 1) * TILE_SIZE);
+                int y1 = Math.min(y + rh, (ty + 1) * TILE_SIZE);
+                int[] tile = this.tileForWrite(tx, ty);
+
+                for (int row = y0; row < y1; row++) {
+                    int start = (row % TILE_SIZE) * TILE_SIZE + x0 % TILE_SIZE;
+                    Arrays.fill(tile, start, start + x1 - x0, argb);
+                }
+            }
+        }
+        this.markDirty(x, y, rw, rh);
+    }
+
+    /**
+     * Gets a tile without allocating it.
+     *
+     * @param tx tile column
+     * @param ty tile row
+     * @return the tile's pixels, or null if the tile was never written
+     */
+    public int[] getTile(int tx, int ty) {
+        return this.tile(ty * this.tilesX + tx);
+    }
+
+    /**
+     * Gets a tile to write into, allocating it if needed. The caller must call
+     * markDirty() once it is done writing.
+     *
+     * @param tx tile column
+     * @param ty tile row
+     * @return the tile's pixels
+     */
+    public int[] tileForWrite(int tx, int ty) {
+        int i = ty * this.tilesX + tx;
+        if (this.tile(i) == null) {
+            this.tiles[i] = new int[TILE_SIZE * TILE_SIZE];
+            Arrays.fill(this.tiles[i], this.fill);
+        } else if (this.shared[i]) {
+            this.tiles[i] = this.tiles[i].clone();
+        }
+        this.shared[i] = false;
+        return this.tiles[i];
+    }
+
+    /**
+     * Copies a tile.
+     *
+     * @param tx tile column
+     * @param ty tile row
+     * @return a copy of the tile's pixels, or null if the tile was never written
+     */
+    public int[] copyTile(int tx, int ty) {
+        int[] tile = this.tile(ty * this.tilesX + tx);
+        return tile == null ? null : tile.clone();
+    }
+
+    /**
+     * Gets a tile to keep as it is now, without copying it. The store copies
+     * the tile before it is written to again, so the pixels returned never
+     * change and can be read on any thread.
+     *
+     * @param tx tile column
+     * @param ty tile row
+     * @return the tile's pixels, not to be changed, or null if the tile was
+     * never written
+     */
+    public int[] shareTile(int tx, int ty) {
+        int i = ty * this.tilesX + tx;
+        int[] tile = this.tile(i);
+        this.shared[i] = tile != null;
+        return tile;
+    }
+
+    /**
+     * Makes a copy of the store that shares its tiles, so it costs nothing
+     * until either of them is written to. Tiles not read yet are read by the
+     * copy from the same source. The copy can be used on another thread while
+     * this store keeps changing.
+     *
+     * @return the copy
+     */
+    public TileStore snapshot() {
+        TileStore copy = new TileStore(this.w, this.h, this.fill);
+        for (int i = 0; i < this.tiles.length; i++) {
+            copy.tiles[i] = this.tiles[i];
+            copy.shared[i] = this.tiles[i] != null;
+            this.shared[i] |= this.tiles[i] != null;
+        }
+        System.arraycopy(this.versions, 0, copy.versions, 0, this.versions.length);
+        copy.modCount = this.modCount;
+        copy.origin = this;
+        if (this.lazy != null) {
+            copy.source = this.source;
+            copy.lazy = this.lazy.clone();
+        }
+        return copy;
+    }
+
+    /**
+     * Checks if this store holds the same pixels as another one, because it
+     * is the other one, or a snapshot of it taken since it last changed.
+     *
+     * @param store the other store
+     * @return true if the pixels are the same
+     */
+    public boolean isSameAs(TileStore store) {
+        return store == this || this.origin == store && this.modCount == store.modCount;
+    }
+
+    /**
+     * Replaces a tile and marks it as changed.
+     *
+     * @param tx tile column
+     * @param ty tile row
+     * @param tile the new pixels of the tile, it is used as is, not copied.
+     * null makes the tile read as the fill color again.
+     */
+    public void setTile(int tx, int ty, int[] tile) {
+        if (this.lazy != null) {
+            this.lazy[ty * this.tilesX + tx] = false;
+        }
+        this.tiles[ty * this.tilesX + tx] = tile;
+        this.shared[ty * this.tilesX + tx] = false;
+        this.versions[ty * this.tilesX + tx]++;
+        this.modCount++;
+    }
+
+    /**
+     * Marks the tiles of a region as changed.
+     *
+     * @param x region x position
+     * @param y region y position
+     * @param rw region width
+     * @param rh region height
+     */
+    public void markDirty(int x, int y, int rw, int rh) {
+        for (int ty = y / TILE_SIZE; ty <= (y + rh - 1) / TILE_SIZE; ty++) {
+            for (int tx = x / TILE_SIZE; tx <= (x + rw - 1) / TILE_SIZE; tx++) {
+                this.versions[ty * this.tilesX + tx]++;
+            }
+        }
+        this.modCount++;
+    }
+
+    /**
+     * Gets the change counter of a tile. It changes every time the tile is
+     * marked as changed.
+     *
+     * @param tx tile column
+     * @param ty tile row
+     * @return the tile's version
+     */
+    public int getVersion(int tx, int ty) {
+        return this.versions[ty * this.tilesX + tx];
+    }
+
+    /**
+     * @return the number of changes made to the store so far
+     */
+    public long getModCount() {
+        return this.modCount;
+    }
+
+    /**
+     * Sets where the tiles that were never written come from. Each of them is
+     * read from the source the first time it is used, which does not count as
+     * a change.
+     *
+     * @param source the source of the tiles
+     */
+    public void setSource(TileSource source) {
+        this.source = source;
+        this.lazy = new boolean[this.tiles.length];
+        for (int i = 0; i < this.tiles.length; i++) {
+            this.lazy[i] = this.tiles[i] == null;
+        }
+    }
+
+    /**
+     * Lets go of every tile, each one is read from a source again the next
+     * time it is used. The source has to give back the pixels the tiles hold
+     * now, so this does not count as a change.
+     *
+     * @param source the source the tiles can be read back from
+     */
+    public void unload(TileSource source) {
+        this.source = source;
+        this.lazy = new boolean[this.tiles.length];
+        Arrays.fill(this.lazy, true);
+        Arrays.fill(this.tiles, null);
+        Arrays.fill(this.shared, false);
+    }
+
+    /**
+     * Reads every tile still in the source, so the store does not need it
+     * anymore, such as before the source's file is replaced.
+     */
+    public void loadAll() {
+        for (int i = 0; i < this.tiles.length; i++) {
+            this.tile(i);
+        }
+        this.source = null;
+        this.lazy = null;
+    }
+
+    /**
+     * @return the source of the tiles not read yet, null if there is none
+     */
+    public TileSource getSource() {
+        return this.source;
+    }
+
+    /**
+     * Checks if a tile is in memory, as opposed to still waiting in the
+     * source.
+     *
+     * @param tx tile column
+     * @param ty tile row
+     * @return true if the tile does not need to be read
+     */
+    public boolean isLoaded(int tx, int ty) {
+        return this.lazy == null || !this.lazy[ty * this.tilesX + tx];
+    }
+
+    /**
+     * Gets a tile, reading it from the source the first time. The tile only
+     * stops being lazy once it was read, so a failed read is tried again.
+     */
+    private int[] tile(int i) {
+        if (this.lazy != null && this.lazy[i]) {
+            this.tiles[i] = this.source.loadTile(i % this.tilesX, i / this.tilesX);
+            this.lazy[i] = false;
+        }
+        return this.tiles[i];
+    }
+
+    /**
+     * @return the memory used by the allocated tiles, in bytes
+     */
+    public long getAllocatedBytes() {
+        long count = 0;
+        for (int[] tile : this.tiles) {
+            if (tile != null) {
+                count++;
+            }
+        }
+        return count * TILE_SIZE * TILE_SIZE * 4;
+    }
+}
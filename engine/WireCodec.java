@@ -0,0 +1,344 @@
+package pain.t.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes operations compactly for sending them to other instances, and reads
+ * them back exactly. Numbers are written as variable length integers, and the
+ * points of strokes as differences from the previous point, in eighths of a
+ * pixel. A stroke of n points usually takes 2 to 4 bytes per point, whatever
+ * the size of the canvas. Strokes drawn on the canvas are rounded to eighths
+ * with snap() before they are applied. Coordinates that are still not a whole
+ * number of eighths are written as they are, so every operation reads back
+ * identical.
+ *
+ * Filters and pixels are written by OpCodec.
+ *
+ * @author Daniel Christensen
+ */
+public class WireCodec {
+
+    //operation types, the ones OpCodec writes are marked as such
+    private static final byte SHAPE = 1, STROKE = 2, TEXT = 3, MOVE = 4, FILL = 5, OTHER = 6;
+
+    //coordinates are written in these fractions of a pixel
+    private static final double STEPS = 8;
+
+    /**
+     * Writes an operation.
+     *
+     * @param out where to write
+     * @param op the operation
+     * @throws IOException if writing fails, or the operation is of an unknown
+     * type
+     */
+    public static void write(DataOutput out, Operation op) throws IOException {
+        if (op instanceof StrokeOp) {
+            StrokeOp s = (StrokeOp) op;
+            float[] points = s.getPoints();
+            out.writeByte(STROKE);
+            writeVarint(out, points.length / 2);
+            long[] last = new long[2];
+            for (int i = 0; i < points.length; i++) {
+                last[i % 2] = writeCoord(out, points[i], last[i % 2]);
+            }
+            out.writeInt(s.getColor());
+            writeCoord(out, s.getWidth(), 0);
+            out.writeBoolean(s.isErase());
+        } else if (op instanceof ShapeOp) {
+            ShapeOp s = (ShapeOp) op;
+            out.writeByte(SHAPE);
+            out.writeByte(s.getKind().ordinal());
+            long last = 0;
+            for (double d : s.getGeometry()) {
+                last = writeCoord(out, d, last);
+            }
+            out.writeInt(s.getStroke());
+            out.writeInt(s.getFill());
+            writeCoord(out, s.getWidth(), 0);
+        } else if (op instanceof TextOp) {
+            TextOp t = (TextOp) op;
+            out.writeByte(TEXT);
+            writeCoord(out, t.getX(), 0);
+            writeCoord(out, t.getY(), 0);
+            out.writeUTF(t.getText());
+            writeCoord(out, t.getSize(), 0);
+            out.writeInt(t.getStroke());
+            out.writeInt(t.getFill());
+        } else if (op instanceof MoveOp) {
+            MoveOp m = (MoveOp) op;
+            out.writeByte(MOVE);
+            writeVarint(out, m.getSource().x);
+            writeVarint(out, m.getSource().y);
+            writeVarint(out, m.getSource().width);
+            writeVarint(out, m.getSource().height);
+            writeSigned(out, m.getDx());
+            writeSigned(out, m.getDy());
+            out.writeInt(m.getHole());
+        } else if (op instanceof FillOp) {
+            FillOp f = (FillOp) op;
+            out.writeByte(FILL);
+            writeVarint(out, f.getX());
+            writeVarint(out, f.getY());
+            out.writeInt(f.getColor());
+            out.writeByte(f.getTolerance());
+            out.writeBoolean(f.isDiagonal());
+        } else {
+            out.writeByte(OTHER);
+            OpCodec.write(out, op);
+        }
+    }
+
+    /**
+     * Reads an operation.
+     *
+     * @param in where to read from
+     * @return the operation
+     * @throws IOException if reading fails or the bytes are not an operation
+     */
+    public static Operation read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case STROKE: {
+                float[] points = new float[readCount(in) * 2];
+                double[] last = new double[2];
+                for (int i = 0; i < points.length; i++) {
+                    last[i % 2] = readCoord(in, last[i % 2]);
+                    points[i] = (float) last[i % 2];
+                }
+                int color = in.readInt();
+                return new StrokeOp(points, color, readCoord(in, 0), in.readBoolean());
+            }
+            case SHAPE: {
+                ShapeOp.Kind kind = ShapeOp.Kind.values()[in.readByte()];
+                double[] g = new double[4];
+                double last = 0;
+                for (int i = 0; i < g.length; i++) {
+                    last = readCoord(in, last);
+                    g[i] = last;
+                }
+                int stroke = in.readInt(), fill = in.readInt();
+                return new ShapeOp(kind, g[0], g[1], g[2], g[3], stroke, fill, readCoord(in, 0));
+            }
+            case TEXT: {
+                double x = readCoord(in, 0), y = readCoord(in, 0);
+                String text = in.readUTF();
+                double size = readCoord(in, 0);
+                return new TextOp(x, y, text, size, in.readInt(), in.readInt());
+            }
+            case MOVE: {
+                int x = (int) readVarint(in), y = (int) readVarint(in);
+                int w = (int) readVarint(in), h = (int) readVarint(in);
+                int dx = (int) readSigned(in), dy = (int) readSigned(in);
+                return new MoveOp(x, y, w, h, dx, dy, in.readInt());
+            }
+            case FILL: {
+                int x = (int) readVarint(in), y = (int) readVarint(in);
+                return new FillOp(x, y, in.readInt(), in.readUnsignedByte(), in.readBoolean());
+            }
+            case OTHER:
+                return OpCodec.read(in);
+            default:
+                throw new IOException("Unknown operation type " + type);
+        }
+    }
+
+    /**
+     * Writes operations into a single array of bytes.
+     *
+     * @param ops the operations
+     * @return the count of operations, followed by each of them
+     * @throws IOException if an operation is of an unknown type
+     */
+    public static byte[] writeAll(List<Operation> ops) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeVarint(out, ops.size());
+        for (Operation op : ops) {
+            write(out, op);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads operations written by writeAll().
+     *
+     * @param in where to read from
+     * @return the operations
+     * @throws IOException if the bytes are not operations
+     */
+    public static Operation[] readAll(DataInput in) throws IOException {
+        Operation[] ops = new Operation[readCount(in)];
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = read(in);
+        }
+        return ops;
+    }
+
+    /**
+     * Rounds points to the eighths of a pixel coordinates are written in. The
+     * mouse is at fractions of a pixel on a zoomed canvas, a stroke rounded
+     * before it is applied takes the compact form and draws the same pixels
+     * here and on the other instances. Points too far away to be held in
+     * eighths by a float are left alone.
+     *
+     * @param points x and y pairs, rounded in place
+     * @return the points
+     */
+    public static float[] snap(float[] points) {
+        for (int i = 0; i < points.length; i++) {
+            if (Math.abs(points[i]) < (1 << 20)) {
+                points[i] = (float) (Math.round(points[i] * STEPS) / STEPS);
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Writes a coordinate as the difference from the previous one, in eighths
+     * of a pixel. A coordinate that is not a whole number of eighths is
+     * written as is.
+     *
+     * @param out where to write
+     * @param v the coordinate
+     * @param last the previous coordinate, as returned for it
+     * @return the coordinate to give for the next one
+     * @throws IOException if writing fails
+     */
+    private static long writeCoord(DataOutput out, double v, long last) throws IOException {
+        double steps = v * STEPS;
+        long q = Math.round(steps);
+        if (q == steps && Math.abs(q) < (1L << 40)) {
+            writeVarint(out, zigzag(q - last) << 1);
+        } else {
+            out.writeByte(1);
+            out.writeDouble(v);
+        }
+        return q;
+    }
+
+    /**
+     * Reads a coordinate written by writeCoord().
+     *
+     * @param in where to read from
+     * @param last the previous coordinate
+     * @return the coordinate
+     * @throws IOException if reading fails
+     */
+    private static double readCoord(DataInput in, double last) throws IOException {
+        long tagged = readVarint(in);
+        if ((tagged & 1) != 0) {
+            return in.readDouble();
+        }
+        return (Math.round(last * STEPS) + unzigzag(tagged >>> 1)) / STEPS;
+    }
+
+    /**
+     * Writes a positive number in as few bytes as needed, 7 bits per byte.
+     *
+     * @param out where to write
+     * @param v the number, not negative
+     * @throws IOException if writing fails
+     */
+    public static void writeVarint(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    /**
+     * Reads a number written by writeVarint().
+     *
+     * @param in where to read from
+     * @return the number
+     * @throws IOException if reading fails or the number is too long
+     */
+    public static long readVarint(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+
+    /**
+     * Writes a number that may be negative, small ones in few bytes.
+     */
+    private static void writeSigned(DataOutput out, long v) throws IOException {
+        writeVarint(out, zigzag(v));
+    }
+
+    /**
+     * Reads a number written by writeSigned().
+     */
+    private static long readSigned(DataInput in) throws IOException {
+        return unzigzag(readVarint(in));
+    }
+
+    /**
+     * Reads a count, making sure it is not absurd.
+     */
+    private static int readCount(DataInput in) throws IOException {
+        long n = readVarint(in);
+        if (n > Integer.MAX_VALUE / 2) {
+            throw new IOException("Malformed count " + n);
+        }
+        return (int) n;
+    }
+
+    /**
+     * Maps numbers that may be negative to positive ones, small to small.
+     */
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    /**
+     * Undoes zigzag().
+     */
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Writes a message preceded by its length, so it can be read whole.
+     *
+     * @param out where to write
+     * @param message the message
+     * @throws IOException if writing fails
+     */
+    public static void writeFrame(OutputStream out, byte[] message) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        writeVarint(data, message.length);
+        data.write(message);
+    }
+
+    /**
+     * Reads a message written by writeFrame().
+     *
+     * @param in where to read from
+     * @return the message
+     * @throws IOException if reading fails or the stream ends
+     */
+    public static byte[] readFrame(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] message = new byte[readCount(data)];
+        data.readFully(message);
+        return message;
+    }
+}
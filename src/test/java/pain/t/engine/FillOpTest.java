@@ -0,0 +1,181 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Fills must reach exactly the pixels a plain flood fill of the picture
+ * reaches, whatever the tolerance, the neighbors followed and the tiles
+ * crossed, including the tiles classified by several threads at once.
+ *
+ * @author Daniel Christensen
+ */
+class FillOpTest {
+
+    //spans several tiles in both directions, and does not end on a tile edge
+    private static final int W = 1100, H = 900;
+
+    /**
+     * Makes a picture of scattered walls, thin diagonal lines and colors
+     * slightly off white. The right part is never written, so its tiles are
+     * only the store's fill.
+     */
+    private static TileStore picture(Random r) {
+        TileStore store = new TileStore(W, H, 0xffffffff);
+        int pw = 700;
+        int[] px = new int[pw * H];
+        for (int i = 0; i < px.length; i++) {
+            int shade = r.nextInt(4) == 0 ? r.nextInt(24) : 0;
+            px[i] = 0xff000000 | (255 - shade) << 16 | (255 - shade) << 8 | 255 - shade;
+            if (r.nextInt(5) == 0) {
+                px[i] = 0xff000000;
+            }
+        }
+        //diagonal lines only 8-way fills get across
+        for (int d = 0; d < 6; d++) {
+            int x0 = r.nextInt(pw);
+            for (int i = 0; i < H; i++) {
+                int x = (x0 + i) % pw;
+                px[i * pw + x] = 0xff000000;
+                if (x + 1 < pw) {
+                    px[i * pw + x + 1] = 0xff000000;
+                }
+            }
+        }
+        store.write(0, 0, pw, H, px, 0, pw);
+        return store;
+    }
+
+    /**
+     * Fills the plain way, one pixel at a time.
+     */
+    private static int[] reference(int[] px, int sx, int sy, int color, int tolerance, boolean diagonal) {
+        int target = px[sy * W + sx];
+        int[] out = px.clone();
+        boolean[] seen = new boolean[px.length];
+        ArrayDeque<int[]> queue = new ArrayDeque<int[]>();
+        queue.add(new int[]{sx, sy});
+        seen[sy * W + sx] = true;
+
+        while (!queue.isEmpty()) {
+            int[] p = queue.poll();
+            out[p[1] * W + p[0]] = color;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    int nx = p[0] + dx, ny = p[1] + dy;
+                    if ((dx == 0 && dy == 0) || (!diagonal && dx != 0 && dy != 0)
+                            || nx < 0 || ny < 0 || nx >= W || ny >= H || seen[ny * W + nx]) {
+                        continue;
+                    }
+                    int c = px[ny * W + nx];
+                    boolean close = true;
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        close &= Math.abs((c >>> shift & 0xff) - (target >>> shift & 0xff)) <= tolerance;
+                    }
+                    if (close) {
+                        seen[ny * W + nx] = true;
+                        queue.add(new int[]{nx, ny});
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return the smallest rectangle around the pixels that differ
+     */
+    private static Rectangle changed(int[] a, int[] b) {
+        Rectangle r = null;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                if (r == null) {
+                    r = new Rectangle(i % W, i / W, 1, 1);
+                } else {
+                    r.add(new Rectangle(i % W, i / W, 1, 1));
+                }
+            }
+        }
+        return r;
+    }
+
+    @Test
+    void fillsWhatAFloodFillReaches() {
+        Random r = new Random(1);
+        for (int run = 0; run < 12; run++) {
+            TileStore store = picture(r);
+            int[] before = LayerAssert.pixels(store);
+            int tolerance = new int[]{0, 10, 30}[run % 3];
+            boolean diagonal = run % 2 == 1;
+
+            //start on a white pixel, or in the part never written
+            int sx, sy;
+            do {
+                sx = run % 4 == 3 ? 700 + r.nextInt(W - 700) : r.nextInt(700);
+                sy = r.nextInt(H);
+            } while (before[sy * W + sx] == 0xff000000);
+
+            int color = 0xff000000 | r.nextInt(0xffffff) << 1;
+            int[] expected = reference(before, sx, sy, color, tolerance, diagonal);
+            FillOp fill = new FillOp(sx, sy, color, tolerance, diagonal);
+            Rectangle bounds = fill.getBounds(store);
+            fill.draw(store, bounds);
+
+            String what = "fill " + run + " from " + sx + "," + sy;
+            assertArrayEquals(expected, LayerAssert.pixels(store), what);
+            assertEquals(changed(before, expected), bounds, what);
+        }
+    }
+
+    @Test
+    void diagonalsOnlyCrossEightWay() {
+        //a wall of pixels touching at their corners
+        TileStore store = new TileStore(W, H, 0xffffffff);
+        for (int i = 0; i < H; i++) {
+            store.fill(i, i, 1, 1, 0xff000000);
+        }
+
+        TileStore four = store.snapshot();
+        new Document(four).apply(new FillOp(W - 1, 0, 0xffff0000, 0, false));
+        assertEquals(0xffffffff, four.getPixel(0, H - 1));
+        assertEquals(0xffff0000, four.getPixel(W - 1, H - 1));
+
+        TileStore eight = store.snapshot();
+        new Document(eight).apply(new FillOp(W - 1, 0, 0xffff0000, 0, true));
+        assertEquals(0xffff0000, eight.getPixel(0, H - 1));
+        assertEquals(0xff000000, eight.getPixel(5, 5));
+    }
+
+    @Test
+    void toleranceComparesEveryChannel() {
+        TileStore store = new TileStore(300, 10, 0xff808080);
+        store.fill(100, 0, 10, 10, 0xff8a8080);
+        store.fill(200, 0, 10, 10, 0xf6808080);
+        store.fill(250, 0, 10, 10, 0xff8b8080);
+
+        new Document(store).apply(new FillOp(0, 0, 0xff0000ff, 10, false));
+        assertEquals(0xff0000ff, store.getPixel(105, 5));
+        assertEquals(0xff0000ff, store.getPixel(205, 5));
+        assertEquals(0xff8b8080, store.getPixel(255, 5));
+        assertEquals(0xff808080, store.getPixel(299, 5));
+    }
+
+    @Test
+    void undoRestoresTheWholeArea() {
+        Random r = new Random(2);
+        TileStore store = picture(r);
+        int[] before = LayerAssert.pixels(store);
+        Document doc = new Document(store);
+
+        assertTrue(doc.apply(new FillOp(900, 100, 0xff00ff00, 0, true)) != null);
+        assertEquals(0xff00ff00, store.getPixel(W - 1, H - 1));
+        doc.undo();
+        assertArrayEquals(before, LayerAssert.pixels(store));
+    }
+}
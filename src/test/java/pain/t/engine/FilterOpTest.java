@@ -0,0 +1,150 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Filtering a tile at a time on several threads must give the pixels
+ * filtering the whole picture at once gives, with no seams between tiles.
+ *
+ * @author Daniel Christensen
+ */
+class FilterOpTest {
+
+    //spans several tiles, and does not end on a tile edge
+    private static final int W = 600, H = 300;
+
+    private static TileStore picture(Random r) {
+        TileStore store = new TileStore(W, H, 0xffffffff);
+        int[] px = new int[W * H];
+        for (int i = 0; i < px.length; i++) {
+            //blocks of color with noise, some of them see-through
+            int block = (i % W / 37 + i / W / 23) % 5;
+            px[i] = block == 0 ? r.nextInt() : Pixels.argb(block == 1 ? r.nextInt(256) : 255, block * 50, 255 - block * 40, r.nextInt(256));
+        }
+        store.write(0, 0, W, H, px, 0, W);
+        return store;
+    }
+
+    /**
+     * Filters the whole picture as a single block, with the edges repeated
+     * around it.
+     */
+    private static int[] whole(Filter filter, int[] px) {
+        int r = filter.getRadius();
+        int bw = W + 2 * r, bh = H + 2 * r;
+        int[] block = new int[bw * bh];
+        for (int y = 0; y < bh; y++) {
+            for (int x = 0; x < bw; x++) {
+                int sx = Math.max(0, Math.min(W - 1, x - r));
+                int sy = Math.max(0, Math.min(H - 1, y - r));
+                block[y * bw + x] = px[sy * W + sx];
+            }
+        }
+        int[] out = new int[W * H];
+        filter.apply(block, bw, bh, out);
+        return out;
+    }
+
+    @Test
+    void tilesMatchTheWholePicture() {
+        Random r = new Random(1);
+        Filter[] filters = {new BlurFilter(2.5), new BlurFilter(12), new SharpenFilter(1.5, 0.8),
+            new GrayscaleFilter(), CurveFilter.levels(20, 230, 1.4, 10, 250), CurveFilter.brightnessContrast(20, -15)};
+        for (Filter filter : filters) {
+            TileStore store = picture(r);
+            int[] expected = whole(filter, LayerAssert.pixels(store));
+            new Document(store).apply(new FilterOp(filter));
+            assertArrayEquals(expected, LayerAssert.pixels(store), filter.getKind().toString());
+        }
+    }
+
+    @Test
+    void previewMatchesApplying() {
+        Filter filter = new BlurFilter(4);
+        TileStore store = picture(new Random(2));
+        int[] preview = FilterOp.preview(filter, store);
+        new Document(store).apply(new FilterOp(filter));
+
+        assertArrayEquals(LayerAssert.pixels(store), preview);
+    }
+
+    @Test
+    void blurKeepsFlatColorsAndEdges() {
+        TileStore store = new TileStore(W, H, 0);
+        store.fill(0, 0, W / 2, H, 0xff3366cc);
+        new Document(store).apply(new FilterOp(new BlurFilter(6)));
+
+        //far from the edge nothing changes, the edge fades out without darkening, give or take rounding
+        assertEquals(0xff3366cc, store.getPixel(50, 150));
+        assertEquals(0, store.getPixel(W - 50, 150));
+        int edge = store.getPixel(W / 2, 150);
+        assertTrue((edge >>> 24) > 0 && (edge >>> 24) < 255);
+        for (int shift = 0; shift < 24; shift += 8) {
+            assertEquals(0x3366cc >> shift & 0xff, edge >> shift & 0xff, 2);
+        }
+    }
+
+    @Test
+    void noRadiusChangesNothing() {
+        TileStore store = picture(new Random(3));
+        int[] before = LayerAssert.pixels(store);
+        new Document(store).apply(new FilterOp(new BlurFilter(0)));
+
+        assertArrayEquals(before, LayerAssert.pixels(store));
+    }
+
+    @Test
+    void preparedOnASnapshot() {
+        Filter filter = new BlurFilter(3);
+        TileStore store = picture(new Random(4));
+        int[] expected = whole(filter, LayerAssert.pixels(store));
+
+        //prepared in the background on a snapshot, put in place as is
+        FilterOp op = new FilterOp(filter);
+        assertTrue(op.prepare(store.snapshot(), Progress.NONE));
+        new Document(store).apply(op);
+        assertArrayEquals(expected, LayerAssert.pixels(store));
+
+        //the store changed after it was prepared, it is filtered again
+        TileStore other = picture(new Random(5));
+        FilterOp stale = new FilterOp(filter);
+        assertTrue(stale.prepare(other.snapshot(), Progress.NONE));
+        other.fill(0, 0, 40, 40, 0xff000000);
+        int[] changed = whole(filter, LayerAssert.pixels(other));
+        new Document(other).apply(stale);
+        assertArrayEquals(changed, LayerAssert.pixels(other));
+    }
+
+    @Test
+    void preparingCanBeCancelled() {
+        TileStore store = picture(new Random(6));
+        FilterOp op = new FilterOp(new BlurFilter(3));
+        assertFalse(op.prepare(store, new Progress() {
+            @Override
+            public void progress(double done) {
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return true;
+            }
+        }));
+    }
+
+    @Test
+    void filtersAreCreatedFromTheirParameters() {
+        Filter[] filters = {new BlurFilter(2.5), new SharpenFilter(1.5, 0.8), new GrayscaleFilter(),
+            CurveFilter.levels(20, 230, 1.4, 10, 250), CurveFilter.brightnessContrast(20, -15)};
+        for (Filter filter : filters) {
+            Filter created = Filter.create(filter.getKind(), filter.getParameters());
+            assertEquals(filter.getKind(), created.getKind());
+            assertArrayEquals(filter.getParameters(), created.getParameters());
+        }
+    }
+}
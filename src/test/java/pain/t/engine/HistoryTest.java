@@ -0,0 +1,134 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The memory the history counts must stay the sum of what its commands were
+ * counted for, however they grow, shrink, get undone, redone or dropped.
+ *
+ * @author Daniel Christensen
+ */
+class HistoryTest {
+
+    /**
+     * A command whose size can be changed from outside, and which halves when
+     * compacted.
+     */
+    private static class Sized implements Command {
+
+        private long size;
+        private int undos = 0, redos = 0;
+
+        Sized(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public void undo() {
+            this.undos++;
+        }
+
+        @Override
+        public void redo() {
+            this.redos++;
+        }
+
+        @Override
+        public long getSize() {
+            return this.size;
+        }
+
+        @Override
+        public boolean compact() {
+            this.size /= 2;
+            return true;
+        }
+    }
+
+    @Test
+    void countsEveryCommandPushed() {
+        History h = new History();
+        h.push(new Sized(100));
+        h.push(new Sized(250));
+        h.push(new Sized(50));
+
+        assertEquals(400, h.getSize());
+        assertEquals(3, h.getDepth());
+    }
+
+    @Test
+    void undoAndRedoKeepTheSize() {
+        History h = new History();
+        Sized a = new Sized(100);
+        h.push(a);
+        h.push(new Sized(200));
+
+        assertTrue(h.undo());
+        assertTrue(h.undo());
+        assertEquals(300, h.getSize());
+        assertTrue(h.redo());
+        assertEquals(300, h.getSize());
+        assertEquals(1, a.undos);
+        assertEquals(1, a.redos);
+    }
+
+    @Test
+    void pushingForgetsTheRedoneCommands() {
+        History h = new History();
+        h.push(new Sized(100));
+        h.push(new Sized(200));
+        h.undo();
+        h.push(new Sized(30));
+
+        assertEquals(130, h.getSize());
+        assertFalse(h.canRedo());
+    }
+
+    @Test
+    void commandsGrowingAfterThePushDoNotDrift() {
+        History h = new History();
+        Sized grows = new Sized(100);
+        h.push(grows);
+        grows.size = 5000;
+        h.undo();
+        h.clearRedo();
+
+        //taken off at the size it was counted for, not the size it has now
+        assertEquals(0, h.getSize());
+    }
+
+    @Test
+    void compactsThenDropsTheOldestOverBudget() {
+        History h = new History(1000);
+        Sized oldest = new Sized(600);
+        h.push(oldest);
+        h.push(new Sized(600));
+
+        //the oldest was compacted to 300, which fits
+        assertEquals(300, oldest.size);
+        assertEquals(900, h.getSize());
+        assertEquals(2, h.getDepth());
+
+        //compacting both is not enough, they are dropped, the newest is always kept
+        h.push(new Sized(900));
+        assertEquals(900, h.getSize());
+        assertEquals(1, h.getDepth());
+    }
+
+    @Test
+    void clearForgetsEverything() {
+        History h = new History();
+        h.push(new Sized(100));
+        h.push(new Sized(100));
+        h.undo();
+        h.clear();
+
+        assertEquals(0, h.getSize());
+        assertEquals(0, h.getDepth());
+        assertFalse(h.canRedo());
+    }
+}
@@ -0,0 +1,46 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares layers read back from a file with the ones written.
+ *
+ * @author Daniel Christensen
+ */
+final class LayerAssert {
+
+    private LayerAssert() {
+    }
+
+    /**
+     * Checks that two stacks hold the same layers, shown the same way, with
+     * the same pixels and the same one drawn on.
+     *
+     * @param expected the layers written
+     * @param actual the layers read back
+     */
+    static void assertSameLayers(LayerStack expected, LayerStack actual) {
+        assertEquals(expected.getCount(), actual.getCount(), "layers");
+        assertEquals(expected.getActive(), actual.getActive(), "active layer");
+        for (int i = 0; i < expected.getCount(); i++) {
+            Layer e = expected.getLayers().get(i);
+            Layer a = actual.getLayers().get(i);
+            assertEquals(e.getName(), a.getName());
+            assertEquals(e.isVisible(), a.isVisible(), e.getName());
+            assertEquals(e.getOpacity(), a.getOpacity(), e.getName());
+            assertEquals(e.getMode(), a.getMode(), e.getName());
+            assertArrayEquals(pixels(e.getPixels()), pixels(a.getPixels()), e.getName() + " pixels");
+        }
+        assertArrayEquals(pixels(expected.update()), pixels(actual.update()), "picture");
+    }
+
+    /**
+     * @return every pixel of a store, row by row
+     */
+    static int[] pixels(TileStore store) {
+        int[] px = new int[store.getWidth() * store.getHeight()];
+        store.read(0, 0, store.getWidth(), store.getHeight(), px, 0, store.getWidth());
+        return px;
+    }
+}
@@ -0,0 +1,207 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static pain.t.engine.TileStore.TILE_SIZE;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The picture made from the layers must be the layers blended one after the
+ * other, and the cached tiles must follow every change to the layers.
+ *
+ * @author Daniel Christensen
+ */
+class LayerStackTest {
+
+    //spans several tiles, and does not end on a tile edge
+    private static final int W = TILE_SIZE * 3 + 20, H = TILE_SIZE * 2 + 7;
+
+    /**
+     * Draws a few rectangles of random colors into a layer, leaving most of
+     * its tiles alone.
+     */
+    private static void scribble(Random r, Layer layer) {
+        for (int i = 0; i < 3; i++) {
+            int x = r.nextInt(W - 10), y = r.nextInt(H - 10);
+            layer.getPixels().fill(x, y, 1 + r.nextInt(Math.min(200, W - x)), 1 + r.nextInt(Math.min(200, H - y)),
+                    (64 + r.nextInt(192)) << 24 | r.nextInt(0xffffff));
+        }
+    }
+
+    /**
+     * Makes a stack of several layers over an opaque background, shown in
+     * every way there is.
+     */
+    private static LayerStack stack(Random r) {
+        LayerStack stack = new LayerStack(new TileStore(W, H, 0xffffffff));
+        scribble(r, stack.getLayers().get(0));
+        BlendMode[] modes = BlendMode.values();
+        for (int i = 1; i < 6; i++) {
+            Layer l = stack.create("Layer " + i);
+            l.setMode(modes[r.nextInt(modes.length)]);
+            l.setOpacity(r.nextInt(3) == 0 ? 255 : 40 + r.nextInt(200));
+            l.setVisible(r.nextInt(5) != 0);
+            scribble(r, l);
+            stack.add(i, l);
+        }
+        stack.setActive(2);
+        return stack;
+    }
+
+    /**
+     * Blends the layers one after the other over transparent pixels, the
+     * plain way.
+     */
+    private static int[] reference(LayerStack stack) {
+        int[] dst = new int[W * H];
+        for (Layer l : stack.getLayers()) {
+            if (l.isVisible()) {
+                l.getMode().blend(dst, LayerAssert.pixels(l.getPixels()), l.getOpacity());
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Checks that two pictures are the same, give or take the rounding of
+     * blending the layers above the active one together first. Tiles made
+     * before another layer became the active one keep the rounding they were
+     * made with.
+     */
+    private static void assertClose(int[] expected, int[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int e = expected[i] >>> shift & 0xff, a = actual[i] >>> shift & 0xff;
+                if (Math.abs(e - a) > 2) {
+                    assertEquals(Integer.toHexString(expected[i]), Integer.toHexString(actual[i]),
+                            "pixel " + i % W + "," + i / W);
+                }
+            }
+        }
+    }
+
+    /**
+     * Composites the same layers in a new stack, with nothing cached.
+     */
+    private static int[] fresh(LayerStack stack) {
+        return LayerAssert.pixels(new LayerStack(new ArrayList<Layer>(stack.getLayers()), stack.getActive()).update());
+    }
+
+    @Test
+    void modesMixWithThePixelsUnder() {
+        LayerStack stack = new LayerStack(new TileStore(W, H, 0xff808080));
+        Layer top = stack.create("Top");
+        top.getPixels().fill(0, 0, W, H, 0xff808080);
+        stack.add(1, top);
+
+        top.setMode(BlendMode.MULTIPLY);
+        assertEquals(0xff404040, stack.update().getPixel(5, 5));
+        top.setMode(BlendMode.SCREEN);
+        assertEquals(0xffc0c0c0, stack.update().getPixel(5, 5));
+        top.setMode(BlendMode.DIFFERENCE);
+        assertEquals(0xff000000, stack.update().getPixel(5, 5));
+
+        top.setMode(BlendMode.NORMAL);
+        top.getPixels().fill(0, 0, W, H, 0xffffffff);
+        stack.getLayers().get(0).getPixels().fill(0, 0, W, H, 0xff000000);
+        top.setOpacity(127);
+        assertEquals(0xff7f7f7f, stack.update().getPixel(W - 1, H - 1));
+        top.setVisible(false);
+        assertEquals(0xff000000, stack.update().getPixel(W - 1, H - 1));
+    }
+
+    @Test
+    void matchesBlendingOneLayerAfterAnother() {
+        Random r = new Random(1);
+        for (int run = 0; run < 10; run++) {
+            LayerStack stack = stack(r);
+            stack.setActive(run % stack.getCount());
+            assertClose(reference(stack), LayerAssert.pixels(stack.update()));
+        }
+    }
+
+    @Test
+    void cachesFollowEveryChange() {
+        Random r = new Random(2);
+        LayerStack stack = stack(r);
+        stack.update();
+
+        for (int step = 0; step < 300; step++) {
+            Layer l = stack.getLayers().get(r.nextInt(stack.getCount()));
+            switch (r.nextInt(8)) {
+                case 0:
+                    stack.setActive(r.nextInt(stack.getCount()));
+                    break;
+                case 1:
+                    l.setVisible(!l.isVisible());
+                    break;
+                case 2:
+                    l.setOpacity(r.nextInt(256));
+                    break;
+                case 3:
+                    l.setMode(BlendMode.values()[r.nextInt(BlendMode.values().length)]);
+                    break;
+                case 4:
+                    if (stack.getCount() < 8) {
+                        Layer added = stack.create("Added");
+                        scribble(r, added);
+                        stack.add(1 + r.nextInt(stack.getCount()), added);
+                    } else {
+                        stack.remove(1 + r.nextInt(stack.getCount() - 1));
+                    }
+                    break;
+                case 5:
+                    stack.move(1 + r.nextInt(stack.getCount() - 1), 1 + r.nextInt(stack.getCount() - 1));
+                    break;
+                default:
+                    //most changes are drawing, mostly into the active layer
+                    scribble(r, r.nextBoolean() ? stack.getActiveLayer() : l);
+            }
+            assertClose(fresh(stack), LayerAssert.pixels(stack.update()));
+        }
+    }
+
+    @Test
+    void onlyTilesUnderAChangeAreMadeAgain() {
+        LayerStack stack = stack(new Random(3));
+        TileStore picture = stack.update();
+        int[] versions = new int[picture.getTilesX() * picture.getTilesY()];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = picture.getVersion(i % picture.getTilesX(), i / picture.getTilesX());
+        }
+
+        //drawing into a single tile of the active layer
+        stack.getActiveLayer().getPixels().fill(TILE_SIZE + 10, TILE_SIZE + 10, 20, 20, 0xff00ff00);
+        assertSame(picture, stack.update());
+        for (int i = 0; i < versions.length; i++) {
+            int tx = i % picture.getTilesX(), ty = i / picture.getTilesX();
+            if (tx == 1 && ty == 1) {
+                assertNotEquals(versions[i], picture.getVersion(tx, ty));
+            } else {
+                assertEquals(versions[i], picture.getVersion(tx, ty), "tile " + tx + "," + ty);
+            }
+        }
+
+        //nothing changed, nothing is made
+        long mods = picture.getModCount();
+        stack.update();
+        assertEquals(mods, picture.getModCount());
+    }
+
+    @Test
+    void aSinglePlainLayerIsShownAsItIs() {
+        TileStore background = new TileStore(W, H, 0xffffffff);
+        LayerStack stack = new LayerStack(background);
+        assertSame(background, stack.update());
+
+        stack.getActiveLayer().setOpacity(100);
+        assertTrue(stack.update() != background);
+        stack.getActiveLayer().setOpacity(255);
+        assertSame(background, stack.update());
+    }
+}
@@ -0,0 +1,149 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static pain.t.engine.TileStore.TILE_SIZE;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every level of the pyramid must hold the picture averaged down from the
+ * level above, two by two pixels at a time, and only the tiles over a change
+ * are made again.
+ *
+ * @author Daniel Christensen
+ */
+class MipPyramidTest {
+
+    //odd sizes, so the last row and column of a level only have half a square above them
+    private static final int W = 1301, H = 777;
+
+    private static TileStore picture(Random r) {
+        TileStore store = new TileStore(W, H, 0xffeeddcc);
+        int[] px = new int[W * H];
+        for (int i = 0; i < px.length; i++) {
+            px[i] = r.nextInt();
+        }
+        //the bottom right stays the fill color
+        store.write(0, 0, W, TILE_SIZE * 2, px, 0, W);
+        store.write(0, 0, TILE_SIZE, H, px, 0, W);
+        return store;
+    }
+
+    /**
+     * Averages a picture down to half its size, the plain way.
+     */
+    private static int[] half(int[] px, int w, int h) {
+        int hw = (w + 1) / 2, hh = (h + 1) / 2;
+        int[] out = new int[hw * hh];
+        for (int y = 0; y < hh; y++) {
+            for (int x = 0; x < hw; x++) {
+                int x0 = x * 2, y0 = y * 2, x1 = Math.min(x0 + 1, w - 1), y1 = Math.min(y0 + 1, h - 1);
+                int[] c = {px[y0 * w + x0], px[y0 * w + x1], px[y1 * w + x0], px[y1 * w + x1]};
+                int argb = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = 2;
+                    for (int k : c) {
+                        sum += k >>> shift & 0xff;
+                    }
+                    argb |= (sum >> 2) << shift;
+                }
+                out[y * hw + x] = argb;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Makes every tile of every level.
+     */
+    private static void makeAll(MipPyramid pyramid) {
+        for (int level = 1; level < pyramid.getLevels(); level++) {
+            TileStore store = pyramid.getLevel(level);
+            for (int ty = 0; ty < store.getTilesY(); ty++) {
+                for (int tx = 0; tx < store.getTilesX(); tx++) {
+                    pyramid.getTile(level, tx, ty);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks every level against the picture averaged down the plain way.
+     */
+    private static void assertLevels(MipPyramid pyramid, TileStore base) {
+        int[] px = LayerAssert.pixels(base);
+        int w = W, h = H;
+        for (int level = 1; level < pyramid.getLevels(); level++) {
+            px = half(px, w, h);
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+            TileStore store = pyramid.getLevel(level);
+            assertEquals(w, store.getWidth());
+            assertEquals(h, store.getHeight());
+            assertArrayEquals(px, LayerAssert.pixels(store), "level " + level);
+        }
+    }
+
+    @Test
+    void levelsAverageTheLevelAbove() {
+        TileStore base = picture(new Random(1));
+        MipPyramid pyramid = new MipPyramid(base);
+
+        //down to the level that fits in one tile
+        assertEquals(4, pyramid.getLevels());
+        TileStore last = pyramid.getLevel(pyramid.getLevels() - 1);
+        assertTrue(last.getWidth() <= TILE_SIZE && last.getHeight() <= TILE_SIZE);
+
+        makeAll(pyramid);
+        assertLevels(pyramid, base);
+    }
+
+    @Test
+    void tilesNeverDrawnStayEmpty() {
+        TileStore base = picture(new Random(2));
+        MipPyramid pyramid = new MipPyramid(base);
+
+        //level 1 tile (2, 1) covers store tiles (4, 2) to (5, 3), none of them written
+        assertNull(pyramid.getTile(1, 2, 1));
+        assertEquals(0xffeeddcc, pyramid.getLevel(1).getPixel(2 * TILE_SIZE + 5, TILE_SIZE + 5));
+    }
+
+    @Test
+    void onlyTilesOverAChangeAreMadeAgain() {
+        Random r = new Random(3);
+        TileStore base = picture(r);
+        MipPyramid pyramid = new MipPyramid(base);
+        makeAll(pyramid);
+
+        //a change in store tile (3, 2) reaches level 1 tile (1, 1) and level 2 tile (0, 0)
+        base.fill(3 * TILE_SIZE + 10, 2 * TILE_SIZE + 10, 30, 30, 0xff00ff00);
+        pyramid.sync();
+        assertFalse(pyramid.isReady(1, 1, 1));
+        assertTrue(pyramid.isReady(1, 0, 0));
+        assertTrue(pyramid.isReady(1, 2, 1));
+        assertFalse(pyramid.isReady(2, 0, 0));
+        assertFalse(pyramid.isReady(3, 0, 0));
+
+        makeAll(pyramid);
+        assertLevels(pyramid, base);
+    }
+
+    @Test
+    void makingCarriesOnAfterTheDeadline() {
+        TileStore base = picture(new Random(4));
+        MipPyramid pyramid = new MipPyramid(base);
+
+        assertFalse(pyramid.make(3, 0, 0, System.nanoTime() - 1));
+        assertFalse(pyramid.isReady(3, 0, 0));
+        assertTrue(pyramid.make(3, 0, 0, Long.MAX_VALUE));
+        assertTrue(pyramid.isReady(2, 0, 0));
+
+        makeAll(pyramid);
+        assertLevels(pyramid, base);
+    }
+}
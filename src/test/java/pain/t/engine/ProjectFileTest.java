@@ -0,0 +1,127 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static pain.t.engine.LayerAssert.assertSameLayers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Projects saved and opened again must hold the same layers, and saving a
+ * project again only appends what changed.
+ *
+ * @author Daniel Christensen
+ */
+class ProjectFileTest {
+
+    @TempDir
+    File dir;
+
+    /**
+     * Makes a document with three layers shown differently, drawn on.
+     */
+    private static Document layered(Random r) {
+        Document doc = new Document(700, 500, 0xffffffff);
+        LayerStack layers = doc.getLayers();
+        Layer top = layers.create("Top");
+        top.setOpacity(128);
+        top.setMode(BlendMode.MULTIPLY);
+        layers.add(1, top);
+        Layer hidden = layers.create("Hidden");
+        hidden.setVisible(false);
+        layers.add(1, hidden);
+
+        for (int i = 0; i < layers.getCount(); i++) {
+            layers.setActive(i);
+            for (int j = 0; j < 6; j++) {
+                doc.apply(stroke(r));
+            }
+        }
+        layers.setActive(2);
+        return doc;
+    }
+
+    private static StrokeOp stroke(Random r) {
+        return new StrokeOp(new float[]{r.nextInt(700), r.nextInt(500), r.nextInt(700), r.nextInt(500)},
+                0xff000000 | r.nextInt(), 4 + r.nextInt(20), false);
+    }
+
+    @Test
+    void reopensWithTheSameLayers() throws IOException {
+        File file = new File(this.dir, "layers.paint");
+        Document doc = layered(new Random(1));
+        ProjectFile project = ProjectFile.create(file);
+        doc.addListener(project);
+        project.save(doc.getLayers());
+
+        assertSameLayers(doc.getLayers(), ProjectFile.open(file).getLayers());
+    }
+
+    @Test
+    void appendsWhatChanged() throws IOException {
+        File file = new File(this.dir, "append.paint");
+        Random r = new Random(2);
+        Document doc = layered(r);
+        ProjectFile project = ProjectFile.create(file);
+        doc.addListener(project);
+        ProjectFile.Save first = project.prepare(doc.getLayers());
+        assertTrue(first.isFull());
+        first.write(Progress.NONE);
+
+        //another layer is drawn on, shown differently, and a new one added
+        LayerStack layers = doc.getLayers();
+        layers.setActive(0);
+        doc.layersChanged();
+        doc.apply(stroke(r));
+        layers.getLayers().get(1).setVisible(true);
+        layers.add(3, layers.create("New"));
+        doc.layersChanged();
+
+        ProjectFile.Save second = project.prepare(layers);
+        assertFalse(second.isFull());
+        second.write(Progress.NONE);
+        assertSameLayers(layers, ProjectFile.open(file).getLayers());
+    }
+
+    @Test
+    void opensLazilyAndSavesIntoItself() throws IOException {
+        File file = new File(this.dir, "reopen.paint");
+        Random r = new Random(3);
+        ProjectFile.create(file).save(layered(r).getLayers());
+
+        //tiles never read are copied from the old file when it is written again
+        ProjectFile project = ProjectFile.open(file);
+        Document doc = new Document(project.getLayers());
+        doc.addListener(project);
+        doc.apply(stroke(r));
+        doc.setLayers(doc.getLayers());
+        ProjectFile.Save save = project.prepare(doc.getLayers());
+        assertTrue(save.isFull());
+        save.write(Progress.NONE);
+
+        assertSameLayers(doc.getLayers(), ProjectFile.open(file).getLayers());
+    }
+
+    @Test
+    void keepsTheOperationsNotUndone() throws IOException {
+        File file = new File(this.dir, "journal.paint");
+        Random r = new Random(4);
+        Document doc = new Document(700, 500, 0xffffffff);
+        ProjectFile project = ProjectFile.create(file);
+        doc.addListener(project);
+        for (int i = 0; i < 5; i++) {
+            doc.apply(stroke(r));
+        }
+        doc.undo();
+        doc.undo();
+        doc.redo();
+        project.save(doc.getLayers());
+
+        assertEquals(4, ProjectFile.open(file).getOperations().size());
+    }
+}
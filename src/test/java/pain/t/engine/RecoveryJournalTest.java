@@ -0,0 +1,110 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static pain.t.engine.LayerAssert.assertSameLayers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A journal read back after Pain(t) stopped without closing it must rebuild
+ * the layers and the history the document had.
+ *
+ * @author Daniel Christensen
+ */
+class RecoveryJournalTest {
+
+    @TempDir
+    File dir;
+
+    private static StrokeOp stroke(Random r) {
+        return new StrokeOp(new float[]{r.nextInt(600), r.nextInt(400), r.nextInt(600), r.nextInt(400)},
+                0xff000000 | r.nextInt(), 4 + r.nextInt(16), false);
+    }
+
+    @Test
+    void replaysOperationsAndLayers() throws IOException {
+        File file = new File(this.dir, "document.journal");
+        Random r = new Random(1);
+        Document doc = new Document(600, 400, 0xffffffff);
+        RecoveryJournal journal = RecoveryJournal.open(file);
+        journal.start(false, doc.getLayers());
+        doc.addListener(journal);
+
+        LayerStack layers = doc.getLayers();
+        for (int i = 0; i < 4; i++) {
+            doc.apply(stroke(r));
+        }
+        Layer second = layers.create("Layer 2");
+        layers.add(1, second);
+        layers.setActive(1);
+        second.setOpacity(90);
+        doc.layersChanged();
+        for (int i = 0; i < 4; i++) {
+            doc.apply(stroke(r));
+        }
+        doc.undo();
+        layers.setActive(0);
+        second.setMode(BlendMode.SCREEN);
+        doc.layersChanged();
+        doc.apply(stroke(r));
+
+        //closed without deleting it, as after a crash
+        journal.close(false);
+
+        RecoveryJournal reopened = RecoveryJournal.open(file);
+        Document recovered = reopened.recover();
+        assertNotNull(recovered);
+        assertSameLayers(layers, recovered.getLayers());
+        assertEquals(doc.getHistory().getDepth(), recovered.getHistory().getDepth());
+        reopened.close(true);
+    }
+
+    @Test
+    void carriesOnAfterRecovering() throws IOException {
+        File file = new File(this.dir, "twice.journal");
+        Random r = new Random(2);
+        Document doc = new Document(600, 400, 0xffffffff);
+        RecoveryJournal journal = RecoveryJournal.open(file);
+        journal.start(false, doc.getLayers());
+        doc.addListener(journal);
+        doc.apply(stroke(r));
+        journal.close(false);
+
+        //the recovered layers are referred to by the ids already in the journal
+        RecoveryJournal second = RecoveryJournal.open(file);
+        Document recovered = second.recover();
+        second.start(true, recovered.getLayers());
+        recovered.addListener(second);
+        LayerStack layers = recovered.getLayers();
+        layers.add(1, layers.create("Layer 2"));
+        layers.setActive(1);
+        recovered.layersChanged();
+        recovered.apply(stroke(r));
+        layers.setActive(0);
+        recovered.layersChanged();
+        recovered.apply(stroke(r));
+        second.close(false);
+
+        RecoveryJournal third = RecoveryJournal.open(file);
+        assertSameLayers(layers, third.recover().getLayers());
+        third.close(true);
+    }
+
+    @Test
+    void nothingToRecoverWithoutOperations() throws IOException {
+        File file = new File(this.dir, "empty.journal");
+        RecoveryJournal journal = RecoveryJournal.open(file);
+        journal.start(false, new Document(100, 100, 0xffffffff).getLayers());
+        journal.close(false);
+
+        RecoveryJournal reopened = RecoveryJournal.open(file);
+        assertNull(reopened.recover());
+        reopened.close(true);
+    }
+}
@@ -0,0 +1,153 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Clients drawing at the same time through a relay on this machine must all
+ * end up with the same pixels, including one joining late.
+ *
+ * @author Daniel Christensen
+ */
+class SessionLoopbackTest {
+
+    //size of the shared picture
+    private static final int W = 512, H = 384;
+
+    /**
+     * Connects a client whose document takes the pictures shared.
+     */
+    private static SessionClient connect(SessionRelay relay, Document doc) throws IOException {
+        return new SessionClient("localhost", relay.getPort(), doc, new SessionClient.Handler() {
+            @Override
+            public void replaced(TileStore store) {
+                doc.setLayers(new LayerStack(store));
+            }
+
+            @Override
+            public void closed(IOException ex) {
+            }
+        });
+    }
+
+    private static Operation random(Random r) {
+        switch (r.nextInt(4)) {
+            case 0:
+                return new ShapeOp(ShapeOp.Kind.ELLIPSE, r.nextInt(W), r.nextInt(H), 5 + r.nextInt(60),
+                        5 + r.nextInt(60), 0xff000000, 0x80000000 | r.nextInt(0xffffff), 2);
+            case 1:
+                return new FillOp(r.nextInt(W), r.nextInt(H), 0xff000000 | r.nextInt(), 40, false);
+            default:
+                float[] points = new float[16];
+                for (int i = 0; i < points.length; i += 2) {
+                    points[i] = r.nextInt(W);
+                    points[i + 1] = r.nextInt(H);
+                }
+                return new StrokeOp(points, 0xff000000 | r.nextInt(), 1 + r.nextInt(10), r.nextInt(8) == 0);
+        }
+    }
+
+    /**
+     * Makes a stroke the way the canvas does when zoomed to 150%, where the
+     * mouse is at thirds of a pixel.
+     */
+    private static StrokeOp zoomed(Random r) {
+        float[] points = new float[20];
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] = r.nextInt(W * 3 / 2) / 1.5f;
+            points[i + 1] = r.nextInt(H * 3 / 2) / 1.5f;
+        }
+        return new StrokeOp(WireCodec.snap(points), 0xff000000 | r.nextInt(), 0.5 + r.nextInt(8) / 1.5, false);
+    }
+
+    /**
+     * Runs frames on every client until nothing is left waiting for the
+     * relay.
+     */
+    private static void settle(SessionClient... clients) throws InterruptedException {
+        for (int f = 0; f < 200; f++) {
+            for (SessionClient c : clients) {
+                c.frame();
+            }
+            Thread.sleep(2);
+        }
+    }
+
+    @Test
+    @Timeout(60)
+    void clientsConverge() throws IOException, InterruptedException {
+        try (SessionRelay relay = new SessionRelay(0)) {
+            Document[] docs = new Document[3];
+            SessionClient[] clients = new SessionClient[docs.length];
+            for (int i = 0; i < docs.length; i++) {
+                docs[i] = new Document(W, H, 0xffffffff);
+                clients[i] = connect(relay, docs[i]);
+            }
+            docs[0].apply(new ShapeOp(ShapeOp.Kind.RECT, 10, 10, 200, 100, 0xff000000, 0xffff0000, 3));
+            settle(clients);
+            clients[0].share();
+
+            Random r = new Random(7);
+            for (int frame = 0; frame < 150; frame++) {
+                for (Document doc : docs) {
+                    if (r.nextInt(3) == 0) {
+                        doc.apply(random(r));
+                    }
+                }
+                for (SessionClient c : clients) {
+                    c.frame();
+                }
+            }
+            settle(clients);
+
+            int[] expected = LayerAssert.pixels(docs[0].getStore());
+            for (int i = 1; i < docs.length; i++) {
+                assertEquals(0, clients[i].getPending());
+                assertArrayEquals(expected, LayerAssert.pixels(docs[i].getStore()), "client " + i);
+            }
+
+            //a client joining now catches up from the relay
+            Document late = new Document(10, 10, 0);
+            SessionClient joined = connect(relay, late);
+            SessionClient[] all = {clients[0], clients[1], clients[2], joined};
+            settle(all);
+            assertArrayEquals(expected, LayerAssert.pixels(late.getStore()), "late client");
+
+            for (SessionClient c : all) {
+                c.close();
+            }
+        }
+    }
+
+    @Test
+    @Timeout(60)
+    void zoomedStrokesConverge() throws IOException, InterruptedException {
+        try (SessionRelay relay = new SessionRelay(0)) {
+            Document[] docs = {new Document(W, H, 0xffffffff), new Document(W, H, 0xffffffff)};
+            SessionClient[] clients = {connect(relay, docs[0]), connect(relay, docs[1])};
+            clients[0].share();
+            settle(clients);
+
+            Random r = new Random(8);
+            for (int frame = 0; frame < 60; frame++) {
+                docs[frame % 2].apply(zoomed(r));
+                for (SessionClient c : clients) {
+                    c.frame();
+                }
+            }
+            settle(clients);
+
+            assertEquals(0, clients[1].getPending());
+            assertArrayEquals(LayerAssert.pixels(docs[0].getStore()), LayerAssert.pixels(docs[1].getStore()));
+
+            for (SessionClient c : clients) {
+                c.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every query of the index must find exactly the objects a check of every
+ * bounding box finds, in the order they were added.
+ *
+ * @author Daniel Christensen
+ */
+class SpatialIndexTest {
+
+    /**
+     * An object with its bounding box.
+     */
+    private static class Box {
+
+        private double x, y, w, h;
+
+        Box(double x, double y, double w, double h) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        double distance(double px, double py) {
+            double dx = Math.max(Math.max(this.x - px, 0), px - this.x - this.w);
+            double dy = Math.max(Math.max(this.y - py, 0), py - this.y - this.h);
+            return Math.hypot(dx, dy);
+        }
+    }
+
+    /**
+     * Adds boxes of every size, some partly at negative positions and some
+     * covering most of the picture.
+     */
+    private static List<Box> boxes(Random r, SpatialIndex<Box> index, int count) {
+        List<Box> boxes = new ArrayList<Box>();
+        for (int i = 0; i < count; i++) {
+            double size = r.nextInt(20) == 0 ? 3000 : 1 + r.nextInt(300);
+            Box b = new Box(r.nextInt(4000) - 200 + r.nextDouble(), r.nextInt(3000) - 200 + r.nextDouble(),
+                    size * r.nextDouble(), size * r.nextDouble());
+            boxes.add(b);
+            index.put(b, b.x, b.y, b.w, b.h);
+        }
+        return boxes;
+    }
+
+    @Test
+    void pointsFindWhatContainsThem() {
+        Random r = new Random(1);
+        SpatialIndex<Box> index = new SpatialIndex<Box>();
+        List<Box> boxes = boxes(r, index, 2000);
+
+        for (int q = 0; q < 500; q++) {
+            double x = r.nextInt(4000) - 100 + r.nextDouble(), y = r.nextInt(3000) - 100 + r.nextDouble();
+            List<Box> expected = new ArrayList<Box>();
+            for (Box b : boxes) {
+                if (x >= b.x && x <= b.x + b.w && y >= b.y && y <= b.y + b.h) {
+                    expected.add(b);
+                }
+            }
+            assertEquals(expected, index.query(x, y));
+        }
+    }
+
+    @Test
+    void rectanglesFindWhatTheyIntersect() {
+        Random r = new Random(2);
+        SpatialIndex<Box> index = new SpatialIndex<Box>(64);
+        List<Box> boxes = boxes(r, index, 2000);
+
+        for (int q = 0; q < 300; q++) {
+            //from a few pixels to more than the whole picture, which checks every object
+            double size = q % 10 == 0 ? 6000 : r.nextInt(600);
+            double x = r.nextInt(4000) - 300, y = r.nextInt(3000) - 300, w = size * r.nextDouble(), h = size * r.nextDouble();
+            List<Box> expected = new ArrayList<Box>();
+            for (Box b : boxes) {
+                if (b.x <= x + w && b.x + b.w >= x && b.y <= y + h && b.y + b.h >= y) {
+                    expected.add(b);
+                }
+            }
+            assertEquals(expected, index.query(x, y, w, h));
+        }
+    }
+
+    @Test
+    void strokesFindWhatTheyComeNear() {
+        Random r = new Random(3);
+        SpatialIndex<Box> index = new SpatialIndex<Box>();
+        List<Box> boxes = boxes(r, index, 1500);
+
+        for (int q = 0; q < 40; q++) {
+            int count = 1 + r.nextInt(12);
+            float[] points = new float[count * 2];
+            points[0] = r.nextInt(4000);
+            points[1] = r.nextInt(3000);
+            for (int i = 1; i < count; i++) {
+                points[i * 2] = points[i * 2 - 2] + r.nextInt(400) - 200;
+                points[i * 2 + 1] = points[i * 2 - 1] + r.nextInt(400) - 200;
+            }
+            double radius = 2 + r.nextInt(30);
+            List<Box> found = index.query(points, count, radius);
+
+            //measured along the stroke every tenth of a pixel, boxes right at the radius could go either way
+            for (Box b : boxes) {
+                double d = Double.MAX_VALUE;
+                for (int i = 0; i < count; i++) {
+                    int j = Math.max(i - 1, 0);
+                    //segments whose bounding box, grown by the radius, misses the box cannot come closer
+                    double grow = radius + 1;
+                    if (b.x > Math.max(points[i * 2], points[j * 2]) + grow || b.x + b.w < Math.min(points[i * 2], points[j * 2]) - grow
+                            || b.y > Math.max(points[i * 2 + 1], points[j * 2 + 1]) + grow
+                            || b.y + b.h < Math.min(points[i * 2 + 1], points[j * 2 + 1]) - grow) {
+                        continue;
+                    }
+                    double len = Math.hypot(points[i * 2] - points[j * 2], points[i * 2 + 1] - points[j * 2 + 1]);
+                    int steps = Math.max(1, (int) (len * 10));
+                    for (int s = 0; s <= steps; s++) {
+                        double t = (double) s / steps;
+                        d = Math.min(d, b.distance(points[j * 2] + t * (points[i * 2] - points[j * 2]),
+                                points[j * 2 + 1] + t * (points[i * 2 + 1] - points[j * 2 + 1])));
+                    }
+                }
+                if (d < radius - 0.1) {
+                    assertTrue(found.contains(b), "missed a box " + d + " away");
+                } else if (d > radius + 0.1) {
+                    assertFalse(found.contains(b), "found a box " + d + " away");
+                }
+            }
+        }
+    }
+
+    @Test
+    void movedObjectsKeepTheirPlace() {
+        SpatialIndex<String> index = new SpatialIndex<String>();
+        index.put("bottom", 0, 0, 100, 100);
+        index.put("middle", 500, 500, 10, 10);
+        index.put("top", 50, 50, 100, 100);
+        index.put("huge", -10000, -10000, 30000, 30000);
+
+        assertEquals(Arrays.asList("bottom", "top", "huge"), index.query(60, 60));
+        index.put("middle", 40, 40, 30, 30);
+        assertEquals(Arrays.asList("bottom", "middle", "top", "huge"), index.query(60, 60));
+        assertEquals(Arrays.asList("huge"), index.query(505, 505));
+
+        assertTrue(index.remove("top"));
+        assertFalse(index.remove("top"));
+        assertFalse(index.contains("top"));
+        assertEquals(3, index.size());
+        assertEquals(Arrays.asList("bottom", "middle", "huge"), index.query(0, 0, 200, 200));
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertTrue(index.query(60, 60).isEmpty());
+    }
+}
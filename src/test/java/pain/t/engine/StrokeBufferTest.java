@@ -0,0 +1,104 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Simplifying a stroke as its points come in must keep every point added
+ * within the tolerance of the points kept.
+ *
+ * @author Daniel Christensen
+ */
+class StrokeBufferTest {
+
+    //points closer than this to the last one are ignored, whatever the tolerance
+    private static final double ON_TOP = Math.sqrt(0.5);
+
+    /**
+     * Distance between a point and the line through the points kept.
+     */
+    private static double distance(float[] kept, double x, double y) {
+        double best = Math.hypot(x - kept[0], y - kept[1]);
+        for (int i = 2; i < kept.length; i += 2) {
+            double ax = kept[i - 2], ay = kept[i - 1], bx = kept[i], by = kept[i + 1];
+            double dx = bx - ax, dy = by - ay;
+            double len = dx * dx + dy * dy;
+            double t = len == 0 ? 0 : Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / len));
+            best = Math.min(best, Math.hypot(x - ax - t * dx, y - ay - t * dy));
+        }
+        return best;
+    }
+
+    @Test
+    void staysWithinTheTolerance() {
+        Random r = new Random(1);
+        for (double tolerance : new double[]{0.25, 1, 3}) {
+            StrokeBuffer stroke = new StrokeBuffer(tolerance);
+            double[] xs = new double[5000], ys = new double[5000];
+            double x = 500, y = 500, angle = 0;
+            for (int i = 0; i < xs.length; i++) {
+                //a wandering hand, with sudden turns now and then
+                angle += r.nextGaussian() * 0.2 + (r.nextInt(50) == 0 ? 2 : 0);
+                x += Math.cos(angle) * (0.2 + r.nextDouble() * 4);
+                y += Math.sin(angle) * (0.2 + r.nextDouble() * 4);
+                xs[i] = x;
+                ys[i] = y;
+                stroke.add(x, y);
+            }
+
+            float[] kept = stroke.toArray();
+            assertEquals(stroke.size() * 2, kept.length);
+            assertTrue(stroke.size() < xs.length, "simplified to " + stroke.size() + " points");
+            for (int i = 0; i < xs.length; i++) {
+                double d = distance(kept, xs[i], ys[i]);
+                assertTrue(d <= tolerance + ON_TOP + 1e-3, "point " + i + " is " + d + " away at tolerance " + tolerance);
+            }
+            assertEquals((float) xs[0], kept[0]);
+            assertEquals((float) ys[0], kept[1]);
+        }
+    }
+
+    @Test
+    void straightLinesKeepTheirEnds() {
+        StrokeBuffer stroke = new StrokeBuffer(0.5);
+        for (int i = 0; i <= 40; i++) {
+            stroke.add(10 + i * 2, 20 + i);
+        }
+
+        assertArrayEquals(new float[]{10, 20, 90, 60}, stroke.toArray());
+    }
+
+    @Test
+    void cornersAreKept() {
+        StrokeBuffer stroke = new StrokeBuffer(1);
+        for (int i = 0; i <= 20; i++) {
+            stroke.add(i * 3, 0);
+        }
+        for (int i = 1; i <= 20; i++) {
+            stroke.add(60, i * 3);
+        }
+
+        assertArrayEquals(new float[]{0, 0, 60, 0, 60, 60}, stroke.toArray());
+        assertEquals(60, stroke.getX(1));
+        assertEquals(60, stroke.getY(2));
+    }
+
+    @Test
+    void trimKeepsThePoints() {
+        StrokeBuffer stroke = new StrokeBuffer(0);
+        for (int i = 0; i < 100; i++) {
+            stroke.add(i * 2, i % 2 * 5);
+        }
+        float[] before = stroke.toArray();
+        stroke.trim();
+
+        assertEquals(100, stroke.size());
+        assertArrayEquals(before, stroke.toArray());
+        stroke.add(500, 500);
+        assertEquals(101, stroke.size());
+    }
+}
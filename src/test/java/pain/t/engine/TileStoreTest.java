@@ -0,0 +1,138 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static pain.t.engine.TileStore.TILE_SIZE;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tiles are only allocated once written, regions read back what was written
+ * across tile edges, and tiles shared with a snapshot or a save are copied
+ * before either side writes into them.
+ *
+ * @author Daniel Christensen
+ */
+class TileStoreTest {
+
+    //a size that does not end on a tile edge
+    private static final int W = TILE_SIZE * 2 + 37, H = TILE_SIZE + 11;
+
+    @Test
+    void readsTheFillUntilWritten() {
+        TileStore store = new TileStore(W, H, 0xff102030);
+        int[] px = new int[W * H];
+        store.read(0, 0, W, H, px, 0, W);
+
+        for (int p : px) {
+            assertEquals(0xff102030, p);
+        }
+        assertEquals(0, store.getAllocatedBytes());
+        assertEquals(3, store.getTilesX());
+        assertEquals(2, store.getTilesY());
+    }
+
+    @Test
+    void regionsCrossTileEdges() {
+        TileStore store = new TileStore(W, H, 0);
+        int x = TILE_SIZE + 10, y = TILE_SIZE - 5, rw = TILE_SIZE, rh = 14;
+        int[] src = new int[rw * rh];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = 0xff000000 | i;
+        }
+        store.write(x, y, rw, rh, src, 0, rw);
+
+        int[] dst = new int[rw * rh];
+        store.read(x, y, rw, rh, dst, 0, rw);
+        assertArrayEquals(src, dst);
+        assertEquals(src[0], store.getPixel(x, y));
+        assertEquals(src[src.length - 1], store.getPixel(x + rw - 1, y + rh - 1));
+        assertEquals(0, store.getPixel(x - 1, y));
+
+        //the region touched the four tiles on the right
+        assertNull(store.getTile(0, 0));
+        assertEquals(4L * TILE_SIZE * TILE_SIZE * 4, store.getAllocatedBytes());
+    }
+
+    @Test
+    void onlyTheTilesWrittenChangeVersion() {
+        TileStore store = new TileStore(W, H, 0);
+        int before = store.getVersion(0, 0);
+        long mods = store.getModCount();
+        store.fill(TILE_SIZE + 3, 4, 10, 10, 0xffffffff);
+
+        assertEquals(before, store.getVersion(0, 0));
+        assertNotEquals(before, store.getVersion(1, 0));
+        assertEquals(0, store.getVersion(1, 1));
+        assertTrue(store.getModCount() > mods);
+    }
+
+    @Test
+    void snapshotsAreIsolatedBothWays() {
+        TileStore store = new TileStore(W, H, 0xffffffff);
+        store.fill(0, 0, W, H, 0xff0000ff);
+        TileStore copy = store.snapshot();
+        assertTrue(copy.isSameAs(store));
+        assertSame(store.getTile(1, 1), copy.getTile(1, 1));
+
+        store.fill(10, 10, 5, 5, 0xffff0000);
+        assertFalse(copy.isSameAs(store));
+        assertEquals(0xff0000ff, copy.getPixel(12, 12));
+        assertEquals(0xffff0000, store.getPixel(12, 12));
+
+        copy.fill(TILE_SIZE + 1, 1, 5, 5, 0xff00ff00);
+        assertEquals(0xff0000ff, store.getPixel(TILE_SIZE + 2, 2));
+        assertEquals(0xff00ff00, copy.getPixel(TILE_SIZE + 2, 2));
+
+        //tiles neither of them wrote are still shared
+        assertSame(store.getTile(2, 1), copy.getTile(2, 1));
+    }
+
+    @Test
+    void sharedTilesNeverChange() {
+        TileStore store = new TileStore(W, H, 0);
+        store.fill(0, 0, 8, 8, 0xff112233);
+        int[] shared = store.shareTile(0, 0);
+        int[] kept = shared.clone();
+
+        store.fill(0, 0, 4, 4, 0xffffffff);
+        assertArrayEquals(kept, shared);
+        assertEquals(0xffffffff, store.getPixel(1, 1));
+
+        //once copied, the store writes into its own tile again
+        int[] own = store.tileForWrite(0, 0);
+        assertSame(own, store.tileForWrite(0, 0));
+    }
+
+    @Test
+    void readsLazyTilesOnceWithoutChanging() {
+        int[] tile = new int[TILE_SIZE * TILE_SIZE];
+        Arrays.fill(tile, 0xff445566);
+        int[] loads = new int[1];
+        TileStore store = new TileStore(W, H, 0);
+        store.setSource((tx, ty) -> {
+            loads[0]++;
+            return tx == 1 && ty == 0 ? tile : null;
+        });
+        long mods = store.getModCount();
+
+        assertFalse(store.isLoaded(1, 0));
+        assertEquals(0xff445566, store.getPixel(TILE_SIZE + 1, 1));
+        assertEquals(0xff445566, store.getPixel(TILE_SIZE + 2, 2));
+        assertEquals(0, store.getPixel(1, 1));
+        assertTrue(store.isLoaded(1, 0));
+        assertEquals(2, loads[0]);
+        assertEquals(mods, store.getModCount());
+
+        //a snapshot reads the tiles not read yet from the same source
+        TileStore copy = store.snapshot();
+        assertEquals(0, copy.getPixel(TILE_SIZE * 2 + 1, TILE_SIZE + 1));
+        assertEquals(3, loads[0]);
+    }
+}
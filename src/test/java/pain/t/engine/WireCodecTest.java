@@ -0,0 +1,88 @@
+package pain.t.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Operations written and read back by WireCodec, used by sessions. An
+ * operation read back must draw exactly the same pixels as the one written.
+ *
+ * @author Daniel Christensen
+ */
+class WireCodecTest {
+
+    @Test
+    void everyKindRoundTrips() throws IOException {
+        List<Operation> ops = OpCodecTest.operations();
+        byte[] bytes = WireCodec.writeAll(ops);
+        Operation[] read = WireCodec.readAll(new DataInputStream(new ByteArrayInputStream(bytes)));
+
+        assertEquals(ops.size(), read.length);
+        for (int i = 0; i < read.length; i++) {
+            assertEquals(ops.get(i).getClass(), read[i].getClass());
+            assertArrayEquals(OpCodecTest.draw(ops.get(i)), OpCodecTest.draw(read[i]), ops.get(i).getClass().getSimpleName() + " draws differently");
+        }
+    }
+
+    @Test
+    void strokeKeepsItsFields() throws IOException {
+        StrokeOp op = new StrokeOp(new float[]{1.5f, 2, 3, 4.75f}, 0xff123456, 6.5, true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WireCodec.write(new DataOutputStream(bytes), op);
+        StrokeOp read = (StrokeOp) WireCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertArrayEquals(op.getPoints(), read.getPoints());
+        assertEquals(op.getColor(), read.getColor());
+        assertEquals(op.getWidth(), read.getWidth());
+        assertEquals(op.isErase(), read.isErase());
+    }
+
+    @Test
+    void zoomedStrokesStayCompact() throws IOException {
+        //the mouse on a canvas zoomed to 150%, at thirds of a pixel
+        float[] points = new float[200];
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] = (300 + i) / 1.5f;
+            points[i + 1] = (200 + i % 7) / 1.5f;
+        }
+        StrokeOp raw = new StrokeOp(points.clone(), 0xff000000, 3, false);
+        StrokeOp snapped = new StrokeOp(WireCodec.snap(points), 0xff000000, 3, false);
+
+        byte[] rawBytes = WireCodec.writeAll(Collections.<Operation>singletonList(raw));
+        byte[] bytes = WireCodec.writeAll(Collections.<Operation>singletonList(snapped));
+        assertTrue(rawBytes.length > points.length * 5, "fractions are written as doubles");
+        assertTrue(bytes.length < points.length * 2, bytes.length + " bytes");
+
+        //rounded by less than a sixteenth of a pixel, and read back identical
+        for (int i = 0; i < points.length; i++) {
+            assertEquals(raw.getPoints()[i], points[i], 1 / 16.0);
+        }
+        StrokeOp read = (StrokeOp) WireCodec.readAll(new DataInputStream(new ByteArrayInputStream(bytes)))[0];
+        assertArrayEquals(points, read.getPoints());
+    }
+
+    @Test
+    void varintRoundTrip() throws IOException {
+        long[] values = {0, 1, 127, 128, 300, 1L << 31, Long.MAX_VALUE};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (long v : values) {
+            WireCodec.writeVarint(out, v);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long v : values) {
+            assertEquals(v, WireCodec.readVarint(in));
+        }
+    }
+}